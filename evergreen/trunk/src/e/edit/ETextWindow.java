@@ -619,10 +619,11 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         
         // If the on-disk content is the same as what we have in memory, then
         // the fact that the time stamp is different isn't significant.
+        // We compare digests rather than copying both into Strings, because
+        // after something like a "git checkout", every open window does this
+        // at once.
         try {
-            String currentContentInMemory = textArea.getText();
-            String currentContentOnDisk = StringUtilities.readFile(file);
-            if (currentContentInMemory.equals(currentContentOnDisk)) {
+            if (textArea.getTextBuffer().hasSameContentAs(file)) {
                 lastModifiedTime = file.lastModified();
                 return false;
             }
@@ -684,7 +685,7 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
             configureForGuessedFileType();
             updateWatermarkAndTitleBar();
             tagsUpdater.updateTags();
-            SaveMonitor.getInstance().fireSaveListeners();
+            SaveMonitor.getInstance().fireSaveListeners(file);
             return true;
         } catch (Exception ex) {
             editor.showStatus("");
@@ -591,6 +591,9 @@ public class Evergreen {
         JFrameUtilities.writeGeometriesTo(getDialogGeometriesPreferenceFilename());
         writeSavedState();
         preferences.writeToDisk();
+        for (Workspace workspace : getWorkspaces()) {
+            workspace.getFileList().saveSymbolIndex();
+        }
     }
     
     /** Returns the full pathname for the given preference file. */
@@ -44,6 +44,21 @@ public class FileIgnorer implements FileFinder.Filter {
         return !isIgnored(directory, true) && (followSymbolicLinks || !stat.isSymbolicLink());
     }
     
+    /**
+     * Two FileIgnorers are equal if they'd ignore the same files, which lets FileFinder reuse decisions made by an earlier one.
+     */
+    @Override public boolean equals(Object o) {
+        if (o instanceof FileIgnorer == false) {
+            return false;
+        }
+        FileIgnorer other = (FileIgnorer) o;
+        return (rootDirectory == null ? other.rootDirectory == null : rootDirectory.equals(other.rootDirectory)) && ignoredExtensions.equals(other.ignoredExtensions) && uninterestingDirectoryNames.pattern().equals(other.uninterestingDirectoryNames.pattern()) && followSymbolicLinks == other.followSymbolicLinks;
+    }
+    
+    @Override public int hashCode() {
+        return ignoredExtensions.hashCode() ^ uninterestingDirectoryNames.pattern().hashCode();
+    }
+    
     private boolean isIgnored(File file, boolean isDirectory) {
         String filename = file.getName();
         // FIXME: if it were cheap, we'd use File.isHidden. But it's unnecessarily expensive on Unix and not obviously useful on Windows.
@@ -33,6 +33,9 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
     /** We share these between all workspaces, to make it harder to accidentally launch a denial-of-service attack against ourselves. */
     private static final ExecutorService definitionFinderExecutor = ThreadUtilities.newFixedThreadPool(8, "Find Definitions");
     
+    /** Each DefinitionFinder tags this many files with one ctags process; any more and the other threads would have nothing to do. */
+    private static final int MAX_DEFINITION_FINDER_BATCH_SIZE = 64;
+    
     /** Which workspace is this "Find in Files" for? */
     private final Workspace workspace;
     
@@ -99,9 +102,6 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             this.name = name;
             this.matchCount = matchCount;
             this.pattern = pattern;
-            if (pattern != null) {
-                definitionFinderExecutor.submit(new DefinitionFinder(file, pattern, this));
-            }
         }
         
         public void setContainsDefinition(boolean newState) {
@@ -156,19 +156,46 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
         }
     }
     
-    public class FileFinder extends SwingWorker<DefaultMutableTreeNode, DefaultMutableTreeNode> {
+    /**
+     * The lines of one file that matched, on their way from a search thread to the event dispatch thread.
+     */
+    private static class FileMatches {
+        private final String candidate;
+        private final File file;
+        // Null for matches based just on filename.
+        private final List<String> lines;
+        
+        private FileMatches(String candidate, File file, List<String> lines) {
+            this.candidate = candidate;
+            this.file = file;
+            this.lines = lines;
+        }
+    }
+    
+    /**
+     * Searches the files on a pool of threads, publishing each matching file
+     * as soon as it's found. SwingWorker coalesces whatever's been published
+     * while the event dispatch thread was busy into one call of 'process', so
+     * the tree is only ever touched there, a batch at a time, and the search
+     * threads never wait for each other or for the UI.
+     */
+    public class FileFinder extends SwingWorker<DefaultMutableTreeNode, FileMatches> {
         private List<String> fileList;
         private DefaultMutableTreeNode matchRoot;
         private String regex;
         private String fileRegex;
         private String errorMessage;
         
+        // Only accessed on the event dispatch thread.
         private HashMap<String, DefaultMutableTreeNode> pathMap = new HashMap<String, DefaultMutableTreeNode>();
         
+        private Pattern pattern;
+        
         private int sequenceNumber;
         
         private AtomicInteger doneFileCount;
         private AtomicInteger matchingFileCount;
+        private AtomicInteger staleFileCount;
         private int totalFileCount;
         private int percentage;
         
@@ -185,6 +212,7 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             
             this.doneFileCount = new AtomicInteger(0);
             this.matchingFileCount = new AtomicInteger(0);
+            this.staleFileCount = new AtomicInteger(0);
             this.totalFileCount = fileList.size();
             this.percentage = -1;
             
@@ -208,12 +236,23 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             endTimeNs = 0;
             
             try {
-                Pattern pattern = PatternUtilities.smartCaseCompile(regex);
+                pattern = PatternUtilities.smartCaseCompile(regex);
+                // The FileSearcher works out what it can from the pattern up front, so we share one between all the threads.
+                final FileSearcher fileSearcher = new FileSearcher(pattern);
+                
+                // The content index can rule out files that don't contain the pattern's literal part, as long as they haven't changed since.
+                final TrigramIndex contentIndex = workspace.getFileList().getContentIndex();
+                final BitSet candidates = (regex.length() != 0) ? contentIndex.getCandidates(FileSearcher.getRequiredLiteral(pattern)) : null;
                 
                 final int threadCount = Runtime.getRuntime().availableProcessors() + 1;
                 ThreadPoolExecutor executor = (ThreadPoolExecutor) ThreadUtilities.newFixedThreadPool(threadCount, "find-in-files");
                 for (String candidate : fileList) {
-                    executor.execute(new FileSearchRunnable(candidate, pattern));
+                    final int id = (candidates != null) ? contentIndex.getId(candidate) : -1;
+                    if (id != -1 && candidates.get(id) == false) {
+                        executor.execute(new FileSearchRunnable(candidate, fileSearcher, true, contentIndex.getVersion(id)));
+                    } else {
+                        executor.execute(new FileSearchRunnable(candidate, fileSearcher, false, 0));
+                    }
                 }
                 executor.shutdown();
                 try {
@@ -222,6 +261,10 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
                     ex = ex; // Fine; we're still finished.
                 }
                 
+                if (staleFileCount.get() > 0) {
+                    workspace.getFileList().updateContentIndex();
+                }
+                
                 endTimeNs = System.nanoTime();
                 Log.warn("Search for \"" + regex + "\" in files matching \"" + fileRegex + "\" took " + TimeUtilities.nsToString(endTimeNs - startTimeNs) + ".");
             } catch (PatternSyntaxException ex) {
@@ -237,17 +280,15 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             String pathSoFar = "";
             DefaultMutableTreeNode parentNode = matchRoot;
             DefaultMutableTreeNode node = matchRoot;
-            synchronized (matchView) {
-                for (int i = 0; i < pathElements.length - 1; ++i) {
-                    pathSoFar += pathElements[i] + File.separator;
-                    node = pathMap.get(pathSoFar);
-                    if (node == null) {
-                        node = new DefaultMutableTreeNode(pathElements[i] + File.separator);
-                        insertNodeInAlphabeticalOrder(parentNode, node);
-                        pathMap.put(pathSoFar, node);
-                    }
-                    parentNode = node;
+            for (int i = 0; i < pathElements.length - 1; ++i) {
+                pathSoFar += pathElements[i] + File.separator;
+                node = pathMap.get(pathSoFar);
+                if (node == null) {
+                    node = new DefaultMutableTreeNode(pathElements[i] + File.separator);
+                    insertNodeInAlphabeticalOrder(parentNode, node);
+                    pathMap.put(pathSoFar, node);
                 }
+                parentNode = node;
             }
             return node;
         }
@@ -255,20 +296,23 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
         /**
          * Ensure that newNode is inserted at the correct index in parentNode to preserve case-insensitive alphabetical ordering.
          * We originally just used DefaultMutableTreeNode.add, but that doesn't work when multiple threads are returning matches in no particular order.
-         * FIXME: given that on contemporary hardware matches come back "roughly" in order, should we search for the insertion position from the back?
+         * The children are always in order, so we binary search for the insertion position; a directory with thousands of matching files would otherwise be quadratic.
          */
         private void insertNodeInAlphabeticalOrder(DefaultMutableTreeNode parentNode, DefaultMutableTreeNode newNode) {
-            // Find the index to insert at.
+            // Find the index to insert at: the first child not less than the new node.
             // We compare strings, because the tree nodes are a mixture of Strings (for directories) and MatchingFiles (for matching files).
             final String newValueString = newNode.getUserObject().toString();
             int insertionIndex = 0;
-            while (insertionIndex < parentNode.getChildCount()) {
-                DefaultMutableTreeNode thisNode = (DefaultMutableTreeNode) parentNode.getChildAt(insertionIndex);
+            int high = parentNode.getChildCount();
+            while (insertionIndex < high) {
+                final int mid = (insertionIndex + high) >>> 1;
+                DefaultMutableTreeNode thisNode = (DefaultMutableTreeNode) parentNode.getChildAt(mid);
                 String thisValueString = thisNode.getUserObject().toString();
                 if (String.CASE_INSENSITIVE_ORDER.compare(thisValueString, newValueString) >= 0) {
-                    break;
+                    high = mid;
+                } else {
+                    insertionIndex = mid + 1;
                 }
-                ++insertionIndex;
             }
             // Insert it, and make sure the model understands what we did.
             parentNode.insert(newNode, insertionIndex);
@@ -276,16 +320,34 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
         }
         
         @Override
-        protected void process(List<DefaultMutableTreeNode> treeNodes) {
+        protected void process(List<FileMatches> batch) {
             if (!shouldStillWorkOn(sequenceNumber)) {
                 return;
             }
             
-            synchronized (matchView) {
-                for (DefaultMutableTreeNode node : treeNodes) {
-                    // I've no idea why new nodes default to being collapsed.
-                    matchView.expandOrCollapsePath(node.getPath(), true);
+            ArrayList<MatchingFile> matchingFiles = new ArrayList<MatchingFile>();
+            for (FileMatches fileMatches : batch) {
+                DefaultMutableTreeNode pathNode = getPathNode(fileMatches.candidate);
+                DefaultMutableTreeNode fileNode;
+                if (fileMatches.lines != null) {
+                    MatchingFile matchingFile = new MatchingFile(fileMatches.file, fileMatches.candidate, fileMatches.lines.size(), pattern);
+                    matchingFiles.add(matchingFile);
+                    fileNode = new DefaultMutableTreeNode(matchingFile);
+                    for (String line : fileMatches.lines) {
+                        fileNode.add(new DefaultMutableTreeNode(new MatchingLine(line, fileMatches.file, pattern)));
+                    }
+                } else {
+                    fileNode = new DefaultMutableTreeNode(new MatchingFile(fileMatches.file, fileMatches.candidate));
                 }
+                insertNodeInAlphabeticalOrder(pathNode, fileNode);
+                // I've no idea why new nodes default to being collapsed.
+                matchView.expandOrCollapsePath((fileMatches.lines != null ? fileNode : pathNode).getPath(), true);
+            }
+            
+            // Look for definitions a batch of files at a time, rather than starting a ctags process for each file.
+            for (int i = 0; i < matchingFiles.size(); i += MAX_DEFINITION_FINDER_BATCH_SIZE) {
+                List<MatchingFile> definitionFinderBatch = matchingFiles.subList(i, Math.min(matchingFiles.size(), i + MAX_DEFINITION_FINDER_BATCH_SIZE));
+                definitionFinderExecutor.submit(new DefinitionFinder(definitionFinderBatch, pattern, workspace.getFileList().getSymbolIndex()));
             }
         }
         
@@ -317,11 +379,15 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
         
         private class FileSearchRunnable implements Runnable {
             private String candidate;
-            private Pattern pattern;
+            private FileSearcher fileSearcher;
+            private boolean ruledOutByIndex;
+            private long indexedVersion;
             
-            private FileSearchRunnable(String candidate, Pattern pattern) {
+            private FileSearchRunnable(String candidate, FileSearcher fileSearcher, boolean ruledOutByIndex, long indexedVersion) {
                 this.candidate = candidate;
-                this.pattern = pattern;
+                this.fileSearcher = fileSearcher;
+                this.ruledOutByIndex = ruledOutByIndex;
+                this.indexedVersion = indexedVersion;
             }
             
             public void run() {
@@ -330,7 +396,6 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
                 }
                 try {
                     final long t0 = System.nanoTime();
-                    FileSearcher fileSearcher = new FileSearcher(pattern);
                     File file = FileUtilities.fileFromParentAndString(workspace.getRootDirectory(), candidate);
                     
                     // Update our percentage-complete status, but only if we've
@@ -341,6 +406,14 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
                         updateStatus();
                     }
                     
+                    if (ruledOutByIndex) {
+                        if (WorkspaceFileList.fileVersion(file) == indexedVersion) {
+                            return;
+                        }
+                        // It's changed since it was indexed, so we'll have to look for ourselves.
+                        staleFileCount.incrementAndGet();
+                    }
+                    
                     if (regex.length() != 0) {
                         ArrayList<String> matches = new ArrayList<String>();
                         boolean wasText = fileSearcher.searchFile(file, matches);
@@ -352,29 +425,13 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
                         if (TimeUtilities.nsToS(t1 - t0) > 0.5) {
                             Log.warn("Searching file \"" + file + "\" for \"" + regex + "\" took " + TimeUtilities.nsToString(t1 - t0) + "!");
                         }
-                        final int matchCount = matches.size();
-                        if (matchCount > 0) {
-                            synchronized (matchView) {
-                                DefaultMutableTreeNode pathNode = getPathNode(candidate);
-                                MatchingFile matchingFile = new MatchingFile(file, candidate, matchCount, pattern);
-                                DefaultMutableTreeNode fileNode = new DefaultMutableTreeNode(matchingFile);
-                                for (String line : matches) {
-                                    fileNode.add(new DefaultMutableTreeNode(new MatchingLine(line, file, pattern)));
-                                }
-                                insertNodeInAlphabeticalOrder(pathNode, fileNode);
-                                matchingFileCount.incrementAndGet();
-                                // Make sure the new node gets expanded.
-                                publish(fileNode);
-                            }
-                        }
-                    } else {
-                        synchronized (matchView) {
-                            DefaultMutableTreeNode pathNode = getPathNode(candidate);
-                            DefaultMutableTreeNode fileNode = new DefaultMutableTreeNode(new MatchingFile(file, candidate));
-                            insertNodeInAlphabeticalOrder(pathNode, fileNode);
+                        if (matches.size() > 0) {
                             matchingFileCount.incrementAndGet();
-                            publish(pathNode);
+                            publish(new FileMatches(candidate, file, matches));
                         }
+                    } else {
+                        matchingFileCount.incrementAndGet();
+                        publish(new FileMatches(candidate, file, null));
                     }
                 } catch (FileNotFoundException ex) {
                     // This special case is worthwhile if your workspace's index is out of date.
@@ -387,16 +444,18 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
         }
     }
     
-    public static class DefinitionFinder implements Runnable, TagReader.TagListener {
-        private final File file;
-        private final MatchingFile matchingFile;
+    public static class DefinitionFinder implements Runnable {
+        private final List<MatchingFile> matchingFiles;
         private final Pattern pattern;
+        private final SymbolIndex symbolIndex;
         private final int sequenceNumber;
+        // So a batch that ctags can't handle only complains once.
+        private boolean failureReported = false;
         
-        public DefinitionFinder(File file, Pattern pattern, MatchingFile matchingFile) {
-            this.file = file;
-            this.matchingFile = matchingFile;
+        public DefinitionFinder(List<MatchingFile> matchingFiles, Pattern pattern, SymbolIndex symbolIndex) {
+            this.matchingFiles = matchingFiles;
             this.pattern = pattern;
+            this.symbolIndex = symbolIndex;
             this.sequenceNumber = currentSequenceNumber.get();
         }
         
@@ -404,25 +463,64 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             if (!shouldStillWorkOn(sequenceNumber)) {
                 return;
             }
+            ArrayList<File> files = new ArrayList<File>();
+            ArrayList<TagReader.TagListener> listeners = new ArrayList<TagReader.TagListener>();
+            for (MatchingFile matchingFile : matchingFiles) {
+                // Files the symbol index is up to date for needn't be tagged again.
+                int fileId = symbolIndex.getFileId(matchingFile.name);
+                if (fileId != -1 && symbolIndex.getVersion(fileId) == WorkspaceFileList.fileVersion(matchingFile.file)) {
+                    checkIndexedSymbols(matchingFile, fileId);
+                    continue;
+                }
+                files.add(matchingFile.file);
+                listeners.add(new DefinitionListener(matchingFile));
+            }
+            if (files.isEmpty()) {
+                return;
+            }
             // FIXME: obviously not all files are really UTF-8.
-            new TagReader(file, null, "UTF-8", this);
+            TagReader.readTags(files, "UTF-8", listeners);
         }
         
-        public void tagFound(TagReader.Tag tag) {
-            // Function prototypes and Java packages probably aren't interesting.
-            if (tag.type == TagType.PROTOTYPE) {
-               return;
-            }
-            if (tag.type == TagType.PACKAGE) {
-               return;
-            }
-            if (pattern.matcher(tag.identifier).find()) {
-                matchingFile.setContainsDefinition(true);
+        private void checkIndexedSymbols(MatchingFile matchingFile, int fileId) {
+            for (SymbolIndex.Symbol symbol : symbolIndex.getSymbolsIn(fileId)) {
+                // As below, function prototypes and Java packages probably aren't interesting.
+                if (symbol.kind.equals(TagType.PROTOTYPE.getName()) || symbol.kind.equals(TagType.PACKAGE.getName())) {
+                    continue;
+                }
+                if (pattern.matcher(symbol.name).find()) {
+                    matchingFile.setContainsDefinition(true);
+                    return;
+                }
             }
         }
         
-        public void taggingFailed(Exception ex) {
-            Log.warn("Failed to use ctags(1) to check for a definition.", ex);
+        private class DefinitionListener implements TagReader.TagListener {
+            private final MatchingFile matchingFile;
+            
+            private DefinitionListener(MatchingFile matchingFile) {
+                this.matchingFile = matchingFile;
+            }
+            
+            public void tagFound(TagReader.Tag tag) {
+                // Function prototypes and Java packages probably aren't interesting.
+                if (tag.type == TagType.PROTOTYPE) {
+                   return;
+                }
+                if (tag.type == TagType.PACKAGE) {
+                   return;
+                }
+                if (pattern.matcher(tag.identifier).find()) {
+                    matchingFile.setContainsDefinition(true);
+                }
+            }
+            
+            public void taggingFailed(Exception ex) {
+                if (failureReported == false) {
+                    failureReported = true;
+                    Log.warn("Failed to use ctags(1) to check for a definition.", ex);
+                }
+            }
         }
     }
     
@@ -573,7 +671,7 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
     private void initSaveMonitor() {
         // Register for notifications of files saved while our dialog is up, so we can update the matches.
         final SaveMonitor.Listener saveListener = new SaveMonitor.Listener() {
-            public void fileSaved() {
+            public void fileSaved(File file) {
                 // FIXME: Ideally, we'd be a bit more intelligent about this than re-searching the whole tree.
                 showMatches();
             }
@@ -33,29 +33,20 @@ public class GoToTagAction extends ETextAction {
             return;
         }
         
-        final String workspaceRoot = Evergreen.getInstance().getCurrentWorkspace().getRootDirectory();
+        final Workspace workspace = Evergreen.getInstance().getCurrentWorkspace();
+        final String workspaceRoot = workspace.getRootDirectory();
         
-        // Call our helper to find the tags for us.
-        final String defaultFindTagsExecutable = Evergreen.getResourceFilename("lib", "scripts", "find-tags.rb");
-        final String findTagsExecutable = Parameters.getString("tags.findTagsTool", defaultFindTagsExecutable);
-        // FIXME: we could usefully check for a "tags" file, and maybe even offer to generate a usable one, but we'd need some kind of override in case a custom tool doesn't use a file.
-        // FIXME: if Evergreen knew how to regenerate the tags, we could perhaps link it to "rescan".
-        ArrayList<String> lines = new ArrayList<String>();
-        ArrayList<String> errors = new ArrayList<String>();
-        int status = ProcessUtilities.backQuote(FileUtilities.fileFromString(workspaceRoot), new String[] { findTagsExecutable, tagName }, lines, errors);
-        if (status == 1 || errors.size() > 0) {
-            Evergreen.getInstance().showAlert("Unable to go to tag", findTagsExecutable + " failed. Error output:\n" + StringUtilities.join(errors, "\n"));
-            return;
-        }
-        
-        // Pull the addresses out of the matches.
-        // We assume the output is in a form similar to http://code.google.com/p/google-gtags/ so people can use that or the default script we supply.
+        // Unless the user's configured a tool of their own, the workspace's symbol index can usually answer without running anything.
         ArrayList<String> addresses = new ArrayList<String>();
-        final Pattern pattern = Pattern.compile("^([^\t]+:\\d+)");
-        for (String line: lines) {
-            Matcher matcher = pattern.matcher(line);
-            if (matcher.find()) {
-                addresses.add(matcher.group(1) + ":");
+        if (Parameters.getString("tags.findTagsTool", null) == null) {
+            for (SymbolIndex.Symbol symbol : workspace.getFileList().getSymbolIndex().getSymbolsNamed(tagName)) {
+                addresses.add(symbol.path + ":" + symbol.lineNumber + ":");
+            }
+        }
+        if (addresses.size() == 0) {
+            addresses = findTagsWithTool(workspaceRoot, tagName);
+            if (addresses == null) {
+                return;
             }
         }
         
@@ -78,4 +69,34 @@ public class GoToTagAction extends ETextAction {
             form.showNonModal();
         }
     }
+    
+    /**
+     * Returns the addresses of the tags called 'tagName' according to the find-tags tool, or null if the tool failed.
+     */
+    private ArrayList<String> findTagsWithTool(String workspaceRoot, String tagName) {
+        // Call our helper to find the tags for us.
+        final String defaultFindTagsExecutable = Evergreen.getResourceFilename("lib", "scripts", "find-tags.rb");
+        final String findTagsExecutable = Parameters.getString("tags.findTagsTool", defaultFindTagsExecutable);
+        // FIXME: we could usefully check for a "tags" file, and maybe even offer to generate a usable one, but we'd need some kind of override in case a custom tool doesn't use a file.
+        // FIXME: if Evergreen knew how to regenerate the tags, we could perhaps link it to "rescan".
+        ArrayList<String> lines = new ArrayList<String>();
+        ArrayList<String> errors = new ArrayList<String>();
+        int status = ProcessUtilities.backQuote(FileUtilities.fileFromString(workspaceRoot), new String[] { findTagsExecutable, tagName }, lines, errors);
+        if (status == 1 || errors.size() > 0) {
+            Evergreen.getInstance().showAlert("Unable to go to tag", findTagsExecutable + " failed. Error output:\n" + StringUtilities.join(errors, "\n"));
+            return null;
+        }
+        
+        // Pull the addresses out of the matches.
+        // We assume the output is in a form similar to http://code.google.com/p/google-gtags/ so people can use that or the default script we supply.
+        ArrayList<String> addresses = new ArrayList<String>();
+        final Pattern pattern = Pattern.compile("^([^\t]+:\\d+)");
+        for (String line: lines) {
+            Matcher matcher = pattern.matcher(line);
+            if (matcher.find()) {
+                addresses.add(matcher.group(1) + ":");
+            }
+        }
+        return addresses;
+    }
 }
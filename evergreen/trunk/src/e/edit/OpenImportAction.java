@@ -76,6 +76,26 @@ public class OpenImportAction extends ETextAction {
                 return;
             }
         }
+        
+        // A Java class needn't be under any directory on the import path, but the workspace's symbol index knows where every class is defined.
+        if (fileType == FileType.JAVA && openIndexedClass(editor.getCurrentWorkspace(), path)) {
+            return;
+        }
         editor.showAlert("Couldn't open imported file", "There was no file \"" + path + "\" under any of the directories on the import path:\n" + StringUtilities.join(importPath, ":"));
     }
+    
+    /**
+     * Opens the file that the symbol index says defines the class whose source would be at the given path fragment, returning false if there's no such file.
+     */
+    private boolean openIndexedClass(Workspace workspace, String path) {
+        final String className = path.substring(path.lastIndexOf('/') + 1, path.length() - ".java".length());
+        for (SymbolIndex.Symbol symbol : workspace.getFileList().getSymbolIndex().getSymbolsNamed(className)) {
+            // The package has to match too, which it will if the file's in the usual place for its package.
+            if (symbol.path.replace(File.separatorChar, '/').endsWith(path)) {
+                Evergreen.getInstance().openFile(FileUtilities.fileFromParentAndString(workspace.getRootDirectory(), symbol.path).toString());
+                return true;
+            }
+        }
+        return false;
+    }
 }
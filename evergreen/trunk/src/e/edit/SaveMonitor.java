@@ -1,5 +1,6 @@
 package e.edit;
 
+import java.io.*;
 import java.util.*;
 
 /**
@@ -30,19 +31,19 @@ public class SaveMonitor {
     }
     
     /**
-     * Informs all listeners that a file has been saved.
+     * Informs all listeners that 'file' has been saved.
      */
-    public synchronized void fireSaveListeners() {
+    public synchronized void fireSaveListeners(File file) {
         for (int i = saveListeners.size() - 1; i >= 0; --i) {
             SaveMonitor.Listener listener = saveListeners.get(i);
-            listener.fileSaved();
+            listener.fileSaved(file);
         }
     }
     
     public interface Listener {
         /**
-         * Invoked when a file is saved.
+         * Invoked when 'file' is saved.
          */
-        public void fileSaved();
+        public void fileSaved(File file);
     }
 }
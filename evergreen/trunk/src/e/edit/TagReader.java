@@ -8,32 +8,118 @@ import java.util.*;
 import java.util.regex.*;
 
 public class TagReader {
-    private static final Pattern TAG_LINE_PATTERN = Pattern.compile("([^\t]+)\t(?:[^\t])+\t(\\d+);\"\t(\\w)(?:\t(.*))?");
+    private static final Pattern TAG_LINE_PATTERN = Pattern.compile("([^\t]+)\t([^\t]+)\t(\\d+);\"\t(\\w)(?:\t(.*))?");
     private static final Pattern CLASS_PATTERN = Pattern.compile("(class|enum|interface|namespace|struct|union):([^\t]+).*");
     
+    // Enough to tag a useful batch in one go, without getting anywhere near the system's limit on the length of a command line.
+    private static final int MAX_FILES_PER_CTAGS_RUN = 256;
+    
+    // Enough for the files of a big "Find in Files", or a day of flipping between windows.
+    private static final int MAX_CACHED_FILE_COUNT = 4096;
+    
+    /**
+     * Ctags's output for content we've already tagged, keyed by the MD5 digest of the content and by whatever chose the language.
+     * When we force the language, that's all that matters, so this works for TagsUpdater's temporary copies of unsaved buffers too.
+     * Otherwise ctags guesses the language from the file's name (its extension, or names like "Makefile"), so the same content under another name is tagged again.
+     * Any other access must hold this map's lock.
+     */
+    private static final Map<String, List<String>> tagLinesCache = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > MAX_CACHED_FILE_COUNT;
+        }
+    };
+    
     private TagListener listener;
     private FileType fileType;
-    private String charsetName;
     
+    /**
+     * Tags 'file', passing the tags to 'tagListener' before returning.
+     * A null 'fileType' lets ctags guess the language.
+     */
     public TagReader(File file, FileType fileType, String charsetName, TagListener tagListener) {
-        this.listener = tagListener;
-        this.fileType = fileType;
-        this.charsetName = charsetName;
-        
-        File tagsFile = null;
+        this(fileType, tagListener);
         try {
-            tagsFile = createTagsFileFor(file);
-            readTagsFile(tagsFile);
+            readTags(Collections.singletonList(file), fileType, charsetName, Collections.singletonList(this));
         } catch (Exception ex) {
             listener.taggingFailed(ex);
-        } finally {
-            if (tagsFile != null) {
-                tagsFile.delete();
+        }
+    }
+    
+    private TagReader(FileType fileType, TagListener tagListener) {
+        this.listener = tagListener;
+        this.fileType = fileType;
+    }
+    
+    /**
+     * Tags each of 'files', letting ctags guess their languages, and passes each file's tags to the listener at the same index in 'listeners'.
+     * Files whose content we've tagged before are answered from a cache, and the rest are tagged together, so tagging thousands of files doesn't mean starting thousands of processes.
+     */
+    public static void readTags(List<File> files, String charsetName, List<TagListener> listeners) {
+        ArrayList<TagReader> tagReaders = new ArrayList<TagReader>();
+        for (TagListener listener : listeners) {
+            tagReaders.add(new TagReader(null, listener));
+        }
+        for (int i = 0; i < files.size(); i += MAX_FILES_PER_CTAGS_RUN) {
+            final int end = Math.min(files.size(), i + MAX_FILES_PER_CTAGS_RUN);
+            readTags(files.subList(i, end), null, charsetName, tagReaders.subList(i, end));
+        }
+    }
+    
+    private static void readTags(List<File> files, FileType fileType, String charsetName, List<TagReader> tagReaders) {
+        // Look in the cache first, and collect whatever's left over to give to ctags.
+        final String language = (fileType != null) ? ctagsLanguageForFileType(fileType) : null;
+        String[] cacheKeys = new String[files.size()];
+        ArrayList<List<String>> tagLines = new ArrayList<List<String>>();
+        Map<String, List<String>> untaggedFiles = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < files.size(); ++i) {
+            final File file = files.get(i);
+            final String digest = FileUtilities.md5(file);
+            final String languageKey = (language != null) ? ("language=" + language) : ("name=" + file.getName());
+            // If we couldn't read the file, we let ctags try, and don't remember the answer.
+            cacheKeys[i] = (digest != null) ? (languageKey + ":" + digest) : null;
+            List<String> lines = null;
+            if (cacheKeys[i] != null) {
+                synchronized (tagLinesCache) {
+                    lines = tagLinesCache.get(cacheKeys[i]);
+                }
+            }
+            if (lines == null) {
+                lines = untaggedFiles.get(file.getAbsolutePath());
+                if (lines == null) {
+                    lines = new ArrayList<String>();
+                    untaggedFiles.put(file.getAbsolutePath(), lines);
+                }
+            } else {
+                cacheKeys[i] = null;
+            }
+            tagLines.add(lines);
+        }
+        
+        if (untaggedFiles.isEmpty() == false) {
+            try {
+                runCtags(untaggedFiles, fileType, charsetName);
+            } catch (Exception ex) {
+                for (int i = 0; i < files.size(); ++i) {
+                    if (untaggedFiles.containsKey(files.get(i).getAbsolutePath())) {
+                        tagReaders.get(i).listener.taggingFailed(ex);
+                    }
+                }
+                return;
+            }
+        }
+        
+        for (int i = 0; i < files.size(); ++i) {
+            // Only freshly-made tags have a key at this point.
+            if (cacheKeys[i] != null) {
+                synchronized (tagLinesCache) {
+                    tagLinesCache.put(cacheKeys[i], tagLines.get(i));
+                }
             }
+            tagReaders.get(i).processTagLines(tagLines.get(i));
         }
     }
     
-    private String chooseCtagsBinary() {
+    private static String chooseCtagsBinary() {
         // We don't cache this to give the user a chance to fix things while we're running.
         for (String candidateCtags : Arrays.asList("ctags-exuberant", "exuberant-ctags", "ectags")) {
             if (FileUtilities.findOnPath(candidateCtags) != null) {
@@ -43,10 +129,11 @@ public class TagReader {
         return "ctags";
     }
     
-    private File createTagsFileFor(File file) throws IOException {
-        File tagsFile = File.createTempFile("e.edit.TagReader-tags-", ".tags");
-        tagsFile.deleteOnExit();
-        
+    /**
+     * Runs ctags once on all the files named by the keys of 'tagLines', adding each tag line to the list for the file it's in.
+     * The tags come back through a pipe rather than a temporary tags file.
+     */
+    private static void runCtags(final Map<String, List<String>> tagLines, FileType fileType, String charsetName) throws IOException, InterruptedException {
         ArrayList<String> command = new ArrayList<String>();
         command.add(chooseCtagsBinary());
         command.add("--c++-types=+p");
@@ -59,18 +146,45 @@ public class TagReader {
             command.add("--language-force=" + ctagsLanguageForFileType(fileType));
         }
         command.add("-f");
-        command.add(tagsFile.getAbsolutePath());
-        command.add(file.getAbsolutePath());
+        command.add("-");
+        command.addAll(tagLines.keySet());
         
-        ArrayList<String> errors = new ArrayList<String>();
-        ProcessUtilities.backQuote(tagsFile.getParentFile(), command.toArray(new String[command.size()]), errors, errors);
-        // We're not actually expecting anything on stdout or stderr from ctags.
+        final Process process = new ProcessBuilder(command).start();
+        process.getOutputStream().close();
+        // We're not actually expecting anything on stderr from ctags.
         // All the more reason to output anything it has to say!
-        for (String error : errors) {
-            Log.warn("ctags: " + error);
+        Thread errorReaderThread = new Thread(new Runnable() {
+            public void run() {
+                ProcessUtilities.readLinesFromStream(new ProcessUtilities.LineListener() {
+                    public void processLine(String line) {
+                        Log.warn("ctags: " + line);
+                    }
+                }, process.getErrorStream());
+            }
+        }, "ctags stderr");
+        errorReaderThread.start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), charsetName));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Skip any "!_TAG_" header lines; the filename is the second field of anything else.
+                Matcher matcher = TAG_LINE_PATTERN.matcher(line);
+                if (line.startsWith("!_TAG_") || matcher.matches() == false) {
+                    continue;
+                }
+                List<String> lines = tagLines.get(matcher.group(2));
+                if (lines != null) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            FileUtilities.close(reader);
+        }
+        errorReaderThread.join();
+        final int status = process.waitFor();
+        if (status != 0) {
+            throw new IOException("ctags exited with status " + status + ".");
         }
-        
-        return tagsFile;
     }
     
     public static String ctagsLanguageForFileType(FileType fileType) {
@@ -105,34 +219,9 @@ public class TagReader {
         }
     }
     
-    private void readTagsFile(File tagsFile) throws IOException {
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new InputStreamReader(new FileInputStream(tagsFile), charsetName));
-            String line;
-            boolean foundValidHeader = false;
-            while ((line = reader.readLine()) != null && line.startsWith("!_TAG_")) {
-                foundValidHeader = true;
-                //TODO: check the tags file is sorted? of a suitable version?
-            }
-            if (foundValidHeader == false) {
-                throw new RuntimeException("The tags file didn't have a valid header.");
-            }
-
-            if (line != null) {
-                do {
-                    processTagLine(line);
-                } while ((line = reader.readLine()) != null);
-            }
-        } finally {
-            try {
-                if (reader != null) {
-                    reader.close();
-                }
-            } catch (IOException ex) {
-                // What can we do? Nothing.
-                ex = ex;
-            }
+    private void processTagLines(List<String> lines) {
+        for (String line : lines) {
+            processTagLine(line);
         }
     }
     
@@ -154,9 +243,9 @@ public class TagReader {
         }
         
         final String identifier = matcher.group(1);
-        final int lineNumber = Integer.parseInt(matcher.group(2));
-        final char type = matcher.group(3).charAt(0);
-        String context = matcher.group(4);
+        final int lineNumber = Integer.parseInt(matcher.group(3));
+        final char type = matcher.group(4).charAt(0);
+        String context = matcher.group(5);
         if (context == null) {
             context = "";
         }
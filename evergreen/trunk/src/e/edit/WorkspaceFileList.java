@@ -3,9 +3,12 @@ package e.edit;
 import e.util.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.regex.*;
 import org.jdesktop.swingworker.SwingWorker;
 
@@ -23,16 +26,60 @@ public class WorkspaceFileList {
     
     private static final ExecutorService fileListUpdateExecutorService = ThreadUtilities.newFixedThreadPool(chooseThreadCount(), "File List Updater");
     
+    /** Reading every file in every workspace is I/O-bound, so there's no point doing more than one at once. */
+    private static final ExecutorService contentIndexExecutorService = ThreadUtilities.newSingleThreadExecutor("Content Indexer");
+    
+    /** How much file content to index before publishing the updated index, so searches can use it before the whole workspace is done. */
+    private static final long CONTENT_INDEX_BATCH_BYTES = 64 * 1024 * 1024;
+    
+    /** Building a symbol index runs ctags rather than just reading, so it gets its own thread, and farms the tagging out (see SymbolIndexer). */
+    private static final ExecutorService symbolIndexExecutorService = ThreadUtilities.newSingleThreadExecutor("Symbol Indexer");
+    
+    /** How many files each ctags process tags when we're building a symbol index. */
+    private static final int SYMBOL_INDEX_BATCH_SIZE = 64;
+    
+    /** Rewriting a big workspace's symbol index takes a while, so changes are saved at most this often, and when we quit (see saveSymbolIndex). */
+    private static final ScheduledExecutorService symbolIndexSaverExecutorService = ThreadUtilities.newSingleThreadScheduledExecutor("Symbol Index Saver");
+    private static final long SYMBOL_INDEX_SAVE_DELAY_MS = 5 * 60 * 1000;
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
     private final Workspace workspace;
     private final ArrayList<Listener> listeners = new ArrayList<Listener>();
     
     private FileIgnorer fileIgnorer;
     private ArrayList<String> fileList;
+    // The trigrams of the paths in fileList, with each path's id being its index in fileList.
+    private volatile TrigramIndex pathIndex;
+    // The trigrams of the files' contents, versioned by fileVersion.
+    private volatile TrigramIndex contentIndex = TrigramIndex.EMPTY;
+    private final AtomicBoolean contentIndexUpdatePending = new AtomicBoolean(false);
+    // The definitions in the files, versioned by fileVersion, and saved between runs.
+    private volatile SymbolIndex symbolIndex = SymbolIndex.EMPTY;
+    private boolean symbolIndexRead = false;
+    private final AtomicBoolean symbolIndexUpdatePending = new AtomicBoolean(false);
+    // Files saved since the symbol index was last updated for them, as paths within the workspace. Guarded by itself.
+    private final LinkedHashSet<String> savedFileNames = new LinkedHashSet<String>();
+    // The symbol index as last read or written, so we only write it when it's changed. Guarded by symbolIndexSaveLock.
+    private SymbolIndex savedSymbolIndex = SymbolIndex.EMPTY;
+    private final Object symbolIndexSaveLock = new Object();
+    private final AtomicBoolean symbolIndexSavePending = new AtomicBoolean(false);
+    private final SaveMonitor.Listener saveListener = new SaveMonitor.Listener() {
+        public void fileSaved(File file) {
+            updateSymbolIndexForSavedFile(file);
+        }
+    };
+    private volatile boolean disposed = false;
     
     private FileAlterationMonitor fileAlterationMonitor;
     
+    // What we saw on the last scan, so the next can skip unchanged directories. Guarded by itself when non-null.
+    private FileFinder.Snapshot fileFinderSnapshot;
+    private final Object fileFinderSnapshotLock = new Object();
+    
     public WorkspaceFileList(Workspace workspace) {
         this.workspace = workspace;
+        SaveMonitor.getInstance().addSaveListener(saveListener);
     }
     
     public void addFileListListener(Listener l) {
@@ -48,7 +95,14 @@ public class WorkspaceFileList {
     }
     
     public void dispose() {
+        disposed = true;
+        SaveMonitor.getInstance().removeSaveListener(saveListener);
         fileAlterationMonitor.dispose();
+        symbolIndexSaverExecutorService.execute(new Runnable() {
+            public void run() {
+                saveSymbolIndex();
+            }
+        });
     }
     
     /**
@@ -67,7 +121,11 @@ public class WorkspaceFileList {
     }
     
     private synchronized void updateFileIgnorer() {
-        fileIgnorer = new FileIgnorer(FileUtilities.fileFromString(workspace.getRootDirectory()));
+        FileIgnorer newFileIgnorer = new FileIgnorer(FileUtilities.fileFromString(workspace.getRootDirectory()));
+        // Keep the old one if its configuration hasn't changed, so FileFinder can reuse the decisions it made.
+        if (newFileIgnorer.equals(fileIgnorer) == false) {
+            fileIgnorer = newFileIgnorer;
+        }
     }
     
     public void ensureInFileList(String pathWithinWorkspace) {
@@ -98,19 +156,182 @@ public class WorkspaceFileList {
     public List<String> getListOfFilesMatching(String regularExpression) {
         Pattern pattern = PatternUtilities.smartCaseCompile(regularExpression);
         ArrayList<String> result = new ArrayList<String>();
-        List<String> allFiles = fileList;
-        if (allFiles == null) {
+        // The index holds the same list as fileList, and we mustn't mix the two up if the list changes under us.
+        TrigramIndex index = pathIndex;
+        if (index == null) {
             return result;
         }
-        for (String candidate : allFiles) {
-            Matcher matcher = pattern.matcher(candidate);
-            if (matcher.find()) {
-                result.add(candidate);
+        Matcher matcher = pattern.matcher("");
+        BitSet candidates = index.getCandidates(FileSearcher.getRequiredLiteral(pattern));
+        if (candidates == null) {
+            for (int id = 0; id < index.size(); ++id) {
+                addIfMatches(result, matcher, index.getName(id));
+            }
+        } else {
+            // Ids are indexes into the sorted list, so the result comes out sorted too.
+            for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+                addIfMatches(result, matcher, index.getName(id));
             }
         }
         return result;
     }
     
+    private static void addIfMatches(List<String> result, Matcher matcher, String candidate) {
+        if (matcher.reset(candidate).find()) {
+            result.add(candidate);
+        }
+    }
+    
+    /**
+     * Returns the current index of file contents. It may be incomplete or
+     * out of date, so callers should treat files it doesn't know about, or
+     * whose fileVersion has changed, as possible matches.
+     */
+    public TrigramIndex getContentIndex() {
+        return contentIndex;
+    }
+    
+    /**
+     * Returns the version of a file's contents as recorded in the content index.
+     */
+    public static long fileVersion(File file) {
+        return 31 * file.lastModified() + file.length();
+    }
+    
+    /**
+     * Brings the content index up to date with the file list in the
+     * background, reading only files that are new or have changed since they
+     * were last indexed. Requests made while an update is already waiting to
+     * run are folded into that update.
+     */
+    public void updateContentIndex() {
+        if (contentIndexUpdatePending.compareAndSet(false, true)) {
+            contentIndexExecutorService.execute(new ContentIndexer());
+        }
+    }
+    
+    /**
+     * Returns the current index of definitions, which may be incomplete or
+     * out of date. Paths are relative to the workspace root, as in the file
+     * list, and a file's version is its fileVersion when it was tagged.
+     */
+    public SymbolIndex getSymbolIndex() {
+        return symbolIndex;
+    }
+    
+    /**
+     * Brings the symbol index up to date with the file list in the
+     * background, tagging only files that are new or have changed since they
+     * were last indexed, and saves it for next time. Requests made while an
+     * update is already waiting to run are folded into that update.
+     */
+    public void updateSymbolIndex() {
+        if (symbolIndexUpdatePending.compareAndSet(false, true)) {
+            symbolIndexExecutorService.execute(new SymbolIndexer());
+        }
+    }
+    
+    /**
+     * Re-tags 'file' in the background, if it's in the symbol index. Saves
+     * that come in while an update is already waiting to run are folded into
+     * that update. A file the index doesn't know about yet gets tagged when
+     * the file list catches up with it.
+     */
+    private void updateSymbolIndexForSavedFile(File file) {
+        final String prefix = FileUtilities.fileFromString(workspace.getRootDirectory()).toString() + File.separator;
+        if (file.toString().startsWith(prefix) == false) {
+            return;
+        }
+        synchronized (savedFileNames) {
+            if (savedFileNames.add(file.toString().substring(prefix.length())) && savedFileNames.size() == 1) {
+                symbolIndexExecutorService.execute(new SavedFileIndexer());
+            }
+        }
+    }
+    
+    private void scheduleSymbolIndexSave() {
+        if (symbolIndexSavePending.compareAndSet(false, true)) {
+            symbolIndexSaverExecutorService.schedule(new Runnable() {
+                public void run() {
+                    symbolIndexSavePending.set(false);
+                    saveSymbolIndex();
+                }
+            }, SYMBOL_INDEX_SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Writes the symbol index out for next time, if it's changed since it
+     * was last read or written. Changes are otherwise only saved every few
+     * minutes, so Evergreen calls this when quitting.
+     */
+    public void saveSymbolIndex() {
+        synchronized (symbolIndexSaveLock) {
+            final SymbolIndex index = symbolIndex;
+            if (index == savedSymbolIndex) {
+                return;
+            }
+            final File indexFile = getSymbolIndexFile();
+            try {
+                index.writeTo(indexFile);
+                savedSymbolIndex = index;
+            } catch (Exception ex) {
+                Log.warn("Couldn't save symbol index \"" + indexFile + "\".", ex);
+            }
+        }
+    }
+    
+    private File getSymbolIndexFile() {
+        // Named after the root for the same reason as the file list snapshot.
+        final File workspaceRoot = FileUtilities.fileFromString(workspace.getRootDirectory());
+        return FileUtilities.fileFromString(Evergreen.getPreferenceFilename("symbol-index-" + Integer.toHexString(workspaceRoot.toString().hashCode()) + ".xml"));
+    }
+    
+    /**
+     * Reads the symbol index saved last time, if we haven't already. Only
+     * called on the symbol indexer's thread.
+     */
+    private void readSymbolIndexIfNecessary() {
+        if (symbolIndexRead) {
+            return;
+        }
+        symbolIndexRead = true;
+        final File indexFile = getSymbolIndexFile();
+        if (indexFile.exists() == false) {
+            return;
+        }
+        try {
+            final SymbolIndex index = SymbolIndex.readFrom(indexFile);
+            synchronized (symbolIndexSaveLock) {
+                symbolIndex = index;
+                savedSymbolIndex = index;
+            }
+        } catch (Exception ex) {
+            Log.warn("Couldn't read symbol index \"" + indexFile + "\"; rebuilding it from scratch.", ex);
+        }
+    }
+    
+    /**
+     * Runs ctags on the given files, which are paths within the workspace.
+     * Called on "Symbol Tagger" threads, or the symbol indexer's.
+     */
+    private static List<TaggedFile> tagFiles(File workspaceRoot, List<String> names) {
+        ArrayList<TaggedFile> taggedFiles = new ArrayList<TaggedFile>();
+        ArrayList<File> batchFiles = new ArrayList<File>();
+        ArrayList<TagReader.TagListener> listeners = new ArrayList<TagReader.TagListener>();
+        for (String name : names) {
+            final File file = FileUtilities.fileFromParentAndString(workspaceRoot.toString(), name);
+            // Take the version before tagging, so a file that changes while we're tagging it looks out of date next time.
+            final TaggedFile taggedFile = new TaggedFile(name, fileVersion(file));
+            taggedFiles.add(taggedFile);
+            batchFiles.add(file);
+            listeners.add(taggedFile);
+        }
+        // FIXME: as in FindInFilesDialog, not all files are really UTF-8.
+        TagReader.readTags(batchFiles, "UTF-8", listeners);
+        return taggedFiles;
+    }
+    
     private void initFileAlterationMonitorForRoot(String rootDirectory) {
         // Get rid of any existing file alteration monitor.
         if (fileAlterationMonitor != null) {
@@ -139,6 +360,7 @@ public class WorkspaceFileList {
             this.prefixCharsToSkip = workspaceRoot.toString().length() + 1;
             fireListeners(false);
             fileList = null;
+            pathIndex = null;
         }
         
         @Override
@@ -150,6 +372,7 @@ public class WorkspaceFileList {
             // Many file systems will have returned the files not in alphabetical order, so we sort them ourselves here.
             // Users of the list can then assume it's in order.
             Collections.sort(newFileList, String.CASE_INSENSITIVE_ORDER);
+            pathIndex = indexPaths(newFileList);
             fileList = newFileList;
             return fileList;
         }
@@ -163,7 +386,14 @@ public class WorkspaceFileList {
             // We should reload the file ignorer's configuration when we rescan.
             updateFileIgnorer();
             
-            List<File> files = new FileFinder().filesUnder(workspaceRoot, fileIgnorer);
+            List<File> files;
+            synchronized (fileFinderSnapshotLock) {
+                FileFinder.Snapshot snapshot = getFileFinderSnapshot();
+                files = new FileFinder().threadCount(chooseThreadCount()).useSnapshot(snapshot).filesUnder(workspaceRoot, getFileIgnorer());
+                if (snapshot.hasChanged()) {
+                    writeFileFinderSnapshot(snapshot);
+                }
+            }
             ArrayList<String> result = new ArrayList<String>(files.size());
             for (File file : files) {
                 result.add(file.toString().substring(prefixCharsToSkip));
@@ -176,9 +406,302 @@ public class WorkspaceFileList {
             return result;
         }
         
+        /**
+         * Returns the snapshot from the last scan, reading it from disk if this is our first scan since we started.
+         */
+        private FileFinder.Snapshot getFileFinderSnapshot() {
+            if (fileFinderSnapshot == null) {
+                File file = getFileFinderSnapshotFile();
+                if (file.exists()) {
+                    try {
+                        fileFinderSnapshot = FileFinder.Snapshot.readFrom(file);
+                    } catch (Exception ex) {
+                        Log.warn("Couldn't read file list snapshot \"" + file + "\"; rescanning from scratch.", ex);
+                    }
+                }
+                if (fileFinderSnapshot == null) {
+                    fileFinderSnapshot = new FileFinder.Snapshot();
+                }
+            }
+            return fileFinderSnapshot;
+        }
+        
+        private void writeFileFinderSnapshot(FileFinder.Snapshot snapshot) {
+            File file = getFileFinderSnapshotFile();
+            try {
+                snapshot.writeTo(file);
+            } catch (Exception ex) {
+                Log.warn("Couldn't write file list snapshot \"" + file + "\".", ex);
+            }
+        }
+        
+        private File getFileFinderSnapshotFile() {
+            // The snapshot records absolute paths, so naming it after the root is just to avoid collisions between workspaces.
+            return FileUtilities.fileFromString(Evergreen.getPreferenceFilename("file-list-snapshot-" + Integer.toHexString(workspaceRoot.toString().hashCode()) + ".xml"));
+        }
+        
+        private TrigramIndex indexPaths(List<String> paths) {
+            TrigramIndex.Batch batch = new TrigramIndex.Batch();
+            for (String path : paths) {
+                byte[] bytes = path.getBytes(UTF_8);
+                batch.add(path, 0, bytes, bytes.length);
+            }
+            return TrigramIndex.EMPTY.update(batch, Collections.<String>emptyList());
+        }
+        
         @Override
         public void done() {
             fireListeners(true);
+            updateContentIndex();
+            updateSymbolIndex();
+        }
+    }
+    
+    /**
+     * Indexes the contents of the files in the file list, publishing the
+     * index a batch at a time. Files whose fileVersion matches the index
+     * aren't read again, so after the first run this is mostly stat(2)s.
+     */
+    private class ContentIndexer implements Runnable {
+        public void run() {
+            contentIndexUpdatePending.set(false);
+            final List<String> files = fileList;
+            if (files == null || disposed) {
+                return;
+            }
+            final long t0 = System.nanoTime();
+            final File workspaceRoot = FileUtilities.fileFromString(workspace.getRootDirectory());
+            
+            TrigramIndex index = contentIndex;
+            HashSet<String> currentNames = new HashSet<String>(files);
+            ArrayList<String> removed = new ArrayList<String>();
+            for (String name : index.getNames()) {
+                if (currentNames.contains(name) == false) {
+                    removed.add(name);
+                }
+            }
+            TrigramIndex.Batch batch = new TrigramIndex.Batch();
+            int indexedFileCount = 0;
+            for (String name : files) {
+                if (disposed) {
+                    return;
+                }
+                File file = FileUtilities.fileFromParentAndString(workspaceRoot.toString(), name);
+                long version = fileVersion(file);
+                int id = index.getId(name);
+                if (id != -1 && index.getVersion(id) == version) {
+                    continue;
+                }
+                try {
+                    byte[] bytes = readForIndexing(file);
+                    batch.add(name, version, bytes, bytes.length);
+                    ++indexedFileCount;
+                } catch (IOException ex) {
+                    // Leave it out; searches will treat it as unknown and look at it themselves.
+                    continue;
+                }
+                if (batch.getByteCount() >= CONTENT_INDEX_BATCH_BYTES) {
+                    index = index.update(batch, removed);
+                    contentIndex = index;
+                    batch = new TrigramIndex.Batch();
+                    removed.clear();
+                }
+            }
+            contentIndex = index.update(batch, removed);
+            
+            final long t1 = System.nanoTime();
+            if (indexedFileCount > 0) {
+                Log.warn("Indexing contents of " + StringUtilities.pluralize(indexedFileCount, "file", "files") + " in workspace \"" + workspace.getWorkspaceName() + "\" took " + TimeUtilities.nsToString(t1 - t0) + ".");
+            }
+        }
+        
+        /**
+         * Returns the bytes to index for the given file. As far as the index
+         * is concerned, a file has the same bytes FileSearcher would look at:
+         * none for binary files, and the UTF-8 equivalent for UTF-16 ones.
+         */
+        private byte[] readForIndexing(File file) throws IOException {
+            ByteBuffer byteBuffer = ByteBufferUtilities.readFile(file);
+            int byteCount = byteBuffer.capacity();
+            if (ByteBufferUtilities.isBinaryByteBuffer(byteBuffer, byteCount)) {
+                return new byte[0];
+            }
+            if (byteCount > 1) {
+                int possibleBom = byteBuffer.getShort(0) & 0xffff;
+                if (possibleBom == 0xfeff || possibleBom == 0xfffe) {
+                    return new String(new ByteBufferDecoder(byteBuffer, byteCount).getCharArray()).getBytes(UTF_8);
+                }
+            }
+            return byteBuffer.array();
+        }
+    }
+    
+    /**
+     * Tags the files in the file list that have changed since the symbol
+     * index was last updated, several ctags processes at a time, and
+     * publishes the new index, which is saved a little later. The first run
+     * reads the index saved last time, so usually there's little to do.
+     */
+    private class SymbolIndexer implements Runnable {
+        public void run() {
+            symbolIndexUpdatePending.set(false);
+            final List<String> files = fileList;
+            if (files == null || disposed) {
+                return;
+            }
+            final long t0 = System.nanoTime();
+            final File workspaceRoot = FileUtilities.fileFromString(workspace.getRootDirectory());
+            readSymbolIndexIfNecessary();
+            
+            // Keep what we know about unchanged files, and collect the rest into batches for ctags.
+            final SymbolIndex oldIndex = symbolIndex;
+            final SymbolIndex.Builder builder = new SymbolIndex.Builder();
+            ArrayList<List<String>> batches = new ArrayList<List<String>>();
+            ArrayList<String> batch = new ArrayList<String>();
+            for (String name : files) {
+                final int id = oldIndex.getFileId(name);
+                if (id != -1 && oldIndex.getVersion(id) == fileVersion(FileUtilities.fileFromParentAndString(workspaceRoot.toString(), name))) {
+                    builder.copyFile(oldIndex, id);
+                    continue;
+                }
+                batch.add(name);
+                if (batch.size() == SYMBOL_INDEX_BATCH_SIZE) {
+                    batches.add(batch);
+                    batch = new ArrayList<String>();
+                }
+            }
+            if (batch.isEmpty() == false) {
+                batches.add(batch);
+            }
+            if (batches.isEmpty() && builder.getFileCount() == oldIndex.getFileCount()) {
+                return;
+            }
+            
+            // Running ctags is mostly waiting for I/O and process start-up, so we run several at once, adding each batch to the index as it comes back.
+            final ExecutorService executor = ThreadUtilities.newFixedThreadPool(chooseThreadCount(), "Symbol Tagger");
+            final CompletionService<List<TaggedFile>> completionService = new ExecutorCompletionService<List<TaggedFile>>(executor);
+            for (final List<String> names : batches) {
+                completionService.submit(new Callable<List<TaggedFile>>() {
+                    public List<TaggedFile> call() {
+                        return tagFiles(workspaceRoot, names);
+                    }
+                });
+            }
+            executor.shutdown();
+            int taggedFileCount = 0;
+            try {
+                for (int i = 0; i < batches.size(); ++i) {
+                    for (TaggedFile taggedFile : completionService.take().get()) {
+                        if (taggedFile.failure != null) {
+                            // Probably no ctags; there's no point trying the other files, and we'll try again next time.
+                            Log.warn("Couldn't tag \"" + taggedFile.name + "\"; giving up updating the symbol index for workspace \"" + workspace.getWorkspaceName() + "\".", taggedFile.failure);
+                            executor.shutdownNow();
+                            return;
+                        }
+                        builder.addFile(taggedFile.name, taggedFile.version);
+                        for (TagReader.Tag tag : taggedFile.tags) {
+                            builder.addSymbol(tag.identifier, tag.type.getName(), tag.lineNumber);
+                        }
+                        ++taggedFileCount;
+                    }
+                    if (disposed) {
+                        executor.shutdownNow();
+                        return;
+                    }
+                }
+            } catch (Exception ex) {
+                Log.warn("Problem updating the symbol index for workspace \"" + workspace.getWorkspaceName() + "\".", ex);
+                executor.shutdownNow();
+                return;
+            }
+            
+            final SymbolIndex newIndex = builder.build();
+            symbolIndex = newIndex;
+            scheduleSymbolIndexSave();
+            
+            final long t1 = System.nanoTime();
+            Log.warn("Indexing symbols in " + StringUtilities.pluralize(taggedFileCount, "file", "files") + " in workspace \"" + workspace.getWorkspaceName() + "\" took " + TimeUtilities.nsToString(t1 - t0) + "; " + StringUtilities.pluralize(newIndex.getSymbolCount(), "symbol", "symbols") + " in total.");
+        }
+    }
+    
+    /**
+     * Re-tags files that have just been saved, and publishes the new index,
+     * which is saved a little later. Only the saved files are looked at, so
+     * this costs one ctags run however big the workspace is.
+     */
+    private class SavedFileIndexer implements Runnable {
+        public void run() {
+            final ArrayList<String> names;
+            synchronized (savedFileNames) {
+                names = new ArrayList<String>(savedFileNames);
+                savedFileNames.clear();
+            }
+            if (disposed) {
+                return;
+            }
+            final long t0 = System.nanoTime();
+            final File workspaceRoot = FileUtilities.fileFromString(workspace.getRootDirectory());
+            readSymbolIndexIfNecessary();
+            
+            final SymbolIndex oldIndex = symbolIndex;
+            final ArrayList<String> knownNames = new ArrayList<String>();
+            for (String name : names) {
+                if (oldIndex.getFileId(name) != -1) {
+                    knownNames.add(name);
+                }
+            }
+            if (knownNames.isEmpty()) {
+                return;
+            }
+            final HashMap<String, TaggedFile> taggedFiles = new HashMap<String, TaggedFile>();
+            for (TaggedFile taggedFile : tagFiles(workspaceRoot, knownNames)) {
+                if (taggedFile.failure != null) {
+                    Log.warn("Couldn't tag \"" + taggedFile.name + "\"; leaving its symbols as they were.", taggedFile.failure);
+                    continue;
+                }
+                taggedFiles.put(taggedFile.name, taggedFile);
+            }
+            
+            final SymbolIndex.Builder builder = new SymbolIndex.Builder();
+            for (int id = 0; id < oldIndex.getFileCount(); ++id) {
+                final TaggedFile taggedFile = taggedFiles.get(oldIndex.getPath(id));
+                if (taggedFile == null) {
+                    builder.copyFile(oldIndex, id);
+                    continue;
+                }
+                builder.addFile(taggedFile.name, taggedFile.version);
+                for (TagReader.Tag tag : taggedFile.tags) {
+                    builder.addSymbol(tag.identifier, tag.type.getName(), tag.lineNumber);
+                }
+            }
+            symbolIndex = builder.build();
+            scheduleSymbolIndexSave();
+            
+            final long t1 = System.nanoTime();
+            Log.warn("Re-indexing symbols in " + StringUtilities.pluralize(taggedFiles.size(), "saved file", "saved files") + " in workspace \"" + workspace.getWorkspaceName() + "\" took " + TimeUtilities.nsToString(t1 - t0) + ".");
+        }
+    }
+    
+    /**
+     * One file's tags, on their way from a "Symbol Tagger" thread to the SymbolIndexer.
+     */
+    private static class TaggedFile implements TagReader.TagListener {
+        private final String name;
+        private final long version;
+        private final ArrayList<TagReader.Tag> tags = new ArrayList<TagReader.Tag>();
+        private Exception failure;
+        
+        private TaggedFile(String name, long version) {
+            this.name = name;
+            this.version = version;
+        }
+        
+        public void tagFound(TagReader.Tag tag) {
+            tags.add(tag);
+        }
+        
+        public void taggingFailed(Exception ex) {
+            failure = ex;
         }
     }
     
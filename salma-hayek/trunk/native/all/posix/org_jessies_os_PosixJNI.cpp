@@ -3,15 +3,24 @@
 #include <windows.h>
 #endif
 
+#ifdef __APPLE__
+// Lets select(2) take more than FD_SETSIZE fds, as long as we supply big enough sets (see selectInsteadOfPoll).
+#define _DARWIN_UNLIMITED_SELECT
+#endif
+
 #include "org_jessies_os_PosixJNI.h"
 #include "JniString.h"
 #include "unix_exception.h"
 
+#include <dirent.h>
 #include <errno.h>
 #include <fcntl.h>
+#include <poll.h>
 #include <pwd.h>
 #include <signal.h>
 #include <stdlib.h>
+#include <string.h>
+#include <sys/select.h>
 #include <sys/stat.h>
 #include <sys/types.h>
 #include <sys/wait.h>
@@ -91,6 +100,11 @@ jint org_jessies_os_PosixJNI::get_1WCONTINUED() { return WCONTINUED; }
 jint org_jessies_os_PosixJNI::get_1WNOHANG() { return WNOHANG; }
 jint org_jessies_os_PosixJNI::get_1WUNTRACED() { return WUNTRACED; }
 
+jint org_jessies_os_PosixJNI::get_1POLLIN() { return POLLIN; }
+jint org_jessies_os_PosixJNI::get_1POLLERR() { return POLLERR; }
+jint org_jessies_os_PosixJNI::get_1POLLHUP() { return POLLHUP; }
+jint org_jessies_os_PosixJNI::get_1POLLNVAL() { return POLLNVAL; }
+
 jint org_jessies_os_PosixJNI::get_1E2BIG() { return E2BIG; }
 jint org_jessies_os_PosixJNI::get_1EACCES() { return EACCES; }
 jint org_jessies_os_PosixJNI::get_1EADDRINUSE() { return EADDRINUSE; }
@@ -295,6 +309,58 @@ jint org_jessies_os_PosixJNI::rmdir(jstring path) {
     return zeroOrMinusErrno(::rmdir(JniString(m_env, path).c_str()));
 }
 
+// Returns the S_IFMT bits corresponding to the entry's d_type, or 0 if the file system didn't tell us.
+static jint typeOfDirectoryEntry(const dirent* entry) {
+#ifdef DT_UNKNOWN
+    switch (entry->d_type) {
+    case DT_BLK: return S_IFBLK;
+    case DT_CHR: return S_IFCHR;
+    case DT_DIR: return S_IFDIR;
+    case DT_FIFO: return S_IFIFO;
+    case DT_LNK: return S_IFLNK;
+    case DT_REG: return S_IFREG;
+    case DT_SOCK: return S_IFSOCK;
+    }
+#endif
+    return 0;
+}
+
+jint org_jessies_os_PosixJNI::scandir(jstring javaPath, jobject javaListing) {
+    DIR* dir = ::opendir(JniString(m_env, javaPath).c_str());
+    if (dir == 0) {
+        return -errno;
+    }
+    jclass listingClass = m_env->FindClass("org/jessies/os/DirectoryListing");
+    jmethodID adder = m_env->GetMethodID(listingClass, "add", "([BI)V");
+    jint result = 0;
+    for (;;) {
+        errno = 0;
+        const dirent* entry = ::readdir(dir);
+        if (entry == 0) {
+            result = -errno;
+            break;
+        }
+        if (strcmp(entry->d_name, ".") == 0 || strcmp(entry->d_name, "..") == 0) {
+            continue;
+        }
+        // Names are just bytes, and needn't be valid UTF-8 (let alone modified UTF-8), so the Java side decodes them.
+        const jsize length = strlen(entry->d_name);
+        jbyteArray name = m_env->NewByteArray(length);
+        if (name == 0) {
+            break;
+        }
+        m_env->SetByteArrayRegion(name, 0, length, reinterpret_cast<const jbyte*>(entry->d_name));
+        m_env->CallVoidMethod(javaListing, adder, name, typeOfDirectoryEntry(entry));
+        // Big directories would otherwise run us out of local references.
+        m_env->DeleteLocalRef(name);
+        if (m_env->ExceptionCheck()) {
+            break;
+        }
+    }
+    ::closedir(dir);
+    return result;
+}
+
 jint org_jessies_os_PosixJNI::open(jstring path, jint flags) {
     return zeroOrMinusErrno(::open(JniString(m_env, path).c_str(), flags));
 }
@@ -303,6 +369,99 @@ jint org_jessies_os_PosixJNI::open(jstring path, jint flags, jint mode) {
     return zeroOrMinusErrno(::open(JniString(m_env, path).c_str(), flags, mode));
 }
 
+jint org_jessies_os_PosixJNI::pipe(jintArray javaFds) {
+    int fds[2];
+    if (::pipe(fds) == -1) {
+        return -errno;
+    }
+    jint javaFdValues[2] = { fds[0], fds[1] };
+    m_env->SetIntArrayRegion(javaFds, 0, 2, javaFdValues);
+    return 0;
+}
+
+#ifdef __APPLE__
+// Darwin's poll(2) doesn't support devices, and reports POLLNVAL for a pty, so every terminal would look closed as soon as it opened.
+// select(2) works, and POLLIN (plus POLLNVAL for fds that aren't open) is all Posix.poll's callers need.
+static int selectInsteadOfPoll(pollfd* pollFds, jint count, jint timeoutMs) {
+    int maxFd = -1;
+    for (jint i = 0; i < count; ++i) {
+        if (pollFds[i].fd > maxFd) {
+            maxFd = pollFds[i].fd;
+        }
+    }
+    // An fd_set only has room for FD_SETSIZE fds, so make our own, big enough for the highest fd.
+    std::vector<fd_mask> readFds(maxFd / NFDBITS + 1);
+    for (jint i = 0; i < count; ++i) {
+        const int fd = pollFds[i].fd;
+        if (fd >= 0 && (pollFds[i].events & POLLIN) != 0) {
+            readFds[fd / NFDBITS] |= fd_mask(1) << (fd % NFDBITS);
+        }
+    }
+    timeval timeout;
+    timeval* timeoutPointer = NULL;
+    if (timeoutMs >= 0) {
+        timeout.tv_sec = timeoutMs / 1000;
+        timeout.tv_usec = (timeoutMs % 1000) * 1000;
+        timeoutPointer = &timeout;
+    }
+    int result = ::select(maxFd + 1, reinterpret_cast<fd_set*>(&readFds[0]), NULL, NULL, timeoutPointer);
+    if (result == -1 && errno == EBADF) {
+        // Where poll would report just the fds that aren't open, select fails altogether, so find them ourselves.
+        result = 0;
+        for (jint i = 0; i < count; ++i) {
+            if (pollFds[i].fd >= 0 && ::fcntl(pollFds[i].fd, F_GETFD) == -1) {
+                pollFds[i].revents = POLLNVAL;
+                ++result;
+            }
+        }
+        return result;
+    }
+    if (result == -1) {
+        return -1;
+    }
+    result = 0;
+    for (jint i = 0; i < count; ++i) {
+        const int fd = pollFds[i].fd;
+        if (fd >= 0 && (readFds[fd / NFDBITS] & (fd_mask(1) << (fd % NFDBITS))) != 0) {
+            pollFds[i].revents = POLLIN;
+            ++result;
+        }
+    }
+    return result;
+}
+#endif
+
+jint org_jessies_os_PosixJNI::poll(jintArray javaFds, jintArray javaEvents, jintArray javaRevents, jint count, jint timeoutMs) {
+    // The spare element means &v[0] is valid even if count is 0.
+    std::vector<jint> fds(count + 1);
+    std::vector<jint> events(count + 1);
+    m_env->GetIntArrayRegion(javaFds, 0, count, &fds[0]);
+    m_env->GetIntArrayRegion(javaEvents, 0, count, &events[0]);
+    if (m_env->ExceptionCheck()) {
+        return -EINVAL;
+    }
+    std::vector<pollfd> pollFds(count + 1);
+    for (jint i = 0; i < count; ++i) {
+        pollFds[i].fd = fds[i];
+        pollFds[i].events = events[i];
+        pollFds[i].revents = 0;
+    }
+#ifdef __APPLE__
+    const int result = selectInsteadOfPoll(&pollFds[0], count, timeoutMs);
+#else
+    const int result = ::poll(&pollFds[0], count, timeoutMs);
+#endif
+    if (result == -1) {
+        return -errno;
+    }
+    std::vector<jint> revents(count + 1);
+    for (jint i = 0; i < count; ++i) {
+        revents[i] = pollFds[i].revents;
+    }
+    m_env->SetIntArrayRegion(javaRevents, 0, count, &revents[0]);
+    return result;
+}
+
 jint org_jessies_os_PosixJNI::symlink(jstring oldpath, jstring newpath) {
     return zeroOrMinusErrno(::symlink(JniString(m_env, oldpath).c_str(), JniString(m_env, newpath).c_str()));
 }
@@ -1,6 +1,7 @@
 package e.ptextarea;
 
 import java.util.*;
+import java.util.concurrent.*;
 import e.util.*;
 
 /**
@@ -14,19 +15,45 @@ import e.util.*;
  * or backquote. It also understands how to find keywords in what's left over,
  * given a fixed set of keywords.
  * 
+ * Multi-line comments mean a line's styling depends on the lines before it,
+ * so we remember the lexer state at the start of each line. After an edit we
+ * relex from the edited line until we reach a line whose start state hasn't
+ * changed, rather than relexing to the end of the file. Lines near the
+ * visible ones are lexed as they're painted; anything further away is left
+ * to a background thread, which repaints any lines it finds it got wrong.
+ * 
  * FIXME: Perl and Ruby have various multiline quoting mechanisms that we don't support.
  * 
  * @author Phil Norman
  */
 public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
-    private int lastGoodLine;
-    private BitSet commentCache;
+    private static final ExecutorService backgroundExecutor = ThreadUtilities.newSingleThreadExecutor("Background Styler");
+    
+    // How far beyond the last line we know the state of we'll lex while painting, before leaving it to the background thread.
+    private static final int SYNCHRONOUS_LINE_COUNT = 2000;
+    // How many lines the background thread lexes each time it takes the read lock.
+    private static final int BACKGROUND_BATCH_LINE_COUNT = 5000;
+    
+    private static final byte NORMAL_STATE = 0;
+    private static final byte COMMENT_STATE = 1;
+    
+    // The lexer state at the start of each line. The states of the first
+    // validLineCount lines are right. The states of the lines up to
+    // knownLineCount were right before the text of lines up to lastDirtyLine
+    // changed, so once we're past lastDirtyLine, the first state we compute
+    // that matches what we had means all the rest still hold.
+    private byte[] lineStartStates;
+    private int lineCount;
+    private int validLineCount;
+    private int knownLineCount;
+    private int lastDirtyLine;
+    private boolean backgroundLexingScheduled;
     
     public PAbstractLanguageStyler(PTextArea textArea) {
         super(textArea);
         if (textArea != null) {
-            initCommentCache();
-            initTextListener();
+            initLineStartStates();
+            initLineListener();
             textArea.setTextStyler(this);
         }
     }
@@ -98,25 +125,82 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         }
     }
     
-    private void initTextListener() {
-        textArea.getTextBuffer().addTextListener(new PTextListener() {
-            public void textCompletelyReplaced(PTextEvent event) {
-                initCommentCache();
+    private void initLineListener() {
+        textArea.getLineList().addLineListener(new PLineListener() {
+            public void linesAdded(PLineEvent event) {
+                PAbstractLanguageStyler.this.linesAdded(event.getLineIndex(), event.getLength());
             }
             
-            public void textInserted(PTextEvent event) {
-                dirtyFromOffset(event);
+            public void linesRemoved(PLineEvent event) {
+                PAbstractLanguageStyler.this.linesRemoved(event.getLineIndex(), event.getLength());
             }
             
-            public void textRemoved(PTextEvent event) {
-                dirtyFromOffset(event);
+            public void linesChanged(PLineEvent event) {
+                PAbstractLanguageStyler.this.linesChanged(event.getLineIndex(), event.getLength());
+            }
+            
+            public void linesCompletelyReplaced(PLineEvent event) {
+                initLineStartStates();
             }
         });
     }
     
-    private void initCommentCache() {
-        lastGoodLine = 0;
-        commentCache = new BitSet();
+    private synchronized void initLineStartStates() {
+        lineCount = textArea.getLineList().size();
+        lineStartStates = new byte[Math.max(16, lineCount)];
+        validLineCount = Math.min(1, lineCount);
+        knownLineCount = validLineCount;
+        lastDirtyLine = -1;
+    }
+    
+    private synchronized void linesAdded(int lineIndex, int count) {
+        if (lineCount + count > lineStartStates.length) {
+            lineStartStates = Arrays.copyOf(lineStartStates, Math.max(lineCount + count, 2 * lineStartStates.length));
+        }
+        System.arraycopy(lineStartStates, lineIndex, lineStartStates, lineIndex + count, lineCount - lineIndex);
+        Arrays.fill(lineStartStates, lineIndex, lineIndex + count, NORMAL_STATE);
+        lineCount += count;
+        if (knownLineCount > lineIndex) {
+            knownLineCount += count;
+        }
+        if (lastDirtyLine >= lineIndex) {
+            lastDirtyLine += count;
+        }
+        // The line before the new ones has been split, and the new lines are dirty too.
+        textChanged(Math.max(0, lineIndex - 1), lineIndex + count - 1);
+    }
+    
+    private synchronized void linesRemoved(int lineIndex, int count) {
+        System.arraycopy(lineStartStates, lineIndex + count, lineStartStates, lineIndex, lineCount - lineIndex - count);
+        lineCount -= count;
+        if (knownLineCount >= lineIndex + count) {
+            knownLineCount -= count;
+        } else if (knownLineCount > lineIndex) {
+            knownLineCount = lineIndex;
+        }
+        if (lastDirtyLine >= lineIndex + count) {
+            lastDirtyLine -= count;
+        } else if (lastDirtyLine >= lineIndex) {
+            lastDirtyLine = lineIndex - 1;
+        }
+        // The line before the removed ones now ends where the last of them did.
+        final int previousLine = Math.max(0, lineIndex - 1);
+        textChanged(previousLine, previousLine);
+    }
+    
+    private synchronized void linesChanged(int lineIndex, int count) {
+        textChanged(lineIndex, lineIndex + count - 1);
+    }
+    
+    /**
+     * Notes that the text of lines firstLine to lastLine (inclusive) has
+     * changed, so the start states of the lines after them may be wrong.
+     */
+    private void textChanged(int firstLine, int lastLine) {
+        validLineCount = Math.max(Math.min(1, lineCount), Math.min(validLineCount, firstLine + 1));
+        lastDirtyLine = Math.max(lastDirtyLine, lastLine);
+        // Usually we'll converge straight away, but the line after may be visible and need repainting if not.
+        scheduleBackgroundLexing();
     }
     
     public List<PLineSegment> getTextSegments(int lineIndex) {
@@ -206,16 +290,88 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         return result;
     }
     
-    private boolean startsCommented(int lineIndex) {
-        if (lastGoodLine < lineIndex) {
-            PLineList lineList = textArea.getLineList();
-            for (int i = lastGoodLine; i < lineIndex; i++) {
-                String line = lineList.getLineContents(i).toString();
-                commentCache.set(i + 1, lineEndsCommented(line, commentCache.get(i)));
+    private synchronized boolean startsCommented(int lineIndex) {
+        if (lineIndex >= validLineCount) {
+            if (lineIndex - validLineCount < SYNCHRONOUS_LINE_COUNT) {
+                lexUpTo(lineIndex + 1);
+            } else {
+                // Too far to lex now without a noticeable pause, so go with the state we had, if any.
+                scheduleBackgroundLexing();
             }
-            lastGoodLine = lineIndex;
         }
-        return commentCache.get(lineIndex);
+        return (lineIndex < lineCount) && (lineStartStates[lineIndex] == COMMENT_STATE);
+    }
+    
+    /**
+     * Lexes until we know the start states of at least the first 'lineLimit'
+     * lines (or all of them), telling the text area about any lines whose
+     * start state turned out different from what we had.
+     */
+    private void lexUpTo(int lineLimit) {
+        final PLineList lineList = textArea.getLineList();
+        lineLimit = Math.min(lineLimit, lineCount);
+        int firstChangedLine = -1;
+        int lastChangedLine = -1;
+        while (validLineCount < lineLimit) {
+            final int line = validLineCount - 1;
+            final boolean endsCommented = lineEndsCommented(lineList.getLineContents(line).toString(), lineStartStates[line] == COMMENT_STATE);
+            final byte nextState = endsCommented ? COMMENT_STATE : NORMAL_STATE;
+            final int nextLine = line + 1;
+            final boolean unchanged = (lineStartStates[nextLine] == nextState);
+            if (unchanged == false) {
+                lineStartStates[nextLine] = nextState;
+                if (firstChangedLine == -1) {
+                    firstChangedLine = nextLine;
+                }
+                lastChangedLine = nextLine;
+            }
+            validLineCount = nextLine + 1;
+            if (unchanged && nextLine < knownLineCount && line >= lastDirtyLine) {
+                // Converged: nothing from here on depends on anything that's changed.
+                validLineCount = knownLineCount;
+            }
+            knownLineCount = Math.max(knownLineCount, validLineCount);
+        }
+        if (validLineCount == knownLineCount) {
+            lastDirtyLine = -1;
+        }
+        if (firstChangedLine != -1) {
+            textArea.linesRestyled(firstChangedLine, lastChangedLine + 1);
+        }
+    }
+    
+    private void scheduleBackgroundLexing() {
+        if (backgroundLexingScheduled || validLineCount >= lineCount) {
+            return;
+        }
+        backgroundLexingScheduled = true;
+        backgroundExecutor.execute(new Runnable() {
+            public void run() {
+                while (lexInBackground()) {
+                    // Let anyone who wants the write lock have it between batches.
+                }
+            }
+        });
+    }
+    
+    /**
+     * Lexes the next batch of lines, returning true if there's more to do.
+     */
+    private boolean lexInBackground() {
+        final PLock lock = textArea.getLock();
+        lock.getReadLock();
+        try {
+            synchronized (this) {
+                lexUpTo(validLineCount + BACKGROUND_BATCH_LINE_COUNT);
+                if (validLineCount >= lineCount) {
+                    backgroundLexingScheduled = false;
+                    return false;
+                }
+                return true;
+            }
+        } finally {
+            lock.relinquishReadLock();
+        }
     }
     
     /**
@@ -270,40 +426,6 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         return comment;
     }
     
-    private void dirtyFromOffset(PTextEvent event) {
-        if (textArea.isLineWrappingInvalid()) {
-            return;
-        }
-        
-        boolean startsOrEndsMultiLineComment = false;
-        if (supportMultiLineComments()) {
-            int HORIZON = Math.max(multiLineCommentStart().length(), multiLineCommentEnd().length());
-            CharSequence entireText = textArea.getTextBuffer();
-            String prefix = entireText.subSequence(Math.max(0, event.getOffset() - HORIZON), event.getOffset()).toString();
-            int endIndex = event.getOffset();
-            if (event.isInsert()) {
-                endIndex += event.getLength();
-            }
-            String suffix = entireText.subSequence(endIndex, Math.min(endIndex + HORIZON, entireText.length())).toString();
-            String withMiddleText = prefix + event.getCharacters() + suffix;
-            String withoutMiddleText = prefix + suffix;
-            startsOrEndsMultiLineComment = hasCommentMarker(withMiddleText) || hasCommentMarker(withoutMiddleText);
-        }
-        
-        if (hasNewline(event.getCharacters()) || startsOrEndsMultiLineComment) {
-            lastGoodLine = Math.min(lastGoodLine, textArea.getLineList().getLineIndex(event.getOffset()));
-            textArea.repaintFromLine(textArea.getSplitLineIndex(lastGoodLine));
-        }
-    }
-    
-    private boolean hasNewline(CharSequence text) {
-        return StringUtilities.contains(text, '\n');
-    }
-    
-    private boolean hasCommentMarker(String text) {
-        return text.contains(multiLineCommentStart()) || text.contains(multiLineCommentEnd());
-    }
-    
     protected class TextSegmentListBuilder {
         private ArrayList<PLineSegment> list = new ArrayList<PLineSegment>();
         private int lineStartOffset;
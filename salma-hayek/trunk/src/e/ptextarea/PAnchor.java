@@ -13,7 +13,10 @@ package e.ptextarea;
  */
 
 public abstract class PAnchor implements Comparable<PAnchor> {
-    private int index;
+    // While we're in a PAnchorSet, 'index' is relative to our block there, and only the set can tell us where we really are.
+    int index;
+    PAnchorSet anchorSet;
+    PAnchorSet.Block block;
     
     public PAnchor(int index) {
         this.index = index;
@@ -21,12 +24,17 @@ public abstract class PAnchor implements Comparable<PAnchor> {
     
     /** Returns the current index at which this anchor is anchored. */
     public int getIndex() {
-        return index;
+        return (anchorSet != null) ? anchorSet.getIndex(this) : index;
     }
     
     /** Changes the index at which this anchor is anchored. */
     public void setIndex(int index) {
-        this.index = index;
+        PAnchorSet set = anchorSet;
+        if (set != null) {
+            set.move(this, index);
+        } else {
+            this.index = index;
+        }
     }
     
     /**
@@ -40,24 +48,24 @@ public abstract class PAnchor implements Comparable<PAnchor> {
     public int hashCode() {
         // FIXME: because this class is mutable, instances MUST NOT be stored long-term in hashes.
         // FIXME: instances are hashed, so we (a) don't want to return a constant here because we want O(1) lookup, and (b) should investigate the performance of this implementation.
-        return index;
+        return getIndex();
     }
     
     @Override
     public final boolean equals(Object obj) {
         if (obj instanceof PAnchor) {
-            return (index == ((PAnchor) obj).index);
+            return (getIndex() == ((PAnchor) obj).getIndex());
         }
         return false;
     }
     
     @Override
     public final int compareTo(PAnchor other) {
-        return (index - other.index);
+        return (getIndex() - other.getIndex());
     }
     
     @Override
     public String toString() {
-        return "PAnchor[index=" + index + "]";
+        return "PAnchor[index=" + getIndex() + "]";
     }
 }
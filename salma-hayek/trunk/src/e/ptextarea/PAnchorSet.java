@@ -2,124 +2,313 @@ package e.ptextarea;
 
 import e.util.*;
 import java.util.*;
+import org.jessies.test.*;
 
 /**
  * Contains all the PAnchor instances related to a given text buffer.
  * Responsible for ensuring that their offsets are updated when the text changes.
+ * 
+ * Find and the spelling checker can leave tens of thousands of anchors in a
+ * buffer, so we don't want to touch every anchor after the caret on every
+ * keystroke. Instead the anchors are kept in order in blocks of at most
+ * MAX_BLOCK_SIZE, and each anchor's index is relative to its block. A block's
+ * own offset is the sum of the shifts applied to it and the blocks before
+ * it, kept in a FenwickTree. Inserting or removing text adjusts the anchors
+ * in one block and records a single shift for all the blocks after it, so
+ * it's O(MAX_BLOCK_SIZE + log n) rather than O(n).
  */
 class PAnchorSet implements PTextListener {
-    // This list is sorted so we can binarySearch it.
-    private ArrayList<PAnchor> anchors = new ArrayList<PAnchor>();
+    private static final int MAX_BLOCK_SIZE = 256;
+    
+    static final class Block {
+        private PAnchor[] anchors = new PAnchor[16];
+        private int count = 0;
+        // Our position in 'blocks'.
+        private int number;
+        // Only used while we're rearranging the blocks; see captureBlockOffsets.
+        private int offset;
+    }
+    
+    private ArrayList<Block> blocks = new ArrayList<Block>();
+    
+    // blockShifts.prefixSum(i + 1) is the offset of block i.
+    private FenwickTree blockShifts = new FenwickTree();
     
     synchronized void add(PAnchor anchor) {
-        int index = getFirstAnchorIndex(anchor.getIndex());
-        anchors.add(index, anchor);
+        final int index = anchor.index;
+        final Block block;
+        if (blocks.isEmpty()) {
+            block = new Block();
+            blocks.add(block);
+            blockShifts.append(0);
+        } else {
+            block = blocks.get(Math.min(blocks.size() - 1, findBlock(index)));
+        }
+        final int relativeIndex = index - getBlockOffset(block);
+        final int position = lowerBound(block, relativeIndex);
+        if (block.count == block.anchors.length) {
+            block.anchors = Arrays.copyOf(block.anchors, 2 * block.count);
+        }
+        System.arraycopy(block.anchors, position, block.anchors, position + 1, block.count - position);
+        block.anchors[position] = anchor;
+        ++block.count;
+        anchor.index = relativeIndex;
+        anchor.block = block;
+        anchor.anchorSet = this;
+        if (block.count > MAX_BLOCK_SIZE) {
+            splitBlock(block);
+        }
+    }
+    
+    /**
+     * Returns the current index of an anchor in this set.
+     * Use PAnchor.getIndex instead.
+     */
+    synchronized int getIndex(PAnchor anchor) {
+        return (anchor.block != null) ? anchor.index + getBlockOffset(anchor.block) : anchor.index;
+    }
+    
+    /**
+     * Moves an anchor in this set to a new index.
+     * Use PAnchor.setIndex instead.
+     */
+    synchronized void move(PAnchor anchor, int index) {
+        final boolean wasInSet = (anchor.block != null);
+        remove(anchor);
+        anchor.index = index;
+        if (wasInSet) {
+            add(anchor);
+        }
     }
     
     /**
      * Bulk remove.
-     * Assumes you're trying to remove "most" of the anchors, perhaps when canceling a find.
+     * Only the blocks containing dead anchors are touched, so this is fast however many anchors are left.
      */
     synchronized void removeAll(IdentityHashMap<PAnchor, Object> deadAnchors) {
-        // Sun 6529800: as of Java 7, this is significantly quicker than ArrayList.removeAll.
-        // Sun's fix for that bug could perform even better than simple work-around, so if you're reading this in 2009 or later, think about removing this code.
         // Note that *identity* is important here.
         // PAnchor.equals only checks the offset, but we could have multiple PAnchor instances in anchors with the same offset.
-        for (int i = anchors.size() - 1; i >= 0; --i) {
-            if (deadAnchors.containsKey(anchors.get(i))) {
-                anchors.remove(i);
+        final IdentityHashMap<Block, Object> deadBlocks = new IdentityHashMap<Block, Object>();
+        for (PAnchor anchor : deadAnchors.keySet()) {
+            if (anchor.anchorSet == this && anchor.block != null) {
+                deadBlocks.put(anchor.block, null);
+            }
+        }
+        boolean emptiedBlock = false;
+        for (Block block : deadBlocks.keySet()) {
+            final int blockOffset = getBlockOffset(block);
+            int newCount = 0;
+            for (int i = 0; i < block.count; ++i) {
+                final PAnchor anchor = block.anchors[i];
+                if (deadAnchors.containsKey(anchor)) {
+                    detach(anchor, blockOffset);
+                } else {
+                    block.anchors[newCount++] = anchor;
+                }
             }
+            Arrays.fill(block.anchors, newCount, block.count, null);
+            block.count = newCount;
+            emptiedBlock = emptiedBlock || (newCount == 0);
+        }
+        if (emptiedBlock) {
+            removeEmptyBlocks();
         }
     }
     
     synchronized void remove(PAnchor anchor) {
-        int start = getFirstAnchorIndex(anchor.getIndex());
-        for (int i = start; i < anchors.size(); i++) {
-            if (anchor == anchors.get(i)) {
-                anchors.remove(i);
+        final Block block = anchor.block;
+        if (anchor.anchorSet != this || block == null) {
+            return;
+        }
+        for (int i = lowerBound(block, anchor.index); i < block.count; ++i) {
+            if (block.anchors[i] == anchor) {
+                detach(anchor, getBlockOffset(block));
+                System.arraycopy(block.anchors, i + 1, block.anchors, i, block.count - i - 1);
+                block.anchors[--block.count] = null;
+                if (block.count == 0) {
+                    removeEmptyBlocks();
+                }
                 return;
             }
-            if (get(i).getIndex() > anchor.getIndex()) {
-                break;
-            }
         }
     }
     
     /**
-     * Used as an argument to binarySearch.
+     * Makes 'anchor' forget about its block, converting its index back to an absolute one.
      */
-    private static class UnownedAnchor extends PAnchor {
-        public UnownedAnchor(int index) {
-            super(index);
+    private static void detach(PAnchor anchor, int blockOffset) {
+        anchor.index += blockOffset;
+        anchor.block = null;
+    }
+    
+    private int getBlockOffset(Block block) {
+        return blockShifts.prefixSum(block.number + 1);
+    }
+    
+    /**
+     * Returns the number of the first block containing an anchor at or after 'textIndex',
+     * or blocks.size() if there's no such anchor.
+     */
+    private int findBlock(int textIndex) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final Block block = blocks.get(mid);
+            if (block.anchors[block.count - 1].index + getBlockOffset(block) < textIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-        
-        // We don't add this to the anchor set, so it's never removed, so no-one needs to be notified of anything.
-        @Override
-        public void anchorDestroyed() {
+        return low;
+    }
+    
+    /**
+     * Returns the position in 'block' of its first anchor whose relative index is at least 'relativeIndex'.
+     */
+    private static int lowerBound(Block block, int relativeIndex) {
+        int low = 0;
+        int high = block.count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (block.anchors[mid].index < relativeIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
+        return low;
     }
     
-    // Returns the first position where an anchor for the textIndex could be inserted
-    // without violating the ordering.
-    private int getFirstAnchorIndex(int textIndex) {
-        // checkLinearity();    // Comment this out to improve speed, but remove warnings when our state goes wrong.
-        return CollectionUtilities.lowerBound(anchors, new UnownedAnchor(textIndex), CollectionUtilities.naturalOrder());
+    private void splitBlock(Block block) {
+        captureBlockOffsets();
+        final Block newBlock = new Block();
+        final int half = block.count / 2;
+        newBlock.anchors = new PAnchor[Math.max(16, block.count)];
+        newBlock.count = block.count - half;
+        System.arraycopy(block.anchors, half, newBlock.anchors, 0, newBlock.count);
+        Arrays.fill(block.anchors, half, block.count, null);
+        block.count = half;
+        for (int i = 0; i < newBlock.count; ++i) {
+            newBlock.anchors[i].block = newBlock;
+        }
+        // The anchors' relative indexes stay valid because the new block starts off at the same offset.
+        newBlock.offset = block.offset;
+        blocks.add(block.number + 1, newBlock);
+        rebuildBlockShifts();
     }
     
-    private void checkLinearity() {
-        int lastIndex = -1;
-        for (int i = 0; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            if (anchor.getIndex() < lastIndex) {
-                dumpAnchorIndices();
-                throw new IllegalStateException("Linearity out of order at index " + i);
+    private void removeEmptyBlocks() {
+        captureBlockOffsets();
+        for (Iterator<Block> it = blocks.iterator(); it.hasNext(); ) {
+            if (it.next().count == 0) {
+                it.remove();
             }
-            lastIndex = anchor.getIndex();
+        }
+        rebuildBlockShifts();
+    }
+    
+    /**
+     * Copies each block's offset out of blockShifts, so we can rearrange the blocks and then call rebuildBlockShifts.
+     */
+    private void captureBlockOffsets() {
+        int offset = 0;
+        for (int i = 0; i < blocks.size(); ++i) {
+            offset += blockShifts.get(i);
+            blocks.get(i).offset = offset;
         }
     }
     
-    private PAnchor get(int index) {
-        return anchors.get(index);
+    private void rebuildBlockShifts() {
+        final int[] shifts = new int[blocks.size()];
+        int previousOffset = 0;
+        for (int i = 0; i < blocks.size(); ++i) {
+            final Block block = blocks.get(i);
+            block.number = i;
+            shifts[i] = block.offset - previousOffset;
+            previousOffset = block.offset;
+        }
+        blockShifts = new FenwickTree(shifts, shifts.length);
     }
     
-    public synchronized void textInserted(PTextEvent event) {
-        int start = getFirstAnchorIndex(event.getOffset());
-        int insertionLength = event.getLength();
-        for (int i = start; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            anchor.setIndex(anchor.getIndex() + insertionLength);
+    /**
+     * Adds 'delta' to the index of every anchor at or after 'textIndex'.
+     */
+    private void shiftAnchorsFrom(int textIndex, int delta) {
+        final int blockNumber = findBlock(textIndex);
+        if (blockNumber == blocks.size()) {
+            return;
+        }
+        final Block block = blocks.get(blockNumber);
+        for (int i = lowerBound(block, textIndex - getBlockOffset(block)); i < block.count; ++i) {
+            block.anchors[i].index += delta;
+        }
+        if (blockNumber + 1 < blocks.size()) {
+            blockShifts.add(blockNumber + 1, delta);
         }
     }
     
-    private synchronized void dumpAnchorIndices() {
-        Log.warn("Dumping anchor indices:");
-        for (int i = 0; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            Log.warn("  Anchor " + i + ": " + anchor);
+    private void checkLinearity() {
+        int lastIndex = Integer.MIN_VALUE;
+        for (Block block : blocks) {
+            if (block.count == 0) {
+                throw new IllegalStateException("Empty block " + block.number);
+            }
+            for (int i = 0; i < block.count; i++) {
+                PAnchor anchor = block.anchors[i];
+                if (anchor.block != block || getIndex(anchor) < lastIndex) {
+                    dumpAnchorIndices();
+                    throw new IllegalStateException("Linearity out of order at " + anchor);
+                }
+                lastIndex = getIndex(anchor);
+            }
         }
     }
     
-    private int countAnchorsInRegion(int firstAnchorIndex, int offset, int length) {
-        int result = 0;
-        int endOffset = offset + length;
-        for (int i = firstAnchorIndex; i < anchors.size(); i++) {
-            if (get(i).getIndex() < endOffset) {
-                result++;
-            } else {
-                break;
+    public synchronized void textInserted(PTextEvent event) {
+        shiftAnchorsFrom(event.getOffset(), event.getLength());
+    }
+    
+    private synchronized void dumpAnchorIndices() {
+        Log.warn("Dumping anchor indices:");
+        for (Block block : blocks) {
+            Log.warn(" Block " + block.number + " at offset " + getBlockOffset(block) + ":");
+            for (int i = 0; i < block.count; i++) {
+                PAnchor anchor = block.anchors[i];
+                Log.warn("  Anchor " + i + ": " + anchor);
             }
         }
-        return result;
     }
     
     public synchronized void textRemoved(PTextEvent event) {
-        int deletionLength = event.getLength();
-        int firstAnchorIndex = getFirstAnchorIndex(event.getOffset());
-        int removeCount = countAnchorsInRegion(firstAnchorIndex, event.getOffset(), deletionLength);
-        // Copy the to-be-removed PAnchor instances to safety, then remove them from "anchors".
-        List<PAnchor> unsafeAnchorsToRemove = anchors.subList(firstAnchorIndex, firstAnchorIndex + removeCount);
-        List<PAnchor> anchorsToRemove = new ArrayList<PAnchor>(unsafeAnchorsToRemove);
-        unsafeAnchorsToRemove.clear();
+        final int offset = event.getOffset();
+        final int endOffset = offset + event.getLength();
+        // Take the anchors in the deleted region out of their blocks.
+        List<PAnchor> anchorsToRemove = new ArrayList<PAnchor>();
+        boolean emptiedBlock = false;
+        for (int blockNumber = findBlock(offset); blockNumber < blocks.size(); ++blockNumber) {
+            final Block block = blocks.get(blockNumber);
+            final int blockOffset = getBlockOffset(block);
+            final int start = lowerBound(block, offset - blockOffset);
+            final int end = lowerBound(block, endOffset - blockOffset);
+            for (int i = start; i < end; ++i) {
+                PAnchor anchor = block.anchors[i];
+                detach(anchor, blockOffset);
+                anchorsToRemove.add(anchor);
+            }
+            System.arraycopy(block.anchors, end, block.anchors, start, block.count - end);
+            Arrays.fill(block.anchors, block.count - (end - start), block.count, null);
+            block.count -= (end - start);
+            emptiedBlock = emptiedBlock || (block.count == 0);
+            if (end < block.count + (end - start)) {
+                // This block has anchors after the deleted region, so no later block can have any in it.
+                break;
+            }
+        }
+        if (emptiedBlock) {
+            removeEmptyBlocks();
+        }
         // Note that the sub-class of PAnchor in PHighlight relies upon this delete
         // call in order to properly destroy itself when one of its extremes is
         // removed.  If you delete this code, some highlights (notably 'find'
@@ -129,20 +318,92 @@ class PAnchorSet implements PTextListener {
         for (PAnchor anchor : anchorsToRemove) {
             anchor.anchorDestroyed();
         }
-        // We must recalculate the first anchor index, because the one we calculated
-        // before could be wrong if an anchor's deletion caused the deletion of another.
-        int start = getFirstAnchorIndex(event.getOffset());
-        for (int i = start; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            anchor.setIndex(anchor.getIndex() - deletionLength);
-        }
+        // Everything left at or after 'offset' was after the deleted region.
+        shiftAnchorsFrom(offset, -event.getLength());
     }
     
     public synchronized void textCompletelyReplaced(PTextEvent event) {
-        ArrayList<PAnchor> oldAnchors = anchors;
-        anchors = new ArrayList<PAnchor>();
+        List<PAnchor> oldAnchors = new ArrayList<PAnchor>();
+        for (Block block : blocks) {
+            final int blockOffset = getBlockOffset(block);
+            for (int i = 0; i < block.count; ++i) {
+                detach(block.anchors[i], blockOffset);
+                oldAnchors.add(block.anchors[i]);
+            }
+        }
+        blocks = new ArrayList<Block>();
+        blockShifts = new FenwickTree();
         for (PAnchor anchor : oldAnchors) {
             anchor.anchorDestroyed();
         }
     }
+    
+    private static class TestAnchor extends PAnchor {
+        private boolean destroyed = false;
+        
+        private TestAnchor(int index) {
+            super(index);
+        }
+        
+        @Override
+        public void anchorDestroyed() {
+            destroyed = true;
+        }
+    }
+    
+    @Test private static void testRandomEdits() {
+        // Compare against the obvious implementation: shift every anchor.
+        final Random random = new Random(0);
+        final PAnchorSet set = new PAnchorSet();
+        final List<TestAnchor> anchors = new ArrayList<TestAnchor>();
+        final List<Integer> expected = new ArrayList<Integer>();
+        int length = 100000;
+        for (int i = 0; i < 3000; ++i) {
+            final TestAnchor anchor = new TestAnchor(random.nextInt(length));
+            expected.add(anchor.getIndex());
+            anchors.add(anchor);
+            set.add(anchor);
+        }
+        for (int edit = 0; edit < 500; ++edit) {
+            final int offset = random.nextInt(length);
+            final int editLength = 1 + random.nextInt(edit % 50 == 0 ? 5000 : 20);
+            if (random.nextBoolean()) {
+                set.textInserted(new PTextEvent(null, PTextEvent.INSERT, offset, new String(new char[editLength])));
+                for (int i = 0; i < expected.size(); ++i) {
+                    if (expected.get(i) >= offset) {
+                        expected.set(i, expected.get(i) + editLength);
+                    }
+                }
+                length += editLength;
+            } else {
+                final int removeLength = Math.min(editLength, length - offset);
+                set.textRemoved(new PTextEvent(null, PTextEvent.REMOVE, offset, new String(new char[removeLength])));
+                for (int i = expected.size() - 1; i >= 0; --i) {
+                    final int index = expected.get(i);
+                    if (index >= offset + removeLength) {
+                        expected.set(i, index - removeLength);
+                    } else if (index >= offset) {
+                        Assert.equals(anchors.get(i).destroyed, true);
+                        expected.remove(i);
+                        anchors.remove(i);
+                    }
+                }
+                length -= removeLength;
+            }
+            if (edit % 100 == 0) {
+                // Bulk-remove some of the anchors too.
+                IdentityHashMap<PAnchor, Object> deadAnchors = new IdentityHashMap<PAnchor, Object>();
+                for (int i = expected.size() - 1; i >= 0; i -= 3) {
+                    deadAnchors.put(anchors.remove(i), null);
+                    expected.remove(i);
+                }
+                set.removeAll(deadAnchors);
+            }
+            set.checkLinearity();
+        }
+        for (int i = 0; i < anchors.size(); ++i) {
+            Assert.equals(anchors.get(i).destroyed, false);
+            Assert.equals(anchors.get(i).getIndex(), (int) expected.get(i));
+        }
+    }
 }
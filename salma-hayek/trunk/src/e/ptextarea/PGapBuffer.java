@@ -0,0 +1,136 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+
+/**
+ * A classic gap buffer: a single char[] with a hole at the last edit
+ * position. Edits near the gap are very cheap, and reading is as cheap as
+ * it gets, but moving the gap costs time proportional to the distance
+ * moved, and growing or shrinking the gap copies the whole array. That's
+ * the right trade-off for the files people usually edit, so this is the
+ * default PTextStorage.
+ */
+class PGapBuffer implements PTextStorage {
+    private static final int MIN_BUFFER_EXTENSION = 100;
+    private static final int MAX_GAP_SIZE = 1024 * 2;
+    
+    private char[] text;
+    private int gapPosition;
+    private int gapLength;
+    
+    /**
+     * Note that this constructor does not copy the given char[].
+     */
+    PGapBuffer(char[] text) {
+        this.text = text;
+        this.gapPosition = 0;
+        this.gapLength = 0;
+    }
+    
+    public int length() {
+        return text.length - gapLength;
+    }
+    
+    public char charAt(int index) {
+        return (index < gapPosition) ? text[index] : text[index + gapLength];
+    }
+    
+    public void getChars(int start, int charCount, char[] destination, int destinationOffset) {
+        int copyCount = 0;
+        if (start < gapPosition) {
+            copyCount = Math.min(charCount, gapPosition - start);
+            System.arraycopy(text, start, destination, destinationOffset, copyCount);
+        }
+        if (start + charCount >= gapPosition) {
+            int textPosition = Math.max(start, gapPosition) + gapLength;
+            System.arraycopy(text, textPosition, destination, destinationOffset + copyCount, charCount - copyCount);
+        }
+    }
+    
+    public int indexOf(char ch, int startIndex) {
+        final int length = length();
+        int gapBufferIndex = (startIndex < gapPosition) ? startIndex : (startIndex + gapLength);
+        for (int i = startIndex; i < length; ++i) {
+            if (i == gapPosition) {
+                gapBufferIndex = i + gapLength;
+            }
+            if (text[gapBufferIndex++] == ch) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    public void insert(int position, CharSequence chars) {
+        moveGap(position);
+        int textLength = chars.length();
+        while (textLength > gapLength) {
+            expandBuffer(textLength);
+        }
+        if (chars instanceof CharArrayCharSequence) {
+            ((CharArrayCharSequence) chars).copyTo(text, gapPosition);
+        } else {
+            // This is the price you pay for giving us a String.
+            for (int i = 0; i < textLength; ++i) {
+                text[gapPosition + i] = chars.charAt(i);
+            }
+        }
+        gapPosition += textLength;
+        gapLength -= textLength;
+    }
+    
+    public void remove(int position, int charCount) {
+        moveGap(position + charCount);
+        gapPosition -= charCount;
+        gapLength += charCount;
+        shrinkBuffer();
+    }
+    
+    public void writeTo(Writer writer) throws IOException {
+        // Just write out the two halves as they are.
+        if (gapPosition != 0) {
+            writer.write(text, 0, gapPosition);
+        }
+        final int gapEnd = gapPosition + gapLength;
+        if (gapEnd < text.length) {
+            writer.write(text, gapEnd, text.length - gapEnd);
+        }
+    }
+    
+    /** Moves the gap to the specified position. */
+    private void moveGap(int newPosition) {
+        if (gapPosition == newPosition) {
+            return;
+        }
+        if (newPosition < gapPosition) {
+            System.arraycopy(text, newPosition, text, newPosition + gapLength, gapPosition - newPosition);
+        } else {
+            System.arraycopy(text, gapPosition + gapLength, text, gapPosition, newPosition - gapPosition);
+        }
+        gapPosition = newPosition;
+    }
+    
+    private void changeBufferLength(int lengthChange) {
+        char[] newText = new char[text.length + lengthChange];
+        System.arraycopy(text, 0, newText, 0, gapPosition);
+        int endOffset = gapPosition + gapLength;
+        System.arraycopy(text, endOffset, newText, endOffset + lengthChange, text.length - endOffset);
+        gapLength += lengthChange;
+        text = newText;
+    }
+    
+    /** Expands the buffer. */
+    private void expandBuffer(int requiredGapLength) {
+        int desiredGapIncrease = requiredGapLength + Math.min(MAX_GAP_SIZE, requiredGapLength);
+        changeBufferLength(Math.max(MIN_BUFFER_EXTENSION, desiredGapIncrease));
+    }
+    
+    /** Shrinks the buffer. */
+    private void shrinkBuffer() {
+        if (gapLength > MAX_GAP_SIZE) {
+            int desiredGapLength = Math.max(MIN_BUFFER_EXTENSION, gapLength - MAX_GAP_SIZE);
+            changeBufferLength(desiredGapLength - gapLength);
+        }
+    }
+}
@@ -1,7 +1,19 @@
 package e.ptextarea;
 
+import e.util.*;
 import java.util.*;
+import org.jessies.test.*;
 
+/**
+ * Keeps track of a PTextArea's highlights, grouped by highlighter name.
+ * 
+ * Find can add hundreds of thousands of highlights to a big file, and we're
+ * asked for the ones overlapping the visible lines on every repaint, so each
+ * group is a sorted array searched by binary search rather than a TreeSet.
+ * Highlights are anchored, so their offsets change as the text changes, but
+ * edits never reorder anchors (any anchor in a deleted range is destroyed,
+ * taking its highlight with it), so an array sorted once stays sorted.
+ */
 public class PHighlightManager {
     private final Map<String, HighlightSet> highlighterSets = new LinkedHashMap<String, HighlightSet>();
     
@@ -11,18 +23,55 @@ public class PHighlightManager {
     }
     
     public synchronized void add(PHighlight highlight) {
-        String highlighterName = highlight.getHighlighterName();
-        if (highlighterSets.containsKey(highlighterName) == false) {
-            highlighterSets.put(highlighterName, new HighlightSet());
+        getOrCreateSet(highlight.getHighlighterName()).add(highlight);
+    }
+    
+    /**
+     * Adds many highlights at once, in O(n + k log k) rather than the O(k n)
+     * it could take to add them one at a time.
+     */
+    public synchronized void addAll(Collection<PHighlight> highlights) {
+        Map<String, List<PHighlight>> highlightsByName = new HashMap<String, List<PHighlight>>();
+        for (PHighlight highlight : highlights) {
+            List<PHighlight> list = highlightsByName.get(highlight.getHighlighterName());
+            if (list == null) {
+                list = new ArrayList<PHighlight>();
+                highlightsByName.put(highlight.getHighlighterName(), list);
+            }
+            list.add(highlight);
+        }
+        for (Map.Entry<String, List<PHighlight>> entry : highlightsByName.entrySet()) {
+            getOrCreateSet(entry.getKey()).addAll(entry.getValue());
+        }
+    }
+    
+    private HighlightSet getOrCreateSet(String highlighterName) {
+        HighlightSet set = highlighterSets.get(highlighterName);
+        if (set == null) {
+            set = new HighlightSet();
+            highlighterSets.put(highlighterName, set);
         }
-        highlighterSets.get(highlighterName).add(highlight);
+        return set;
     }
     
     public synchronized void remove(PHighlight highlight) {
-        String highlighterName = highlight.getHighlighterName();
-        if (highlighterSets.containsKey(highlighterName)) {
-            highlighterSets.get(highlighterName).remove(highlight);
+        HighlightSet set = highlighterSets.get(highlight.getHighlighterName());
+        if (set != null) {
+            set.remove(highlight);
+        }
+    }
+    
+    /**
+     * Removes all the highlights matching highlighterName, returning them.
+     */
+    public synchronized List<PHighlight> removeAll(String highlighterName) {
+        HighlightSet set = highlighterSets.remove(highlighterName);
+        if (set == null) {
+            return Collections.emptyList();
         }
+        List<PHighlight> result = new ArrayList<PHighlight>(set.size());
+        set.getHighlightsOverlapping(0, Integer.MAX_VALUE, result);
+        return result;
     }
     
     /**
@@ -30,10 +79,18 @@ public class PHighlightManager {
      */
     public synchronized List<PHighlight> getHighlightsOverlapping(int beginOffset, int endOffset) {
         List<PHighlight> result = new ArrayList<PHighlight>();
+        getHighlightsOverlapping(beginOffset, endOffset, result);
+        return result;
+    }
+    
+    /**
+     * Appends all highlighters overlapping the range [beginOffset, endOffset)
+     * to 'result'. This lets the renderer reuse the same list for every paint.
+     */
+    public synchronized void getHighlightsOverlapping(int beginOffset, int endOffset, List<PHighlight> result) {
         for (HighlightSet set : highlighterSets.values()) {
-            result.addAll(set.getHighlightsOverlapping(beginOffset, endOffset));
+            set.getHighlightsOverlapping(beginOffset, endOffset, result);
         }
-        return result;
     }
     
     /**
@@ -42,7 +99,9 @@ public class PHighlightManager {
     public synchronized List<PHighlight> getNamedHighlightsOverlapping(String highlighterName, int beginOffset, int endOffset) {
         HighlightSet set = highlighterSets.get(highlighterName);
         if (set != null) {
-            return set.getHighlightsOverlapping(beginOffset, endOffset);
+            List<PHighlight> result = new ArrayList<PHighlight>();
+            set.getHighlightsOverlapping(beginOffset, endOffset, result);
+            return result;
         } else {
             return Collections.emptyList();
         }
@@ -56,68 +115,285 @@ public class PHighlightManager {
         return next ? set.getHighlightAfter(offset) : set.getHighlightBefore(offset);
     }
     
+    /**
+     * The highlights from one highlighter. As with the TreeSet this replaces,
+     * there's at most one highlight starting at any given offset.
+     */
     private static class HighlightSet {
-        private TreeSet<PHighlight> highlights = new TreeSet<PHighlight>();
+        // Sorted by start index, in the first 'count' slots.
+        private PHighlight[] highlights = new PHighlight[16];
+        private int count = 0;
+        
+        // maxEnds[i] is whichever of highlights[0..i] ends last. Because
+        // edits don't reorder anchors, that stays true as the text changes.
+        // Only the first maxEndsValidCount entries are up to date; we bring
+        // the rest up to date when we're next asked about overlaps.
+        private PHighlight[] maxEnds = new PHighlight[16];
+        private int maxEndsValidCount = 0;
+        
+        // Removal is deferred, because destroying anchors can remove
+        // thousands of highlights one at a time, and removing each from
+        // the array would be O(n). The anchors of removed highlights no
+        // longer move, so they have to go before we next search the array.
+        private final IdentityHashMap<PHighlight, Object> removed = new IdentityHashMap<PHighlight, Object>();
         
         private void add(PHighlight highlight) {
-            highlights.add(highlight);
+            flushRemovals();
+            final int start = highlight.getStartIndex();
+            final int index = lowerBound(start);
+            if (index < count && highlights[index].getStartIndex() == start) {
+                return;
+            }
+            ensureCapacity(count + 1);
+            System.arraycopy(highlights, index, highlights, index + 1, count - index);
+            highlights[index] = highlight;
+            ++count;
+            maxEndsValidCount = Math.min(maxEndsValidCount, index);
+        }
+        
+        private void addAll(List<PHighlight> newHighlights) {
+            flushRemovals();
+            Collections.sort(newHighlights);
+            ensureCapacity(count + newHighlights.size());
+            // Merge from the end, so we can do it in place.
+            int from = count - 1;
+            int to = count + newHighlights.size() - 1;
+            for (int i = newHighlights.size() - 1; i >= 0; --i) {
+                final PHighlight highlight = newHighlights.get(i);
+                final int start = highlight.getStartIndex();
+                while (from >= 0 && highlights[from].getStartIndex() > start) {
+                    highlights[to--] = highlights[from--];
+                }
+                highlights[to--] = highlight;
+            }
+            count += newHighlights.size();
+            // Squeeze out any highlights starting at the same offset as an earlier one.
+            int firstChange = from + 1;
+            int out = firstChange;
+            for (int i = firstChange; i < count; ++i) {
+                if (highlights[i] != null && (out == 0 || highlights[out - 1].getStartIndex() != highlights[i].getStartIndex())) {
+                    highlights[out++] = highlights[i];
+                }
+            }
+            Arrays.fill(highlights, out, count, null);
+            count = out;
+            maxEndsValidCount = Math.min(maxEndsValidCount, firstChange);
         }
         
         private void remove(PHighlight highlight) {
-            highlights.remove(highlight);
+            removed.put(highlight, null);
+        }
+        
+        private void flushRemovals() {
+            if (removed.isEmpty()) {
+                return;
+            }
+            int out = 0;
+            for (int i = 0; i < count; ++i) {
+                if (removed.containsKey(highlights[i])) {
+                    maxEndsValidCount = Math.min(maxEndsValidCount, out);
+                } else {
+                    highlights[out++] = highlights[i];
+                }
+            }
+            Arrays.fill(highlights, out, count, null);
+            Arrays.fill(maxEnds, out, count, null);
+            count = out;
+            removed.clear();
+        }
+        
+        private void ensureCapacity(int capacity) {
+            if (capacity > highlights.length) {
+                final int newCapacity = Math.max(capacity, 2 * highlights.length);
+                highlights = Arrays.copyOf(highlights, newCapacity);
+                maxEnds = new PHighlight[newCapacity];
+                maxEndsValidCount = 0;
+            }
+        }
+        
+        private void updateMaxEnds() {
+            for (int i = maxEndsValidCount; i < count; ++i) {
+                PHighlight highlight = highlights[i];
+                if (i > 0 && maxEnds[i - 1].getEndIndex() > highlight.getEndIndex()) {
+                    highlight = maxEnds[i - 1];
+                }
+                maxEnds[i] = highlight;
+            }
+            maxEndsValidCount = count;
         }
         
         private int size() {
-            return highlights.size();
+            flushRemovals();
+            return count;
+        }
+        
+        /** Returns the index of the first highlight starting at or after 'offset'. */
+        private int lowerBound(int offset) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (highlights[mid].getStartIndex() < offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
         }
         
         private PHighlight getHighlightAfter(int offset) {
-            SortedSet<PHighlight> after = highlights.tailSet(new ProbeHighlight(offset));
-            return (after.size() == 0) ? null : after.first();
+            flushRemovals();
+            final int index = lowerBound(offset);
+            return (index < count) ? highlights[index] : null;
         }
         
         private PHighlight getHighlightBefore(int offset) {
-            SortedSet<PHighlight> before = highlights.headSet(new ProbeHighlight(offset));
-            return (before.size() == 0) ? null : before.last();
-        }
-        
-        private List<PHighlight> getHighlightsOverlapping(int beginOffset, int endOffset) {
-            // The 'firstItem' is to be the lowest-indexed highlight wrapper which *overlaps* the range.
-            // We must check highlights which start <= beginOffset to determine if they end > beginOffset.
-            PHighlight firstItem = new ProbeHighlight(beginOffset);
-            SortedSet<PHighlight> highlightsBeforeStart = highlights.headSet(firstItem, true);
-            if (highlightsBeforeStart.size() > 0) {
-                PHighlight lastBefore = highlightsBeforeStart.last();
-                if (lastBefore.getEndIndex() > beginOffset) {
-                    firstItem = lastBefore;
+            flushRemovals();
+            final int index = lowerBound(offset) - 1;
+            return (index >= 0) ? highlights[index] : null;
+        }
+        
+        private void getHighlightsOverlapping(int beginOffset, int endOffset, List<PHighlight> result) {
+            flushRemovals();
+            updateMaxEnds();
+            // Everything starting in the range overlaps it, but so does anything
+            // starting before it that ends inside it. The first such highlight is
+            // the first one whose maxEnds entry ends after beginOffset.
+            int low = 0;
+            int high = lowerBound(beginOffset);
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (maxEnds[mid].getEndIndex() <= beginOffset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int i = low; i < count; ++i) {
+                final PHighlight highlight = highlights[i];
+                final int start = highlight.getStartIndex();
+                if (start >= endOffset) {
+                    break;
+                }
+                if (start >= beginOffset || highlight.getEndIndex() > beginOffset) {
+                    result.add(highlight);
                 }
             }
-            
-            // Now we have the start, and the end too, so we can simply grab the subset between these two extremes (inclusive of firstItem) and return as a list.
-            SortedSet<PHighlight> highlightsInRange = highlights.subSet(firstItem, new ProbeHighlight(endOffset));
-            List<PHighlight> result = new ArrayList<PHighlight>(highlightsInRange);
-            return result;
         }
     }
     
-    private static final class ProbeHighlight extends PHighlight {
-        private final int fixedOffset;
+    /**
+     * A highlight that isn't attached to a PTextArea, for testing.
+     */
+    private static final class FixedHighlight extends PHighlight {
+        private final String highlighterName;
+        private final int startIndex;
+        private final int endIndex;
         
-        private ProbeHighlight(int fixedOffset) {
+        private FixedHighlight(String highlighterName, int startIndex, int endIndex) {
             super();
-            this.fixedOffset = fixedOffset;
+            this.highlighterName = highlighterName;
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
         }
         
         @Override public int getStartIndex() {
-            return fixedOffset;
+            return startIndex;
+        }
+        
+        @Override public int getEndIndex() {
+            return endIndex;
         }
         
         public String getHighlighterName() {
-            throw new UnsupportedOperationException();
+            return highlighterName;
         }
         
         protected void paintHighlight(java.awt.Graphics2D g, PCoordinates start, PCoordinates end, java.awt.Insets insets, int lineHeight, int firstLineIndex, int lastLineIndex) {
             throw new UnsupportedOperationException();
         }
     }
+    
+    @Test private static void testOverlapping() {
+        final PHighlightManager manager = new PHighlightManager();
+        final PHighlight a = new FixedHighlight("find", 0, 100);
+        final PHighlight b = new FixedHighlight("find", 10, 12);
+        final PHighlight c = new FixedHighlight("find", 20, 30);
+        final PHighlight d = new FixedHighlight("find", 40, 40);
+        final PHighlight e = new FixedHighlight("spelling", 25, 35);
+        manager.add(c);
+        manager.addAll(Arrays.asList(e, d, a, b));
+        // A second highlight at the same offset is ignored.
+        manager.add(new FixedHighlight("find", 20, 21));
+        Assert.equals(manager.countHighlightsOfType("find"), 4);
+        Assert.equals(manager.getHighlightsOverlapping(12, 21), Arrays.asList(a, c));
+        Assert.equals(manager.getHighlightsOverlapping(30, 41), Arrays.asList(a, d, e));
+        Assert.equals(manager.getNamedHighlightsOverlapping("find", 100, 200), Collections.<PHighlight>emptyList());
+        Assert.equals(manager.getNextOrPreviousHighlight("find", true, 11), c);
+        Assert.equals(manager.getNextOrPreviousHighlight("find", false, 20), b);
+        manager.remove(a);
+        Assert.equals(manager.getHighlightsOverlapping(12, 21), Arrays.asList(c));
+        Assert.equals(manager.removeAll("find"), Arrays.asList(b, c, d));
+        Assert.equals(manager.getHighlightsOverlapping(0, 100), Arrays.asList(e));
+    }
+    
+    public static void main(String[] arguments) {
+        // Simulates scrolling through a big file after "find all".
+        final int matchCount = (arguments.length > 0) ? Integer.parseInt(arguments[0]) : 200000;
+        final int charsPerMatch = 500;
+        final int charsPerScreen = 80 * 60;
+        final List<PHighlight> matches = new ArrayList<PHighlight>(matchCount);
+        for (int i = 0; i < matchCount; ++i) {
+            matches.add(new FixedHighlight("find", i * charsPerMatch, i * charsPerMatch + 10));
+        }
+        final PHighlightManager manager = new PHighlightManager();
+        
+        final Stopwatch addStopwatch = Stopwatch.get("PHighlightManager.addAll (" + matchCount + " highlights)");
+        Stopwatch.Timer timer = addStopwatch.start();
+        try {
+            manager.addAll(matches);
+        } finally {
+            timer.stop();
+        }
+        System.err.println(addStopwatch);
+        
+        final Stopwatch queryStopwatch = Stopwatch.get("PHighlightManager.getHighlightsOverlapping (one screen)");
+        final List<PHighlight> buffer = new ArrayList<PHighlight>();
+        int found = 0;
+        for (int repeat = 0; repeat < 5; ++repeat) {
+            for (int offset = 0; offset < matchCount * charsPerMatch; offset += charsPerScreen) {
+                timer = queryStopwatch.start();
+                try {
+                    buffer.clear();
+                    manager.getHighlightsOverlapping(offset, offset + charsPerScreen, buffer);
+                    found += buffer.size();
+                } finally {
+                    timer.stop();
+                }
+            }
+        }
+        System.err.println(queryStopwatch + "; " + found + " highlights found");
+        
+        final Stopwatch removeStopwatch = Stopwatch.get("PHighlightManager.remove (every other highlight, then a query)");
+        timer = removeStopwatch.start();
+        try {
+            for (int i = 0; i < matchCount; i += 2) {
+                manager.remove(matches.get(i));
+            }
+            manager.getHighlightsOverlapping(0, charsPerScreen);
+        } finally {
+            timer.stop();
+        }
+        System.err.println(removeStopwatch);
+        
+        final Stopwatch removeAllStopwatch = Stopwatch.get("PHighlightManager.removeAll");
+        timer = removeAllStopwatch.start();
+        try {
+            manager.removeAll("find");
+        } finally {
+            timer.stop();
+        }
+        System.err.println(removeAllStopwatch);
+    }
 }
@@ -1,6 +1,8 @@
 package e.ptextarea;
 
+import java.awt.EventQueue;
 import java.util.*;
+import java.util.concurrent.*;
 import e.util.*;
 
 /**
@@ -9,14 +11,40 @@ import e.util.*;
  * This allows PTextArea to easily index the text by lines.
  * Note that this class deals only with logical lines, that is lines separated by line terminators.
  * Line wrapping is neither handled nor represented here: see SplitLine for that.
+ * 
+ * We don't keep an object per line: a file with millions of lines would mean millions of small but long-lived objects.
+ * Instead the lines are grouped into blocks of up to a couple of thousand, each block holding its lines' start offsets (relative to the block) and render widths in int[]s.
+ * Fenwick trees over the blocks' line and character counts let us find the block containing a given line or character in O(log n).
+ * An edit only has to shift the starts of the lines after it in the same block, and update the trees.
+ * 
+ * Indexing a very large buffer takes a noticeable amount of time, so when the text is completely replaced we index just the start synchronously, and the rest in the background.
+ * Until that's finished, the lines cover only the start of the text, and listeners are told about the rest of the lines as they're found.
  */
 public class PLineList implements PTextListener {
     private static final int INVALID_WIDTH = -1;
     
+    // Blocks are built with this many lines, and split when they grow to twice this.
+    private static final int BLOCK_SIZE = 1024;
+    
+    // Texts up to this long are indexed synchronously; longer ones have this much indexed synchronously and the rest in the background.
+    private static final int SYNCHRONOUS_INDEX_CHAR_COUNT = 1024 * 1024;
+    // How much text each step of background indexing covers.
+    private static final int BACKGROUND_STEP_CHAR_COUNT = 16 * 1024 * 1024;
+    
+    private static final ExecutorService indexingExecutor = ThreadUtilities.newSingleThreadExecutor("PLineList Indexer");
+    private static final int SCANNER_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService scannerExecutor = ThreadUtilities.newFixedThreadPool(SCANNER_COUNT, "PLineList Scanner");
+    
     private final PTextBuffer text;
     
-    private ArrayList<Line> lines;
-    private int lastValidLineIndex;
+    private ArrayList<Block> blocks;
+    private FenwickTree blockLineCounts;
+    private FenwickTree blockCharCounts;
+    
+    // False while background indexing is still finding lines beyond the last one we have.
+    private boolean isComplete;
+    // Incremented on every change, so background indexing can tell when its results are stale.
+    private int generation;
     
     private final ArrayList<PLineListener> listeners = new ArrayList<PLineListener>();
     
@@ -28,8 +56,8 @@ public class PLineList implements PTextListener {
     
     public void logLineInfo() {
         Log.warn("Dumping PLineList line info:");
-        for (int i = 0; i < lines.size(); i++) {
-            Line line = lines.get(i);
+        for (int i = 0; i < size(); i++) {
+            Line line = getLine(i);
             Log.warn(i + ": start " + line.getStart() + ", length " + line.getLength() + ", end " + (line.getStart() + line.getLength()) + ", width " + line.width);
         }
     }
@@ -54,9 +82,7 @@ public class PLineList implements PTextListener {
      * contained in the coordinates argument.
      */
     public int getIndex(PCoordinates coords) {
-        validateStartPositions(coords.getLineIndex());
-        Line line = getLine(coords.getLineIndex());
-        return line.getStart() + coords.getCharOffset();
+        return getLineStart(coords.getLineIndex()) + coords.getCharOffset();
     }
     
     /**
@@ -67,9 +93,8 @@ public class PLineList implements PTextListener {
         if (index < 0 || index >= text.length()) {
             throw new IndexOutOfBoundsException("Index " + index + " out of bounds in text of length " + text.length());
         }
-        validateStartPositions(lines.size());
         int line = getLineIndex(index);
-        int charOffset = index - getLine(line).getStart();
+        int charOffset = index - getLineStart(line);
         return new PCoordinates(line, charOffset);
     }
     
@@ -78,34 +103,47 @@ public class PLineList implements PTextListener {
      * within the underlying PTextBuffer model.
      */
     public int getLineIndex(int charIndex) {
-        int minLine = 0;
-        int maxLine = lines.size();
-        while (maxLine - minLine > 1) {
-            int midLine = (maxLine + minLine) / 2;
-            Line mid = getLine(midLine);
-            if (mid.containsIndex(charIndex)) {
-                return midLine;
-            }
-            if (charIndex < mid.getStart()) {
-                maxLine = midLine;
-            } else {
-                minLine = midLine;
-            }
+        final int blockIndex = blockCharCounts.indexOf(charIndex);
+        if (blockIndex >= blocks.size()) {
+            // Past the end of the last line (or of the lines we've found so far).
+            return size() - 1;
         }
-        return minLine;
+        final Block block = blocks.get(blockIndex);
+        final int offsetInBlock = charIndex - blockCharCounts.prefixSum(blockIndex);
+        return blockLineCounts.prefixSum(blockIndex) + block.lineContaining(offsetInBlock);
     }
     
     /**
      * Returns the number of lines within this model.
      */
     public int size() {
-        return lines.size();
+        return blockLineCounts.total();
     }
     
     /** Returns an object representing information about the line with the given index. */
     public Line getLine(int lineIndex) {
-        validateStartPositions(lineIndex);
-        return lines.get(lineIndex);
+        final int blockIndex = blockContainingLine(lineIndex);
+        final Block block = blocks.get(blockIndex);
+        final int i = lineIndex - blockLineCounts.prefixSum(blockIndex);
+        return new Line(this, lineIndex, blockCharCounts.prefixSum(blockIndex) + block.starts[i], block.lengthOf(i), block.widths[i]);
+    }
+    
+    /** Returns the character offset within the underlying PTextBuffer model of the start of the given line. */
+    public int getLineStart(int lineIndex) {
+        final int blockIndex = blockContainingLine(lineIndex);
+        return blockCharCounts.prefixSum(blockIndex) + blocks.get(blockIndex).starts[lineIndex - blockLineCounts.prefixSum(blockIndex)];
+    }
+    
+    private int getLineLength(int lineIndex) {
+        final int blockIndex = blockContainingLine(lineIndex);
+        return blocks.get(blockIndex).lengthOf(lineIndex - blockLineCounts.prefixSum(blockIndex));
+    }
+    
+    private int blockContainingLine(int lineIndex) {
+        if (lineIndex < 0 || lineIndex >= size()) {
+            throw new IndexOutOfBoundsException("line " + lineIndex + " not in half-open range [0.." + size() + ")");
+        }
+        return blockLineCounts.indexOf(lineIndex);
     }
     
     private void fireEvent(PLineEvent event) {
@@ -129,53 +167,46 @@ public class PLineList implements PTextListener {
 
     /** Handles text insertion notifications from the underlying PTextBuffer model. */
     public void textInserted(PTextEvent event) {
+        ++generation;
+        if (isComplete == false && discardLinesFrom(event.getOffset(), 0)) {
+            return;
+        }
         int lineIndex = getLineIndex(event.getOffset());
-        int startIndex = lineIndex;
         CharSequence chars = event.getCharacters();
         int newlineCount = StringUtilities.count(chars, '\n');
-        Line line = getLine(lineIndex);
+        int lineLength = getLineLength(lineIndex);
         if (newlineCount > 0) {
             int[] segmentLengths = getLineSegmentLengths(chars, newlineCount);
-            int charOffset = event.getOffset() - line.getStart();
-            int endChars = line.getLength() - charOffset;  // The characters after the insert position.
-            line.setLength(charOffset + segmentLengths[0]);
-            for (int i = 1; i < segmentLengths.length; i++) {
-                lineIndex++;
-                line = new Line(line.getStart() + line.getLength(), segmentLengths[i]);
-                lines.add(lineIndex, line);
-            }
-            line.setLength(line.getLength() + endChars);
+            int charOffset = event.getOffset() - getLineStart(lineIndex);
+            int endChars = lineLength - charOffset;  // The characters after the insert position.
+            segmentLengths[0] += charOffset;
+            segmentLengths[newlineCount] += endChars;
+            replaceLines(lineIndex, 1, segmentLengths);
         } else {
-            line.setLength(line.getLength() + chars.length());
+            setLineLength(lineIndex, lineLength + chars.length());
         }
-        linesAreInvalidAfter(lineIndex);
-        fireEvent(new PLineEvent(this, PLineEvent.CHANGED, startIndex, 1));
+        fireEvent(new PLineEvent(this, PLineEvent.CHANGED, lineIndex, 1));
         if (newlineCount > 0) {
-            fireEvent(new PLineEvent(this, PLineEvent.ADDED, startIndex + 1, newlineCount));
+            fireEvent(new PLineEvent(this, PLineEvent.ADDED, lineIndex + 1, newlineCount));
         }
     }
     
     /** Handles text removal notifications from the underlying PTextBuffer model. */
     public void textRemoved(PTextEvent event) {
-        int lineIndex = getLineIndex(event.getOffset());
+        ++generation;
         CharSequence chars = event.getCharacters();
+        if (isComplete == false && discardLinesFrom(event.getOffset(), chars.length())) {
+            return;
+        }
+        int lineIndex = getLineIndex(event.getOffset());
         int newlineCount = StringUtilities.count(chars, '\n');
-        Line line = getLine(lineIndex);
         if (newlineCount > 0) {
-            // FIXME: Elliott suggests that we might only need the last element of this array.
-            int[] segmentLengths = getLineSegmentLengths(chars, newlineCount);
-            int charOffset = event.getOffset() - line.getStart();
-            // FIXME: Elliott suggests that reordering could remove the need for the tricksy arithmetic.
-            if (segmentLengths.length > 2) {
-                lines.subList(lineIndex + 1, lineIndex + 1 + segmentLengths.length - 2).clear();
-            }
-            int endChars = getLine(lineIndex + 1).getLength() - segmentLengths[segmentLengths.length - 1];
-            lines.remove(lineIndex + 1);
-            line.setLength(charOffset + endChars);
+            // The removed text spans the line it starts on and the next 'newlineCount'; what's left of them becomes one line.
+            int totalLength = getLineStart(lineIndex + newlineCount) + getLineLength(lineIndex + newlineCount) - getLineStart(lineIndex);
+            replaceLines(lineIndex, newlineCount + 1, new int[] { totalLength - chars.length() });
         } else {
-            line.setLength(line.getLength() - chars.length());
+            setLineLength(lineIndex, getLineLength(lineIndex) - chars.length());
         }
-        linesAreInvalidAfter(lineIndex);
         fireEvent(new PLineEvent(this, PLineEvent.CHANGED, lineIndex, 1));
         if (newlineCount > 0) {
             fireEvent(new PLineEvent(this, PLineEvent.REMOVED, lineIndex + 1, newlineCount));
@@ -196,43 +227,308 @@ public class PLineList implements PTextListener {
     
     /** Handles complete text replacement notifications from the underlying PTextBuffer model. */
     public void textCompletelyReplaced(PTextEvent event) {
+        ++generation;
         generateLines();
-        fireEvent(new PLineEvent(this, PLineEvent.COMPLETELY_REPLACED, 0, lines.size()));
+        fireEvent(new PLineEvent(this, PLineEvent.COMPLETELY_REPLACED, 0, size()));
     }
     
-    private void linesAreInvalidAfter(int lineIndex) {
-        lastValidLineIndex = Math.min(lastValidLineIndex, lineIndex);
+    /**
+     * Sets the length of a single line, shifting the starts of the following lines in its block.
+     */
+    private void setLineLength(int lineIndex, int newLength) {
+        final int blockIndex = blockContainingLine(lineIndex);
+        final Block block = blocks.get(blockIndex);
+        final int i = lineIndex - blockLineCounts.prefixSum(blockIndex);
+        final int delta = newLength - block.lengthOf(i);
+        for (int j = i + 1; j < block.lineCount; ++j) {
+            block.starts[j] += delta;
+        }
+        block.charCount += delta;
+        block.widths[i] = INVALID_WIDTH;
+        blockCharCounts.add(blockIndex, delta);
     }
     
-    private void validateStartPositions(int toLineIndex) {
-        if (toLineIndex > lastValidLineIndex) {
-            for (int i = lastValidLineIndex; i < toLineIndex; i++) {
-                // We must get the lines straight out of the ArrayList, and must not call getLine,
-                // since that in turn would call this method, resulting in an infinite recursion.
-                Line prevLine = lines.get(i);
-                Line thisLine = lines.get(i + 1);
-                thisLine.setStart(prevLine.getStart() + prevLine.getLength());
+    /**
+     * Replaces the 'removeCount' lines starting at 'lineIndex' with new lines of the given lengths.
+     * The new lines' widths are invalid; other lines keep theirs.
+     */
+    private void replaceLines(int lineIndex, int removeCount, int[] newLengths) {
+        final int firstBlockIndex = blockContainingLine(lineIndex);
+        final int firstLocal = lineIndex - blockLineCounts.prefixSum(firstBlockIndex);
+        final int lastBlockIndex = (removeCount > 0) ? blockContainingLine(lineIndex + removeCount - 1) : firstBlockIndex;
+        final int afterLocal = (removeCount > 0) ? lineIndex + removeCount - blockLineCounts.prefixSum(lastBlockIndex) : firstLocal;
+        final Block firstBlock = blocks.get(firstBlockIndex);
+        final Block lastBlock = blocks.get(lastBlockIndex);
+        
+        // Gather the surviving lines at either end of the affected blocks around the new lines.
+        final int lineCount = firstLocal + newLengths.length + (lastBlock.lineCount - afterLocal);
+        final int[] lengths = new int[lineCount];
+        final int[] widths = new int[lineCount];
+        int n = 0;
+        for (int i = 0; i < firstLocal; ++i, ++n) {
+            lengths[n] = firstBlock.lengthOf(i);
+            widths[n] = firstBlock.widths[i];
+        }
+        for (int length : newLengths) {
+            lengths[n] = length;
+            widths[n++] = INVALID_WIDTH;
+        }
+        for (int i = afterLocal; i < lastBlock.lineCount; ++i, ++n) {
+            lengths[n] = lastBlock.lengthOf(i);
+            widths[n] = lastBlock.widths[i];
+        }
+        
+        final List<Block> newBlocks = makeBlocks(lengths, widths, lineCount, 2 * BLOCK_SIZE);
+        if (newBlocks.size() == 1 && firstBlockIndex == lastBlockIndex) {
+            // The common case: the block structure is unchanged, so we can just update the trees.
+            final Block newBlock = newBlocks.get(0);
+            blocks.set(firstBlockIndex, newBlock);
+            blockLineCounts.add(firstBlockIndex, newBlock.lineCount - firstBlock.lineCount);
+            blockCharCounts.add(firstBlockIndex, newBlock.charCount - firstBlock.charCount);
+        } else {
+            final List<Block> affectedBlocks = blocks.subList(firstBlockIndex, lastBlockIndex + 1);
+            affectedBlocks.clear();
+            affectedBlocks.addAll(newBlocks);
+            rebuildTrees();
+        }
+    }
+    
+    /**
+     * Groups the first 'lineCount' lines described by the given arrays into
+     * blocks. If there are no more than 'maxBlockSize', they all go in one block.
+     */
+    private static List<Block> makeBlocks(int[] lengths, int[] widths, int lineCount, int maxBlockSize) {
+        final ArrayList<Block> result = new ArrayList<Block>();
+        final int blockSize = (lineCount <= maxBlockSize) ? lineCount : BLOCK_SIZE;
+        for (int first = 0; first < lineCount || result.isEmpty(); first += blockSize) {
+            final int count = Math.min(blockSize, lineCount - first);
+            final Block block = new Block(Math.max(count, 1));
+            for (int i = 0; i < count; ++i) {
+                block.starts[i] = block.charCount;
+                block.widths[i] = widths[first + i];
+                block.charCount += lengths[first + i];
+            }
+            block.lineCount = count;
+            result.add(block);
+        }
+        return result;
+    }
+    
+    private void rebuildTrees() {
+        final int[] lineCounts = new int[blocks.size()];
+        final int[] charCounts = new int[blocks.size()];
+        for (int i = 0; i < blocks.size(); ++i) {
+            lineCounts[i] = blocks.get(i).lineCount;
+            charCounts[i] = blocks.get(i).charCount;
+        }
+        blockLineCounts = new FenwickTree(lineCounts, lineCounts.length);
+        blockCharCounts = new FenwickTree(charCounts, charCounts.length);
+    }
+    
+    /**
+     * Appends lines of the given lengths after the last line.
+     */
+    private void appendLines(int[] lengths, int lineCount) {
+        final int[] widths = new int[lineCount];
+        Arrays.fill(widths, INVALID_WIDTH);
+        for (Block block : makeBlocks(lengths, widths, lineCount, BLOCK_SIZE)) {
+            if (block.lineCount > 0) {
+                blocks.add(block);
+                blockLineCounts.append(block.lineCount);
+                blockCharCounts.append(block.charCount);
             }
-            lastValidLineIndex = toLineIndex;
         }
     }
     
     private void generateLines() {
-        lines = new ArrayList<Line>();
-        int lastLineStart = 0;
-        int nextNewline;
-        while ((nextNewline = text.indexOf('\n', lastLineStart)) != -1) {
-            // Everything from the last line start up to and including the newline is a new line.
-            lines.add(new Line(lastLineStart, nextNewline + 1 - lastLineStart));
-            lastLineStart = nextNewline + 1;
+        blocks = new ArrayList<Block>();
+        rebuildTrees();
+        final int length = text.length();
+        final LineScan scan = scanLines(0, Math.min(length, SYNCHRONOUS_INDEX_CHAR_COUNT), 1);
+        appendLines(scan.lengths, scan.lineCount);
+        isComplete = scan.reachedEnd;
+        if (isComplete == false) {
+            scheduleBackgroundIndexing();
+        }
+    }
+    
+    /**
+     * The line lengths found by scanning part of the text.
+     */
+    private static class LineScan {
+        private int[] lengths = new int[64];
+        private int lineCount;
+        private boolean reachedEnd;
+        
+        private void add(int length) {
+            if (lineCount == lengths.length) {
+                lengths = Arrays.copyOf(lengths, 2 * lineCount);
+            }
+            lengths[lineCount++] = length;
         }
-        lines.add(new Line(lastLineStart, text.length() - lastLineStart));
-        lastValidLineIndex = lines.size() - 1;
+    }
+    
+    /**
+     * Finds the lengths of the lines starting at 'start', which must be the start of a line, up to the last newline before 'end'.
+     * If there's no newline in that range, we keep looking until we find one, so we always make progress.
+     * If we reach the end of the text, the last line is included, and 'reachedEnd' will be set.
+     * The range is split between 'sliceCount' scanner threads.
+     */
+    private LineScan scanLines(int start, int end, int sliceCount) {
+        final LineScan scan = new LineScan();
+        int lineStart = start;
+        for (int[] newlines : findNewlines(start, end, sliceCount)) {
+            for (int newline : newlines) {
+                if (newline == -1) {
+                    break;
+                }
+                // Everything from the last line start up to and including the newline is a new line.
+                scan.add(newline + 1 - lineStart);
+                lineStart = newline + 1;
+            }
+        }
+        final int length = text.length();
+        if (end < length && scan.lineCount == 0) {
+            // A very long line.
+            final int newline = text.indexOf('\n', end);
+            if (newline != -1) {
+                scan.add(newline + 1 - lineStart);
+                return scan;
+            }
+            end = length;
+        }
+        if (end == length) {
+            scan.add(length - lineStart);
+            scan.reachedEnd = true;
+        }
+        return scan;
+    }
+    
+    /**
+     * Returns the offsets of the newlines in [start, end), in order, as a
+     * list of arrays, each array terminated by -1 if it isn't full.
+     */
+    private List<int[]> findNewlines(int start, int end, int sliceCount) {
+        final int sliceLength = Math.max((end - start + sliceCount - 1) / sliceCount, 1);
+        final ArrayList<Callable<int[]>> slices = new ArrayList<Callable<int[]>>();
+        for (int sliceStart = start; sliceStart < end; sliceStart += sliceLength) {
+            final int from = sliceStart;
+            final int to = Math.min(end, sliceStart + sliceLength);
+            slices.add(new Callable<int[]>() {
+                public int[] call() {
+                    int[] newlines = new int[64];
+                    int count = 0;
+                    int newline = from - 1;
+                    while ((newline = text.indexOf('\n', newline + 1)) != -1 && newline < to) {
+                        if (count + 1 >= newlines.length) {
+                            newlines = Arrays.copyOf(newlines, 2 * newlines.length);
+                        }
+                        newlines[count++] = newline;
+                    }
+                    newlines[count] = -1;
+                    return newlines;
+                }
+            });
+        }
+        final ArrayList<int[]> result = new ArrayList<int[]>();
+        try {
+            if (slices.size() == 1) {
+                result.add(slices.get(0).call());
+            } else {
+                for (Future<int[]> future : scannerExecutor.invokeAll(slices)) {
+                    result.add(future.get());
+                }
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+        return result;
+    }
+    
+    private void scheduleBackgroundIndexing() {
+        final int scheduledGeneration = generation;
+        indexingExecutor.execute(new Runnable() {
+            public void run() {
+                final LineScan scan;
+                text.getLock().getReadLock();
+                try {
+                    if (generation != scheduledGeneration) {
+                        // Someone else will have scheduled indexing for the new text.
+                        return;
+                    }
+                    final int start = blockCharCounts.total();
+                    scan = scanLines(start, Math.min(text.length(), start + BACKGROUND_STEP_CHAR_COUNT), SCANNER_COUNT);
+                } catch (Exception ex) {
+                    Log.warn("Failed to index lines.", ex);
+                    return;
+                } finally {
+                    text.getLock().relinquishReadLock();
+                }
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        addBackgroundLines(scan, scheduledGeneration);
+                    }
+                });
+            }
+        });
+    }
+    
+    private void addBackgroundLines(LineScan scan, int scannedGeneration) {
+        text.getLock().getWriteLock();
+        try {
+            if (isComplete) {
+                return;
+            }
+            if (generation == scannedGeneration) {
+                final int firstNewLine = size();
+                appendLines(scan.lengths, scan.lineCount);
+                isComplete = scan.reachedEnd;
+                ++generation;
+                if (scan.lineCount > 0) {
+                    fireEvent(new PLineEvent(this, PLineEvent.ADDED, firstNewLine, scan.lineCount));
+                }
+            }
+            if (isComplete == false) {
+                // If the text changed while we were scanning, we just try again from wherever we've got to.
+                scheduleBackgroundIndexing();
+            }
+        } finally {
+            text.getLock().relinquishWriteLock();
+        }
+    }
+    
+    /**
+     * Handles an edit at 'offset' covering 'length' characters while we're
+     * still indexing. Edits to the last line we have, or beyond it, may
+     * change lines we haven't finished finding, so we discard that line and
+     * everything after it, and let background indexing find them again.
+     * Returns true if the edit has been fully dealt with.
+     */
+    private boolean discardLinesFrom(int offset, int length) {
+        final int lastLineIndex = size() - 1;
+        if (offset + length < getLineStart(lastLineIndex)) {
+            return false;
+        }
+        final int firstDiscardedLine = (offset < blockCharCounts.total()) ? getLineIndex(offset) : size();
+        final int discardCount = size() - firstDiscardedLine;
+        if (discardCount > 0) {
+            final int keptCount = firstDiscardedLine;
+            if (keptCount == 0) {
+                // We need to show something, so start again.
+                generateLines();
+                fireEvent(new PLineEvent(this, PLineEvent.COMPLETELY_REPLACED, 0, size()));
+                return true;
+            }
+            replaceLines(firstDiscardedLine, discardCount, new int[0]);
+            fireEvent(new PLineEvent(this, PLineEvent.REMOVED, firstDiscardedLine, discardCount));
+        }
+        scheduleBackgroundIndexing();
+        return true;
     }
     
     public void invalidateWidths() {
-        for (int i = 0; i < lines.size(); ++i) {
-            lines.get(i).width = INVALID_WIDTH;
+        for (Block block : blocks) {
+            Arrays.fill(block.widths, INVALID_WIDTH);
         }
     }
     
@@ -247,34 +543,80 @@ public class PLineList implements PTextListener {
     
     /** Returns whether the render width is valid.  To be used only by the PTextArea. */
     public boolean isWidthValid(int lineIndex) {
-        return getLine(lineIndex).width != INVALID_WIDTH;
+        return getWidth(lineIndex) != INVALID_WIDTH;
     }
     
     /** Returns the render width of the text.  To be used only by the PTextArea. */
     public int getWidth(int lineIndex) {
-        return getLine(lineIndex).width;
+        final int blockIndex = blockContainingLine(lineIndex);
+        return blocks.get(blockIndex).widths[lineIndex - blockLineCounts.prefixSum(blockIndex)];
+    }
+    
+    private void setWidth(int lineIndex, int width) {
+        final int blockIndex = blockContainingLine(lineIndex);
+        blocks.get(blockIndex).widths[lineIndex - blockLineCounts.prefixSum(blockIndex)] = width;
+    }
+    
+    /**
+     * A run of consecutive lines. The starts are relative to the start of
+     * the block, and the last line's length is implied by the block's
+     * character count.
+     */
+    private static class Block {
+        private final int[] starts;
+        private final int[] widths;
+        private int lineCount;
+        private int charCount;
+        
+        private Block(int capacity) {
+            this.starts = new int[capacity];
+            this.widths = new int[capacity];
+        }
+        
+        private int lengthOf(int i) {
+            final int end = (i + 1 < lineCount) ? starts[i + 1] : charCount;
+            return end - starts[i];
+        }
+        
+        /**
+         * Returns the index of the line containing 'offset' (relative to the
+         * block start), preferring a later empty line to an earlier one.
+         */
+        private int lineContaining(int offset) {
+            int i = Arrays.binarySearch(starts, 0, lineCount, offset);
+            if (i < 0) {
+                return -(i + 1) - 1;
+            }
+            // Only a last line can be empty, so there can't be a run of equal starts to worry about.
+            return i;
+        }
     }
     
     /**
      * A PLineList.Line holds information about the location and length of a particular line of
      * text.  It also contains information about how wide this line is when its text is rendered.
      * 
-     * FIXME: we create a large number of these small but long-lived objects. Maybe PLineList should contain three int[]s instead? We could still hand a Line to callers if we wished.
+     * Lines are created on demand, and are only valid until the text next changes.
      */
     public static class Line {
-        private int start;
-        private int length;
+        private final PLineList lineList;
+        private final int lineIndex;
+        private final int start;
+        private final int length;
         private int width;
         
-        public Line(int start, int length) {
+        private Line(PLineList lineList, int lineIndex, int start, int length, int width) {
+            this.lineList = lineList;
+            this.lineIndex = lineIndex;
             this.start = start;
             this.length = length;
-            this.width = INVALID_WIDTH;
+            this.width = width;
         }
         
         /** Sets the render width of the text.  To be used only by the PTextArea. */
         public void setWidth(int width) {
             this.width = width;
+            lineList.setWidth(lineIndex, width);
         }
         
         /** Returns the character offset within the underlying PTextBuffer model of the start of this line. */
@@ -287,15 +629,6 @@ public class PLineList implements PTextListener {
             return length;
         }
         
-        private void setStart(int start) {
-            this.start = start;
-        }
-        
-        private void setLength(int length) {
-            this.length = length;
-            this.width = INVALID_WIDTH;
-        }
-        
         private int getLengthBeforeTerminator(PTextBuffer text) {
             return isLineTerminated(text) ? length - 1 : length;
         }
@@ -305,14 +638,6 @@ public class PLineList implements PTextListener {
             return start + getLengthBeforeTerminator(text);
         }
         
-        /**
-         * Returns true if the specified character offset from the start of the underlying PTextBuffer model is
-         * held within this line.
-         */
-        private boolean containsIndex(int charIndex) {
-            return (charIndex >= start) && (charIndex < start + length);
-        }
-        
         /** Returns true when this line is terminated by a newline character. */
         private boolean isLineTerminated(PTextBuffer text) {
             if (length == 0) {
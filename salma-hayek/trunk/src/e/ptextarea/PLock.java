@@ -1,7 +1,8 @@
 package e.ptextarea;
 
-import java.util.*;
 import e.util.*;
+import java.util.concurrent.locks.*;
+import org.jessies.test.*;
 
 /**
  * A PLock manages the locking for a PTextArea, although it could likely be used for any
@@ -28,122 +29,186 @@ import e.util.*;
  *
  * Locks are reference counted, so it is safe to get and relinquish a lock in a nested fashion.
  * 
- * FIXME: switch to java.util.concurrent.ReentrantReadWriteLock?
+ * The implementation is a java.util.concurrent.locks.StampedLock, which has no notion of which thread
+ * holds what, so we keep each thread's counts in a ThreadLocal. Uncontended readers on different
+ * threads (the EDT, background stylers, the spelling checker) don't touch any shared state beyond the
+ * StampedLock's own word, and nothing is allocated per lock.
  * 
  * @author Phil Norman
  */
 
 public class PLock {
-    private Map<Thread, Integer> readLocks = new HashMap<Thread, Integer>();
-    private Thread writeLock = null;
-    private int writeLockCount = 0;
+    private static final Stopwatch readWaitStopwatch = Stopwatch.get("PLock.getReadLock (contended)");
+    private static final Stopwatch writeWaitStopwatch = Stopwatch.get("PLock.getWriteLock (contended)");
     
-    public synchronized void getReadLock() {
-        Thread currentThread = Thread.currentThread();
-        final long startTimeNs = System.nanoTime();
-        boolean gotStuck = false;
-        while (canClaimReadLock(currentThread) == false) {
-            gotStuck = true;
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                Log.warn("Interrupted while attempting to get read lock.", ex);
-            }
-        }
-        report(gotStuck, startTimeNs, "read");
-        if (readLocks.containsKey(currentThread)) {
-            readLocks.put(currentThread, 1 + readLocks.get(currentThread));
-        } else {
-            readLocks.put(currentThread, 1);
-        }
+    // How long to sleep between attempts to upgrade a read lock while other threads still hold read locks.
+    private static final long MIN_UPGRADE_PAUSE_NS = 1000;
+    private static final long MAX_UPGRADE_PAUSE_NS = 1000 * 1000;
+    
+    private static class Holds {
+        int readCount;
+        int writeCount;
+        // The write stamp if writeCount is non-zero, else the read stamp if readCount is non-zero.
+        long stamp;
     }
     
-    private boolean canClaimReadLock(Thread currentThread) {
-        return ((writeLock == null) || (writeLock == currentThread));
+    private final StampedLock lock = new StampedLock();
+    
+    private final ThreadLocal<Holds> holds = new ThreadLocal<Holds>() {
+        @Override
+        protected Holds initialValue() {
+            return new Holds();
+        }
+    };
+    
+    // Only used for diagnostics.
+    private volatile Thread writeLock = null;
+    
+    public void getReadLock() {
+        final Holds holds = this.holds.get();
+        if (holds.readCount == 0 && holds.writeCount == 0) {
+            long stamp = lock.tryReadLock();
+            if (stamp == 0) {
+                final String holder = describeHolders();
+                final Stopwatch.Timer timer = readWaitStopwatch.start();
+                final long startTimeNs = System.nanoTime();
+                stamp = lock.readLock();
+                timer.stop();
+                report(startTimeNs, "read", holder);
+            }
+            holds.stamp = stamp;
+        }
+        ++holds.readCount;
     }
     
-    public synchronized void relinquishReadLock() {
-        Thread currentThread = Thread.currentThread();
-        if (readLocks.containsKey(currentThread) == false) {
-            throw new RuntimeException("Cannot relinquish read lock on thread " + currentThread + " because it does not hold a lock.");
+    public void relinquishReadLock() {
+        final Holds holds = this.holds.get();
+        if (holds.readCount == 0) {
+            throw new RuntimeException("Cannot relinquish read lock on thread " + Thread.currentThread() + " because it does not hold a lock.");
         }
-        int newLockCount = readLocks.get(currentThread) - 1;
-        if (newLockCount == 0) {
-            readLocks.remove(currentThread);
-            notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
-        } else {
-            readLocks.put(currentThread, newLockCount);
+        --holds.readCount;
+        if (holds.readCount == 0 && holds.writeCount == 0) {
+            lock.unlockRead(holds.stamp);
+            holds.stamp = 0;
         }
     }
     
-    public synchronized void getWriteLock() {
-        //Log.warn("getWriteLock() in thread " + Thread.currentThread());
-        //dumpLocks();
-        Thread currentThread = Thread.currentThread();
-        final long startTimeNs = System.nanoTime();
-        boolean gotStuck = false;
-        while (canClaimWriteLock(currentThread) == false) {
-            gotStuck = true;
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                Log.warn("Interrupted while attempting to get write lock.", ex);
+    public void getWriteLock() {
+        final Holds holds = this.holds.get();
+        if (holds.writeCount == 0) {
+            if (holds.readCount == 0) {
+                long stamp = lock.tryWriteLock();
+                if (stamp == 0) {
+                    final String holder = describeHolders();
+                    final Stopwatch.Timer timer = writeWaitStopwatch.start();
+                    final long startTimeNs = System.nanoTime();
+                    stamp = lock.writeLock();
+                    timer.stop();
+                    report(startTimeNs, "write", holder);
+                }
+                holds.stamp = stamp;
+            } else {
+                holds.stamp = upgrade(holds.stamp);
             }
+            writeLock = Thread.currentThread();
         }
-        report(gotStuck, startTimeNs, "write");
-        writeLock = currentThread;
-        writeLockCount++;
+        ++holds.writeCount;
     }
     
-    private boolean canClaimWriteLock(Thread currentThread) {
-        if (writeLock == currentThread) {
-            return true;
-        } else if (writeLock != null) {
-            return false;
-        } else if (readLocks.size() == 0) {
-            return true;
-        } else if (readLocks.size() > 1) {
-            return false;
-        } else {
-            return readLocks.containsKey(currentThread);
+    /**
+     * Converts our read lock into the write lock, waiting for any other
+     * readers to finish. As with the old implementation, two readers trying
+     * to upgrade at once will wait for each other forever.
+     */
+    private long upgrade(long readStamp) {
+        long stamp = lock.tryConvertToWriteLock(readStamp);
+        if (stamp != 0) {
+            return stamp;
         }
+        // StampedLock can't queue a conversion, so we have to poll.
+        final Stopwatch.Timer timer = writeWaitStopwatch.start();
+        final String holder = describeHolders();
+        final long startTimeNs = System.nanoTime();
+        long pauseNs = MIN_UPGRADE_PAUSE_NS;
+        while ((stamp = lock.tryConvertToWriteLock(readStamp)) == 0) {
+            LockSupport.parkNanos(pauseNs);
+            pauseNs = Math.min(2 * pauseNs, MAX_UPGRADE_PAUSE_NS);
+        }
+        timer.stop();
+        report(startTimeNs, "write (upgrading from read)", holder);
+        return stamp;
     }
     
-    public synchronized void relinquishWriteLock() {
-        //Log.warn("relinquishWriteLock() in thread " + Thread.currentThread());
-        Thread currentThread = Thread.currentThread();
-        if (writeLock != currentThread) {
-            throw new RuntimeException("Cannot relinquish write lock on thread " + currentThread + " because it does not hold the lock.");
-        }
-        if (writeLockCount <= 0) {
-            throw new RuntimeException("Tried to relinquish write lock on thread " + currentThread + " while write lock count is " + writeLockCount);
+    public void relinquishWriteLock() {
+        final Holds holds = this.holds.get();
+        if (holds.writeCount == 0) {
+            throw new RuntimeException("Cannot relinquish write lock on thread " + Thread.currentThread() + " because it does not hold the lock.");
         }
-        writeLockCount--;
-        if (writeLockCount == 0) {
+        --holds.writeCount;
+        if (holds.writeCount == 0) {
             writeLock = null;
-            notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
+            if (holds.readCount > 0) {
+                // Always succeeds when we hold the write lock, and lets nobody else write in between.
+                holds.stamp = lock.tryConvertToReadLock(holds.stamp);
+            } else {
+                lock.unlockWrite(holds.stamp);
+                holds.stamp = 0;
+            }
         }
     }
     
-    private void report(boolean gotStuck, long startTimeNs, String type) {
-        if (gotStuck == false) {
-            return;
+    /**
+     * Describes who we're about to wait for. We can only name the writer;
+     * StampedLock only knows how many readers there are.
+     */
+    private String describeHolders() {
+        final Thread writer = writeLock;
+        if (writer != null) {
+            return "write lock held by " + writer;
         }
+        return StringUtilities.pluralize(lock.getReadLockCount(), "read lock", "read locks") + " held";
+    }
+    
+    private void report(long startTimeNs, String type, String holder) {
         final long endTimeNs = System.nanoTime();
         final double duration = TimeUtilities.nsToS(endTimeNs - startTimeNs);
         if (duration < 0.1) {
             return;
         }
-        Log.warn("PLock: " + Thread.currentThread() + " waited to get " + type + " lock for " + TimeUtilities.nsToString(endTimeNs - startTimeNs) + ".");
+        Log.warn("PLock: " + Thread.currentThread() + " waited to get " + type + " lock for " + TimeUtilities.nsToString(endTimeNs - startTimeNs) + " (" + holder + ").");
     }
     
-    private synchronized void dumpLocks() {
+    private void dumpLocks() {
         Log.warn("PLock dump...");
-        Log.warn("Write lock on " + writeLock + " (count=" + writeLockCount + ")");
-        Log.warn(readLocks.size() + " read locks:");
-        for (Thread thread : readLocks.keySet()) {
-            Log.warn("  on " + thread + " (count=" + readLocks.get(thread) + ")");
-        }
+        Log.warn("Write lock on " + writeLock);
+        Log.warn(lock.getReadLockCount() + " read locks");
         Log.warn("End of PLock dump.");
     }
+    
+    @Test private static void testReentrancy() throws Exception {
+        final PLock lock = new PLock();
+        // Nested reads, upgrading to write, and reading inside the write.
+        lock.getReadLock();
+        lock.getReadLock();
+        lock.getWriteLock();
+        lock.getReadLock();
+        lock.getWriteLock();
+        lock.relinquishWriteLock();
+        lock.relinquishReadLock();
+        lock.relinquishWriteLock();
+        // We're back to just reading, so other readers can get in but writers can't.
+        final boolean[] results = new boolean[2];
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                results[0] = (lock.lock.tryOptimisticRead() != 0);
+                results[1] = (lock.lock.tryWriteLock() != 0);
+            }
+        });
+        other.start();
+        other.join();
+        Assert.equals(results[0], true);
+        Assert.equals(results[1], false);
+        lock.relinquishReadLock();
+        lock.relinquishReadLock();
+    }
 }
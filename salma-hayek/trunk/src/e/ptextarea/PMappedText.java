@@ -0,0 +1,231 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * The read-only text of a large UTF-8 file, memory-mapped and decoded on
+ * demand.
+ * 
+ * Reading a file the usual way (see PTextBuffer.readFromFile) means holding
+ * a byte[] and a char[] of the whole file at once, which rules out multi-GB
+ * logs. Here we keep the bytes in the page cache and only decode the chunks
+ * we're asked for, keeping a handful of recently-used chunks around. The
+ * only per-file heap cost is the chunk index: two ints per CHUNK_BYTES bytes.
+ * 
+ * We only handle UTF-8 (and hence ASCII) files with Unix line endings; see
+ * 'mapFile'. Anything else goes down the usual path.
+ * 
+ * This class is never modified; PPieceTable layers edits on top of it.
+ */
+class PMappedText {
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final int CACHED_CHUNK_COUNT = 32;
+    
+    private final File file;
+    private final ByteBuffer bytes;
+    private final int length;
+    
+    // The char index and byte offset of the start of each chunk. Chunks
+    // always start on a character boundary, so they can be decoded
+    // independently. There's a sentinel entry at the end of each.
+    private final int[] chunkCharStarts;
+    private final int[] chunkByteStarts;
+    
+    private final LinkedHashMap<Integer, char[]> chunkCache = new LinkedHashMap<Integer, char[]>(CACHED_CHUNK_COUNT, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+            return size() > CACHED_CHUNK_COUNT;
+        }
+    };
+    
+    private PMappedText(File file, ByteBuffer bytes, int length, int[] chunkCharStarts, int[] chunkByteStarts) {
+        this.file = file;
+        this.bytes = bytes;
+        this.length = length;
+        this.chunkCharStarts = chunkCharStarts;
+        this.chunkByteStarts = chunkByteStarts;
+    }
+    
+    /**
+     * Maps 'file' and checks that it's valid UTF-8 with no carriage returns,
+     * building the chunk index as we go. Returns null if the file needs the
+     * usual treatment instead.
+     */
+    static PMappedText mapFile(File file) throws IOException {
+        final ByteBuffer bytes;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            if (channel.size() >= Integer.MAX_VALUE) {
+                // PTextBuffer is a CharSequence, so we couldn't index the characters anyway.
+                return null;
+            }
+            // The mapping remains valid after the channel is closed.
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            FileUtilities.close(in);
+        }
+        
+        final int byteCount = bytes.capacity();
+        if (byteCount > 1) {
+            // Leave UTF-16 to ByteBufferDecoder.
+            final int possibleBom = bytes.getShort(0) & 0xffff;
+            if (possibleBom == 0xfeff || possibleBom == 0xfffe) {
+                return null;
+            }
+        }
+        
+        final int chunkCount = (byteCount + CHUNK_BYTES - 1) / CHUNK_BYTES;
+        int[] chunkCharStarts = new int[chunkCount + 1];
+        int[] chunkByteStarts = new int[chunkCount + 1];
+        final CharsetDecoder decoder = makeDecoder();
+        final CharBuffer chars = CharBuffer.allocate(CHUNK_BYTES);
+        final ByteBuffer input = bytes.duplicate();
+        int chunk = 0;
+        int charCount = 0;
+        while (input.position() < byteCount) {
+            chunkCharStarts[chunk] = charCount;
+            chunkByteStarts[chunk] = input.position();
+            input.limit(Math.min(byteCount, input.position() + CHUNK_BYTES));
+            final int asciiResult = checkAscii(input, input.position(), input.limit());
+            if (asciiResult == ASCII) {
+                // Most files are mostly ASCII, so avoid the decoder where we can.
+                charCount += input.remaining();
+                input.position(input.limit());
+                ++chunk;
+                continue;
+            } else if (asciiResult == CARRIAGE_RETURN) {
+                return null;
+            }
+            chars.clear();
+            final boolean endOfInput = (input.limit() == byteCount);
+            CoderResult result = decoder.decode(input, chars, endOfInput);
+            if (endOfInput && result.isUnderflow()) {
+                result = decoder.flush(chars);
+            }
+            if (result.isError()) {
+                return null;
+            }
+            if (input.position() == chunkByteStarts[chunk]) {
+                // Only possible if the file ends in the middle of a character.
+                return null;
+            }
+            chars.flip();
+            for (int i = 0; i < chars.limit(); ++i) {
+                if (chars.get(i) == '\r') {
+                    return null;
+                }
+            }
+            charCount += chars.limit();
+            ++chunk;
+        }
+        // Chunks that straddle a character end a few bytes short, so we may have needed fewer.
+        chunkCharStarts = Arrays.copyOf(chunkCharStarts, chunk + 1);
+        chunkByteStarts = Arrays.copyOf(chunkByteStarts, chunk + 1);
+        chunkCharStarts[chunk] = charCount;
+        chunkByteStarts[chunk] = byteCount;
+        return new PMappedText(file, bytes, charCount, chunkCharStarts, chunkByteStarts);
+    }
+    
+    private static final int ASCII = 0;
+    private static final int NON_ASCII = 1;
+    private static final int CARRIAGE_RETURN = 2;
+    
+    /**
+     * Checks whether the bytes in [start, end) are all ASCII, without
+     * decoding them.
+     */
+    private static int checkAscii(ByteBuffer bytes, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            final byte b = bytes.get(i);
+            if (b < 0) {
+                return NON_ASCII;
+            } else if (b == '\r') {
+                return CARRIAGE_RETURN;
+            }
+        }
+        return ASCII;
+    }
+    
+    private static CharsetDecoder makeDecoder() {
+        // CharsetDecoder is reporting by default.
+        return Charset.forName("UTF-8").newDecoder();
+    }
+    
+    /** Returns the file whose contents these are. */
+    File getFile() {
+        return file;
+    }
+    
+    int length() {
+        return length;
+    }
+    
+    int chunkCount() {
+        return chunkCharStarts.length - 1;
+    }
+    
+    /** Returns the index of the chunk containing the character at 'index'. */
+    int chunkContaining(int index) {
+        final int i = Arrays.binarySearch(chunkCharStarts, 0, chunkCount(), index);
+        return (i >= 0) ? i : -(i + 1) - 1;
+    }
+    
+    /** Returns the index of the first character in the given chunk. */
+    int chunkStart(int chunk) {
+        return chunkCharStarts[chunk];
+    }
+    
+    /** Returns the decoded characters of the given chunk. */
+    synchronized char[] getChunk(int chunk) {
+        char[] chars = chunkCache.get(chunk);
+        if (chars == null) {
+            chars = decodeChunk(chunk);
+            chunkCache.put(chunk, chars);
+        }
+        return chars;
+    }
+    
+    private char[] decodeChunk(int chunk) {
+        final ByteBuffer in = bytes.duplicate();
+        in.position(chunkByteStarts[chunk]);
+        in.limit(chunkByteStarts[chunk + 1]);
+        final char[] chars = new char[chunkCharStarts[chunk + 1] - chunkCharStarts[chunk]];
+        try {
+            if (chars.length == in.remaining()) {
+                // Only ASCII has one char per byte.
+                for (int i = 0; i < chars.length; ++i) {
+                    chars[i] = (char) in.get(chunkByteStarts[chunk] + i);
+                }
+            } else {
+                makeDecoder().decode(in, CharBuffer.wrap(chars), true);
+            }
+        } catch (InternalError ex) {
+            // That's how the JVM reports a fault accessing a mapping whose file has since been truncated.
+            // We can't get the characters back, so show replacement characters rather than failing every repaint.
+            Log.warn("Couldn't read characters " + chunkCharStarts[chunk] + " to " + chunkCharStarts[chunk + 1] + " of \"" + file + "\"; has it been truncated?", ex);
+            Arrays.fill(chars, '\ufffd');
+        }
+        return chars;
+    }
+    
+    /**
+     * Writes 'charCount' characters starting at 'start' to 'writer'.
+     */
+    void writeTo(Writer writer, int start, int charCount) throws IOException {
+        while (charCount > 0) {
+            final int chunk = chunkContaining(start);
+            final int offsetInChunk = start - chunkStart(chunk);
+            final char[] chars = getChunk(chunk);
+            final int count = Math.min(charCount, chars.length - offsetInChunk);
+            writer.write(chars, offsetInChunk, count);
+            start += count;
+            charCount -= count;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * A piece table: the text is described by a sequence of pieces, each of
+ * which refers to a range of characters in either the original text or in
+ * an append-only block of inserted text. Neither is ever modified in place.
+ * 
+ * The pieces are kept in a randomized balanced tree (a treap) ordered by
+ * position, with each node caching the total length of its subtree, so
+ * finding a position, inserting, and removing are all O(log n) in the number
+ * of pieces, however far apart successive edits are. That makes this better
+ * than PGapBuffer for very large buffers, where moving or resizing the gap
+ * means copying hundreds of megabytes.
+ * 
+ * Sequential access is the common case (painting, searching, styling), so
+ * we remember the last piece we looked in and try that first.
+ * 
+ * The original text may also be a PMappedText, in which case pieces
+ * referring to it have a null buffer, and we decode the characters on
+ * demand. Because nothing is ever written to the original text, this gives
+ * us copy-on-write editing of huge files for free.
+ */
+class PPieceTable implements PTextStorage {
+    private static final int ADD_BLOCK_SIZE = 64 * 1024;
+    
+    private static final class Piece {
+        private final char[] buffer;
+        private final int start;
+        private int length;
+        private final int priority;
+        
+        private int subtreeLength;
+        private Piece left;
+        private Piece right;
+        
+        private Piece(char[] buffer, int start, int length, int priority) {
+            this.buffer = buffer;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+            this.subtreeLength = length;
+        }
+        
+        private void update() {
+            subtreeLength = length + lengthOf(left) + lengthOf(right);
+        }
+    }
+    
+    /**
+     * A run of characters contiguous in both the text and some char[], which
+     * is to say a piece, or the part of a piece within one decoded chunk of
+     * mapped text. Text indexes in [start, end) are found in 'buffer' at the
+     * text index plus 'offset'.
+     */
+    private static final class Run {
+        private static final Run EMPTY = new Run(null, 0, 0, 0);
+        
+        private final char[] buffer;
+        private final int offset;
+        private final int start;
+        private final int end;
+        
+        private Run(char[] buffer, int offset, int start, int end) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.start = start;
+            this.end = end;
+        }
+        
+        private boolean contains(int index) {
+            return index >= start && index < end;
+        }
+    }
+    
+    private Piece root;
+    
+    private final PMappedText mappedText;
+    
+    // Inserted text goes into the current add block until it's full.
+    private char[] addBlock;
+    private int addBlockUsed;
+    
+    // The run of characters that satisfied the last lookup. Many threads may
+    // be reading at once, so this is immutable and replaced as a whole.
+    private Run lastRun = Run.EMPTY;
+    
+    private int randomState = 0x2545f491;
+    
+    /**
+     * Note that this constructor does not copy the given char[].
+     */
+    PPieceTable(char[] text) {
+        this.root = (text.length > 0) ? new Piece(text, 0, text.length, nextPriority()) : null;
+        this.mappedText = null;
+    }
+    
+    /**
+     * Starts with the contents of 'mappedText', which will be decoded lazily.
+     */
+    PPieceTable(PMappedText mappedText) {
+        this.root = (mappedText.length() > 0) ? new Piece(null, 0, mappedText.length(), nextPriority()) : null;
+        this.mappedText = mappedText;
+    }
+    
+    /**
+     * Returns the mapped text this piece table is layered on top of, or null.
+     */
+    PMappedText getMappedText() {
+        return mappedText;
+    }
+    
+    private static int lengthOf(Piece piece) {
+        return (piece != null) ? piece.subtreeLength : 0;
+    }
+    
+    private int nextPriority() {
+        // Xorshift is plenty random enough to keep the tree balanced.
+        randomState ^= randomState << 13;
+        randomState ^= randomState >>> 17;
+        randomState ^= randomState << 5;
+        return randomState;
+    }
+    
+    public int length() {
+        return lengthOf(root);
+    }
+    
+    public char charAt(int index) {
+        Run run = lastRun;
+        if (run.contains(index) == false) {
+            run = findRun(index);
+        }
+        return run.buffer[index + run.offset];
+    }
+    
+    /**
+     * Returns the run containing 'index', remembering it for next time.
+     */
+    private Run findRun(int index) {
+        Piece piece = root;
+        int pieceStart = 0;
+        while (true) {
+            final int leftLength = lengthOf(piece.left);
+            if (index < pieceStart + leftLength) {
+                piece = piece.left;
+            } else if (index < pieceStart + leftLength + piece.length) {
+                pieceStart += leftLength;
+                final Run run;
+                if (piece.buffer != null) {
+                    run = new Run(piece.buffer, piece.start - pieceStart, pieceStart, pieceStart + piece.length);
+                } else {
+                    run = findMappedRun(index, piece, pieceStart);
+                }
+                lastRun = run;
+                return run;
+            } else {
+                pieceStart += leftLength + piece.length;
+                piece = piece.right;
+            }
+        }
+    }
+    
+    /**
+     * Returns the run containing 'index' in 'piece', which refers to the
+     * mapped text: the part of the piece within a single decoded chunk.
+     */
+    private Run findMappedRun(int index, Piece piece, int pieceStart) {
+        final int pieceOffset = piece.start - pieceStart;
+        final int chunk = mappedText.chunkContaining(index + pieceOffset);
+        final char[] chars = mappedText.getChunk(chunk);
+        final int chunkStart = mappedText.chunkStart(chunk) - pieceOffset;
+        return new Run(chars, -chunkStart, Math.max(pieceStart, chunkStart), Math.min(pieceStart + piece.length, chunkStart + chars.length));
+    }
+    
+    public void getChars(int start, int charCount, char[] destination, int destinationOffset) {
+        while (charCount > 0) {
+            final Run run = findRun(start);
+            final int count = Math.min(charCount, run.end - start);
+            System.arraycopy(run.buffer, start + run.offset, destination, destinationOffset, count);
+            start += count;
+            destinationOffset += count;
+            charCount -= count;
+        }
+    }
+    
+    public int indexOf(char ch, int startIndex) {
+        final int length = length();
+        int index = startIndex;
+        while (index < length) {
+            final Run run = findRun(index);
+            final char[] buffer = run.buffer;
+            final int offset = run.offset;
+            final int end = run.end + offset;
+            for (int i = index + offset; i < end; ++i) {
+                if (buffer[i] == ch) {
+                    return i - offset;
+                }
+            }
+            index = run.end;
+        }
+        return -1;
+    }
+    
+    public void insert(int position, CharSequence chars) {
+        lastRun = Run.EMPTY;
+        Piece[] halves = split(root, position);
+        Piece left = halves[0];
+        final Piece right = halves[1];
+        int copied = 0;
+        while (copied < chars.length()) {
+            if (addBlock == null || addBlockUsed == addBlock.length) {
+                addBlock = new char[Math.max(ADD_BLOCK_SIZE, chars.length() - copied)];
+                addBlockUsed = 0;
+            }
+            final int count = Math.min(chars.length() - copied, addBlock.length - addBlockUsed);
+            copyChars(chars, copied, addBlock, addBlockUsed, count);
+            // Typing produces a stream of single-character inserts, each following the last.
+            // Growing the previous piece keeps those from turning into one piece per keystroke.
+            if (appendToRightmost(left, addBlock, addBlockUsed, count) == false) {
+                left = merge(left, new Piece(addBlock, addBlockUsed, count, nextPriority()));
+            }
+            addBlockUsed += count;
+            copied += count;
+        }
+        root = merge(left, right);
+    }
+    
+    private static void copyChars(CharSequence chars, int start, char[] destination, int destinationOffset, int count) {
+        if (chars instanceof String) {
+            ((String) chars).getChars(start, start + count, destination, destinationOffset);
+        } else if (chars instanceof CharArrayCharSequence && start == 0 && count == chars.length()) {
+            ((CharArrayCharSequence) chars).copyTo(destination, destinationOffset);
+        } else {
+            for (int i = 0; i < count; ++i) {
+                destination[destinationOffset + i] = chars.charAt(start + i);
+            }
+        }
+    }
+    
+    /**
+     * Extends the last piece in the given tree by 'length' characters if they
+     * immediately follow it in 'buffer'. Returns true on success.
+     */
+    private static boolean appendToRightmost(Piece piece, char[] buffer, int start, int length) {
+        if (piece == null) {
+            return false;
+        }
+        boolean appended;
+        if (piece.right != null) {
+            appended = appendToRightmost(piece.right, buffer, start, length);
+        } else {
+            appended = (piece.buffer == buffer && piece.start + piece.length == start);
+            if (appended) {
+                piece.length += length;
+            }
+        }
+        if (appended) {
+            piece.update();
+        }
+        return appended;
+    }
+    
+    public void remove(int position, int charCount) {
+        lastRun = Run.EMPTY;
+        Piece[] halves = split(root, position);
+        Piece[] removed = split(halves[1], charCount);
+        root = merge(halves[0], removed[1]);
+    }
+    
+    public void writeTo(Writer writer) throws IOException {
+        writeTo(root, writer);
+    }
+    
+    private void writeTo(Piece piece, Writer writer) throws IOException {
+        if (piece != null) {
+            writeTo(piece.left, writer);
+            if (piece.buffer != null) {
+                writer.write(piece.buffer, piece.start, piece.length);
+            } else {
+                mappedText.writeTo(writer, piece.start, piece.length);
+            }
+            writeTo(piece.right, writer);
+        }
+    }
+    
+    /**
+     * Splits the given tree into two trees, the first holding the first
+     * 'position' characters and the second holding the rest. A piece
+     * straddling 'position' is itself split in two.
+     */
+    private Piece[] split(Piece piece, int position) {
+        if (piece == null) {
+            return new Piece[] { null, null };
+        }
+        final int leftLength = lengthOf(piece.left);
+        if (position <= leftLength) {
+            Piece[] halves = split(piece.left, position);
+            piece.left = halves[1];
+            piece.update();
+            halves[1] = piece;
+            return halves;
+        } else if (position >= leftLength + piece.length) {
+            Piece[] halves = split(piece.right, position - leftLength - piece.length);
+            piece.right = halves[0];
+            piece.update();
+            halves[0] = piece;
+            return halves;
+        } else {
+            // The split falls inside this piece.
+            final int headLength = position - leftLength;
+            // Giving the tail the same priority keeps the heap property for its new right subtree.
+            Piece tail = new Piece(piece.buffer, piece.start + headLength, piece.length - headLength, piece.priority);
+            tail.right = piece.right;
+            tail.update();
+            piece.length = headLength;
+            piece.right = null;
+            piece.update();
+            return new Piece[] { piece, tail };
+        }
+    }
+    
+    /**
+     * Joins two trees, where everything in 'left' precedes everything in 'right'.
+     */
+    private static Piece merge(Piece left, Piece right) {
+        if (left == null) {
+            return right;
+        } else if (right == null) {
+            return left;
+        } else if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.update();
+            return left;
+        } else {
+            right.left = merge(left, right.left);
+            right.update();
+            return right;
+        }
+    }
+    
+    @Test private static void testPieceTable() {
+        // Compare a long run of random edits against StringBuilder.
+        final Random random = new Random(0);
+        final StringBuilder expected = new StringBuilder("hello, world\nthis is the original text\n");
+        final PPieceTable pieceTable = new PPieceTable(expected.toString().toCharArray());
+        for (int i = 0; i < 5000; ++i) {
+            final int position = random.nextInt(expected.length() + 1);
+            if (random.nextBoolean() || expected.length() == 0) {
+                final String insertion = StringUtilities.nCopies(1 + random.nextInt(5), (char) ('a' + random.nextInt(26)));
+                expected.insert(position, insertion);
+                pieceTable.insert(position, insertion);
+            } else {
+                final int count = random.nextInt(Math.min(8, expected.length() - position) + 1);
+                expected.delete(position, position + count);
+                pieceTable.remove(position, count);
+            }
+            Assert.equals(pieceTable.length(), expected.length());
+        }
+        final char[] actual = new char[pieceTable.length()];
+        pieceTable.getChars(0, actual.length, actual, 0);
+        Assert.equals(new String(actual), expected.toString());
+        for (int i = 0; i < expected.length(); ++i) {
+            Assert.equals(pieceTable.charAt(i), expected.charAt(i));
+        }
+        Assert.equals(pieceTable.indexOf('\n', 0), expected.indexOf("\n"));
+    }
+    
+    public static void main(String[] arguments) {
+        // Compares the two PTextStorage implementations for edits that jump
+        // between the top and the bottom of a large buffer.
+        final int megabytes = (arguments.length > 0) ? Integer.parseInt(arguments[0]) : 64;
+        final char[] text = new char[megabytes * 1024 * 1024];
+        for (int i = 0; i < text.length; ++i) {
+            text[i] = ((i % 80) == 79) ? '\n' : (char) ('a' + (i % 26));
+        }
+        benchmark("PGapBuffer", new PGapBuffer(text.clone()));
+        benchmark("PPieceTable", new PPieceTable(text.clone()));
+    }
+    
+    private static void benchmark(String name, PTextStorage storage) {
+        final Random random = new Random(0);
+        final Stopwatch editStopwatch = Stopwatch.get(name + " alternating insert/remove");
+        for (int i = 0; i < 2000; ++i) {
+            final int length = storage.length();
+            final int position = (i % 2 == 0) ? random.nextInt(1024) : length - random.nextInt(1024);
+            Stopwatch.Timer timer = editStopwatch.start();
+            try {
+                if (i % 4 < 2) {
+                    storage.insert(position, "inserted text");
+                } else {
+                    storage.remove(Math.min(position, length - 8), 8);
+                }
+            } finally {
+                timer.stop();
+            }
+        }
+        System.err.println(editStopwatch);
+        
+        final Stopwatch scanStopwatch = Stopwatch.get(name + " sequential charAt");
+        Stopwatch.Timer timer = scanStopwatch.start();
+        int newlineCount = 0;
+        try {
+            for (int i = 0; i < storage.length(); ++i) {
+                if (storage.charAt(i) == '\n') {
+                    ++newlineCount;
+                }
+            }
+        } finally {
+            timer.stop();
+        }
+        System.err.println(scanStopwatch + " (" + newlineCount + " newlines)");
+    }
+}
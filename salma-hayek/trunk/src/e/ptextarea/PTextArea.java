@@ -534,7 +534,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     public int getLineStartOffset(int line) {
         getLock().getReadLock();
         try {
-            return lines.getLine(line).getStart();
+            return lines.getLineStart(line);
         } finally {
             getLock().relinquishReadLock();
         }
@@ -628,6 +628,19 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
     }
     
+    /**
+     * Adds many highlights at once, which is much cheaper than adding them one at a time.
+     */
+    public void addHighlights(Collection<PHighlight> newHighlights) {
+        getLock().getWriteLock();
+        try {
+            highlights.addAll(newHighlights);
+            repaint();
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
     public List<PHighlight> getNamedHighlights(String highlighterName) {
         return getNamedHighlightsOverlapping(highlighterName, 0, getTextBuffer().length() + 1);
     }
@@ -657,8 +670,14 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
     }
     
-    public void removeHighlights(String highlightManager) {
-        removeHighlights(highlightManager, 0, getTextBuffer().length() + 1);
+    public void removeHighlights(String highlighterName) {
+        getLock().getWriteLock();
+        try {
+            List<PHighlight> removeList = highlights.removeAll(highlighterName);
+            detachHighlights(removeList);
+        } finally {
+            getLock().relinquishWriteLock();
+        }
     }
     
     /**
@@ -668,22 +687,31 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         getLock().getWriteLock();
         try {
             List<PHighlight> removeList = highlights.getNamedHighlightsOverlapping(highlighterName, beginOffset, endOffset);
-            IdentityHashMap<PAnchor, Object> deadAnchors = new IdentityHashMap<PAnchor, Object>();
             for (PHighlight highlight : removeList) {
-                highlight.collectAnchors(deadAnchors);
                 highlights.remove(highlight);
             }
-            getTextBuffer().getAnchorSet().removeAll(deadAnchors);
-            if (removeList.size() == 1) {
-                repaintHighlight(removeList.get(0));
-            } else if (removeList.size() > 1) {
-                repaint();
-            }
+            detachHighlights(removeList);
         } finally {
             getLock().relinquishWriteLock();
         }
     }
     
+    /**
+     * Detaches the anchors of highlights that have already been removed from the highlight manager, and repaints.
+     */
+    private void detachHighlights(List<PHighlight> removeList) {
+        IdentityHashMap<PAnchor, Object> deadAnchors = new IdentityHashMap<PAnchor, Object>();
+        for (PHighlight highlight : removeList) {
+            highlight.collectAnchors(deadAnchors);
+        }
+        getTextBuffer().getAnchorSet().removeAll(deadAnchors);
+        if (removeList.size() == 1) {
+            repaintHighlight(removeList.get(0));
+        } else if (removeList.size() > 1) {
+            repaint();
+        }
+    }
+    
     public void removeHighlight(PHighlight highlight) {
         getLock().getWriteLock();
         try {
@@ -848,18 +876,29 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     
     private void clearSegmentCacheFrom(int lineIndex) {
         synchronized (segmentCache) {
-            // Take a copy of the indices.  Otherwise, if we try removing stuff from the segment cache
-            // based on values taken from the sub-tree from the line index onwards, we incur a
-            // concurrent modification exception.
-            // FIXME: http://java.sun.com/j2se/1.5.0/docs/api/java/util/HashMap.html#keySet() implies that we can use Iterator.remove to avoid this copy.
-            Set<Integer> keySet = segmentCache.tailMap(lineIndex).keySet();
-            Integer[] indices = keySet.toArray(new Integer[keySet.size()]);
-            for (int index : indices) {
-                segmentCache.remove(index);
-            }
+            segmentCache.tailMap(lineIndex).clear();
         }
     }
     
+    /**
+     * Called by a styler when it discovers that lines [fromLine, toLine) need
+     * styling differently, other than because their own text changed. Any
+     * thread may call this.
+     */
+    void linesRestyled(final int fromLine, final int toLine) {
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                // Any edit since we were posted will have cleared these lines anyway.
+                synchronized (segmentCache) {
+                    segmentCache.subMap(fromLine, toLine).clear();
+                }
+                if (isLineWrappingInvalid() == false && toLine <= lines.size()) {
+                    repaintLines(getSplitLineIndex(fromLine), getSplitLineIndex(toLine) - 1);
+                }
+            }
+        });
+    }
+    
     private void clearSegmentCache() {
         synchronized (segmentCache) {
             segmentCache.clear();
@@ -1478,16 +1517,16 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             birdView.setValueIsAdjusting(true);
         }
         try {
-            int matchCount = 0;
+            List<PHighlight> matches = new ArrayList<PHighlight>();
             Matcher matcher = PatternUtilities.smartCaseCompile(regularExpression).matcher(getTextBuffer());
             while (matcher.find()) {
                 if (birdView != null) {
                     birdView.addMatchingLine(getLineOfOffset(matcher.end()));
                 }
-                addHighlight(new PFind.MatchHighlight(this, matcher.start(), matcher.end()));
-                ++matchCount;
+                matches.add(new PFind.MatchHighlight(this, matcher.start(), matcher.end()));
             }
-            return matchCount;
+            addHighlights(matches);
+            return matches.size();
         } finally {
             if (birdView != null) {
                 birdView.setValueIsAdjusting(false);
@@ -18,6 +18,9 @@ final class PTextAreaRenderer {
         disabledLabel.setEnabled(false);
     }
     
+    // We only paint on the EDT, so we can use the same list every time rather than allocate one per repaint.
+    private static final ArrayList<PHighlight> highlightsToPaint = new ArrayList<PHighlight>();
+    
     private PTextArea textArea;
     private Graphics2D g;
     private FontMetrics plainFontMetrics;
@@ -142,10 +145,14 @@ final class PTextAreaRenderer {
         int beginOffset = textArea.getSplitLine(minLine).getTextIndex(textArea);
         SplitLine max = textArea.getSplitLine(maxLine);
         int endOffset = max.getTextIndex(textArea) + max.getLength();
-        Collection<PHighlight> highlightList = textArea.getHighlightManager().getHighlightsOverlapping(beginOffset, endOffset);
-        // Paint the highlights first...
-        for (PHighlight highlight : highlightList) {
-            highlight.paint(g);
+        try {
+            textArea.getHighlightManager().getHighlightsOverlapping(beginOffset, endOffset, highlightsToPaint);
+            // Paint the highlights first...
+            for (PHighlight highlight : highlightsToPaint) {
+                highlight.paint(g);
+            }
+        } finally {
+            highlightsToPaint.clear();
         }
         // ...and then draw the selection on top.
         // This ensures that even fully opaque highlights don't obscure the selection.
@@ -4,9 +4,11 @@ import e.util.*;
 import java.io.*;
 import java.nio.*;
 import java.nio.charset.*;
+import java.security.*;
 import java.util.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import org.jessies.test.*;
 
 /**
  * The PTextArea's model. It can be used as a CharSequence, for efficient
@@ -20,6 +22,9 @@ import javax.swing.event.ChangeListener;
  * This class is responsible for maintaining an undo buffer, accessible via
  * 'getUndoBuffer'.
  * 
+ * The characters themselves live in a PTextStorage: a PGapBuffer for most
+ * files, or a PPieceTable for very large ones.
+ * 
  * In addition to the characters, this class also stores metadata, called
  * properties. There are certain well-known properties, whose names are
  * exported as constants. No caller should cache these properties; a caller
@@ -33,6 +38,10 @@ import javax.swing.event.ChangeListener;
  * fall back to UTF-8. If the file doesn't decode correctly, we try ISO-8859-1.
  * If that also fails, we throw an exception.
  * 
+ * Large UTF-8 files with Unix line endings are memory-mapped rather than
+ * read, and only decoded as their characters are needed (see PMappedText).
+ * The mapping is never written to; edits are layered on top of it.
+ * 
  * A file written to disk with 'writeToFile' will use the current
  * CHARSET_PROPERTY, which will have been initialized to correspond to the
  * encoding the file had when read from disk, or UTF-8 if this is a new file.
@@ -45,18 +54,22 @@ public class PTextBuffer implements CharSequence {
     public static final String INDENTATION_PROPERTY = "IndentationProperty";
     public static final String LINE_ENDING_PROPERTY = "LineEndingProperty";
     
-    private static final int MIN_BUFFER_EXTENSION = 100;
-    private static final int MAX_GAP_SIZE = 1024 * 2;
+    // Buffers at least this many characters long use a PPieceTable rather than a PGapBuffer.
+    private static final int PIECE_TABLE_THRESHOLD = 8 * 1024 * 1024;
     
-    private char[] text = new char[0];
-    private int gapPosition;
-    private int gapLength;
+    // Files at least this many bytes long are memory-mapped rather than read, if possible.
+    private static final long MAPPED_FILE_THRESHOLD = 32 * 1024 * 1024;
+    
+    private PTextStorage storage = new PGapBuffer(new char[0]);
     private ArrayList<PTextListener> textListeners = new ArrayList<PTextListener>();
     private PAnchorSet anchorSet = new PAnchorSet();
     private Undoer undoBuffer = new Undoer();
     private HashMap<String, Object> properties = new HashMap<String, Object>();
     private PLock lock = new PLock();
     
+    // The digest of our characters used by 'hasSameContentAs', computed when first needed after each change.
+    private volatile byte[] contentDigest;
+    
     public PTextBuffer() {
         // Our anchorSet *must* be the first listener.  It needs to update the anchor locations
         // before anyone else starts messing about with them.
@@ -120,6 +133,9 @@ public class PTextBuffer implements CharSequence {
     }
     
     private void fireTextEvent(PTextEvent event) {
+        // Every change comes through here, so this is where our digest goes out of date.
+        contentDigest = null;
+        
         // Although most Swing listeners are called in reverse order, these events are not
         // consume()able, so I don't really see the point in doing so here.  It is vital that
         // some listeners (the PLineList and PAnchorSet to name two) are called before
@@ -146,6 +162,16 @@ public class PTextBuffer implements CharSequence {
     public void readFromFile(File file) {
         getLock().getWriteLock();
         try {
+            if (file.length() >= MAPPED_FILE_THRESHOLD) {
+                final PMappedText mappedText = PMappedText.mapFile(file);
+                if (mappedText != null) {
+                    putProperty(CHARSET_PROPERTY, "UTF-8");
+                    putProperty(LINE_ENDING_PROPERTY, "\n");
+                    setStorage(new PPieceTable(mappedText));
+                    return;
+                }
+            }
+            
             // Read all the bytes in.
             final ByteBuffer byteBuffer = ByteBufferUtilities.readFile(file);
             
@@ -170,10 +196,33 @@ public class PTextBuffer implements CharSequence {
     }
     
     private char[] fixLineEndings(char[] chars) {
-        final String s = new String(chars);
-        final String lineEnding = s.contains("\r\n") ? "\r\n" : "\r";
-        putProperty(LINE_ENDING_PROPERTY, lineEnding);
-        return s.replaceAll(lineEnding, "\n").toCharArray();
+        boolean sawCrLf = false;
+        for (int i = 0; i + 1 < chars.length; ++i) {
+            if (chars[i] == '\r' && chars[i + 1] == '\n') {
+                sawCrLf = true;
+                break;
+            }
+        }
+        putProperty(LINE_ENDING_PROPERTY, sawCrLf ? "\r\n" : "\r");
+        
+        // Rewrite the characters in place rather than going via a String, which would cost several copies of a potentially large file.
+        if (sawCrLf == false) {
+            for (int i = 0; i < chars.length; ++i) {
+                if (chars[i] == '\r') {
+                    chars[i] = '\n';
+                }
+            }
+            return chars;
+        }
+        int length = 0;
+        for (int i = 0; i < chars.length; ++i) {
+            if (chars[i] == '\r' && i + 1 < chars.length && chars[i + 1] == '\n') {
+                // Lone carriage returns in a CRLF file are left alone.
+                continue;
+            }
+            chars[length++] = chars[i];
+        }
+        return Arrays.copyOf(chars, length);
     }
     
     /**
@@ -183,6 +232,7 @@ public class PTextBuffer implements CharSequence {
     public void writeToFile(File file) {
         FileOutputStream openFile = null;
         try {
+            detachFromMappedFile(file);
             openFile = new FileOutputStream(file);
             String charsetName = (String) getProperty(CHARSET_PROPERTY);
             // The CharsetEncoder created here will silently replace characters which cannot
@@ -197,6 +247,130 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
+    /**
+     * Copies our text onto the heap if it's still backed by a mapping of 'file'.
+     * Truncating a mapped file would leave us unable to read the unedited parts.
+     */
+    private void detachFromMappedFile(File file) throws IOException {
+        getLock().getWriteLock();
+        try {
+            if (storage instanceof PPieceTable) {
+                final PMappedText mappedText = ((PPieceTable) storage).getMappedText();
+                if (mappedText != null && file.exists() && mappedText.getFile().getCanonicalFile().equals(file.getCanonicalFile())) {
+                    storage = makeStorage(copyCharArray(0, length()));
+                }
+            }
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
+    /**
+     * Tests whether 'file' contains the characters we'd have if we read it now, without reading the whole file into memory.
+     * The file is decoded with our CHARSET_PROPERTY, and has its line endings translated according to our LINE_ENDING_PROPERTY, as 'readFromFile' would.
+     * The resulting characters are compared with ours by MD5 digest.
+     * Our digest is kept until our text next changes, so checking an unmodified buffer again only costs reading the file.
+     */
+    public boolean hasSameContentAs(File file) throws IOException {
+        final byte[] ourDigest = getContentDigest();
+        final boolean translateCrLf = getProperty(LINE_ENDING_PROPERTY).equals("\r\n");
+        final boolean translateCr = getProperty(LINE_ENDING_PROPERTY).equals("\r");
+        final CharDigester digester = new CharDigester();
+        final Reader reader = new InputStreamReader(new FileInputStream(file), (String) getProperty(CHARSET_PROPERTY));
+        try {
+            final char[] chars = new char[CharDigester.CHUNK_SIZE];
+            // A carriage return at the end of one read whose fate depends on the first character of the next.
+            boolean pendingCarriageReturn = false;
+            int charCount;
+            while ((charCount = reader.read(chars)) != -1) {
+                if (pendingCarriageReturn && charCount > 0 && chars[0] != '\n') {
+                    digester.update('\r');
+                }
+                pendingCarriageReturn = false;
+                // Translate in place, the way fixLineEndings does.
+                int length = 0;
+                for (int i = 0; i < charCount; ++i) {
+                    char ch = chars[i];
+                    if (ch == '\r' && translateCr) {
+                        ch = '\n';
+                    } else if (ch == '\r' && translateCrLf) {
+                        if (i + 1 == charCount) {
+                            pendingCarriageReturn = true;
+                            continue;
+                        }
+                        if (chars[i + 1] == '\n') {
+                            continue;
+                        }
+                    }
+                    chars[length++] = ch;
+                }
+                digester.update(chars, length);
+            }
+            if (pendingCarriageReturn) {
+                digester.update('\r');
+            }
+        } finally {
+            FileUtilities.close(reader);
+        }
+        return MessageDigest.isEqual(ourDigest, digester.digest());
+    }
+    
+    private byte[] getContentDigest() {
+        getLock().getReadLock();
+        try {
+            // Writers are locked out, so a digest we compute here can't be of text that's already changed.
+            if (contentDigest == null) {
+                final CharDigester digester = new CharDigester();
+                final char[] chars = new char[CharDigester.CHUNK_SIZE];
+                final int length = length();
+                for (int start = 0; start < length; start += chars.length) {
+                    final int charCount = Math.min(chars.length, length - start);
+                    storage.getChars(start, charCount, chars, 0);
+                    digester.update(chars, charCount);
+                }
+                contentDigest = digester.digest();
+            }
+            return contentDigest;
+        } finally {
+            getLock().relinquishReadLock();
+        }
+    }
+    
+    /**
+     * Digests characters a chunk at a time, so neither the buffer nor the file it's compared with need be copied whole.
+     */
+    private static class CharDigester {
+        private static final int CHUNK_SIZE = 8192;
+        
+        private final MessageDigest md5;
+        private final byte[] bytes = new byte[2 * CHUNK_SIZE];
+        
+        private CharDigester() {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        
+        /** Digests the first 'charCount' characters of 'chars', which mustn't be longer than CHUNK_SIZE. */
+        private void update(char[] chars, int charCount) {
+            for (int i = 0; i < charCount; ++i) {
+                bytes[2 * i] = (byte) (chars[i] >> 8);
+                bytes[2 * i + 1] = (byte) chars[i];
+            }
+            md5.update(bytes, 0, 2 * charCount);
+        }
+        
+        private void update(char ch) {
+            update(new char[] { ch }, 1);
+        }
+        
+        private byte[] digest() {
+            return md5.digest();
+        }
+    }
+    
     /**
      * Switch charset encoding if the encoding works.
      */
@@ -231,14 +405,7 @@ public class PTextBuffer implements CharSequence {
             
             String lineEnding = (String) getProperty(LINE_ENDING_PROPERTY);
             if (lineEnding.equals("\n")) {
-                // Just write out the two halves as they are.
-                if (gapPosition != 0) {
-                    writer.write(text, 0, gapPosition);
-                }
-                final int gapEnd = gapPosition + gapLength;
-                if (gapEnd < text.length) {
-                    writer.write(text, gapEnd, text.length - gapEnd);
-                }
+                storage.writeTo(writer);
             } else {
                 // Split our internal content into lines, and write them
                 // out individually. Expensive, but why aren't you using
@@ -262,17 +429,35 @@ public class PTextBuffer implements CharSequence {
      * Note that this method does not copy the given char[].
      */
     private void setText(char[] text) {
+        setStorage(makeStorage(text));
+    }
+    
+    /**
+     * Sets the storage, replacing any text that was here before.
+     */
+    private void setStorage(PTextStorage storage) {
         getLock().getWriteLock();
         try {
-            this.text = text;
-            gapPosition = 0;
-            gapLength = 0;
-            fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, new CharArrayCharSequence(text)));
+            this.storage = storage;
+            fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, this));
         } finally {
             getLock().relinquishWriteLock();
         }
     }
     
+    /**
+     * Chooses the storage for a buffer initially containing 'text'. A gap
+     * buffer is best for the sizes of file people usually edit, but edits far
+     * from the gap in a file of hundreds of megabytes would mean copying much
+     * of the file each time, so we use a piece table for those.
+     */
+    private static PTextStorage makeStorage(char[] text) {
+        if (text.length >= PIECE_TABLE_THRESHOLD) {
+            return new PPieceTable(text);
+        }
+        return new PGapBuffer(text);
+    }
+    
     /**
      * Returns a copy of the specified region of text.  This involves making a
      * complete copy of the specified region of text, and so should only be
@@ -294,15 +479,7 @@ public class PTextBuffer implements CharSequence {
             }
             char[] result = new char[charCount];
             try {
-                int copyCount = 0;
-                if (start < gapPosition) {
-                    copyCount = Math.min(charCount, gapPosition - start);
-                    System.arraycopy(text, start, result, 0, copyCount);
-                }
-                if (start + charCount >= gapPosition) {
-                    int textPosition = Math.max(start, gapPosition) + gapLength;
-                    System.arraycopy(text, textPosition, result, copyCount, result.length - copyCount);
-                }
+                storage.getChars(start, charCount, result, 0);
             } catch (ArrayIndexOutOfBoundsException ex) {
                 Log.warn("Requested get text from " + start + ", length " + charCount + "; size is " + length() +".", ex);
             }
@@ -312,42 +489,6 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
-    /** Moves the gap to the specified position. */
-    private void moveGap(int newPosition) {
-        if (gapPosition == newPosition) {
-            return;
-        }
-        if (newPosition < gapPosition) {
-            System.arraycopy(text, newPosition, text, newPosition + gapLength, gapPosition - newPosition);
-        } else {
-            System.arraycopy(text, gapPosition + gapLength, text, gapPosition, newPosition - gapPosition);
-        }
-        gapPosition = newPosition;
-    }
-    
-    private void changeBufferLength(int lengthChange) {
-        char[] newText = new char[text.length + lengthChange];
-        System.arraycopy(text, 0, newText, 0, gapPosition);
-        int endOffset = gapPosition + gapLength;
-        System.arraycopy(text, endOffset, newText, endOffset + lengthChange, text.length - endOffset);
-        gapLength += lengthChange;
-        text = newText;
-    }
-    
-    /** Expands the buffer. */
-    private void expandBuffer(int requiredGapLength) {
-        int desiredGapIncrease = requiredGapLength + Math.min(MAX_GAP_SIZE, requiredGapLength);
-        changeBufferLength(Math.max(MIN_BUFFER_EXTENSION, desiredGapIncrease));
-    }
-    
-    /** Shrinks the buffer. */
-    private void shrinkBuffer() {
-        if (gapLength > MAX_GAP_SIZE) {
-            int desiredGapLength = Math.max(MIN_BUFFER_EXTENSION, gapLength - MAX_GAP_SIZE);
-            changeBufferLength(desiredGapLength - gapLength);
-        }
-    }
-    
     public void replace(SelectionSetter beforeCaret, int position, int removeCount, CharSequence add, SelectionSetter afterCaret) {
         getLock().getWriteLock();
         try {
@@ -369,30 +510,13 @@ public class PTextBuffer implements CharSequence {
     
     /** Special remove method used by the undo buffer. */
     private void removeWithoutUndo(int position, CharSequence chars) {
-        moveGap(position + chars.length());
-        gapPosition -= chars.length();
-        gapLength += chars.length();
-        shrinkBuffer();
+        storage.remove(position, chars.length());
         fireTextEvent(new PTextEvent(this, PTextEvent.REMOVE, position, chars));
     }
     
     /** Special insertion method used by the undo buffer. */
     private void insertWithoutUndo(int position, CharSequence chars) {
-        moveGap(position);
-        int textLength = chars.length();
-        while (textLength > gapLength) {
-            expandBuffer(textLength);
-        }
-        if (chars instanceof CharArrayCharSequence) {
-            ((CharArrayCharSequence) chars).copyTo(text, gapPosition);
-        } else {
-            // This is the price you pay for giving us a String.
-            for (int i = 0; i < chars.length(); ++i) {
-                text[gapPosition + i] = chars.charAt(i);
-            }
-        }
-        gapPosition += textLength;
-        gapLength -= textLength;
+        storage.insert(position, chars);
         fireTextEvent(new PTextEvent(this, PTextEvent.INSERT, position, chars));
     }
     
@@ -401,7 +525,7 @@ public class PTextBuffer implements CharSequence {
         if (index < 0 || index >= length()) {
             throwIOOBE(index);
         }
-        return (index < gapPosition) ? text[index] : text[index + gapLength];
+        return storage.charAt(index);
     }
     
     private void throwIOOBE(int index) {
@@ -421,19 +545,12 @@ public class PTextBuffer implements CharSequence {
         } else if (startIndex >= length()) {
             return -1;
         }
-        
-        int gapBufferIndex = (startIndex < gapPosition) ? startIndex : (startIndex + gapLength);
-        for (int i = startIndex; i < length(); ++i) {
-            if (text[gapBufferIndex++] == ch) {
-                return i;
-            }
-        }
-        return -1;
+        return storage.indexOf(ch, startIndex);
     }
     
     /** Returns the number of characters in the text area.  Part of the CharSequence interface. */
     public int length() {
-        return text.length - gapLength;
+        return storage.length();
     }
     
     /**
@@ -451,10 +568,7 @@ public class PTextBuffer implements CharSequence {
     public String toString() {
         getLock().getReadLock();
         try {
-            StringBuilder result = new StringBuilder();
-            result.append(text, 0, gapPosition);
-            result.append(text, gapPosition + gapLength, text.length - gapPosition - gapLength);
-            return result.toString();
+            return new String(copyCharArray(0, length()));
         } finally {
             getLock().relinquishReadLock();
         }
@@ -689,4 +803,33 @@ public class PTextBuffer implements CharSequence {
             }
         }
     }
+    
+    @Test private static void testHasSameContentAs() throws IOException {
+        final File file = FileUtilities.createTemporaryFile("PTextBufferTest", ".txt", "test file", "hello\r\nworld\rlone\r\n");
+        final PTextBuffer buffer = new PTextBuffer();
+        buffer.readFromFile(file);
+        Assert.equals(buffer.toString(), "hello\nworld\rlone\n");
+        Assert.equals(buffer.hasSameContentAs(file), true);
+        // Asking again uses the cached digest of the buffer.
+        Assert.equals(buffer.hasSameContentAs(file), true);
+        
+        StringUtilities.writeFile(file, "hello\r\nworld\r\nlone\r\n");
+        Assert.equals(buffer.hasSameContentAs(file), false);
+        
+        // A CRLF split across two reads still counts as a single newline.
+        StringUtilities.writeFile(file, StringUtilities.nCopies(CharDigester.CHUNK_SIZE - 1, 'x') + "\r\ny\r\n");
+        buffer.readFromFile(file);
+        Assert.equals(buffer.hasSameContentAs(file), true);
+        StringUtilities.writeFile(file, StringUtilities.nCopies(CharDigester.CHUNK_SIZE - 1, 'x') + "\ry\r\n");
+        Assert.equals(buffer.hasSameContentAs(file), false);
+        
+        final SelectionSetter noOpSelectionSetter = new SelectionSetter() {
+            public void modifySelection() {
+            }
+        };
+        buffer.replace(noOpSelectionSetter, 0, 1, "z", noOpSelectionSetter);
+        StringUtilities.writeFile(file, "z" + StringUtilities.nCopies(CharDigester.CHUNK_SIZE - 2, 'x') + "\r\ny\r\n");
+        Assert.equals(buffer.hasSameContentAs(file), true);
+        file.delete();
+    }
 }
@@ -0,0 +1,42 @@
+package e.ptextarea;
+
+import java.io.*;
+
+/**
+ * The character storage behind a PTextBuffer.
+ * 
+ * PTextBuffer is responsible for locking, bounds checking, undo, and
+ * notifying listeners; implementations of this interface just need to hold
+ * the characters and make them available. The arguments passed in are
+ * assumed to have already been checked.
+ * 
+ * See PGapBuffer (the default) and PPieceTable (for large buffers).
+ */
+interface PTextStorage {
+    /** Returns the number of characters stored. */
+    public int length();
+    
+    /** Returns the character at 'index'. */
+    public char charAt(int index);
+    
+    /**
+     * Copies 'charCount' characters starting at 'start' into 'destination'
+     * at 'destinationOffset'.
+     */
+    public void getChars(int start, int charCount, char[] destination, int destinationOffset);
+    
+    /**
+     * Returns the index of the first occurrence of 'ch' at or after
+     * 'startIndex', or -1. 'startIndex' is known to be in range.
+     */
+    public int indexOf(char ch, int startIndex);
+    
+    /** Inserts 'chars' so that the first of them ends up at 'position'. */
+    public void insert(int position, CharSequence chars);
+    
+    /** Removes 'charCount' characters starting at 'position'. */
+    public void remove(int position, int charCount);
+    
+    /** Writes all the characters to 'writer', without translating line endings. */
+    public void writeTo(Writer writer) throws IOException;
+}
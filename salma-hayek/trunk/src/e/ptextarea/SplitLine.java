@@ -41,7 +41,7 @@ final class SplitLine {
     }
     
     public int getTextIndex(PTextArea textArea) {
-        return textArea.getLineList().getLine(lineIndex).getStart() + offset;
+        return textArea.getLineList().getLineStart(lineIndex) + offset;
     }
     
     public boolean containsIndex(PTextArea textArea, int charIndex) {
@@ -0,0 +1,146 @@
+package e.util;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * A Fenwick tree (or binary indexed tree) over a sequence of ints, such as
+ * line lengths. Changing a value, finding the sum of a prefix of the
+ * sequence, and finding which element contains a given offset are all
+ * O(log n), where an int[] of running totals would need O(n) work for every
+ * change.
+ * 
+ * Values can also be appended in O(log n), so the sequence can grow.
+ * 
+ * 'add' takes negative deltas as readily as positive ones (a line that gets
+ * shorter, say). What indexOf needs is for the prefix sums never to decrease,
+ * so each value has to stay non-negative after any change; the tree doesn't
+ * check.
+ */
+public final class FenwickTree {
+    // tree[i] holds the sum of the values with (one-based) indexes (i - lowestOneBit(i), i].
+    private int[] tree;
+    private int size;
+    
+    /**
+     * Creates an empty tree.
+     */
+    public FenwickTree() {
+        this.tree = new int[16 + 1];
+        this.size = 0;
+    }
+    
+    /**
+     * Creates a tree holding a copy of the first 'count' elements of 'values', in O(n).
+     */
+    public FenwickTree(int[] values, int count) {
+        this.tree = new int[Math.max(count, 16) + 1];
+        this.size = count;
+        System.arraycopy(values, 0, tree, 1, count);
+        for (int i = 1; i <= count; ++i) {
+            final int parent = i + Integer.lowestOneBit(i);
+            if (parent <= count) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of values in the tree.
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Appends 'value' to the end of the sequence.
+     */
+    public void append(int value) {
+        if (size + 1 == tree.length) {
+            tree = Arrays.copyOf(tree, 2 * tree.length);
+        }
+        ++size;
+        // The new node covers (size - lowestOneBit(size), size], so add in the values before us it covers.
+        tree[size] = value + prefixSum(size - 1) - prefixSum(size - Integer.lowestOneBit(size));
+    }
+    
+    /**
+     * Adds 'delta', which may be negative, to the value at 'index'.
+     */
+    public void add(int index, int delta) {
+        for (int i = index + 1; i <= size; i += Integer.lowestOneBit(i)) {
+            tree[i] += delta;
+        }
+    }
+    
+    /**
+     * Returns the value at 'index'.
+     */
+    public int get(int index) {
+        return prefixSum(index + 1) - prefixSum(index);
+    }
+    
+    /**
+     * Returns the sum of the first 'count' values.
+     */
+    public int prefixSum(int count) {
+        int sum = 0;
+        for (int i = count; i > 0; i -= Integer.lowestOneBit(i)) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+    
+    /**
+     * Returns the sum of all the values.
+     */
+    public int total() {
+        return prefixSum(size);
+    }
+    
+    /**
+     * Returns the index of the value containing 'offset', treating each value
+     * as the length of a run: the smallest index such that prefixSum(index + 1)
+     * is greater than 'offset'. Zero-length runs are skipped over. Returns size()
+     * if 'offset' is at or beyond the total.
+     */
+    public int indexOf(int offset) {
+        int index = 0;
+        int remaining = offset;
+        for (int step = Integer.highestOneBit(Math.max(size, 1)); step > 0; step >>= 1) {
+            final int next = index + step;
+            if (next <= size && tree[next] <= remaining) {
+                index = next;
+                remaining -= tree[next];
+            }
+        }
+        return index;
+    }
+    
+    @Test private static void testFenwickTree() {
+        final int[] values = new int[] { 3, 0, 5, 1, 0, 0, 7, 2, 4 };
+        final FenwickTree built = new FenwickTree(values, values.length);
+        final FenwickTree appended = new FenwickTree();
+        for (int value : values) {
+            appended.append(value);
+        }
+        for (FenwickTree tree : Arrays.asList(built, appended)) {
+            Assert.equals(tree.size(), 9);
+            Assert.equals(tree.total(), 22);
+            Assert.equals(tree.prefixSum(0), 0);
+            Assert.equals(tree.prefixSum(3), 8);
+            Assert.equals(tree.get(6), 7);
+            Assert.equals(tree.indexOf(0), 0);
+            Assert.equals(tree.indexOf(2), 0);
+            Assert.equals(tree.indexOf(3), 2);
+            Assert.equals(tree.indexOf(8), 3);
+            Assert.equals(tree.indexOf(9), 6);
+            Assert.equals(tree.indexOf(21), 8);
+            Assert.equals(tree.indexOf(22), 9);
+            tree.add(1, 10);
+            Assert.equals(tree.get(1), 10);
+            Assert.equals(tree.indexOf(3), 1);
+            Assert.equals(tree.total(), 32);
+        }
+    }
+}
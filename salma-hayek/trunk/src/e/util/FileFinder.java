@@ -2,22 +2,39 @@ package e.util;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.xml.stream.*;
 import org.jessies.os.*;
 
 /**
  * Finds files in a directory tree.
  * 
- * FIXME: parallelize internally.
- * FIXME: allow for parallelism in the caller. return a blocking iterator? accept a Processor functor?
+ * Directories are read with Posix.scandir, which on most file systems tells
+ * us each entry's type without an lstat(2) per entry, and subdirectories are
+ * read in parallel on a fork-join pool if you ask for more than one thread.
+ * 
+ * If you pass in a Snapshot, it remembers what was in each directory and
+ * the directory's modification time. Next time, a directory whose
+ * modification time hasn't changed is taken from the snapshot, which costs a
+ * stat(2) rather than a read of the directory and a call of the Filter for
+ * each entry. (Adding, removing, or renaming an entry always changes the
+ * modification time of the directory it's in.) The snapshot can be saved and
+ * restored, so even the first scan after a restart can be cheap.
  */
 public class FileFinder {
     private boolean includeDirectories = false;
+    private int threadCount = 1;
+    private Snapshot snapshot = null;
     
     /**
      * Used to filter results.
      * We could use java.io.FileFilter, but having our own interface lets us pass in the Stat.
      * It's tempting to just have one method, but having two makes it clear that the caller needs to think about directories.
      * We could also add explicit interface for asking about symbolic links (instead of calling acceptFile).
+     * 
+     * The Stat may only have st_mode filled in, because that's all a directory listing tells us.
+     * Answers are remembered in any Snapshot for as long as the directory is unchanged and the Filter is equal to the one that gave them.
      */
     public interface Filter {
         /**
@@ -54,6 +71,24 @@ public class FileFinder {
         return this;
     }
     
+    /**
+     * How many threads to read directories on. Defaults to 1.
+     * The Filter must be thread-safe if this is more than 1.
+     */
+    public FileFinder threadCount(int threadCount) {
+        this.threadCount = threadCount;
+        return this;
+    }
+    
+    /**
+     * Reuses what 'snapshot' remembers from the last scan, and updates it to
+     * match this one. A snapshot should only be used by one scan at a time.
+     */
+    public FileFinder useSnapshot(Snapshot snapshot) {
+        this.snapshot = snapshot;
+        return this;
+    }
+    
     /**
      * Returns all files under 'root', entering all directories and accepting all files.
      */
@@ -68,34 +103,323 @@ public class FileFinder {
         if (filter == null) {
             filter = new DefaultFilter();
         }
+        final Snapshot snapshot = (this.snapshot != null) ? this.snapshot : new Snapshot();
+        final Walk walk = new Walk(filter, snapshot.directories);
+        final Visit rootVisit;
+        if (threadCount > 1) {
+            final ForkJoinPool pool = new ForkJoinPool(threadCount);
+            try {
+                rootVisit = pool.invoke(new DirectoryTask(walk, root));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            rootVisit = new DirectoryTask(walk, root).compute();
+        }
+        snapshot.directories = walk.next;
+        if (walk.changed.get() || walk.next.size() != walk.previous.size()) {
+            snapshot.changed = true;
+        }
+        
         final ArrayList<File> files = new ArrayList<File>();
-        findFilesInDirectory(files, root, filter);
+        if (rootVisit != null) {
+            addFiles(files, rootVisit);
+        }
         return files;
     }
     
-    private void findFilesInDirectory(List<File> result, File directory, Filter filter) {
-        File[] files = directory.listFiles();
-        if (files == null) {
-            return;
-        }
-        for (File file : files) {
-            final Stat stat = new Stat();
-            if (Posix.lstat(file.toString(), stat) != 0) {
-                // Ignore files that disappear while we're traversing the directory structure.
+    /**
+     * Flattens the tree of visits in the order the directories listed their
+     * entries, as we did before we walked the tree in parallel.
+     */
+    private void addFiles(List<File> result, Visit visit) {
+        final Directory node = visit.node;
+        for (int i = 0; i < node.names.length; ++i) {
+            if (visit.accepted[i] == false) {
                 continue;
             }
-            if (stat.isDirectory()) {
-                if (filter.enterDirectory(file, stat)) {
+            if (node.types[i] == Posix.S_IFDIR) {
+                final Visit subdirectory = visit.subdirectories[i];
+                if (subdirectory != null) {
                     if (includeDirectories) {
-                        result.add(file);
+                        result.add(subdirectory.directory);
                     }
-                    findFilesInDirectory(result, file, filter);
+                    addFiles(result, subdirectory);
                 }
             } else {
-                if (filter.acceptFile(file, stat)) {
-                    result.add(file);
+                result.add(FileUtilities.fileFromParentAndString(visit.directory.toString(), node.names[i]));
+            }
+        }
+    }
+    
+    /**
+     * What we know about a directory's entries. Never modified once created,
+     * except for the memoized filter decisions.
+     */
+    private static final class Directory {
+        // The directory's st_mtime, in seconds.
+        private final long mtime;
+        // When we read the directory, in seconds.
+        private final long listedAt;
+        private final String[] names;
+        // The S_IFMT bits of each entry's st_mode.
+        private final int[] types;
+        private volatile Decisions decisions;
+        
+        private Directory(long mtime, long listedAt, String[] names, int[] types) {
+            this.mtime = mtime;
+            this.listedAt = listedAt;
+            this.names = names;
+            this.types = types;
+        }
+        
+        /**
+         * Tests whether this is still what the directory contains, given its current modification time.
+         * Modification times only have a resolution of a second, so if the directory was modified in the same
+         * second we read it, it may have changed again after we read it, and we can't trust what we saw.
+         */
+        private boolean isUpToDate(long currentMtime) {
+            return mtime == currentMtime && mtime < listedAt;
+        }
+    }
+    
+    private static final class Decisions {
+        private final Filter filter;
+        private final boolean[] accepted;
+        
+        private Decisions(Filter filter, boolean[] accepted) {
+            this.filter = filter;
+            this.accepted = accepted;
+        }
+    }
+    
+    /** The state shared by all the tasks in one call of filesUnder. */
+    private static final class Walk {
+        private final Filter filter;
+        private final Map<String, Directory> previous;
+        private final ConcurrentHashMap<String, Directory> next = new ConcurrentHashMap<String, Directory>();
+        private final AtomicBoolean changed = new AtomicBoolean(false);
+        
+        private Walk(Filter filter, Map<String, Directory> previous) {
+            this.filter = filter;
+            this.previous = previous;
+        }
+    }
+    
+    /** The result of visiting one directory on this walk. */
+    private static final class Visit {
+        private final File directory;
+        private final Directory node;
+        private final boolean[] accepted;
+        // Indexed like node.names; null for anything we didn't enter.
+        private final Visit[] subdirectories;
+        
+        private Visit(File directory, Directory node, boolean[] accepted) {
+            this.directory = directory;
+            this.node = node;
+            this.accepted = accepted;
+            this.subdirectories = new Visit[node.names.length];
+        }
+    }
+    
+    private static final class DirectoryTask extends RecursiveTask<Visit> {
+        private final Walk walk;
+        private final File directory;
+        
+        private DirectoryTask(Walk walk, File directory) {
+            this.walk = walk;
+            this.directory = directory;
+        }
+        
+        @Override
+        protected Visit compute() {
+            final String path = directory.toString();
+            final Stat stat = new Stat();
+            if (Posix.stat(path, stat) != 0) {
+                // Ignore directories that disappear while we're traversing the directory structure.
+                return null;
+            }
+            Directory node = walk.previous.get(path);
+            if (node == null || node.isUpToDate(stat.st_mtime()) == false) {
+                node = readDirectory(path, stat.st_mtime());
+                walk.changed.set(true);
+            }
+            walk.next.put(path, node);
+            
+            final Visit visit = new Visit(directory, node, decide(node));
+            final ArrayList<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+            final ArrayList<Integer> subtaskIndexes = new ArrayList<Integer>();
+            for (int i = 0; i < node.names.length; ++i) {
+                if (node.types[i] == Posix.S_IFDIR && visit.accepted[i]) {
+                    subtasks.add(new DirectoryTask(walk, FileUtilities.fileFromParentAndString(path, node.names[i])));
+                    subtaskIndexes.add(i);
+                }
+            }
+            if (getPool() != null) {
+                invokeAll(subtasks);
+            }
+            for (int i = 0; i < subtasks.size(); ++i) {
+                final DirectoryTask subtask = subtasks.get(i);
+                visit.subdirectories[subtaskIndexes.get(i)] = (getPool() != null) ? subtask.join() : subtask.compute();
+            }
+            return visit;
+        }
+        
+        private Directory readDirectory(String path, long mtime) {
+            // Take the time before reading, so a change while we're reading counts as newer than what we saw.
+            final long listedAt = System.currentTimeMillis() / 1000;
+            final DirectoryListing listing = new DirectoryListing();
+            if (Posix.scandir(path, listing) != 0) {
+                return new Directory(mtime, listedAt, new String[0], new int[0]);
+            }
+            final int entryCount = listing.size();
+            String[] names = new String[entryCount];
+            int[] types = new int[entryCount];
+            int count = 0;
+            for (int i = 0; i < entryCount; ++i) {
+                final String name = listing.getName(i);
+                int type = listing.getType(i);
+                if (type == 0) {
+                    // The file system didn't say, so we have to ask.
+                    final Stat stat = new Stat();
+                    if (Posix.lstat(path + File.separator + name, stat) != 0) {
+                        // Ignore files that disappear while we're traversing the directory structure.
+                        continue;
+                    }
+                    type = stat.st_mode() & Posix.S_IFMT;
+                }
+                names[count] = name;
+                types[count] = type;
+                ++count;
+            }
+            if (count != entryCount) {
+                names = Arrays.copyOf(names, count);
+                types = Arrays.copyOf(types, count);
+            }
+            return new Directory(mtime, listedAt, names, types);
+        }
+        
+        private boolean[] decide(Directory node) {
+            final Decisions decisions = node.decisions;
+            if (decisions != null && decisions.filter.equals(walk.filter)) {
+                return decisions.accepted;
+            }
+            final String path = directory.toString();
+            final boolean[] accepted = new boolean[node.names.length];
+            for (int i = 0; i < accepted.length; ++i) {
+                final File file = FileUtilities.fileFromParentAndString(path, node.names[i]);
+                final Stat stat = new Stat(node.types[i]);
+                if (node.types[i] == Posix.S_IFDIR) {
+                    accepted[i] = walk.filter.enterDirectory(file, stat);
+                } else {
+                    accepted[i] = walk.filter.acceptFile(file, stat);
+                }
+            }
+            node.decisions = new Decisions(walk.filter, accepted);
+            return accepted;
+        }
+    }
+    
+    /**
+     * What a FileFinder saw last time, so it can skip unchanged directories
+     * next time. Snapshots are saved as XML, one element per directory.
+     */
+    public static final class Snapshot {
+        private volatile Map<String, Directory> directories = new HashMap<String, Directory>();
+        // Whether there's anything worth writing out since we were created, read, or last written.
+        private volatile boolean changed = false;
+        
+        public Snapshot() {
+        }
+        
+        /**
+         * Returns the number of directories we know about.
+         */
+        public int getDirectoryCount() {
+            return directories.size();
+        }
+        
+        /**
+         * Returns true if the snapshot has changed since it was read or last written.
+         */
+        public boolean hasChanged() {
+            return changed;
+        }
+        
+        /**
+         * Writes the snapshot to 'file', replacing it atomically.
+         */
+        public void writeTo(File file) throws IOException, XMLStreamException {
+            final File temporaryFile = FileUtilities.fileFromString(file.toString() + ".tmp");
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(temporaryFile));
+            try {
+                final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+                writer.writeStartDocument("UTF-8", "1.0");
+                writer.writeStartElement("file-finder-snapshot");
+                for (Map.Entry<String, Directory> entry : directories.entrySet()) {
+                    final Directory directory = entry.getValue();
+                    writer.writeStartElement("directory");
+                    writer.writeAttribute("path", entry.getKey());
+                    writer.writeAttribute("mtime", Long.toString(directory.mtime));
+                    writer.writeAttribute("listed", Long.toString(directory.listedAt));
+                    for (int i = 0; i < directory.names.length; ++i) {
+                        writer.writeEmptyElement("entry");
+                        writer.writeAttribute("name", directory.names[i]);
+                        writer.writeAttribute("type", Integer.toString(directory.types[i]));
+                    }
+                    writer.writeEndElement();
+                }
+                writer.writeEndElement();
+                writer.writeEndDocument();
+                writer.close();
+            } finally {
+                FileUtilities.close(out);
+            }
+            if (temporaryFile.renameTo(file) == false) {
+                throw new IOException("couldn't rename \"" + temporaryFile + "\" to \"" + file + "\"");
+            }
+            changed = false;
+        }
+        
+        /**
+         * Reads a snapshot written by writeTo.
+         */
+        public static Snapshot readFrom(File file) throws IOException, XMLStreamException {
+            final Snapshot snapshot = new Snapshot();
+            final InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+                String path = null;
+                long mtime = 0;
+                long listedAt = 0;
+                final ArrayList<String> names = new ArrayList<String>();
+                final ArrayList<Integer> types = new ArrayList<Integer>();
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("directory")) {
+                        path = reader.getAttributeValue(null, "path");
+                        mtime = Long.parseLong(reader.getAttributeValue(null, "mtime"));
+                        listedAt = Long.parseLong(reader.getAttributeValue(null, "listed"));
+                        names.clear();
+                        types.clear();
+                    } else if (event == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("entry")) {
+                        names.add(reader.getAttributeValue(null, "name"));
+                        types.add(Integer.valueOf(reader.getAttributeValue(null, "type")));
+                    } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("directory")) {
+                        final int[] typeArray = new int[types.size()];
+                        for (int i = 0; i < typeArray.length; ++i) {
+                            typeArray[i] = types.get(i);
+                        }
+                        snapshot.directories.put(path, new Directory(mtime, listedAt, names.toArray(new String[names.size()]), typeArray));
+                    }
                 }
+                reader.close();
+            } catch (NumberFormatException ex) {
+                throw new IOException("corrupt snapshot \"" + file + "\"", ex);
+            } finally {
+                FileUtilities.close(in);
             }
+            return snapshot;
         }
     }
 }
@@ -4,16 +4,288 @@ import java.io.*;
 import java.nio.*;
 import java.util.*;
 import java.util.regex.*;
+import org.jessies.test.*;
 
+/**
+ * Finds the lines of a file matching a regular expression, reporting each as
+ * ":<line number>:<line>".
+ * 
+ * Most files in a big search don't match, and decoding every byte of every
+ * file into a char[] just so the regular expression can reject it dominates
+ * the cost. So where the pattern contains a literal that every match must
+ * include, we look for that in the raw bytes first, and only decode (and run
+ * the regular expression over) the lines it occurs in. A file without the
+ * literal is rejected without being decoded at all.
+ * 
+ * A FileSearcher can be shared between threads.
+ */
 public class FileSearcher {
     private final Pattern pattern;
     
+    // An ASCII string every match must contain, or null if we couldn't find one.
+    // Being ASCII, it has the same bytes in UTF-8 and ISO-8859-1, the two encodings ByteBufferDecoder tries for non-UTF-16 files.
+    private final byte[] requiredBytes;
+    private final boolean ignoreCase;
+    
     /** Creates a new FileSearcher for finding the given Pattern. */
     public FileSearcher(Pattern pattern) {
         this.pattern = pattern;
+        this.ignoreCase = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0;
+        this.requiredBytes = asciiBytes(getRequiredLiteral(pattern));
     }
     
-    /** Finds the index of the next newline character in 'charSequence' after 'start'. */
+    /**
+     * Returns the longest run of literal characters that any match of
+     * 'pattern' must contain, or null if there isn't one we can be sure of.
+     * This errs on the side of returning null: anything we don't understand
+     * (alternation, inline flags, the more exotic escapes) makes us give up,
+     * and groups are skipped over rather than looked into.
+     */
+    public static String getRequiredLiteral(Pattern pattern) {
+        final String regex = pattern.pattern();
+        final int flags = pattern.flags();
+        if ((flags & Pattern.LITERAL) != 0) {
+            return regex;
+        }
+        if ((flags & Pattern.COMMENTS) != 0) {
+            return null;
+        }
+        
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            final char ch = regex.charAt(i);
+            if (ch == '|') {
+                // Top-level alternation means no single literal is required.
+                return null;
+            } else if (ch == '?' || ch == '*' || ch == '{') {
+                // The previous character is optional, so it's not part of a required run.
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                best = longer(best, run);
+                run.setLength(0);
+                i = (ch == '{') ? regex.indexOf('}', i) + 1 : i + 1;
+                if (i == 0) {
+                    return null;
+                }
+            } else if (ch == '+') {
+                // The previous character is required, but may be repeated.
+                best = longer(best, run);
+                run.setLength(0);
+                ++i;
+            } else if (ch == '(' || ch == '[') {
+                if (ch == '(' && regex.startsWith("(?", i) && i + 2 < regex.length() && ":=!<>".indexOf(regex.charAt(i + 2)) == -1) {
+                    // Inline flags such as "(?i)" could change what the rest of the pattern means.
+                    return null;
+                }
+                best = longer(best, run);
+                run.setLength(0);
+                i = skipBracketed(regex, i);
+                if (i == -1) {
+                    return null;
+                }
+            } else if (ch == '\\') {
+                if (i + 1 == regex.length()) {
+                    return null;
+                }
+                final char escaped = regex.charAt(i + 1);
+                if (escaped == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end == -1) {
+                        end = regex.length();
+                    }
+                    run.append(regex, i + 2, end);
+                    i = end + 2;
+                } else if (Character.isLetterOrDigit(escaped) == false) {
+                    run.append(escaped);
+                    i += 2;
+                } else if ("dDwWsSbBtnrfeaAzZGRhHvVX".indexOf(escaped) != -1) {
+                    // Character classes, anchors, and control characters: none of them are part of a run.
+                    best = longer(best, run);
+                    run.setLength(0);
+                    i += 2;
+                } else {
+                    // Things like \p{Lu}, \x41, and back references take arguments we'd rather not parse.
+                    return null;
+                }
+            } else if (ch == '.' || ch == '^' || ch == '$' || ch == '\n' || ch == '\r') {
+                best = longer(best, run);
+                run.setLength(0);
+                ++i;
+            } else {
+                run.append(ch);
+                ++i;
+            }
+        }
+        best = longer(best, run);
+        return (best.length() > 0) ? best : null;
+    }
+    
+    private static String longer(String best, CharSequence run) {
+        return (run.length() > best.length()) ? run.toString() : best;
+    }
+    
+    /**
+     * Returns the index just past the group or character class starting at
+     * 'start', or -1 if it isn't closed.
+     */
+    private static int skipBracketed(String regex, int start) {
+        int groupDepth = 0;
+        int classDepth = 0;
+        for (int i = start; i < regex.length(); ++i) {
+            final char ch = regex.charAt(i);
+            if (ch == '\\') {
+                ++i;
+                continue;
+            }
+            if (classDepth > 0) {
+                // Java allows classes to nest, as in "[a-z&&[^aeiou]]", but parentheses mean nothing inside them.
+                if (ch == '[') {
+                    ++classDepth;
+                } else if (ch == ']') {
+                    --classDepth;
+                }
+            } else if (ch == '[') {
+                ++classDepth;
+            } else if (ch == '(') {
+                ++groupDepth;
+            } else if (ch == ')') {
+                --groupDepth;
+            }
+            if (groupDepth == 0 && classDepth == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+    
+    private static byte[] asciiBytes(String s) {
+        if (s == null || s.length() == 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; ++i) {
+            final char ch = s.charAt(i);
+            if (ch >= Ascii.DEL) {
+                return null;
+            }
+            bytes[i] = (byte) ch;
+        }
+        return bytes;
+    }
+    
+    private static byte toLowerAscii(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+    
+    /**
+     * Returns the index of the first occurrence of 'needle' in bytes [from, to) of 'haystack', or -1.
+     * When ignoring case, 'needle' must be lowercase.
+     */
+    static int indexOf(byte[] haystack, int from, int to, byte[] needle, boolean ignoreCase) {
+        final int last = to - needle.length;
+        final byte first = needle[0];
+        final byte firstUpper = ignoreCase ? (byte) Character.toUpperCase((char) first) : first;
+        for (int i = from; i <= last; ++i) {
+            // Look for the first byte alone, which is the simple loop the JIT does best with.
+            if (haystack[i] != first && haystack[i] != firstUpper) {
+                continue;
+            }
+            int j = 1;
+            if (ignoreCase) {
+                while (j < needle.length && toLowerAscii(haystack[i + j]) == needle[j]) {
+                    ++j;
+                }
+            } else {
+                while (j < needle.length && haystack[i + j] == needle[j]) {
+                    ++j;
+                }
+            }
+            if (j == needle.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Searches the bytes of a file known to be in an ASCII-compatible
+     * encoding, decoding only lines containing the required literal.
+     * Returns false without adding anything to 'matches' if a candidate line
+     * wasn't pure ASCII, in which case the caller needs to decode the file to
+     * know what the line says.
+     */
+    private boolean searchBytes(byte[] bytes, int byteCount, Collection<String> matches) {
+        final byte[] needle = ignoreCase ? lowerCase(requiredBytes) : requiredBytes;
+        final ArrayList<String> result = new ArrayList<String>();
+        final Matcher matcher = pattern.matcher("");
+        int lineNumber = 1;
+        int lineStart = 0;
+        // Newlines before 'scanned' have already been counted.
+        int scanned = 0;
+        int hit;
+        while ((hit = indexOf(bytes, scanned, byteCount, needle, ignoreCase)) != -1) {
+            for (int i = scanned; i < hit; ++i) {
+                if (bytes[i] == '\n') {
+                    ++lineNumber;
+                    lineStart = i + 1;
+                }
+            }
+            int lineEnd = hit;
+            while (lineEnd < byteCount && bytes[lineEnd] != '\n') {
+                ++lineEnd;
+            }
+            final String line = asciiString(bytes, lineStart, lineEnd);
+            if (line == null) {
+                return false;
+            }
+            matcher.reset(line);
+            if (matcher.find()) {
+                result.add(":" + lineNumber + ":" + line);
+            }
+            // Carry on from the newline, so it gets counted.
+            scanned = lineEnd;
+            lineStart = lineEnd;
+        }
+        matches.addAll(result);
+        return true;
+    }
+    
+    private static byte[] lowerCase(byte[] bytes) {
+        final byte[] result = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; ++i) {
+            result[i] = toLowerAscii(bytes[i]);
+        }
+        return result;
+    }
+    
+    /** Returns the given bytes as a String if they're all ASCII, null otherwise. */
+    private static String asciiString(byte[] bytes, int start, int end) {
+        final char[] chars = new char[end - start];
+        for (int i = start; i < end; ++i) {
+            if (bytes[i] < 0) {
+                return null;
+            }
+            chars[i - start] = (char) bytes[i];
+        }
+        return new String(chars);
+    }
+    
+    /**
+     * Tests whether the file might be UTF-16, which is the only thing ByteBufferDecoder
+     * might decode it as where ASCII characters aren't single bytes.
+     */
+    private static boolean hasUtf16ByteOrderMark(ByteBuffer byteBuffer, int byteCount) {
+        if (byteCount > 1) {
+            final int possibleBom = byteBuffer.getShort(0) & 0xffff;
+            return (possibleBom == 0xfeff || possibleBom == 0xfffe);
+        }
+        return false;
+    }
+    
+    /** Finds the index of the next newline character in 'charSequence' after 'start', or the length if there isn't one. */
     private int findEndOfLine(CharSequence charSequence, int start) {
         final int max = charSequence.length();
         for (int i = start; i < max; i++) {
@@ -21,7 +293,7 @@ public class FileSearcher {
                 return i;
             }
         }
-        return max - 1;
+        return max;
     }
     
     /**
@@ -31,19 +303,18 @@ public class FileSearcher {
     private void searchCharBuffer(CharSequence charSequence, Collection<String> matches) {
         // Early exit on non-matching files.
         // Making use of the match location to optimize the loop below didn't show any significant improvement, despite doubling the amount of code.
-        Matcher firstMatch = pattern.matcher(charSequence);
-        if (firstMatch.find() == false) {
+        Matcher patternMatcher = pattern.matcher(charSequence);
+        if (patternMatcher.find() == false) {
             return;
         }
         
-        Matcher patternMatcher = pattern.matcher("");
+        // Restricting the matcher to each line in turn behaves as if each line were the whole input, without needing a CharSequence per line.
         int start = 0;
         for (int lineNumber = 1; start < charSequence.length(); lineNumber++) {
             int end = findEndOfLine(charSequence, start);
-            CharSequence currentLine = charSequence.subSequence(start, end);
-            patternMatcher.reset(currentLine);
+            patternMatcher.region(start, end);
             if (patternMatcher.find()) {
-                matches.add(":" + lineNumber + ":" + currentLine);
+                matches.add(":" + lineNumber + ":" + charSequence.subSequence(start, end));
             }
             start = end + 1;
         }
@@ -55,14 +326,52 @@ public class FileSearcher {
      */
     public boolean searchFile(File file, Collection<String> matches) throws IOException {
         final ByteBuffer byteBuffer = ByteBufferUtilities.readFile(file);
+        final int byteCount = byteBuffer.capacity();
         
-        if (ByteBufferUtilities.isBinaryByteBuffer(byteBuffer, byteBuffer.capacity())) {
+        if (ByteBufferUtilities.isBinaryByteBuffer(byteBuffer, byteCount)) {
             return false;
         }
         
-        final ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteBuffer.capacity());
+        if (requiredBytes != null && hasUtf16ByteOrderMark(byteBuffer, byteCount) == false) {
+            // ByteBufferUtilities.readFile always gives us an array-backed buffer.
+            if (searchBytes(byteBuffer.array(), byteCount, matches)) {
+                return true;
+            }
+        }
+        
+        final ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteCount);
         final CharSequence chars = new CharArrayCharSequence(decoder.getCharArray());
         searchCharBuffer(chars, matches);
         return true;
     }
+    
+    @Test private static void testRequiredLiteral() {
+        Assert.equals(getRequiredLiteral(Pattern.compile("hello")), "hello");
+        Assert.equals(getRequiredLiteral(Pattern.compile("a.b", Pattern.LITERAL)), "a.b");
+        Assert.equals(getRequiredLiteral(Pattern.compile("^\\s*private static (int|long) count\\b")), "private static ");
+        Assert.equals(getRequiredLiteral(Pattern.compile("colou?r")), "colo");
+        Assert.equals(getRequiredLiteral(Pattern.compile("ab+cd*")), "ab");
+        Assert.equals(getRequiredLiteral(Pattern.compile("x[a-z&&[^aeiou]]longer\\(")), "longer(");
+        Assert.equals(getRequiredLiteral(Pattern.compile("\\Qa.b.c\\E*d")), "a.b.");
+        Assert.equals(getRequiredLiteral(Pattern.compile("foo|bar")), null);
+        Assert.equals(getRequiredLiteral(Pattern.compile("(?i)Foo")), null);
+        Assert.equals(getRequiredLiteral(Pattern.compile("\\p{Lu}xyz")), null);
+        Assert.equals(getRequiredLiteral(Pattern.compile(".*")), null);
+        Assert.equals(getRequiredLiteral(Pattern.compile("(foo)")), null);
+    }
+    
+    @Test private static void testSearchBytes() {
+        final byte[] bytes = "first line\nsecond Line\r\nthird line, no newline".getBytes();
+        final List<String> matches = new ArrayList<String>();
+        new FileSearcher(PatternUtilities.smartCaseCompile("line")).searchBytes(bytes, bytes.length, matches);
+        Assert.equals(matches, Arrays.asList(":1:first line", ":2:second Line\r", ":3:third line, no newline"));
+        matches.clear();
+        new FileSearcher(PatternUtilities.smartCaseCompile("d L")).searchBytes(bytes, bytes.length, matches);
+        Assert.equals(matches, Arrays.asList(":2:second Line\r"));
+        matches.clear();
+        new FileSearcher(PatternUtilities.smartCaseCompile("^third.*e$")).searchBytes(bytes, bytes.length, matches);
+        Assert.equals(matches, Arrays.asList(":3:third line, no newline"));
+        Assert.equals(indexOf(bytes, 0, bytes.length, "LINE".toLowerCase().getBytes(), true), 6);
+        Assert.equals(indexOf(bytes, 0, bytes.length, "newlinex".getBytes(), false), -1);
+    }
 }
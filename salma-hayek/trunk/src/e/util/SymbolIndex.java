@@ -0,0 +1,347 @@
+package e.util;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.stream.*;
+import org.jessies.test.*;
+
+/**
+ * Maps symbol names to where they're defined, for a whole tree of files.
+ * 
+ * An index is a handful of parallel arrays rather than an object per
+ * symbol, so even a large tree's index is cheap to collect. A file's
+ * symbols are contiguous, so we can find them all without looking at any
+ * others, and the by-name array lists the symbols sorted by name, so we can
+ * binary search it.
+ * 
+ * A SymbolIndex is immutable, so it can be shared between threads without
+ * locking. As with TrigramIndex, each file has a version supplied by the
+ * caller, who should only trust the index's answer for a file whose version
+ * hasn't changed. To update an index, make a new one with a Builder, copying
+ * the files that haven't changed from the old one. Indexes are saved as
+ * XML, one element per file.
+ */
+public final class SymbolIndex {
+    public static final SymbolIndex EMPTY = new Builder().build();
+    
+    // Indexed by file id. There's one more first symbol than there are files, so a file's symbols always end at the next file's first.
+    private final String[] paths;
+    private final long[] versions;
+    private final int[] firstSymbols;
+    private final HashMap<String, Integer> fileIds = new HashMap<String, Integer>();
+    
+    // Indexed by symbol.
+    private final String[] names;
+    private final String[] kinds;
+    private final int[] lineNumbers;
+    private final int[] files;
+    
+    // The symbols, in order of name, and then in the order they were added.
+    private final int[] byName;
+    
+    private SymbolIndex(String[] paths, long[] versions, int[] firstSymbols, String[] names, String[] kinds, int[] lineNumbers, int[] files, int[] byName) {
+        this.paths = paths;
+        this.versions = versions;
+        this.firstSymbols = firstSymbols;
+        this.names = names;
+        this.kinds = kinds;
+        this.lineNumbers = lineNumbers;
+        this.files = files;
+        this.byName = byName;
+        for (int id = 0; id < paths.length; ++id) {
+            fileIds.put(paths[id], id);
+        }
+    }
+    
+    /**
+     * Reads an index written by writeTo.
+     */
+    public static SymbolIndex readFrom(File file) throws IOException, XMLStreamException {
+        final Builder builder = new Builder();
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("file")) {
+                    builder.addFile(reader.getAttributeValue(null, "path"), Long.parseLong(reader.getAttributeValue(null, "version")));
+                } else if (event == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("symbol")) {
+                    builder.addSymbol(reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "kind"), Integer.parseInt(reader.getAttributeValue(null, "line")));
+                }
+            }
+            reader.close();
+        } catch (NumberFormatException ex) {
+            throw new IOException("corrupt symbol index \"" + file + "\"", ex);
+        } catch (IllegalStateException ex) {
+            throw new IOException("corrupt symbol index \"" + file + "\"", ex);
+        } finally {
+            FileUtilities.close(in);
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Writes the index to 'file', replacing it atomically so that a crash can't leave half an index behind.
+     */
+    public void writeTo(File file) throws IOException, XMLStreamException {
+        final File temporaryFile = FileUtilities.fileFromString(file.toString() + ".tmp");
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(temporaryFile));
+        try {
+            final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("symbol-index");
+            for (int id = 0; id < paths.length; ++id) {
+                writer.writeStartElement("file");
+                writer.writeAttribute("path", paths[id]);
+                writer.writeAttribute("version", Long.toString(getVersion(id)));
+                for (Symbol symbol : getSymbolsIn(id)) {
+                    writer.writeEmptyElement("symbol");
+                    writer.writeAttribute("name", symbol.name);
+                    writer.writeAttribute("kind", symbol.kind);
+                    writer.writeAttribute("line", Integer.toString(symbol.lineNumber));
+                }
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } finally {
+            FileUtilities.close(out);
+        }
+        if (temporaryFile.renameTo(file) == false) {
+            throw new IOException("couldn't rename \"" + temporaryFile + "\" to \"" + file + "\"");
+        }
+    }
+    
+    /**
+     * Returns the id of the file with the given path, or -1.
+     */
+    public int getFileId(String path) {
+        final Integer id = fileIds.get(path);
+        return (id != null) ? id : -1;
+    }
+    
+    public String getPath(int fileId) {
+        return paths[fileId];
+    }
+    
+    public long getVersion(int fileId) {
+        return versions[fileId];
+    }
+    
+    public int getFileCount() {
+        return paths.length;
+    }
+    
+    public int getSymbolCount() {
+        return names.length;
+    }
+    
+    /**
+     * Returns the symbols defined in the file with the given id, in the order they were added.
+     */
+    public List<Symbol> getSymbolsIn(int fileId) {
+        final ArrayList<Symbol> result = new ArrayList<Symbol>();
+        for (int symbol = firstSymbols[fileId]; symbol < firstSymbols[fileId + 1]; ++symbol) {
+            result.add(getSymbol(symbol));
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the symbols called 'name', in order of file and then line.
+     */
+    public List<Symbol> getSymbolsNamed(String name) {
+        final ArrayList<Symbol> result = new ArrayList<Symbol>();
+        for (int i = lowerBound(name); i < byName.length && names[byName[i]].equals(name); ++i) {
+            result.add(getSymbol(byName[i]));
+        }
+        return result;
+    }
+    
+    /**
+     * Returns up to 'maxCount' symbols whose names start with 'prefix', in order of name.
+     */
+    public List<Symbol> getSymbolsStartingWith(String prefix, int maxCount) {
+        final ArrayList<Symbol> result = new ArrayList<Symbol>();
+        for (int i = lowerBound(prefix); i < byName.length && result.size() < maxCount && names[byName[i]].startsWith(prefix); ++i) {
+            result.add(getSymbol(byName[i]));
+        }
+        return result;
+    }
+    
+    /** Returns the position in byName of the first name not less than 'key'. */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = byName.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (names[byName[mid]].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    private Symbol getSymbol(int symbol) {
+        return new Symbol(names[symbol], kinds[symbol], lineNumbers[symbol], paths[files[symbol]]);
+    }
+    
+    /**
+     * Where something called 'name' is defined. What 'kind' of thing it is is up to whoever built the index.
+     */
+    public static final class Symbol {
+        public final String name;
+        public final String kind;
+        public final int lineNumber;
+        public final String path;
+        
+        private Symbol(String name, String kind, int lineNumber, String path) {
+            this.name = name;
+            this.kind = kind;
+            this.lineNumber = lineNumber;
+            this.path = path;
+        }
+        
+        @Override public String toString() {
+            return path + ":" + lineNumber + ": " + kind + " " + name;
+        }
+    }
+    
+    /**
+     * Accumulates files and their symbols for a new index. Add a file, then
+     * its symbols, then the next file, and so on. Equal strings are shared,
+     * however many symbols use them.
+     */
+    public static final class Builder {
+        private final ArrayList<String> paths = new ArrayList<String>();
+        private long[] versions = new long[16];
+        private int[] firstSymbols = new int[16];
+        private final ArrayList<String> names = new ArrayList<String>();
+        private final ArrayList<String> kinds = new ArrayList<String>();
+        private int[] lineNumbers = new int[1024];
+        private int[] files = new int[1024];
+        private final HashMap<String, String> strings = new HashMap<String, String>();
+        
+        /**
+         * Starts a new file. Symbols added from now on are in this file, until the next call.
+         */
+        public void addFile(String path, long version) {
+            final int id = paths.size();
+            if (id == versions.length) {
+                versions = Arrays.copyOf(versions, 2 * versions.length);
+                firstSymbols = Arrays.copyOf(firstSymbols, 2 * firstSymbols.length);
+            }
+            paths.add(path);
+            versions[id] = version;
+            firstSymbols[id] = names.size();
+        }
+        
+        public void addSymbol(String name, String kind, int lineNumber) {
+            if (paths.isEmpty()) {
+                throw new IllegalStateException("addFile must be called before addSymbol");
+            }
+            final int symbol = names.size();
+            if (symbol == lineNumbers.length) {
+                lineNumbers = Arrays.copyOf(lineNumbers, 2 * lineNumbers.length);
+                files = Arrays.copyOf(files, 2 * files.length);
+            }
+            names.add(intern(name));
+            kinds.add(intern(kind));
+            lineNumbers[symbol] = lineNumber;
+            files[symbol] = paths.size() - 1;
+        }
+        
+        /**
+         * Adds the file with the given id in 'index', and all its symbols, as they are.
+         */
+        public void copyFile(SymbolIndex index, int fileId) {
+            addFile(index.paths[fileId], index.versions[fileId]);
+            for (int symbol = index.firstSymbols[fileId]; symbol < index.firstSymbols[fileId + 1]; ++symbol) {
+                addSymbol(index.names[symbol], index.kinds[symbol], index.lineNumbers[symbol]);
+            }
+        }
+        
+        public int getFileCount() {
+            return paths.size();
+        }
+        
+        private String intern(String s) {
+            final String existing = strings.get(s);
+            if (existing != null) {
+                return existing;
+            }
+            strings.put(s, s);
+            return s;
+        }
+        
+        /**
+         * Returns the index. Adding more files afterwards doesn't affect it.
+         */
+        public SymbolIndex build() {
+            final int fileCount = paths.size();
+            final int symbolCount = names.size();
+            final String[] nameArray = names.toArray(new String[symbolCount]);
+            // Arrays.sort is stable for objects, so each name's symbols stay in order of file and line.
+            final Integer[] order = new Integer[symbolCount];
+            for (int symbol = 0; symbol < symbolCount; ++symbol) {
+                order[symbol] = symbol;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer lhs, Integer rhs) {
+                    return nameArray[lhs].compareTo(nameArray[rhs]);
+                }
+            });
+            final int[] byName = new int[symbolCount];
+            for (int i = 0; i < symbolCount; ++i) {
+                byName[i] = order[i];
+            }
+            final int[] fileFirstSymbols = Arrays.copyOf(firstSymbols, fileCount + 1);
+            fileFirstSymbols[fileCount] = symbolCount;
+            return new SymbolIndex(paths.toArray(new String[fileCount]), Arrays.copyOf(versions, fileCount), fileFirstSymbols, nameArray, kinds.toArray(new String[symbolCount]), Arrays.copyOf(lineNumbers, symbolCount), Arrays.copyOf(files, symbolCount), byName);
+        }
+    }
+    
+    @Test private static void testSymbolIndex() throws IOException, XMLStreamException {
+        Builder builder = new Builder();
+        builder.addFile("src/a.cpp", 1);
+        builder.addSymbol("main", "method", 10);
+        builder.addSymbol("helper", "method", 3);
+        builder.addFile("src/b.cpp", 2);
+        builder.addFile("src/c.cpp", 3);
+        builder.addSymbol("helper", "method", 7);
+        builder.addSymbol("helpers", "variable", 1);
+        builder.addSymbol("été", "variable", 2);
+        SymbolIndex index = builder.build();
+        
+        Assert.equals(index.getFileCount(), 3);
+        Assert.equals(index.getSymbolCount(), 5);
+        Assert.equals(index.getSymbolsNamed("helper").toString(), "[src/a.cpp:3: method helper, src/c.cpp:7: method helper]");
+        Assert.equals(index.getSymbolsNamed("help").size(), 0);
+        Assert.equals(index.getSymbolsNamed("été").toString(), "[src/c.cpp:2: variable été]");
+        Assert.equals(index.getSymbolsStartingWith("help", 10).size(), 3);
+        Assert.equals(index.getSymbolsStartingWith("help", 2).size(), 2);
+        Assert.equals(index.getSymbolsStartingWith("x", 10).size(), 0);
+        Assert.equals(index.getSymbolsIn(index.getFileId("src/b.cpp")).size(), 0);
+        Assert.equals(index.getSymbolsIn(index.getFileId("src/c.cpp")).size(), 3);
+        Assert.equals(index.getFileId("src/d.cpp"), -1);
+        Assert.equals(EMPTY.getSymbolsNamed("main").size(), 0);
+        
+        // Round trip through a file, and copy unchanged files into a new index.
+        final File file = FileUtilities.createTemporaryFile("SymbolIndexTest", ".xml", "test index", null);
+        index.writeTo(file);
+        index = readFrom(file);
+        Assert.equals(index.getVersion(index.getFileId("src/c.cpp")), 3L);
+        Assert.equals(index.getSymbolsNamed("été").toString(), "[src/c.cpp:2: variable été]");
+        builder = new Builder();
+        builder.copyFile(index, index.getFileId("src/a.cpp"));
+        builder.addFile("src/c.cpp", 4);
+        builder.addSymbol("helper", "method", 8);
+        index = builder.build();
+        Assert.equals(index.getSymbolsNamed("helper").toString(), "[src/a.cpp:3: method helper, src/c.cpp:8: method helper]");
+        Assert.equals(index.getSymbolsNamed("main").toString(), "[src/a.cpp:10: method main]");
+        file.delete();
+    }
+}
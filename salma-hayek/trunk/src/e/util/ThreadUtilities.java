@@ -33,6 +33,28 @@ public class ThreadUtilities {
         return Executors.newFixedThreadPool(size, new NamedThreadFactory(poolName));
     }
     
+    /**
+     * Returns an Executor that creates worker threads as needed and lets them
+     * die after a minute idle, just like {@link Executors#newCachedThreadPool}.
+     * The worker threads are named as for {@link #newFixedThreadPool}.
+     */
+    public static ExecutorService newCachedThreadPool(String poolName) {
+        return Executors.newCachedThreadPool(new NamedThreadFactory(poolName));
+    }
+    
+    /**
+     * Returns a ScheduledExecutorService that uses a single worker thread,
+     * just like {@link Executors#newSingleThreadScheduledExecutor}. The worker
+     * thread will have the given name.
+     */
+    public static ScheduledExecutorService newSingleThreadScheduledExecutor(final String threadName) {
+        return Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory() {
+            public String newThreadName() {
+                return threadName;
+            }
+        });
+    }
+    
     private static abstract class DaemonThreadFactory implements ThreadFactory {
         public abstract String newThreadName();
         
@@ -0,0 +1,636 @@
+package e.util;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Maps each three-byte sequence ("trigram") to the documents containing it,
+ * so we can find the few documents that might contain a string without
+ * looking at the rest. Any document containing "hello" must contain "hel",
+ * "ell", and "llo", so intersecting those trigrams' lists gives us a short
+ * list of candidates to search properly. ASCII letters are folded to lower
+ * case, so the candidates are the same whether the search is case-sensitive
+ * or not.
+ * 
+ * A TrigramIndex is immutable, so it can be shared between threads without
+ * locking. Adding or replacing documents with 'update' returns a new index
+ * that shares most of its structure with the old one: each batch of
+ * documents becomes a new segment, with its own names, versions, and
+ * postings, and small segments are merged into their neighbors as they
+ * accumulate. Replaced and removed documents are only marked as such, and a
+ * segment is rewritten without them once they're most of it. So updating a
+ * handful of documents costs time proportional to those documents rather
+ * than to the whole index, and the space taken by documents that have gone
+ * is reclaimed.
+ * 
+ * Each document has a name and a version supplied by the caller. A caller
+ * indexing files might use the path and the modification time, say, and only
+ * trust the index's answer for a file whose version hasn't changed. A
+ * document's id is only meaningful to the index that returned it: ids run
+ * through the segments in order, so they change as segments are merged.
+ */
+public final class TrigramIndex {
+    public static final TrigramIndex EMPTY = new TrigramIndex(new Segment[0], new BitSet[0], 0);
+    
+    // Oldest first.
+    private final Segment[] segments;
+    // Which of each segment's documents have since been replaced or removed. Shared with other indexes, so copied before being changed.
+    private final BitSet[] removed;
+    // The id of each segment's first document. Empty segments are dropped, so these are strictly increasing.
+    private final int[] firstIds;
+    private final int idCount;
+    private final int size;
+    
+    private TrigramIndex(Segment[] segments, BitSet[] removed, int size) {
+        this.segments = segments;
+        this.removed = removed;
+        this.size = size;
+        this.firstIds = new int[segments.length];
+        int id = 0;
+        for (int i = 0; i < segments.length; ++i) {
+            firstIds[i] = id;
+            id += segments[i].names.length;
+        }
+        this.idCount = id;
+    }
+    
+    /**
+     * Returns the id of the current document with the given name, or -1.
+     */
+    public int getId(String name) {
+        for (int i = segments.length - 1; i >= 0; --i) {
+            final int localId = segments[i].getLocalId(name);
+            if (localId != -1 && removed[i].get(localId) == false) {
+                return firstIds[i] + localId;
+            }
+        }
+        return -1;
+    }
+    
+    public String getName(int id) {
+        final int i = segmentOf(id);
+        return segments[i].names[id - firstIds[i]];
+    }
+    
+    public long getVersion(int id) {
+        final int i = segmentOf(id);
+        return segments[i].versions[id - firstIds[i]];
+    }
+    
+    private int segmentOf(int id) {
+        final int i = Arrays.binarySearch(firstIds, id);
+        return (i >= 0) ? i : -i - 2;
+    }
+    
+    /**
+     * Returns the number of current documents.
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the names of all the current documents. This takes time proportional to the size of the index.
+     */
+    public Set<String> getNames() {
+        final HashSet<String> result = new HashSet<String>();
+        for (int i = 0; i < segments.length; ++i) {
+            final String[] names = segments[i].names;
+            for (int localId = 0; localId < names.length; ++localId) {
+                if (removed[i].get(localId) == false) {
+                    result.add(names[localId]);
+                }
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+    
+    /**
+     * Returns the ids of the current documents that might contain 'literal',
+     * or null if the index can't help: if 'literal' is shorter than a trigram
+     * or isn't ASCII. The set may include documents that don't contain
+     * 'literal', but never leaves out any that do.
+     */
+    public BitSet getCandidates(String literal) {
+        if (literal == null || literal.length() < 3) {
+            return null;
+        }
+        final byte[] bytes = new byte[literal.length()];
+        for (int i = 0; i < bytes.length; ++i) {
+            final char ch = literal.charAt(i);
+            if (ch >= 0x80) {
+                return null;
+            }
+            bytes[i] = (byte) ch;
+        }
+        final int[] trigrams = distinctTrigrams(bytes, bytes.length, null);
+        
+        final BitSet result = new BitSet(idCount);
+        for (int i = 0; i < segments.length; ++i) {
+            for (int localId : segments[i].find(trigrams)) {
+                if (removed[i].get(localId) == false) {
+                    result.set(firstIds[i] + localId);
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns a new index with the documents in 'batch' added, replacing any
+     * current documents with the same names, and the documents named in
+     * 'removedNames' removed.
+     */
+    public TrigramIndex update(Batch batch, Collection<String> removedNames) {
+        final ArrayList<Segment> newSegments = new ArrayList<Segment>(Arrays.asList(segments));
+        final ArrayList<BitSet> newRemoved = new ArrayList<BitSet>(Arrays.asList(removed));
+        final boolean[] changed = new boolean[segments.length];
+        int newSize = size;
+        final ArrayList<String> goneNames = new ArrayList<String>(removedNames);
+        goneNames.addAll(batch.names);
+        for (String name : goneNames) {
+            // A name is current in at most one segment, and usually the newest it's in.
+            for (int i = segments.length - 1; i >= 0; --i) {
+                final int localId = segments[i].getLocalId(name);
+                if (localId != -1 && newRemoved.get(i).get(localId) == false) {
+                    if (changed[i] == false) {
+                        newRemoved.set(i, (BitSet) removed[i].clone());
+                        changed[i] = true;
+                    }
+                    newRemoved.get(i).set(localId);
+                    --newSize;
+                    break;
+                }
+            }
+        }
+        
+        // Rewrite the segments we've just made mostly dead. Each document can only die once, so this is paid for by the removals.
+        for (int i = segments.length - 1; i >= 0; --i) {
+            if (changed[i] && 2 * newRemoved.get(i).cardinality() > segments[i].names.length) {
+                final Segment compacted = Segment.merge(segments[i], newRemoved.get(i), Segment.EMPTY, new BitSet());
+                if (compacted.names.length == 0) {
+                    newSegments.remove(i);
+                    newRemoved.remove(i);
+                } else {
+                    newSegments.set(i, compacted);
+                    newRemoved.set(i, new BitSet());
+                }
+            }
+        }
+        
+        if (batch.size() > 0) {
+            // A batch can contain the same name more than once; the last one wins.
+            final Segment segment = Segment.fromBatch(batch);
+            final BitSet segmentRemoved = new BitSet();
+            for (int localId = 0; localId < segment.names.length; ++localId) {
+                if (segment.getLocalId(segment.names[localId]) != localId) {
+                    segmentRemoved.set(localId);
+                }
+            }
+            newSegments.add(segment);
+            newRemoved.add(segmentRemoved);
+            newSize += segment.names.length - segmentRemoved.cardinality();
+        }
+        
+        // Keep each segment at least twice the size of the next, so there are only O(log n) of them.
+        int n = newSegments.size();
+        while (n >= 2 && newSegments.get(n - 2).postings.length <= 2 * newSegments.get(n - 1).postings.length) {
+            final Segment merged = Segment.merge(newSegments.get(n - 2), newRemoved.get(n - 2), newSegments.get(n - 1), newRemoved.get(n - 1));
+            newSegments.remove(n - 1);
+            newRemoved.remove(n - 1);
+            --n;
+            if (merged.names.length == 0) {
+                newSegments.remove(n - 1);
+                newRemoved.remove(n - 1);
+                --n;
+            } else {
+                newSegments.set(n - 1, merged);
+                newRemoved.set(n - 1, new BitSet());
+            }
+        }
+        return new TrigramIndex(newSegments.toArray(new Segment[n]), newRemoved.toArray(new BitSet[n]), newSize);
+    }
+    
+    /**
+     * Accumulates documents to be added to an index. Indexing the content
+     * happens here, so callers can do it without holding any locks; 'update'
+     * only has to sort the results.
+     */
+    public static final class Batch {
+        private final ArrayList<String> names = new ArrayList<String>();
+        private long[] versions = new long[16];
+        // Each is (trigram << 32) | (index in this batch).
+        private long[] pairs = new long[1024];
+        private int pairCount = 0;
+        private long byteCount = 0;
+        // Reused between documents, because it's too big to allocate for each; see distinctTrigrams.
+        private final long[] seen = new long[(1 << 24) / 64];
+        
+        /**
+         * Adds a document whose content is the first 'length' bytes of 'bytes'.
+         */
+        public void add(String name, long version, byte[] bytes, int length) {
+            final int index = names.size();
+            names.add(name);
+            if (index == versions.length) {
+                versions = Arrays.copyOf(versions, 2 * versions.length);
+            }
+            versions[index] = version;
+            final int[] trigrams = distinctTrigrams(bytes, length, seen);
+            if (pairCount + trigrams.length > pairs.length) {
+                pairs = Arrays.copyOf(pairs, Math.max(2 * pairs.length, pairCount + trigrams.length));
+            }
+            for (int trigram : trigrams) {
+                pairs[pairCount++] = ((long) trigram << 32) | index;
+            }
+            byteCount += length;
+        }
+        
+        public int size() {
+            return names.size();
+        }
+        
+        /**
+         * Returns the total length of the documents added so far.
+         */
+        public long getByteCount() {
+            return byteCount;
+        }
+    }
+    
+    private static int toLowerAscii(byte b) {
+        final int ch = b & 0xff;
+        return (ch >= 'A' && ch <= 'Z') ? ch + ('a' - 'A') : ch;
+    }
+    
+    /**
+     * Returns the distinct trigrams in the first 'length' bytes of 'bytes', in no particular order.
+     * Long documents use 'seen', a bit per possible trigram that must be clear on entry and will be clear on exit.
+     */
+    private static int[] distinctTrigrams(byte[] bytes, int length, long[] seen) {
+        if (length < 3) {
+            return new int[0];
+        }
+        // Short strings (queries, say) aren't worth a bit set.
+        if (length < 64 || seen == null) {
+            final int[] result = new int[length - 2];
+            int trigram = (toLowerAscii(bytes[0]) << 8) | toLowerAscii(bytes[1]);
+            for (int i = 2; i < length; ++i) {
+                trigram = ((trigram << 8) | toLowerAscii(bytes[i])) & 0xffffff;
+                result[i - 2] = trigram;
+            }
+            Arrays.sort(result);
+            int count = 0;
+            for (int i = 0; i < result.length; ++i) {
+                if (count == 0 || result[count - 1] != result[i]) {
+                    result[count++] = result[i];
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+        int[] result = new int[256];
+        int count = 0;
+        int trigram = (toLowerAscii(bytes[0]) << 8) | toLowerAscii(bytes[1]);
+        for (int i = 2; i < length; ++i) {
+            trigram = ((trigram << 8) | toLowerAscii(bytes[i])) & 0xffffff;
+            final long bit = 1L << trigram;
+            if ((seen[trigram >>> 6] & bit) == 0) {
+                seen[trigram >>> 6] |= bit;
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, 2 * count);
+                }
+                result[count++] = trigram;
+            }
+        }
+        for (int i = 0; i < count; ++i) {
+            seen[result[i] >>> 6] = 0;
+        }
+        return Arrays.copyOf(result, count);
+    }
+    
+    /**
+     * An immutable inverted index over some documents, whose ids within the
+     * segment run from zero. Each trigram's list of ids is stored as
+     * variable-length deltas, which typically takes a byte or two per id
+     * rather than four.
+     */
+    private static final class Segment {
+        private static final Segment EMPTY = new Segment(new String[0], new long[0], new Builder());
+        
+        // Indexed by id within the segment.
+        private final String[] names;
+        private final long[] versions;
+        // The last id with each name; see update for how a batch can have more than one.
+        private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        // Sorted.
+        private final int[] trigrams;
+        // The list for trigrams[i] is postings[starts[i]] to postings[starts[i + 1]].
+        private final int[] starts;
+        private final byte[] postings;
+        
+        private Segment(String[] names, long[] versions, Builder builder) {
+            this.names = names;
+            this.versions = versions;
+            for (int id = 0; id < names.length; ++id) {
+                ids.put(names[id], id);
+            }
+            builder.finish();
+            this.trigrams = Arrays.copyOf(builder.trigrams, builder.trigramCount);
+            this.starts = Arrays.copyOf(builder.starts, builder.trigramCount + 1);
+            this.postings = Arrays.copyOf(builder.postings, builder.postingsLength);
+        }
+        
+        /**
+         * Returns the id within this segment of the last document called 'name', whether or not it's current, or -1.
+         */
+        private int getLocalId(String name) {
+            final Integer id = ids.get(name);
+            return (id != null) ? id : -1;
+        }
+        
+        private static Segment fromBatch(Batch batch) {
+            final long[] sorted = sortByTrigram(batch.pairs, batch.pairCount);
+            final Builder builder = new Builder();
+            int i = 0;
+            while (i < batch.pairCount) {
+                final int trigram = (int) (sorted[i] >>> 32);
+                builder.startList(trigram);
+                for (; i < batch.pairCount && (int) (sorted[i] >>> 32) == trigram; ++i) {
+                    builder.addId((int) sorted[i]);
+                }
+            }
+            final int documentCount = batch.names.size();
+            return new Segment(batch.names.toArray(new String[documentCount]), Arrays.copyOf(batch.versions, documentCount), builder);
+        }
+        
+        /**
+         * Sorts (trigram, index) pairs, which are already in order of index,
+         * by trigram. A two-pass radix sort on the 24-bit trigram keeps the
+         * indexes in order, and is several times faster than sorting longs.
+         */
+        private static long[] sortByTrigram(long[] pairs, int pairCount) {
+            final long[] byLowBits = new long[pairCount];
+            radixPass(pairs, byLowBits, pairCount, 32);
+            final long[] result = new long[pairCount];
+            radixPass(byLowBits, result, pairCount, 44);
+            return result;
+        }
+        
+        private static void radixPass(long[] from, long[] to, int count, int shift) {
+            final int[] starts = new int[1 << 12];
+            for (int i = 0; i < count; ++i) {
+                ++starts[(int) (from[i] >>> shift) & 0xfff];
+            }
+            int total = 0;
+            for (int digit = 0; digit < starts.length; ++digit) {
+                final int digitCount = starts[digit];
+                starts[digit] = total;
+                total += digitCount;
+            }
+            for (int i = 0; i < count; ++i) {
+                to[starts[(int) (from[i] >>> shift) & 0xfff]++] = from[i];
+            }
+        }
+        
+        /**
+         * Merges two segments, leaving out the documents in 'removedA' and
+         * 'removedB'. The survivors keep their order, 'a's first, and are
+         * numbered from zero.
+         */
+        private static Segment merge(Segment a, BitSet removedA, Segment b, BitSet removedB) {
+            final int liveCountA = a.names.length - removedA.cardinality();
+            final int liveCount = liveCountA + b.names.length - removedB.cardinality();
+            final String[] names = new String[liveCount];
+            final long[] versions = new long[liveCount];
+            final int[] newIdsA = renumber(a, removedA, 0, names, versions);
+            final int[] newIdsB = renumber(b, removedB, liveCountA, names, versions);
+            
+            final Builder builder = new Builder();
+            int i = 0;
+            int j = 0;
+            while (i < a.trigrams.length || j < b.trigrams.length) {
+                final int trigramA = (i < a.trigrams.length) ? a.trigrams[i] : Integer.MAX_VALUE;
+                final int trigramB = (j < b.trigrams.length) ? b.trigrams[j] : Integer.MAX_VALUE;
+                final int trigram = Math.min(trigramA, trigramB);
+                builder.startList(trigram);
+                if (trigramA == trigram) {
+                    builder.addRenumberedIds(a.decode(i++), newIdsA);
+                }
+                if (trigramB == trigram) {
+                    builder.addRenumberedIds(b.decode(j++), newIdsB);
+                }
+                builder.endListIfEmpty();
+            }
+            return new Segment(names, versions, builder);
+        }
+        
+        /**
+         * Copies the names and versions of the documents in 'segment' that aren't in 'removed' into 'names' and 'versions', starting at 'firstId'.
+         * Returns each document's new id, or -1 for removed documents.
+         */
+        private static int[] renumber(Segment segment, BitSet removed, int firstId, String[] names, long[] versions) {
+            final int[] newIds = new int[segment.names.length];
+            int newId = firstId;
+            for (int id = 0; id < newIds.length; ++id) {
+                if (removed.get(id)) {
+                    newIds[id] = -1;
+                } else {
+                    names[newId] = segment.names[id];
+                    versions[newId] = segment.versions[id];
+                    newIds[id] = newId++;
+                }
+            }
+            return newIds;
+        }
+        
+        /**
+         * Returns the ids in this segment whose documents contain all of the given trigrams.
+         */
+        private int[] find(int[] wanted) {
+            final int[] indexes = new int[wanted.length];
+            for (int i = 0; i < wanted.length; ++i) {
+                indexes[i] = Arrays.binarySearch(trigrams, wanted[i]);
+                if (indexes[i] < 0) {
+                    return new int[0];
+                }
+            }
+            // Start with the shortest list, so we decode as little as possible at the start.
+            Integer[] order = new Integer[indexes.length];
+            for (int i = 0; i < order.length; ++i) {
+                order[i] = indexes[i];
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer lhs, Integer rhs) {
+                    return (starts[lhs + 1] - starts[lhs]) - (starts[rhs + 1] - starts[rhs]);
+                }
+            });
+            int[] result = decode(order[0]);
+            for (int i = 1; i < order.length && result.length > 0; ++i) {
+                result = intersect(result, decode(order[i]));
+            }
+            return result;
+        }
+        
+        private int[] decode(int index) {
+            final int end = starts[index + 1];
+            int[] result = new int[Math.min(end - starts[index], 16)];
+            int count = 0;
+            int id = 0;
+            int position = starts[index];
+            while (position < end) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = postings[position++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, Math.min(2 * count, end - starts[index]));
+                }
+                result[count++] = id;
+            }
+            return (count == result.length) ? result : Arrays.copyOf(result, count);
+        }
+        
+        private static int[] intersect(int[] a, int[] b) {
+            final int[] result = new int[Math.min(a.length, b.length)];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    ++i;
+                } else if (a[i] > b[j]) {
+                    ++j;
+                } else {
+                    result[count++] = a[i];
+                    ++i;
+                    ++j;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+        
+        private static final class Builder {
+            private int[] trigrams = new int[1024];
+            private int[] starts = new int[1025];
+            private int trigramCount = 0;
+            private byte[] postings = new byte[4096];
+            private int postingsLength = 0;
+            private int lastId;
+            
+            private void startList(int trigram) {
+                if (trigramCount + 1 == trigrams.length) {
+                    trigrams = Arrays.copyOf(trigrams, 2 * trigrams.length);
+                    starts = Arrays.copyOf(starts, 2 * starts.length);
+                }
+                trigrams[trigramCount] = trigram;
+                starts[trigramCount] = postingsLength;
+                ++trigramCount;
+                lastId = 0;
+            }
+            
+            private void addId(int id) {
+                // An int needs at most five bytes.
+                if (postingsLength + 5 > postings.length) {
+                    postings = Arrays.copyOf(postings, 2 * postings.length);
+                }
+                int delta = id - lastId;
+                while (delta >= 0x80) {
+                    postings[postingsLength++] = (byte) ((delta & 0x7f) | 0x80);
+                    delta >>>= 7;
+                }
+                postings[postingsLength++] = (byte) delta;
+                lastId = id;
+            }
+            
+            private void addRenumberedIds(int[] ids, int[] newIds) {
+                for (int id : ids) {
+                    if (newIds[id] != -1) {
+                        addId(newIds[id]);
+                    }
+                }
+            }
+            
+            /**
+             * Forgets the current list if it turned out to be empty, as happens when merging drops all its ids.
+             */
+            private void endListIfEmpty() {
+                if (postingsLength == starts[trigramCount - 1]) {
+                    --trigramCount;
+                }
+            }
+            
+            private void finish() {
+                starts[trigramCount] = postingsLength;
+            }
+        }
+    }
+    
+    private static List<String> candidateNames(TrigramIndex index, String literal) {
+        final ArrayList<String> result = new ArrayList<String>();
+        final BitSet candidates = index.getCandidates(literal);
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+            result.add(index.getName(id));
+        }
+        Collections.sort(result);
+        return result;
+    }
+    
+    private static TrigramIndex add(TrigramIndex index, String name, String content) {
+        final Batch batch = new Batch();
+        final byte[] bytes = content.getBytes();
+        batch.add(name, 0, bytes, bytes.length);
+        return index.update(batch, Collections.<String>emptyList());
+    }
+    
+    @Test private static void testTrigramIndex() {
+        TrigramIndex index = EMPTY;
+        index = add(index, "a", "hello, world");
+        index = add(index, "b", "Hello again");
+        index = add(index, "c", "goodbye, world");
+        Assert.equals(candidateNames(index, "hello"), Arrays.asList("a", "b"));
+        Assert.equals(candidateNames(index, "WORLD"), Arrays.asList("a", "c"));
+        Assert.equals(candidateNames(index, "hello world"), Arrays.asList());
+        Assert.equals(index.getCandidates("he"), null);
+        
+        // Replacing and removing documents.
+        index = add(index, "a", "nothing to see here");
+        index = index.update(new Batch(), Arrays.asList("c"));
+        Assert.equals(candidateNames(index, "world"), Arrays.asList());
+        Assert.equals(candidateNames(index, "hello"), Arrays.asList("b"));
+        Assert.equals(index.size(), 2);
+        Assert.equals(index.getId("c"), -1);
+        
+        // Enough documents to need merging, and long enough to use the bit set.
+        for (int i = 0; i < 100; ++i) {
+            index = add(index, "doc" + i, "This is document number " + i + " and it has some padding to make it longer than sixty-four bytes.");
+        }
+        Assert.equals(candidateNames(index, "number 42 "), Arrays.asList("doc42"));
+        Assert.equals(candidateNames(index, "padding").size(), 100);
+        Assert.equals(index.segments.length < 10, true);
+        
+        // Replacing a document over and over doesn't leave its old versions behind.
+        for (int i = 0; i < 100; ++i) {
+            index = add(index, "b", "Hello again, for time number " + i);
+        }
+        Assert.equals(index.size(), 102);
+        Assert.equals(index.idCount <= 2 * index.size(), true);
+        Assert.equals(candidateNames(index, "hello"), Arrays.asList("b"));
+        Assert.equals(candidateNames(index, "time number 99"), Arrays.asList("b"));
+        Assert.equals(index.getName(index.getId("b")), "b");
+        
+        // The last of several documents with the same name in a batch wins.
+        final Batch batch = new Batch();
+        batch.add("x", 1, "alpha beta".getBytes(), 10);
+        batch.add("x", 2, "gamma delta".getBytes(), 11);
+        index = index.update(batch, Collections.<String>emptyList());
+        Assert.equals(index.size(), 103);
+        Assert.equals(candidateNames(index, "alpha"), Arrays.asList());
+        Assert.equals(candidateNames(index, "gamma"), Arrays.asList("x"));
+        Assert.equals(index.getVersion(index.getId("x")), 2L);
+    }
+}
@@ -0,0 +1,56 @@
+package org.jessies.os;
+
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * The entries of a directory, as returned by Posix.scandir.
+ */
+public class DirectoryListing {
+    // What java.io.File uses to turn names into bytes and back, which needn't be the default charset.
+    private static final Charset FILE_NAME_CHARSET = chooseFileNameCharset();
+    
+    private final ArrayList<String> names = new ArrayList<String>();
+    private int[] types = new int[16];
+    
+    /** Returns the number of entries. */
+    public int size() {
+        return names.size();
+    }
+    
+    /** Returns the name of entry 'i', relative to the directory. */
+    public String getName(int i) {
+        return names.get(i);
+    }
+    
+    /**
+     * Returns the S_IFMT bits of entry 'i's st_mode, or 0 if the file system
+     * didn't say, in which case you'll need to lstat it yourself.
+     */
+    public int getType(int i) {
+        return types[i];
+    }
+    
+    public void clear() {
+        names.clear();
+    }
+    
+    // Called from native code, with the name's bytes as readdir(3) returned them.
+    private void add(byte[] name, int type) {
+        final int i = names.size();
+        if (i == types.length) {
+            types = Arrays.copyOf(types, 2 * i);
+        }
+        names.add(new String(name, FILE_NAME_CHARSET));
+        types[i] = type;
+    }
+    
+    private static Charset chooseFileNameCharset() {
+        try {
+            return Charset.forName(System.getProperty("sun.jnu.encoding"));
+        } catch (IllegalArgumentException ex) {
+            // No such property, or a charset we don't have.
+            return Charset.defaultCharset();
+        }
+    }
+}
@@ -82,6 +82,15 @@ public class Posix {
     /** Posix.waitpid flag to also return if a child is merely stopped. */
     public static final int WUNTRACED = PosixJNI.get_WUNTRACED();
     
+    /** Posix.poll event: there's data to read. */
+    public static final int POLLIN = PosixJNI.get_POLLIN();
+    /** Posix.poll event (always reported, never requested): an error occurred. */
+    public static final int POLLERR = PosixJNI.get_POLLERR();
+    /** Posix.poll event (always reported, never requested): the other end hung up. */
+    public static final int POLLHUP = PosixJNI.get_POLLHUP();
+    /** Posix.poll event (always reported, never requested): the fd isn't open. */
+    public static final int POLLNVAL = PosixJNI.get_POLLNVAL();
+    
     /**
      * Returns true if the requested access is permitted, false otherwise.
      * The 'accessMode' should be a bitwise or of the R_OK, W_OK, X_OK, and F_OK constants.
@@ -364,6 +373,33 @@ public class Posix {
         return PosixJNI.open(path, flags, mode);
     }
     
+    /**
+     * Creates a pipe, storing the fd of the read end in fds[0] and the fd of the write end in fds[1].
+     * Returns 0 on success, -errno on error.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/pipe.html
+     */
+    public static int pipe(int[] fds) {
+        if (fds.length < 2) {
+            throw new IllegalArgumentException("fds.length=" + fds.length);
+        }
+        return PosixJNI.pipe(fds);
+    }
+    
+    /**
+     * Waits up to 'timeoutMs' milliseconds (forever if negative) for one of the first 'count' fds in 'fds' to be ready.
+     * The events of interest for fds[i] are in events[i], and the events that occurred are stored in revents[i].
+     * Parallel arrays rather than an array of objects mean the caller can reuse them without allocating anything per call.
+     * Returns the number of fds with non-zero revents on success, -errno on error.
+     * On Mac OS, where poll(2) doesn't work on devices such as ptys, this uses select(2), and only reports POLLIN and POLLNVAL; a hung-up fd is readable.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/poll.html
+     */
+    public static int poll(int[] fds, int[] events, int[] revents, int count, int timeoutMs) {
+        if (count < 0 || count > fds.length || count > events.length || count > revents.length) {
+            throw new IllegalArgumentException("count=" + count + ", fds.length=" + fds.length + ", events.length=" + events.length + ", revents.length=" + revents.length);
+        }
+        return PosixJNI.poll(fds, events, revents, count, timeoutMs);
+    }
+    
     /**
      * Reads 'byteCount' bytes from file descriptor 'fd' at offset 'fileOffset' into 'buffer' at 'bufferOffset'.
      * Returns the number of bytes read, -errno on error.
@@ -405,6 +441,17 @@ public class Posix {
         return PosixJNI.rmdir(path);
     }
     
+    /**
+     * Appends the names and types of the entries in directory 'path' to 'listing', leaving out "." and "..".
+     * Unlike scandir(3), there's no filtering or sorting; the point is to get the type from readdir(3)'s d_type
+     * where the file system supplies it, saving an lstat per entry.
+     * Returns 0 on success, -errno on error.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/readdir.html
+     */
+    public static int scandir(String path, DirectoryListing listing) {
+        return PosixJNI.scandir(path, listing);
+    }
+    
     /**
      * Gets the status of 'path'.
      * Returns 0 on success, -errno on error.
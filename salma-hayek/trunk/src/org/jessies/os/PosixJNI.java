@@ -75,6 +75,11 @@ class PosixJNI {
     static native int get_WNOHANG();
     static native int get_WUNTRACED();
     
+    static native int get_POLLIN();
+    static native int get_POLLERR();
+    static native int get_POLLHUP();
+    static native int get_POLLNVAL();
+    
     static native int get_E2BIG();
     static native int get_EACCES();
     static native int get_EADDRINUSE();
@@ -194,10 +199,13 @@ class PosixJNI {
     static native int mknod(String path, int mode, long device);
     static native int open(String path, int flags);
     static native int open(String path, int flags, int mode);
+    static native int pipe(int[] fds);
+    static native int poll(int[] fds, int[] events, int[] revents, int count, int timeoutMs);
     static native int pread(int fd, byte[] buffer, int bufferOffset, int byteCount, long fileOffset);
     static native int pwrite(int fd, byte[] buffer, int bufferOffset, int byteCount, long fileOffset);
     static native int read(int fd, byte[] buffer, int bufferOffset, int byteCount);
     static native int rmdir(String path);
+    static native int scandir(String path, DirectoryListing listing);
     static native int stat(String path, Stat stat);
     static native String strerror(int errno);
     static native int symlink(String oldpath, String newpath);
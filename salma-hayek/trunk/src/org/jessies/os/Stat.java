@@ -87,6 +87,14 @@ public class Stat {
     public Stat() {
     }
     
+    /**
+     * Creates a Stat with only st_mode filled in, for when all we know is
+     * the file's type, as from a DirectoryListing.
+     */
+    public Stat(int st_mode) {
+        this.st_mode = st_mode;
+    }
+    
     private void set(long st_dev, long st_ino, int st_mode, long st_nlink, int st_uid, int st_gid, long st_rdev, long st_size, long st_atime, long st_mtime, long st_ctime, long st_blksize, long st_blocks) {
         this.st_dev = st_dev;
         this.st_ino = st_ino;
@@ -0,0 +1,94 @@
+package terminator;
+
+import java.util.concurrent.atomic.*;
+import org.jessies.test.*;
+
+/**
+ * A bounded FIFO of chars between exactly one producer thread and exactly one consumer thread, without locks.
+ * The producer only ever advances 'tail' and the consumer only ever advances 'head', so each just has to publish its own index after touching the chars it covers.
+ * 
+ * Neither side ever waits here: offer takes as much as fits, and poll takes as much as there is.
+ * What to do about the rest is up to the caller; see TerminalLogWriter.
+ */
+final class CharRingBuffer {
+    private final char[] buffer;
+    private final int mask;
+    
+    // The total number of chars ever read and ever written, so the difference is how many are in the buffer, and the index into the buffer is the count modulo its length.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    
+    /** Creates a buffer with room for at least 'minCapacity' chars. */
+    CharRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(minCapacity, 2) - 1) << 1;
+        this.buffer = new char[capacity];
+        this.mask = capacity - 1;
+    }
+    
+    int capacity() {
+        return buffer.length;
+    }
+    
+    /** Returns the number of chars waiting to be polled, which is only a snapshot if called from neither the producer nor the consumer. */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+    
+    /** Appends as many of the given chars as there's room for, returning how many that was. Only the producer may call this. */
+    int offer(char[] chars, int offset, int count) {
+        long t = tail.get();
+        int length = Math.min(count, buffer.length - (int) (t - head.get()));
+        int index = (int) t & mask;
+        int firstPart = Math.min(length, buffer.length - index);
+        System.arraycopy(chars, offset, buffer, index, firstPart);
+        System.arraycopy(chars, offset + firstPart, buffer, 0, length - firstPart);
+        // An ordered store would be enough to make the chars visible to the consumer before the new tail is, but callers check whether the consumer needs waking straight after this.
+        // Only a volatile store stops that check from being reordered before the store, so that a consumer that's just found the buffer empty can't miss these chars (see TerminalLogWriter.scheduleDrain).
+        tail.set(t + length);
+        return length;
+    }
+    
+    /** Removes up to dest.length chars into 'dest', returning how many that was. Only the consumer may call this. */
+    int poll(char[] dest) {
+        long h = head.get();
+        int length = Math.min(dest.length, (int) (tail.get() - h));
+        int index = (int) h & mask;
+        int firstPart = Math.min(length, buffer.length - index);
+        System.arraycopy(buffer, index, dest, 0, firstPart);
+        System.arraycopy(buffer, 0, dest, firstPart, length - firstPart);
+        head.lazySet(h + length);
+        return length;
+    }
+    
+    @Test private static void testWraparound() {
+        CharRingBuffer buffer = new CharRingBuffer(5);
+        Assert.equals(buffer.capacity(), 8);
+        Assert.equals(buffer.offer("abcdef".toCharArray(), 0, 6), 6);
+        char[] dest = new char[4];
+        Assert.equals(buffer.poll(dest), 4);
+        Assert.equals(new String(dest), "abcd");
+        // This goes off the end of the array and back round to the start.
+        Assert.equals(buffer.offer("ghijkl".toCharArray(), 0, 6), 6);
+        Assert.equals(buffer.size(), 8);
+        dest = new char[8];
+        Assert.equals(buffer.poll(dest), 8);
+        Assert.equals(new String(dest), "efghijkl");
+        Assert.equals(buffer.size(), 0);
+    }
+    
+    @Test private static void testOverflow() {
+        CharRingBuffer buffer = new CharRingBuffer(4);
+        char[] chars = "abcdef".toCharArray();
+        // Only as much as fits is taken, and the caller deals with the rest.
+        Assert.equals(buffer.offer(chars, 0, 6), 4);
+        Assert.equals(buffer.offer(chars, 4, 2), 0);
+        char[] dest = new char[3];
+        Assert.equals(buffer.poll(dest), 3);
+        Assert.equals(new String(dest), "abc");
+        Assert.equals(buffer.offer(chars, 4, 2), 2);
+        dest = new char[8];
+        Assert.equals(buffer.poll(dest), 3);
+        Assert.equals(new String(dest, 0, 3), "def");
+        Assert.equals(buffer.poll(dest), 0);
+    }
+}
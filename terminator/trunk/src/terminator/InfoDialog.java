@@ -17,6 +17,8 @@ public class InfoDialog {
     private JTextField processes;
     private JTextField logFilename;
     private JTextField ptyFilename;
+    private JTextField outputStatistics;
+    private JTextField logStatistics;
     private JCheckBox suspendLogging;
     private JTerminalPane terminal;
     
@@ -31,6 +33,8 @@ public class InfoDialog {
         this.processes = new UneditableTextField();
         this.logFilename = new UneditableTextField();
         this.ptyFilename = new UneditableTextField();
+        this.outputStatistics = new UneditableTextField();
+        this.logStatistics = new UneditableTextField();
         this.suspendLogging = makeSuspendLoggingCheckBox();
     }
     
@@ -62,7 +66,9 @@ public class InfoDialog {
         formPanel.addRow("Dimensions:", dimensions);
         formPanel.addRow("Pseudo-Terminal:", ptyFilename);
         formPanel.addRow("Processes:", processes);
+        formPanel.addRow("Output:", outputStatistics);
         formPanel.addRow("Log Filename:", logFilename);
+        formPanel.addRow("Logging:", logStatistics);
         if (GuiUtilities.isMacOs() || GuiUtilities.isWindows()) {
             JButton showInFinderButton = new JButton(GuiUtilities.isMacOs() ? "Show in Finder" : "Show in Explorer");
             showInFinderButton.addActionListener(new ActionListener() {
@@ -95,8 +101,11 @@ public class InfoDialog {
             processes.setText("");
         }
         
+        outputStatistics.setText(terminal.getControl().getOutputStatistics());
+        
         final TerminalLogWriter terminalLogWriter = terminal.getControl().getTerminalLogWriter();
         logFilename.setText(terminalLogWriter.getInfo());
+        logStatistics.setText(terminalLogWriter.getStatistics());
         suspendLogging.setSelected(terminalLogWriter.isSuspended());
     }
 }
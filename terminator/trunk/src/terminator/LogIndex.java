@@ -0,0 +1,611 @@
+package terminator;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.util.zip.*;
+import org.jessies.test.*;
+
+/**
+ * Indexes the session logs written by TerminalLogWriter, so "Search Session Logs" can find things in gigabytes of old output without reading all of it.
+ * 
+ * Each log is split into blocks of about BLOCK_BYTE_COUNT bytes of text, once escape sequences and other control characters have been stripped out.
+ * The blocks are the documents of a TrigramIndex, so a search only has to read the few blocks that might match.
+ * Reading a block means mapping just its part of the log (or, for a gzipped log, inflating up to it), and stripping it again.
+ * 
+ * Indexing happens on a background thread when asked for (see refresh), and only looks at what's new since last time: logs we haven't seen, and the ends of logs that have grown.
+ * The index lives in memory, and costs a few bytes per distinct trigram per block, so we only index the newest MAX_INDEXED_BYTE_COUNT bytes of logs.
+ * It isn't saved: written out, the postings would be bigger than many of the logs they describe, and reading them back would take about as long as stripping the logs again.
+ */
+public class LogIndex {
+    private static final LogIndex INSTANCE = new LogIndex();
+    
+    // Big enough that the index doesn't cost too much per byte of log (distinct trigrams stop growing much beyond this), small enough to strip and search in a few milliseconds.
+    private static final int BLOCK_BYTE_COUNT = 1024 * 1024;
+    private static final long MAX_INDEXED_BYTE_COUNT = 1024L * 1024 * 1024;
+    // How much of a log we map at once while indexing it.
+    private static final int MAP_BYTE_COUNT = 64 * 1024 * 1024;
+    
+    private final ExecutorService executorService = ThreadUtilities.newSingleThreadExecutor("Log Indexer");
+    
+    // Replaced (never modified) by the indexer, so searches can use whatever they see without locking.
+    private volatile TrigramIndex index = TrigramIndex.EMPTY;
+    private volatile Map<String, LogBlock> blocks = new HashMap<String, LogBlock>();
+    
+    // Only touched by the indexer.
+    private final HashMap<File, LogState> logStates = new HashMap<File, LogState>();
+    
+    public static LogIndex getSharedInstance() {
+        return INSTANCE;
+    }
+    
+    private LogIndex() {
+    }
+    
+    /** Returns the number of blocks currently indexed. */
+    public int getBlockCount() {
+        return index.size();
+    }
+    
+    /** Indexes anything new in the logs directory on the indexer thread, and then runs 'doneRunnable' on the EDT. */
+    public void refresh(final Runnable doneRunnable) {
+        executorService.execute(new Runnable() {
+            public void run() {
+                try {
+                    indexLogs();
+                } catch (Throwable th) {
+                    Log.warn("Exception occurred indexing logs.", th);
+                } finally {
+                    java.awt.EventQueue.invokeLater(doneRunnable);
+                }
+            }
+        });
+    }
+    
+    private void indexLogs() throws IOException {
+        File[] files = TerminalLogWriter.getLogsDirectory().listFiles();
+        if (files == null) {
+            return;
+        }
+        // Newest first, so that if we run out of budget, it's the oldest logs that don't get indexed.
+        ArrayList<File> logs = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            if ((name.endsWith(".txt") || name.endsWith(".txt.gz")) && TerminalLogWriter.getLogStartTime(name) != null) {
+                logs.add(file);
+            }
+        }
+        Collections.sort(logs, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                return rhs.getName().compareTo(lhs.getName());
+            }
+        });
+        
+        HashSet<File> unseenLogs = new HashSet<File>(logStates.keySet());
+        long indexedByteCount = 0;
+        for (File log : logs) {
+            unseenLogs.remove(log);
+            LogState state = logStates.get(log);
+            if (indexedByteCount >= MAX_INDEXED_BYTE_COUNT) {
+                if (state != null) {
+                    unseenLogs.add(log);
+                }
+                continue;
+            }
+            if (state == null || state.isOutOfDate(log)) {
+                state = indexLog(log, state);
+                logStates.put(log, state);
+            }
+            indexedByteCount += state.strippedByteCount;
+        }
+        // Forget logs that have been deleted (or that we no longer have room for).
+        if (unseenLogs.isEmpty() == false) {
+            ArrayList<String> removed = new ArrayList<String>();
+            for (File log : unseenLogs) {
+                removed.addAll(logStates.remove(log).blockNames);
+            }
+            publish(new TrigramIndex.Batch(), removed, Collections.<LogBlock>emptyList());
+        }
+    }
+    
+    /**
+     * Indexes a log, or just its new part if 'state' says we've seen the start of it before and it's only been appended to.
+     * Returns the new state.
+     */
+    private LogState indexLog(File log, LogState oldState) throws IOException {
+        boolean isCompressed = log.getName().endsWith(".gz");
+        ArrayList<String> removed = new ArrayList<String>();
+        LogState state = new LogState(log);
+        if (oldState != null && isCompressed == false && log.length() >= oldState.resumeOffset) {
+            // Carry on from the start of the last (incomplete) block.
+            state.resumeFrom(oldState);
+        } else if (oldState != null) {
+            removed.addAll(oldState.blockNames);
+        }
+        
+        final BlockBuilder builder = new BlockBuilder(log, isCompressed, state);
+        if (isCompressed) {
+            InputStream in = new GZIPInputStream(new FileInputStream(log));
+            try {
+                byte[] bytes = new byte[64 * 1024];
+                long offset = 0;
+                int byteCount;
+                while ((byteCount = readAllowingTruncation(in, bytes)) > 0) {
+                    builder.add(ByteBuffer.wrap(bytes, 0, byteCount), offset);
+                    offset += byteCount;
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            FileChannel channel = new FileInputStream(log).getChannel();
+            try {
+                long end = channel.size();
+                for (long offset = state.resumeOffset; offset < end; offset += MAP_BYTE_COUNT) {
+                    builder.add(channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_BYTE_COUNT, end - offset)), offset);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+        builder.finish();
+        publish(builder.batch, removed, builder.newBlocks);
+        return state;
+    }
+    
+    private void publish(TrigramIndex.Batch batch, Collection<String> removed, Collection<LogBlock> newBlocks) {
+        HashMap<String, LogBlock> newBlockMap = new HashMap<String, LogBlock>(blocks);
+        for (String name : removed) {
+            newBlockMap.remove(name);
+        }
+        for (LogBlock block : newBlocks) {
+            newBlockMap.put(block.name, block);
+        }
+        index = index.update(batch, removed);
+        blocks = newBlockMap;
+    }
+    
+    /** Reads from a gzip stream, treating a truncated stream (a log still being written, or from a session that crashed) as if it ended where it stops. */
+    private static int readAllowingTruncation(InputStream in, byte[] bytes) throws IOException {
+        try {
+            return in.read(bytes);
+        } catch (EOFException ex) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Returns up to 'maxHitCount' lines matching 'pattern', newest logs first.
+     * This reads only the blocks the index says might match, so it's safe (if not necessarily quick) to call on any thread.
+     */
+    public List<LogHit> search(Pattern pattern, int maxHitCount) throws IOException {
+        TrigramIndex index = this.index;
+        Map<String, LogBlock> blocks = this.blocks;
+        ArrayList<LogBlock> candidates = new ArrayList<LogBlock>();
+        BitSet ids = index.getCandidates(FileSearcher.getRequiredLiteral(pattern));
+        if (ids == null) {
+            for (String name : index.getNames()) {
+                candidates.add(blocks.get(name));
+            }
+        } else {
+            for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+                candidates.add(blocks.get(index.getName(id)));
+            }
+        }
+        candidates.remove(null);
+        Collections.sort(candidates);
+        
+        ArrayList<LogHit> hits = new ArrayList<LogHit>();
+        Matcher matcher = pattern.matcher("");
+        // The candidates are in order within each log, so one reader gets through a gzipped log's blocks in a single pass.
+        BlockReader reader = new BlockReader();
+        try {
+            for (LogBlock block : candidates) {
+                String[] lines = block.readText(reader).split("\n", -1);
+                for (int i = 0; i < lines.length && hits.size() < maxHitCount; ++i) {
+                    if (matcher.reset(lines[i]).find()) {
+                        hits.add(new LogHit(block, block.firstLineNumber + i, lines[i]));
+                    }
+                }
+                if (hits.size() >= maxHitCount) {
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return hits;
+    }
+    
+    /** What we know about a log we've indexed. */
+    private static class LogState {
+        private final long length;
+        private final long lastModified;
+        private final ArrayList<String> blockNames = new ArrayList<String>();
+        private long strippedByteCount;
+        
+        // Where the last block started, what it was called, and how many stripped bytes came before it; it may not have been complete, so it gets indexed again if the log grows.
+        private long resumeOffset;
+        private int resumeLineNumber = 1;
+        private int resumeBlockIndex;
+        private long resumeStrippedByteCount;
+        
+        LogState(File log) {
+            this.length = log.length();
+            this.lastModified = log.lastModified();
+        }
+        
+        boolean isOutOfDate(File log) {
+            return log.length() != length || log.lastModified() != lastModified;
+        }
+        
+        void resumeFrom(LogState oldState) {
+            resumeOffset = oldState.resumeOffset;
+            resumeLineNumber = oldState.resumeLineNumber;
+            resumeBlockIndex = oldState.resumeBlockIndex;
+            resumeStrippedByteCount = oldState.resumeStrippedByteCount;
+            // The last block will be replaced, because it'll be re-added with the same name, and its bytes counted again.
+            blockNames.addAll(oldState.blockNames.subList(0, resumeBlockIndex));
+            strippedByteCount = resumeStrippedByteCount;
+        }
+    }
+    
+    /** Strips a log's bytes and divides the result into blocks, adding them to a batch for the index. */
+    private static class BlockBuilder {
+        private final File log;
+        private final boolean isCompressed;
+        private final long version;
+        private final LogState state;
+        private final Stripper stripper = new Stripper();
+        private final TrigramIndex.Batch batch = new TrigramIndex.Batch();
+        private final ArrayList<LogBlock> newBlocks = new ArrayList<LogBlock>();
+        
+        private long blockStart;
+        private int blockFirstLineNumber;
+        private int lineNumber;
+        private long end;
+        
+        BlockBuilder(File log, boolean isCompressed, LogState state) {
+            this.log = log;
+            this.isCompressed = isCompressed;
+            this.version = log.lastModified();
+            this.state = state;
+            this.blockStart = state.resumeOffset;
+            this.blockFirstLineNumber = state.resumeLineNumber;
+            this.lineNumber = state.resumeLineNumber;
+        }
+        
+        /** Adds the bytes in 'buffer', which start at 'offset' in the log. */
+        void add(ByteBuffer buffer, long offset) {
+            int limit = buffer.limit();
+            for (int i = buffer.position(); i < limit; ++i) {
+                if (stripper.strip(buffer.get(i))) {
+                    ++lineNumber;
+                    if (stripper.length() >= BLOCK_BYTE_COUNT) {
+                        // Blocks end after a newline, which the stripper only reports when it's not in the middle of an escape sequence, so the next block can be stripped on its own.
+                        addBlock(offset + i + 1);
+                        state.resumeOffset = blockStart;
+                        state.resumeLineNumber = blockFirstLineNumber;
+                        state.resumeBlockIndex = state.blockNames.size();
+                        state.resumeStrippedByteCount = state.strippedByteCount;
+                    }
+                }
+            }
+            end = offset + limit;
+        }
+        
+        /** Adds whatever's left as a final block, which will be indexed again if the log grows. */
+        void finish() {
+            if (stripper.length() > 0) {
+                addBlock(end);
+            }
+        }
+        
+        private void addBlock(long blockEnd) {
+            String name = log.getPath() + "#" + state.blockNames.size();
+            batch.add(name, version, stripper.getBytes(), stripper.length());
+            newBlocks.add(new LogBlock(name, log, isCompressed, blockStart, blockEnd, blockFirstLineNumber));
+            state.blockNames.add(name);
+            state.strippedByteCount += stripper.length();
+            stripper.clear();
+            blockStart = blockEnd;
+            blockFirstLineNumber = lineNumber;
+        }
+    }
+    
+    /**
+     * Removes escape sequences and other control characters from a log's raw bytes, leaving the text (and newlines).
+     * This understands enough of ECMA-48 to skip CSI sequences, the string-carrying sequences (OSC, DCS, and friends), and two- and three-character escapes.
+     * Bytes from 0x80 up are kept, because logs are written in the platform's default encoding, and in UTF-8 those are parts of characters rather than C1 controls.
+     */
+    private static final class Stripper {
+        private static final int GROUND = 0;
+        private static final int ESCAPE = 1;
+        private static final int CSI = 2;
+        private static final int STRING = 3;
+        private static final int STRING_ESCAPE = 4;
+        
+        private int state = GROUND;
+        private byte[] bytes = new byte[BLOCK_BYTE_COUNT + 1024];
+        private int length = 0;
+        
+        /** Strips a byte, keeping it if it's text. Returns true if it was a newline. */
+        boolean strip(byte b) {
+            int ch = b & 0xff;
+            switch (state) {
+            case GROUND:
+                if (ch == 0x1b) {
+                    state = ESCAPE;
+                } else if (ch >= 0x20 && ch != 0x7f || ch == '\t') {
+                    append(b);
+                } else if (ch == '\n') {
+                    append(b);
+                    return true;
+                }
+                return false;
+            case ESCAPE:
+                if (ch == '[') {
+                    state = CSI;
+                } else if (ch == ']' || ch == 'P' || ch == 'X' || ch == '^' || ch == '_') {
+                    state = STRING;
+                } else if (ch < 0x20 || ch > 0x2f) {
+                    // Anything but an intermediate character ends the sequence.
+                    state = GROUND;
+                }
+                return false;
+            case CSI:
+                if (ch >= 0x40 && ch <= 0x7e) {
+                    state = GROUND;
+                } else if (ch == 0x1b) {
+                    state = ESCAPE;
+                }
+                return false;
+            case STRING:
+                if (ch == 0x07) {
+                    state = GROUND;
+                } else if (ch == 0x1b) {
+                    state = STRING_ESCAPE;
+                }
+                return false;
+            default:
+                // ESC \ is the proper string terminator, but xterm takes an ESC followed by anything as the end of the string.
+                state = GROUND;
+                return false;
+            }
+        }
+        
+        private void append(byte b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * length);
+            }
+            bytes[length++] = b;
+        }
+        
+        byte[] getBytes() {
+            return bytes;
+        }
+        
+        int length() {
+            return length;
+        }
+        
+        void clear() {
+            length = 0;
+        }
+    }
+    
+    /** Part of a log, as indexed. */
+    public static final class LogBlock implements Comparable<LogBlock> {
+        private final String name;
+        private final File log;
+        private final boolean isCompressed;
+        // Offsets in the log (after inflating it, if it's compressed) of the raw bytes of this block.
+        private final long start;
+        private final long end;
+        private final int firstLineNumber;
+        
+        private LogBlock(String name, File log, boolean isCompressed, long start, long end, int firstLineNumber) {
+            this.name = name;
+            this.log = log;
+            this.isCompressed = isCompressed;
+            this.start = start;
+            this.end = end;
+            this.firstLineNumber = firstLineNumber;
+        }
+        
+        public File getLog() {
+            return log;
+        }
+        
+        /** Returns the line number within the stripped log of this block's first line. */
+        public int getFirstLineNumber() {
+            return firstLineNumber;
+        }
+        
+        /** Reads this block from the log, and returns its text with escape sequences stripped. */
+        public String readText() throws IOException {
+            BlockReader reader = new BlockReader();
+            try {
+                return readText(reader);
+            } finally {
+                reader.close();
+            }
+        }
+        
+        private String readText(BlockReader reader) throws IOException {
+            ByteBuffer buffer = reader.read(this);
+            Stripper stripper = new Stripper();
+            for (int i = 0; i < buffer.limit(); ++i) {
+                stripper.strip(buffer.get(i));
+            }
+            // Lose the newline at the end of the last line, so splitting gives us one string per line.
+            int length = stripper.length();
+            if (length > 0 && stripper.getBytes()[length - 1] == '\n') {
+                --length;
+            }
+            return new String(stripper.getBytes(), 0, length);
+        }
+        
+        /** Orders blocks newest log first, and by position within a log. */
+        public int compareTo(LogBlock other) {
+            int result = other.log.getName().compareTo(log.getName());
+            return (result != 0) ? result : (start < other.start ? -1 : (start > other.start ? 1 : 0));
+        }
+    }
+    
+    /**
+     * Reads the raw bytes of blocks.
+     * There's no starting to inflate a gzipped log from the middle, so this keeps the last one it read open; reading that log's blocks in order then inflates it once, rather than once per block.
+     */
+    private static final class BlockReader {
+        private File log;
+        private InputStream in;
+        // Offset in the inflated log of the next byte 'in' will return.
+        private long position;
+        
+        ByteBuffer read(LogBlock block) throws IOException {
+            int byteCount = (int) (block.end - block.start);
+            if (block.isCompressed == false) {
+                FileChannel channel = new FileInputStream(block.log).getChannel();
+                try {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, block.start, Math.min(byteCount, Math.max(0, channel.size() - block.start)));
+                } finally {
+                    channel.close();
+                }
+            }
+            if (in == null || block.log.equals(log) == false || position > block.start) {
+                close();
+                in = new GZIPInputStream(new FileInputStream(block.log));
+                log = block.log;
+                position = 0;
+            }
+            while (position < block.start) {
+                long n = in.skip(block.start - position);
+                if (n <= 0) {
+                    throw new EOFException("\"" + log + "\" has shrunk since it was indexed");
+                }
+                position += n;
+            }
+            byte[] bytes = new byte[byteCount];
+            int offset = 0;
+            try {
+                int n;
+                while (offset < byteCount && (n = in.read(bytes, offset, byteCount - offset)) > 0) {
+                    offset += n;
+                }
+            } catch (EOFException ex) {
+                // A truncated log; we've got as much of the block as there is.
+            }
+            position += offset;
+            return ByteBuffer.wrap(bytes, 0, offset);
+        }
+        
+        void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+    
+    /** A line of a log matching a search. */
+    public static final class LogHit {
+        private final LogBlock block;
+        private final int lineNumber;
+        private final String line;
+        
+        private LogHit(LogBlock block, int lineNumber, String line) {
+            this.block = block;
+            this.lineNumber = lineNumber;
+            this.line = line;
+        }
+        
+        public LogBlock getBlock() {
+            return block;
+        }
+        
+        public int getLineNumber() {
+            return lineNumber;
+        }
+        
+        @Override public String toString() {
+            return block.getLog().getName() + ":" + lineNumber + ": " + line;
+        }
+    }
+    
+    /** Returns lines numbered from 'firstLine', each in bold, as a terminal might have written them. */
+    private static String makeLogText(int firstLine, int lineCount) {
+        final String esc = String.valueOf(Ascii.ESC);
+        StringBuilder result = new StringBuilder();
+        for (int i = firstLine; i < firstLine + lineCount; ++i) {
+            result.append(esc + "[1mline " + i + esc + "[m\n");
+        }
+        return result.toString();
+    }
+    
+    /** Checks that the log's blocks are all indexed, cover its 'rawByteCount' bytes end to end, and know their first lines' numbers. */
+    private void checkBlocks(LogState state, long rawByteCount) throws IOException {
+        Assert.equals(index.size(), state.blockNames.size());
+        long end = 0;
+        long strippedByteCount = 0;
+        for (String name : state.blockNames) {
+            LogBlock block = blocks.get(name);
+            Assert.equals(block.start, end);
+            String text = block.readText();
+            Assert.startsWith(text, "line " + (block.getFirstLineNumber() - 1) + "\n");
+            // readText drops the newline at the end of the block.
+            strippedByteCount += text.length() + 1;
+            end = block.end;
+        }
+        Assert.equals(end, rawByteCount);
+        Assert.equals(state.strippedByteCount, strippedByteCount);
+    }
+    
+    @Test private static void testBlocks() throws IOException {
+        // About 3.5MiB of text once it's stripped, so several blocks.
+        final int lineCount = 300 * 1000;
+        final String text = makeLogText(0, lineCount);
+        final File log = FileUtilities.createTemporaryFile("LogIndexTest", ".txt", "test log", text);
+        LogIndex logIndex = new LogIndex();
+        LogState state = logIndex.indexLog(log, null);
+        Assert.gt(state.blockNames.size(), 2);
+        logIndex.checkBlocks(state, log.length());
+        Assert.equals(logIndex.search(Pattern.compile("^line 123456$"), 10).toString(), "[" + log.getName() + ":123457: line 123456]");
+        
+        // When the log grows, its last block is indexed again, replacing (rather than adding to) the old one.
+        final OutputStream out = new FileOutputStream(log, true);
+        try {
+            out.write(makeLogText(lineCount, 1000).getBytes());
+        } finally {
+            out.close();
+        }
+        state = logIndex.indexLog(log, state);
+        logIndex.checkBlocks(state, log.length());
+        Assert.equals(logIndex.search(Pattern.compile("^line 300500$"), 10).toString(), "[" + log.getName() + ":300501: line 300500]");
+        Assert.equals(logIndex.search(Pattern.compile("^line 299999$"), 10).size(), 1);
+        log.delete();
+        
+        // A gzipped log's blocks are read in one pass, but should come out just the same.
+        final File gzippedLog = FileUtilities.createTemporaryFile("LogIndexTest", ".txt.gz", "test log", null);
+        final OutputStream gzippedOut = new GZIPOutputStream(new FileOutputStream(gzippedLog));
+        try {
+            gzippedOut.write(text.getBytes());
+        } finally {
+            gzippedOut.close();
+        }
+        logIndex = new LogIndex();
+        state = logIndex.indexLog(gzippedLog, null);
+        logIndex.checkBlocks(state, text.length());
+        List<LogHit> hits = logIndex.search(Pattern.compile("^line \\d*0000$"), 1000);
+        // That's lines 10000, 20000, and so on, which are on line numbers one more than that.
+        Assert.equals(hits.size(), lineCount / 10000 - 1);
+        for (int i = 0; i < hits.size(); ++i) {
+            Assert.equals(hits.get(i).getLineNumber(), 10000 * (i + 1) + 1);
+        }
+        gzippedLog.delete();
+    }
+}
@@ -0,0 +1,228 @@
+package terminator;
+
+import e.forms.*;
+import e.gui.*;
+import e.util.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.util.List;
+import java.util.regex.*;
+import javax.swing.*;
+import javax.swing.event.*;
+import javax.swing.text.*;
+import org.jdesktop.swingworker.SwingWorker;
+
+/**
+ * Searches all the session logs (see TerminalLogWriter and LogIndex) for lines matching a regular expression.
+ * Matches are listed newest log first, updated as you type, and selecting one shows it in context.
+ */
+public class LogSearchDialog {
+    private static final LogSearchDialog INSTANCE = new LogSearchDialog();
+    
+    // Enough to be useful, without making a common word fill memory with a list nobody will read.
+    private static final int MAX_HIT_COUNT = 1000;
+    
+    private FormBuilder form;
+    private JTextField patternField = new JTextField(40);
+    private ELabel status = new ELabel();
+    private JList<LogIndex.LogHit> hitList;
+    private JTextArea contextArea;
+    
+    // Only one search at a time; a search started while another's running supersedes it.
+    private HitFinder hitFinder;
+    
+    // Likewise for reading a hit's block; the block on show is kept so that moving between hits in it doesn't read it again.
+    private ContextLoader contextLoader;
+    private LogIndex.LogBlock contextBlock;
+    
+    public static LogSearchDialog getSharedInstance() {
+        return INSTANCE;
+    }
+    
+    private LogSearchDialog() {
+        initHitList();
+        initContextArea();
+        
+        this.form = new FormBuilder(TerminatorMenuBar.getFocusedTerminatorFrame(), "Search Session Logs");
+        form.setTypingTimeoutActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                showMatches();
+            }
+        });
+        FormPanel formPanel = form.getFormPanel();
+        formPanel.addRow("Lines Matching:", patternField);
+        formPanel.addWideRow(status);
+        formPanel.addWideRow(new JScrollPane(hitList));
+        formPanel.addWideRow(new JScrollPane(contextArea));
+    }
+    
+    private void initHitList() {
+        hitList = new JList<LogIndex.LogHit>();
+        hitList.setCellRenderer(new EListCellRenderer(true));
+        hitList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        hitList.addListSelectionListener(new ListSelectionListener() {
+            public void valueChanged(ListSelectionEvent e) {
+                if (e.getValueIsAdjusting() == false) {
+                    showContext(hitList.getSelectedValue());
+                }
+            }
+        });
+        ComponentUtilities.divertPageScrollingFromTo(patternField, hitList);
+    }
+    
+    private void initContextArea() {
+        contextArea = new JTextArea(12, 80);
+        contextArea.setEditable(false);
+        contextArea.setFont(Terminator.getPreferences().getFont(TerminatorPreferences.FONT));
+    }
+    
+    public void showDialog() {
+        setStatus(true, "Indexing logs...");
+        form.showNonModal();
+        // Pick up anything logged since we last looked, then search again in case that added matches.
+        LogIndex.getSharedInstance().refresh(new Runnable() {
+            public void run() {
+                showMatches();
+            }
+        });
+    }
+    
+    private void setStatus(boolean good, String text) {
+        status.setForeground(good ? Color.BLACK : Color.RED);
+        status.setText(text);
+    }
+    
+    private void showMatches() {
+        if (hitFinder != null) {
+            hitFinder.cancel(false);
+        }
+        hitFinder = new HitFinder(patternField.getText());
+        hitFinder.execute();
+    }
+    
+    /** Shows the block of the log containing 'hit', with the matching line selected. */
+    private void showContext(LogIndex.LogHit hit) {
+        if (contextLoader != null) {
+            contextLoader.cancel(false);
+            contextLoader = null;
+        }
+        if (hit == null) {
+            contextBlock = null;
+            contextArea.setText("");
+        } else if (hit.getBlock() == contextBlock) {
+            selectLine(hit);
+        } else {
+            contextLoader = new ContextLoader(hit);
+            contextLoader.execute();
+        }
+    }
+    
+    private void selectLine(LogIndex.LogHit hit) {
+        int lineIndex = hit.getLineNumber() - hit.getBlock().getFirstLineNumber();
+        try {
+            contextArea.select(contextArea.getLineStartOffset(lineIndex), contextArea.getLineEndOffset(lineIndex));
+            contextArea.getCaret().setSelectionVisible(true);
+        } catch (BadLocationException ex) {
+            // The log has been rewritten since it was indexed, and the line isn't where it was.
+        }
+    }
+    
+    /** Reads a hit's block off the EDT, because for a gzipped log that means inflating everything before it. */
+    private class ContextLoader extends SwingWorker<Object, Object> {
+        private LogIndex.LogHit hit;
+        private String text;
+        private IOException exception;
+        
+        private ContextLoader(LogIndex.LogHit hit) {
+            this.hit = hit;
+        }
+        
+        @Override
+        protected Object doInBackground() {
+            try {
+                text = hit.getBlock().readText();
+            } catch (IOException ex) {
+                exception = ex;
+            }
+            return null;
+        }
+        
+        @Override
+        public void done() {
+            // A cancel that comes after we finished but before we got here doesn't count as a cancel, so check we're still wanted.
+            if (isCancelled() || contextLoader != this) {
+                return;
+            }
+            contextLoader = null;
+            if (exception != null) {
+                // The log may have been deleted or rotated away since it was indexed.
+                contextBlock = null;
+                contextArea.setText("");
+                setStatus(false, "Couldn't read \"" + hit.getBlock().getLog() + "\": " + exception.getMessage());
+                return;
+            }
+            contextBlock = hit.getBlock();
+            contextArea.setText(text);
+            selectLine(hit);
+        }
+    }
+    
+    private class HitFinder extends SwingWorker<Object, Object> {
+        private String regularExpression;
+        private DefaultListModel<LogIndex.LogHit> model;
+        private boolean statusGood;
+        private String statusText;
+        
+        private HitFinder(String regularExpression) {
+            this.regularExpression = regularExpression;
+        }
+        
+        @Override
+        protected Object doInBackground() {
+            model = new DefaultListModel<LogIndex.LogHit>();
+            statusGood = true;
+            statusText = " ";
+            if (regularExpression.length() == 0) {
+                return null;
+            }
+            try {
+                final long t0 = System.nanoTime();
+                
+                Pattern pattern = PatternUtilities.smartCaseCompile(regularExpression);
+                List<LogIndex.LogHit> hits = LogIndex.getSharedInstance().search(pattern, MAX_HIT_COUNT);
+                for (LogIndex.LogHit hit : hits) {
+                    model.addElement(hit);
+                }
+                final int blockCount = LogIndex.getSharedInstance().getBlockCount();
+                statusText = ((hits.size() == MAX_HIT_COUNT) ? "The first " : "") + StringUtilities.pluralize(hits.size(), "line", "lines") + " match, in " + StringUtilities.pluralize(blockCount, "indexed block", "indexed blocks") + " of logs.";
+                
+                final long t1 = System.nanoTime();
+                Log.warn("Search for log lines matching \"" + regularExpression + "\" took " + TimeUtilities.nsToString(t1 - t0) + ".");
+            } catch (PatternSyntaxException ex) {
+                statusGood = false;
+                statusText = ex.getDescription();
+            } catch (IOException ex) {
+                statusGood = false;
+                statusText = "Couldn't read logs: " + ex.getMessage();
+                Log.warn("Exception occurred searching logs.", ex);
+            }
+            return null;
+        }
+        
+        @Override
+        public void done() {
+            if (isCancelled()) {
+                return;
+            }
+            setStatus(statusGood, statusText);
+            hitList.setModel(model);
+            // As with "Open Quickly", this lets the user tab into the list, and shows the newest match straight away.
+            if (model.getSize() > 0) {
+                hitList.setSelectedIndex(0);
+            } else {
+                showContext(null);
+            }
+        }
+    }
+}
@@ -162,6 +162,14 @@ public class Palettes {
         }
     }
     
+    // Every color getColor could return, whichever palette is in use.
+    private static final HashSet<Color> paletteColors = new HashSet<Color>(Arrays.asList(cache));
+    static {
+        for (Color[] palette : palettes.values()) {
+            paletteColors.addAll(Arrays.asList(palette));
+        }
+    }
+    
     public static String toString(Color[] colors) {
         for (Map.Entry<String, Color[]> palette : palettes.entrySet()) {
             if (palette.getValue() == colors) {
@@ -199,6 +207,13 @@ public class Palettes {
         return (index < 16) ? currentPalette()[index] : cache[index - 16];
     }
     
+    /**
+     * Returns true if 'color' is one of the few hundred colors getColor could return, rather than an arbitrary 24-bit color.
+     */
+    public static boolean isPaletteColor(Color color) {
+        return paletteColors.contains(color);
+    }
+    
     /**
      * Tries to get a good bold foreground color.
      * This is equivalent to "colorBD" in XTerm, but isn't under the control of the user.
@@ -2,54 +2,143 @@ package terminator;
 
 import e.gui.*;
 import e.util.*;
-import java.awt.event.*;
 import java.io.*;
 import java.text.*;
 import java.util.*;
-import javax.swing.Timer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
 
 /**
  * Logs terminal output to a file.
  * Logging can be temporarily suspended.
  * If the terminal logs directory does not exist or we can't open the log file for some other reason, logging is automatically suspended, and can't be un-suspended.
+ * 
+ * The terminal's reader (see PtyMultiplexer) hands us output through a CharRingBuffer, and a writer thread shared by all the logs writes it out, so a slow disk (or an NFS home directory) doesn't hold up the terminal.
+ * The buffer isn't allocated until there's output to log, and a log with nothing to write costs the writer nothing.
+ * If the writer falls so far behind that the buffer fills, we either drop output (leaving a note in the log saying so) or keep the rest aside and have the terminal stop reading until the writer's caught up, depending on the user's preference.
+ * We never make the reader wait, because it's reading for every terminal.
+ * The log can be gzipped, and we start a new file when the current one gets too big or too old, again depending on the user's preferences.
  */
 public class TerminalLogWriter {
     // We can't use ':' to separate the hours, minutes, and seconds because it's not allowed on all file systems.
     private static final DateFormat FILENAME_TIMESTAMP_FORMATTER = new SimpleDateFormat("yyyy-MM-dd'T'HHmmss.SSSZ");
     
-    private String info = "(not logging)";
+    // Enough to smooth over the writer being busy with other logs for a moment; longer bursts are what the overflow (or dropping output) is for.
+    private static final int BUFFER_CHAR_COUNT = 128 * 1024;
+    
+    // How long after writing we flush, so that someone following the log with tail -f isn't kept waiting.
+    private static final long FLUSH_DELAY_NS = 1000L * 1000 * 1000;
+    
+    // Writes every terminal's log, so a log's tasks never run at the same time as each other, and what they touch needs no locking.
+    private static final ScheduledExecutorService writerExecutor = ThreadUtilities.newSingleThreadScheduledExecutor("Log Writer");
+    // The writer's buffer for taking chars from a log's CharRingBuffer; there's only one writer thread, so it can be shared.
+    private static final char[] writerChars = new char[8192];
+    
+    /** Lets the terminal stop reading output while the writer catches up, if the user would rather we didn't drop anything. */
+    public interface FlowControl {
+        /**
+         * Called with true when output has had to be kept aside because the buffer was full, and with false once the writer has taken it.
+         * This is called with our lock held, so it mustn't call back into us.
+         */
+        void setReadingPaused(boolean shouldPause);
+    }
+    
+    private volatile String info = "(not logging)";
+    
+    private final String commandLine;
+    private File logsDirectory;
+    // The longest prefix of the command line that worked in a filename, so we don't have to find it again each time we start a new file.
+    private int truncationLength;
+    
+    private final boolean compress;
+    private final boolean blockWhenBehind;
+    private final long rotationByteCount;
+    private final long rotationMs;
+    private final FlowControl flowControl;
+    
+    // Allocated by the reader when it first has output for us.
+    private volatile CharRingBuffer buffer;
+    
+    // When we're not dropping output, whatever didn't fit in the buffer waits here until the writer has emptied the buffer, and the reader is paused meanwhile.
+    // The reader only adds to the buffer with 'overflowLock' held, so the writer can be sure that an empty buffer won't get anything older than the overflow.
+    private final Object overflowLock = new Object();
+    // Null when there's nothing kept aside.
+    private char[] overflow;
+    private volatile int overflowCharCount = 0;
+    
+    private volatile boolean isLogging = false;
+    private volatile boolean isSuspended = false;
+    private volatile boolean isClosed = false;
+    // Whether there's a drain task that hasn't yet found everything written; see scheduleDrain.
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            isFlushScheduled = false;
+            flushWriter();
+        }
+    };
+    
+    // Only touched by the reader, but read by anyone for getStatistics.
+    private volatile long loggedCharCount = 0;
+    private volatile long droppedCharCount = 0;
+    private volatile int maxPendingCharCount = 0;
+    private long droppedSinceLastNote = 0;
+    
+    // Only touched by the writer thread, but read by anyone for getStatistics.
+    private volatile long writtenCharCount = 0;
+    private volatile int fileCount = 0;
+    
+    // Only touched by the writer thread (or the constructor, before it has anything to do for us).
+    // 'writer' is null once we've stopped logging.
     private Writer writer;
-    private Writer suspendedWriter;
-    private Timer flushTimer;
-    
-    public TerminalLogWriter(List<String> command) {
-        // Establish the invariant that writer != null.
-        // suspendedWriter is still null - when we're not suspended.
-        this.writer = NullWriter.INSTANCE;
-        this.flushTimer = new Timer(1000, new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                flush();
-            }
-        });
-        flushTimer.setRepeats(false);
+    private CountingOutputStream fileStream;
+    private long fileOpenedMs;
+    private long fileCharCount;
+    private boolean needsFlush;
+    private boolean isFlushScheduled;
+    
+    public TerminalLogWriter(List<String> command, FlowControl flowControl) {
+        TerminatorPreferences preferences = Terminator.getPreferences();
+        this.compress = preferences.getBoolean(TerminatorPreferences.LOG_COMPRESSION);
+        this.blockWhenBehind = preferences.getBoolean(TerminatorPreferences.LOG_BLOCK_WHEN_BEHIND);
+        this.rotationByteCount = preferences.getInt(TerminatorPreferences.LOG_ROTATION_MEGABYTES) * 1024L * 1024L;
+        this.rotationMs = preferences.getInt(TerminatorPreferences.LOG_ROTATION_HOURS) * 60L * 60L * 1000L;
+        this.commandLine = StringUtilities.join(command, " ");
+        this.flowControl = flowControl;
         try {
-            initLogging(StringUtilities.join(command, " "));
+            initLogging();
         } catch (Throwable th) {
             SimpleDialog.showDetails(null, "Couldn't Open Log File", th);
         }
     }
     
-    private synchronized static File makeLogFilename(File logsDirectory, String commandLine, int truncationLength) {
+    private synchronized static File makeLogFilename(File logsDirectory, String commandLine, int truncationLength, boolean compress) {
         String mostInterestingPartOfCommandLine = commandLine.substring(0, truncationLength);
         String suffix = StringUtilities.urlEncode(mostInterestingPartOfCommandLine);
         String timestamp = FILENAME_TIMESTAMP_FORMATTER.format(new Date());
-        String leafname = timestamp + "-" + suffix + ".txt";
+        String leafname = timestamp + "-" + suffix + (compress ? ".txt.gz" : ".txt");
         return new File(logsDirectory, leafname);
     }
     
-    private void initLogging(String commandLine) throws IOException {
-        String logsDirectoryName = System.getProperty("org.jessies.terminator.logDirectory");
-        File logsDirectory = new File(logsDirectoryName);
+    /** Returns the time at which the log with the given leafname was started, or null if it doesn't look like one of our logs. */
+    synchronized static Date getLogStartTime(String leafname) {
+        return FILENAME_TIMESTAMP_FORMATTER.parse(leafname, new ParsePosition(0));
+    }
+    
+    /** Returns the directory logs are written to. */
+    static File getLogsDirectory() {
+        return new File(System.getProperty("org.jessies.terminator.logDirectory"));
+    }
+    
+    private void initLogging() throws IOException {
+        File logsDirectory = getLogsDirectory();
+        String logsDirectoryName = logsDirectory.toString();
         if (logsDirectory.exists() == false) {
             this.info = "(\"" + logsDirectoryName + "\" does not exist)";
             return;
@@ -67,15 +156,28 @@ public class TerminalLogWriter {
             return;
         }
         
+        this.logsDirectory = logsDirectory;
+        this.truncationLength = commandLine.length();
+        openLogFile();
+        this.isLogging = true;
+    }
+    
+    private void openLogFile() throws IOException {
         // Try to create a log file.
         // We'll keep truncating the name until we either succeed or there's no name left.
         // This avoids assumptions about maximum filename or path lengths.
-        for (int truncationLength = commandLine.length(); truncationLength >= 0; --truncationLength) {
-            File logFile = makeLogFilename(logsDirectory, commandLine, truncationLength);
+        for (; truncationLength >= 0; --truncationLength) {
+            File logFile = makeLogFilename(logsDirectory, commandLine, truncationLength, compress);
             try {
                 this.info = "(\"" + logFile + "\" could not be opened for writing)";
-                this.writer = new BufferedWriter(new FileWriter(logFile));
+                this.fileStream = new CountingOutputStream(new FileOutputStream(logFile));
+                // A sync flush means that what's been flushed so far can be read, even though the gzip stream isn't finished.
+                OutputStream out = compress ? new GZIPOutputStream(fileStream, 8192, true) : fileStream;
+                this.writer = new BufferedWriter(new OutputStreamWriter(out));
                 this.info = logFile.toString();
+                this.fileOpenedMs = System.currentTimeMillis();
+                this.fileCharCount = 0;
+                ++fileCount;
                 return;
             } catch (IOException ex) {
                 if (truncationLength == 0) {
@@ -86,69 +188,279 @@ public class TerminalLogWriter {
         }
     }
     
-    public void append(char[] chars, int charCount, boolean sawNewline) throws IOException {
-        writer.write(chars, 0, charCount);
-        if (sawNewline) {
-            flushTimer.restart();
+    /** Writes everything that's waiting, and arranges for it to be flushed soon. Runs on the writer thread. */
+    private void drain() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            do {
+                writeWaitingOutput();
+                // Output the reader adds from now on will find us unscheduled, and schedule us again; output it added before this, we'll see.
+                isDrainScheduled.set(false);
+            } while (hasOutput() && isDrainScheduled.compareAndSet(false, true));
+            if (needsFlush && isFlushScheduled == false) {
+                isFlushScheduled = true;
+                writerExecutor.schedule(flushTask, FLUSH_DELAY_NS, TimeUnit.NANOSECONDS);
+            }
+        } catch (Throwable th) {
+            stopLogging(th);
+        }
+    }
+    
+    /** Writes what's in the buffer, and then any overflow, until there's nothing left. Runs on the writer thread. */
+    private void writeWaitingOutput() throws IOException {
+        final CharRingBuffer buffer = this.buffer;
+        while (true) {
+            startNewFileIfNecessary();
+            int charCount = (buffer != null) ? buffer.poll(writerChars) : 0;
+            if (charCount > 0) {
+                writer.write(writerChars, 0, charCount);
+            } else if (blockWhenBehind) {
+                charCount = writeOverflow();
+            }
+            if (charCount == 0) {
+                return;
+            }
+            writtenCharCount += charCount;
+            fileCharCount += charCount;
+            needsFlush = true;
         }
     }
     
-    public void flush() {
+    private void flushWriter() {
+        if (writer == null || needsFlush == false) {
+            return;
+        }
         try {
             writer.flush();
+            needsFlush = false;
         } catch (Throwable th) {
-            Log.warn("Exception occurred flushing log writer \"" + info + "\".", th);
+            stopLogging(th);
         }
     }
     
-    public void close() {
+    private void stopLogging(Throwable th) {
+        Log.warn("Exception occurred writing log \"" + info + "\"; logging stopped.", th);
+        info = "(logging stopped: " + th.getMessage() + ")";
+        isClosed = true;
+        closeWriter();
+    }
+    
+    /** Closes the file, if it's still open. Runs on the writer thread. */
+    private void closeWriter() {
+        // Whatever's still kept aside will never be written, and the reader mustn't stay paused waiting for it.
+        synchronized (overflowLock) {
+            if (overflowCharCount > 0) {
+                overflow = null;
+                overflowCharCount = 0;
+                flowControl.setReadingPaused(false);
+            }
+        }
+        if (writer == null) {
+            return;
+        }
         try {
-            suspend(false);
             writer.close();
-            writer = NullWriter.INSTANCE;
         } catch (Throwable th) {
             Log.warn("Exception occurred closing log writer \"" + info + "\".", th);
         }
+        writer = null;
+    }
+    
+    /**
+     * Writes the output that was kept aside because the buffer was full, if the buffer's now empty, and lets the reader carry on.
+     * Returns the number of chars written.
+     */
+    private int writeOverflow() throws IOException {
+        final char[] overflowChars;
+        final int charCount;
+        synchronized (overflowLock) {
+            if (overflowCharCount == 0 || buffer.size() > 0) {
+                return 0;
+            }
+            overflowChars = overflow;
+            charCount = overflowCharCount;
+            // We write this array without the lock, so the reader will need another if it has to keep output aside again.
+            overflow = null;
+            overflowCharCount = 0;
+            flowControl.setReadingPaused(false);
+        }
+        writer.write(overflowChars, 0, charCount);
+        return charCount;
+    }
+    
+    private boolean hasOutput() {
+        final CharRingBuffer buffer = this.buffer;
+        return (buffer != null && buffer.size() > 0) || overflowCharCount > 0;
+    }
+    
+    /**
+     * Makes sure a drain task will look at what the reader's just added.
+     * This is the other half of the end of drain: the drain task clears isDrainScheduled before it looks at the buffer one last time, and the buffer's new tail is stored before we look at isDrainScheduled, so at least one of us sees the other.
+     */
+    private void scheduleDrain() {
+        if (isDrainScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(drainTask);
+        }
+    }
+    
+    private void startNewFileIfNecessary() throws IOException {
+        if (fileCharCount == 0) {
+            // There's no point starting a new file when this one's empty.
+            return;
+        }
+        boolean isTooBig = (rotationByteCount > 0 && fileStream.getByteCount() >= rotationByteCount);
+        boolean isTooOld = (rotationMs > 0 && System.currentTimeMillis() - fileOpenedMs >= rotationMs);
+        if (isTooBig || isTooOld) {
+            writer.close();
+            openLogFile();
+        }
+    }
+    
+    /** Called by the reader with each batch of output. */
+    public void append(char[] chars, int charCount) {
+        if (isLogging == false || isSuspended || isClosed) {
+            return;
+        }
+        CharRingBuffer buffer = this.buffer;
+        if (buffer == null) {
+            buffer = new CharRingBuffer(BUFFER_CHAR_COUNT);
+            this.buffer = buffer;
+        }
+        if (blockWhenBehind) {
+            appendWithoutDropping(buffer, chars, charCount);
+            return;
+        }
+        if (droppedSinceLastNote > 0) {
+            // Only the reader adds to the buffer, so if there's room for the whole note now, there'll still be room when we add it.
+            char[] note = ("\n[Terminator dropped " + droppedSinceLastNote + " characters of output here because the log couldn't be written fast enough.]\n").toCharArray();
+            if (buffer.capacity() - buffer.size() >= note.length) {
+                buffer.offer(note, 0, note.length);
+                droppedSinceLastNote = 0;
+            }
+        }
+        int offset = buffer.offer(chars, 0, charCount);
+        scheduleDrain();
+        if (offset < charCount) {
+            droppedCharCount += charCount - offset;
+            droppedSinceLastNote += charCount - offset;
+        }
+        loggedCharCount += offset;
+        maxPendingCharCount = Math.max(maxPendingCharCount, buffer.size());
+    }
+    
+    /**
+     * Adds what fits to the buffer, and keeps the rest aside for the writer, asking the terminal to stop reading until it's taken it.
+     * We can't wait for room ourselves, because that would hold up every terminal's output, not just ours (see PtyMultiplexer).
+     */
+    private void appendWithoutDropping(CharRingBuffer buffer, char[] chars, int charCount) {
+        int pendingCharCount;
+        synchronized (overflowLock) {
+            // The writer may have given up since we last looked, in which case it won't be back for the overflow.
+            if (isClosed) {
+                return;
+            }
+            // Nothing can overtake output that's already waiting, so everything goes in the overflow until the writer's taken it.
+            int offset = (overflowCharCount == 0) ? buffer.offer(chars, 0, charCount) : 0;
+            if (offset < charCount) {
+                int restCount = charCount - offset;
+                if (overflow == null) {
+                    overflow = new char[Math.max(8192, restCount)];
+                } else if (overflowCharCount + restCount > overflow.length) {
+                    overflow = Arrays.copyOf(overflow, Math.max(2 * overflow.length, overflowCharCount + restCount));
+                }
+                System.arraycopy(chars, offset, overflow, overflowCharCount, restCount);
+                if (overflowCharCount == 0) {
+                    flowControl.setReadingPaused(true);
+                }
+                overflowCharCount += restCount;
+            }
+            pendingCharCount = buffer.size() + overflowCharCount;
+        }
+        scheduleDrain();
+        loggedCharCount += charCount;
+        maxPendingCharCount = Math.max(maxPendingCharCount, pendingCharCount);
+    }
+    
+    /** Asks the writer thread to write and flush what it's been given so far, without waiting for it to do so. */
+    public void flush() {
+        if (isLogging) {
+            writerExecutor.execute(new Runnable() {
+                public void run() {
+                    drain();
+                    flushWriter();
+                }
+            });
+        }
+    }
+    
+    public void close() {
+        suspend(false);
+        isClosed = true;
+        if (isLogging == false) {
+            return;
+        }
+        Future<?> closing = writerExecutor.submit(new Runnable() {
+            public void run() {
+                drain();
+                closeWriter();
+            }
+        });
+        try {
+            // Give the writer a chance to finish, but don't hang the UI if the disk's gone away.
+            closing.get(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            // It's taking too long, and will finish in its own time.
+        }
     }
     
     public String getInfo() {
         return info;
     }
     
+    /** Returns a description of how much we've logged, and how well the writer's keeping up, for the info dialog. */
+    public String getStatistics() {
+        if (isLogging == false) {
+            return "(not logging)";
+        }
+        String result = loggedCharCount + " chars logged to " + fileCount + (fileCount == 1 ? " file" : " files");
+        result += ", " + droppedCharCount + " dropped";
+        result += ", " + (loggedCharCount - writtenCharCount) + " waiting to be written (at most " + maxPendingCharCount + ")";
+        return result;
+    }
+    
     public void suspend(boolean shouldSuspend) {
         flush();
-        if (shouldSuspend == isSuspended()) {
-            return;
-        }
-        if (shouldSuspend) {
-            suspendedWriter = writer;
-            writer = NullWriter.INSTANCE;
-        } else {
-            writer = suspendedWriter;
-            suspendedWriter = null;
-        }
+        isSuspended = shouldSuspend;
     }
     
     public boolean isSuspended() {
-        return (suspendedWriter != null);
+        return isSuspended;
     }
     
-    public static class NullWriter extends Writer {
-        public static final Writer INSTANCE = new NullWriter();
-        
-        private NullWriter() {
-        }
+    /** Counts the bytes we've written to the current file, which (unlike the chars we've logged) takes compression into account. */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long byteCount = 0;
         
-        @Override public void close() {
+        CountingOutputStream(OutputStream out) {
+            super(out);
         }
         
-        @Override public void flush() {
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            ++byteCount;
         }
         
-        @Override public void write(int c) {
+        @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            byteCount += length;
         }
         
-        @Override public void write(char[] buffer, int offset, int byteCount) {
+        long getByteCount() {
+            return byteCount;
         }
     }
 }
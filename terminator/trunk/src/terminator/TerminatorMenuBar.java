@@ -64,6 +64,7 @@ public class TerminatorMenuBar extends EMenuBar {
         menu.add(new FindNextAction());
         menu.add(new FindPreviousAction());
         menu.add(new CancelFindAction());
+        menu.add(new SearchLogsAction());
         
         Terminator.getPreferences().initPreferencesMenuItem(menu);
         
@@ -505,6 +506,17 @@ public class TerminatorMenuBar extends EMenuBar {
         }
     }
     
+    public static class SearchLogsAction extends AbstractAction {
+        public SearchLogsAction() {
+            super("Search Session Logs...");
+            putValue(ACCELERATOR_KEY, makeShiftedKeyStroke("F"));
+        }
+        
+        public void actionPerformed(ActionEvent e) {
+            LogSearchDialog.getSharedInstance().showDialog();
+        }
+    }
+    
     public static class CancelFindAction extends AbstractPaneAction {
         public CancelFindAction() {
             super("Cancel Find");
@@ -26,9 +26,16 @@ public class TerminatorPreferences extends Preferences {
     public static final String HIDE_MOUSE_WHEN_TYPING = "hideMouseWhenTyping";
     public static final String INITIAL_COLUMN_COUNT = "initialColumnCount";
     public static final String INITIAL_ROW_COUNT = "initialRowCount";
+    public static final String LOG_BLOCK_WHEN_BEHIND = "logBlockWhenBehind";
+    public static final String LOG_COMPRESSION = "logCompression";
+    public static final String LOG_ROTATION_HOURS = "logRotationHours";
+    public static final String LOG_ROTATION_MEGABYTES = "logRotationMegabytes";
+    public static final String MAX_FRAME_RATE = "maxFrameRate";
     public static final String PALETTE = "palette";
     public static final String SCROLL_ON_KEY_PRESS = "scrollKey";
     public static final String SCROLL_ON_TTY_OUTPUT = "scrollTtyOutput";
+    public static final String SCROLLBACK_LINE_LIMIT = "scrollbackLineLimit";
+    public static final String SCROLLBACK_MEGABYTE_LIMIT = "scrollbackMegabyteLimit";
     public static final String VISUAL_BELL = "visualBell";
     
     /**
@@ -63,6 +70,12 @@ public class TerminatorPreferences extends Preferences {
         addPreference("Behavior", ALWAYS_SHOW_TABS, Boolean.FALSE, "Always show tab bar");
         addPreference("Behavior", SCROLL_ON_KEY_PRESS, Boolean.TRUE, "Scroll to bottom on key press");
         addPreference("Behavior", SCROLL_ON_TTY_OUTPUT, Boolean.FALSE, "Scroll to bottom on output");
+        addPreference("Behavior", SCROLLBACK_LINE_LIMIT, Integer.valueOf(0), "Scrollback lines (0 for no limit)");
+        addPreference("Behavior", SCROLLBACK_MEGABYTE_LIMIT, Integer.valueOf(64), "Scrollback memory in MiB (0 for no limit)");
+        addPreference("Behavior", LOG_COMPRESSION, Boolean.FALSE, "Compress logs with gzip");
+        addPreference("Behavior", LOG_ROTATION_MEGABYTES, Integer.valueOf(0), "Start a new log after this many MiB (0 for no limit)");
+        addPreference("Behavior", LOG_ROTATION_HOURS, Integer.valueOf(0), "Start a new log after this many hours (0 for no limit)");
+        addPreference("Behavior", LOG_BLOCK_WHEN_BEHIND, Boolean.FALSE, "Slow output rather than drop it from a log that can't keep up");
         addPreference("Behavior", HIDE_MOUSE_WHEN_TYPING, Boolean.TRUE, "Hide mouse when typing");
         addPreference("Behavior", VISUAL_BELL, Boolean.TRUE, "Visual bell (as opposed to no bell)");
         addPreference("Behavior", USE_ALT_AS_META, Boolean.FALSE, "Use alt key as meta key (for Emacs)");
@@ -71,6 +84,7 @@ public class TerminatorPreferences extends Preferences {
         addPreference("Appearance", BLINK_CURSOR, Boolean.TRUE, "Blink cursor");
         addPreference("Appearance", BLOCK_CURSOR, Boolean.FALSE, "Use block cursor");
         addPreference("Appearance", FANCY_BELL, Boolean.TRUE, "High-quality rendering of the visual bell");
+        addPreference("Appearance", MAX_FRAME_RATE, Integer.valueOf(60), "Display updates per second (0 for no limit)");
         addPreference("Appearance", ALPHA, Double.valueOf(1.0), "Terminal opacity");
         addPreference("Appearance", FONT, new Font(GuiUtilities.getMonospacedFontName(), Font.PLAIN, 12), "Font");
         addPreference("Appearance", PALETTE, Palettes.fromString("ANSI"), "Palette");
@@ -1,12 +1,25 @@
 package terminator.model;
 
 import java.awt.*;
+import java.util.*;
 import terminator.*;
 
 /**
  * Objects of this class are immutable.
+ * Styles whose colors all come from the palette are also interned, so two such Styles are equal if and only if they're the same object, and each has a small integer id.
+ * TextLine stores ids rather than references, and compares them rather than calling equals.
+ * 
+ * Styles with 24-bit colors aren't interned, because output like a gradient can use a different color for every character, and the table never shrinks.
+ * Their id is UNINTERNED_ID, and each TextLine keeps its own references to any it uses, which go when the line does.
  */
 public final class Style {
+    static final int UNINTERNED_ID = -1;
+    
+    // Every distinct Style we've interned, by equality and by id.
+    // These never shrink, but there are only a few hundred palette colors, and a program has to use a great many of them in combination to make even tens of thousands of styles.
+    private static final HashMap<Style, Style> internedStyles = new HashMap<Style, Style>();
+    private static volatile Style[] stylesById = new Style[16];
+    
     private static final Style DEFAULT_STYLE = makeStyle(null, null, false, false, false);
 
     // This style's foreground/background color, or null to indicate this style doesn't affect the foreground/background color.
@@ -18,6 +31,8 @@ public final class Style {
     private final boolean isUnderlined;
     private final boolean isReverseVideo;
     
+    private int id = UNINTERNED_ID;
+    
     @Override public String toString() {
         return "Style[foreground=" + foreground + ", background=" + background + ", isBold=" + isBold + ", isUnderlined=" + isUnderlined + ", isReverseVideo=" + isReverseVideo + "]";
     }
@@ -90,7 +105,40 @@ public final class Style {
         return DEFAULT_STYLE;
     }
     
+    /** Returns this style's id, unique among all interned styles, or UNINTERNED_ID. The default style's id is 0. */
+    public int getId() {
+        return id;
+    }
+    
+    /** Returns the interned style with the given id. */
+    public static Style forId(int id) {
+        return stylesById[id];
+    }
+    
     public static Style makeStyle(Color foreground, Color background, boolean isBold, boolean isUnderlined, boolean isReverseVideo) {
-        return new Style(foreground, background, isBold, isUnderlined, isReverseVideo);
+        Style newStyle = new Style(foreground, background, isBold, isUnderlined, isReverseVideo);
+        if (isInternable(foreground) == false || isInternable(background) == false) {
+            return newStyle;
+        }
+        synchronized (internedStyles) {
+            Style style = internedStyles.get(newStyle);
+            if (style == null) {
+                style = newStyle;
+                style.id = internedStyles.size();
+                Style[] newStylesById = stylesById;
+                if (style.id == newStylesById.length) {
+                    newStylesById = Arrays.copyOf(newStylesById, 2 * newStylesById.length);
+                }
+                newStylesById[style.id] = style;
+                // The volatile write publishes the new element to readers on other threads.
+                stylesById = newStylesById;
+                internedStyles.put(style, style);
+            }
+            return style;
+        }
+    }
+    
+    private static boolean isInternable(Color color) {
+        return color == null || Palettes.isPaletteColor(color);
     }
 }
@@ -3,21 +3,25 @@ package terminator.model;
 import java.awt.*;
 import java.util.*;
 import javax.swing.*;
+import e.gui.*;
 import e.util.*;
 import terminator.terminal.*;
 import terminator.view.*;
 import terminator.Terminator;
+import terminator.TerminatorPreferences;
 
 public class TerminalModel {
+    // Checking the invariant is O(n) in the number of live lines, which is too slow to do for every line of output.
+    private static final boolean DEBUG_INVARIANT = false;
+    
     private TerminalView view;
     private int width;
     private int height;
-    private ArrayList<TextLine> textLines = new ArrayList<TextLine>();
+    private TextLineStore textLines = new TextLineStore();
     private Style currentStyle = Style.getDefaultStyle();
     private int firstScrollLineIndex;
     private int lastScrollLineIndex;
     private Location cursorPosition;
-    private int lastValidStartIndex = 0;
     private boolean insertMode = false;
     private ArrayList<Integer> tabPositions = new ArrayList<Integer>();
     private int maxLineWidth = width;
@@ -61,14 +65,20 @@ public class TerminalModel {
         }
     }
     
-    public void checkInvariant() {
-        int highestStartLineIndex = -1;
-        for (int lineNumber = 0; lineNumber <= lastValidStartIndex; ++ lineNumber) {
-            int thisStartLineIndex = textLines.get(lineNumber).getLineStartIndex();
-            if (thisStartLineIndex <= highestStartLineIndex) {
-                throw new RuntimeException("the lineStartIndex must increase monotonically as the line number increases");
+    private void checkInvariant() {
+        if (DEBUG_INVARIANT == false) {
+            return;
+        }
+        // Frozen lines can't change, so there's no point checking them.
+        // Each live line should start where the one before it ends; if not, we've changed a line's length without telling textLines.
+        int frozenLineCount = textLines.getFrozenLineCount();
+        int expectedStartIndex = textLines.getFrozenCharCount();
+        for (int lineNumber = frozenLineCount; lineNumber < textLines.size(); ++ lineNumber) {
+            int thisStartIndex = getStartIndex(lineNumber);
+            if (thisStartIndex != expectedStartIndex) {
+                throw new RuntimeException("line " + lineNumber + " starts at " + thisStartIndex + " but the lines before it end at " + expectedStartIndex);
             }
-            highestStartLineIndex = thisStartLineIndex;
+            expectedStartIndex += getLineLength(lineNumber);
         }
     }
     
@@ -88,15 +98,18 @@ public class TerminalModel {
         // multiple physical lines, and the cursor may not be on the
         // first of those lines. Ideally we should keep all pertinent
         // lines. Unfortunately, I can't see how we'd know.
-        ArrayList<TextLine> retainedLines = new ArrayList<TextLine>(textLines.subList(cursorPosition.getLineIndex(), textLines.size()));
+        ArrayList<TextLine> retainedLines = new ArrayList<TextLine>();
+        for (int i = cursorPosition.getLineIndex(); i < textLines.size(); ++i) {
+            retainedLines.add(textLines.get(i));
+        }
         
         // Revert to just the right number of empty lines to fill the
         // current window size.
-        // Using a new ArrayList ensures we free space without risking
+        // Using a new TextLineStore ensures we free space without risking
         // expensive nulling-out of now-unused elements. The assumption
         // being that we're most likely to be asked to clear the
         // scrollback when it's insanely large.
-        textLines = new ArrayList<TextLine>();
+        textLines = new TextLineStore();
         setSize(width, view.getVisibleSizeInCharacters().height);
         maxLineWidth = width;
         
@@ -107,7 +120,6 @@ public class TerminalModel {
         
         // Make sure all the lines will be redrawn.
         view.sizeChanged();
-        lineIsDirty(0);
         
         resetCursorPosition();
         
@@ -139,13 +151,17 @@ public class TerminalModel {
         savedPosition = getLocationWithinBounds(savedPosition);
     }
     
+    /**
+     * Keeps 'location' on a line that still exists after a resize.
+     * We don't wrap lines (see the "am"-less terminfo), so a resize never moves text: a narrower window just means a line's end is off to the right, and we scroll horizontally.
+     * So the column is left alone, and the cursor stays next to the text it was next to, as it does in moveCursorHorizontally.
+     * The next absolute cursor movement from the application, which will have been told the new size, clamps it as usual.
+     */
     private Location getLocationWithinBounds(Location location) {
-        if (location == null) {
+        if (location == null || location.getLineIndex() < textLines.size()) {
             return location;
         }
-        int lineIndex = Math.min(location.getLineIndex(), textLines.size() - 1);
-        int charOffset = Math.min(location.getCharOffset(), width - 1);
-        return new Location(lineIndex, charOffset);
+        return new Location(textLines.size() - 1, location.getCharOffset());
     }
     
     /** Sets or unsets the use of the alternate buffer. */
@@ -174,7 +190,6 @@ public class TerminalModel {
             }
             savedScreen = null;
         }
-        lineIsDirty(getFirstDisplayLine());
         for (int i = 0; i < height; i++) {
             int index = getFirstDisplayLine() + i;
             linesChangedFrom(index);
@@ -228,8 +243,7 @@ public class TerminalModel {
     
     /** Returns the start character index of the indexed line. */
     public int getStartIndex(int lineIndex) {
-        ensureValidStartIndex(lineIndex);
-        return getTextLine(lineIndex).getLineStartIndex();
+        return textLines.getLineStartIndex(lineIndex);
     }
     
     /**
@@ -238,19 +252,8 @@ public class TerminalModel {
      * of the end of the last line.
      */
     public Location getLocationFromCharIndex(int charIndex) {
-        int lowLine = 0;
-        int highLine = textLines.size();
-        
-        while (highLine - lowLine > 1) {
-            int midLine = (lowLine + highLine) / 2;
-            int mid = getStartIndex(midLine);
-            if (mid <= charIndex) {
-                lowLine = midLine;
-            } else {
-                highLine = midLine;
-            }
-        }
-        return new Location(lowLine, charIndex - getStartIndex(lowLine));
+        int lineIndex = textLines.getLineIndexAt(charIndex);
+        return new Location(lineIndex, charIndex - getStartIndex(lineIndex));
     }
     
     /** Returns the char index equivalent to the given Location. */
@@ -264,30 +267,27 @@ public class TerminalModel {
         return getStartIndex(lastIndex) + getLineLength(lastIndex);
     }
     
-    private void lineIsDirty(int dirtyLineIndex) {
-        lastValidStartIndex = Math.min(lastValidStartIndex, dirtyLineIndex + 1);
-    }
-    
-    private void ensureValidStartIndex(int lineIndex) {
-        if (lineIndex > lastValidStartIndex) {
-            for (int i = lastValidStartIndex; i < lineIndex; i++) {
-                TextLine line = getTextLine(i);
-                getTextLine(i + 1).setLineStartIndex(line.getLineStartIndex() + line.lengthIncludingNewline());
-            }
-            lastValidStartIndex = lineIndex;
-        }
+    /** Tells textLines that we've changed the length of the lines from 'fromIndex' up to but not including 'toIndex'. */
+    private void lineLengthsChanged(int fromIndex, int toIndex) {
+        textLines.lineLengthsChanged(fromIndex, toIndex);
     }
     
     public int getLineCount() {
         return textLines.size();
     }
     
+    /** Returns a snapshot of every line's text, which (unlike the model) is safe to search from another thread. */
+    public TextSnapshot getTextSnapshot() {
+        return textLines.getSnapshot();
+    }
+    
     public void fullReset() {
         resetCursorPosition();
         int firstLineToClear = getFirstDisplayLine();
         for (int i = 0; i < height; i++) {
             getTextLine(firstLineToClear + i).clear();
         }
+        lineLengthsChanged(firstLineToClear, firstLineToClear + height);
         view.repaint();
     }
     
@@ -312,6 +312,7 @@ public class TerminalModel {
         for (TerminalAction action : actions) {
             action.perform(this);
         }
+        compactScrollback();
         if (firstLineChanged != Integer.MAX_VALUE) {
             needsScroll = true;
             view.linesChangedFrom(firstLineChanged);
@@ -326,6 +327,38 @@ public class TerminalModel {
         view.setCursorPosition(cursorPosition);
     }
     
+    /**
+     * Freezes lines that have scrolled well off the top of the screen, and discards the oldest lines if we're over the user's scrollback budget.
+     */
+    private void compactScrollback() {
+        // Leave a chunk's worth of unfrozen lines above the screen, so that growing the window doesn't immediately thaw what we've just frozen.
+        // (Freezing doesn't invalidate any start indexes: the frozen lines' lengths are what they were.)
+        textLines.freezeLinesBefore(getFirstDisplayLine() - TextLineStore.CHUNK_LINE_COUNT);
+        
+        TerminatorPreferences preferences = Terminator.getPreferences();
+        int maxLineCount = preferences.getInt(TerminatorPreferences.SCROLLBACK_LINE_LIMIT);
+        long maxByteCount = preferences.getInt(TerminatorPreferences.SCROLLBACK_MEGABYTE_LIMIT) * 1024L * 1024L;
+        int discardedLineCount = textLines.discardLinesOver(maxLineCount, maxByteCount);
+        if (discardedLineCount == 0) {
+            return;
+        }
+        
+        // Everything that refers to a line by index needs to move up.
+        cursorPosition = getLocationAfterDiscard(cursorPosition, discardedLineCount);
+        savedPosition = getLocationAfterDiscard(savedPosition, discardedLineCount);
+        if (firstLineChanged != Integer.MAX_VALUE) {
+            firstLineChanged = Math.max(0, firstLineChanged - discardedLineCount);
+        }
+        view.linesDiscarded(discardedLineCount);
+    }
+    
+    private static Location getLocationAfterDiscard(Location location, int discardedLineCount) {
+        if (location == null) {
+            return location;
+        }
+        return new Location(Math.max(0, location.getLineIndex() - discardedLineCount), location.getCharOffset());
+    }
+    
     public void setStyle(Style style) {
         this.currentStyle = style;
     }
@@ -350,7 +383,6 @@ public class TerminalModel {
         // Use a private copy of the first display line throughout this method to avoid mutation
         // caused by textLines.add()/textLines.remove().
         final int firstDisplayLine = getFirstDisplayLine();
-        lineIsDirty(firstDisplayLine);
         if (index > firstDisplayLine + lastScrollLineIndex) {
             for (int i = firstDisplayLine + lastScrollLineIndex + 1; i <= index; i++) {
                 textLines.add(i, lineToInsert);
@@ -394,7 +426,6 @@ public class TerminalModel {
     
     public void setSize(int width, int height) {
         this.width = width;
-        lineIsDirty(0);
         if (this.height > height && textLines.size() >= this.height) {
             for (int i = 0; i < (this.height - height); i++) {
                 int lineToRemove = textLines.size() - 1;
@@ -415,6 +446,8 @@ public class TerminalModel {
         while (getFirstDisplayLine() < 0) {
             textLines.add(new TextLine(view.getBackground()));
         }
+        // Lines that are back on the screen might be written to.
+        textLines.thawLinesFrom(getFirstDisplayLine());
         checkInvariant();
     }
     
@@ -443,7 +476,7 @@ public class TerminalModel {
     private void textAdded(int length) {
         TextLine textLine = getTextLine(cursorPosition.getLineIndex());
         updateMaxLineWidth(textLine.length());
-        lineIsDirty(cursorPosition.getLineIndex() + 1);  // cursorPosition's line still has a valid *start* index.
+        lineLengthsChanged(cursorPosition.getLineIndex(), cursorPosition.getLineIndex() + 1);
         linesChangedFrom(cursorPosition.getLineIndex());
         moveCursorHorizontally(length);
     }
@@ -502,7 +535,7 @@ public class TerminalModel {
         int start = cursorPosition.getCharOffset();
         int end = start + count;
         line.killText(start, end);
-        lineIsDirty(cursorPosition.getLineIndex() + 1);  // cursorPosition.y's line still has a valid *start* index.
+        lineLengthsChanged(cursorPosition.getLineIndex(), cursorPosition.getLineIndex() + 1);
         linesChangedFrom(cursorPosition.getLineIndex());
     }
     
@@ -521,7 +554,7 @@ public class TerminalModel {
             int start = fromStart ? 0 : cursorPosition.getCharOffset();
             line.killText(start, oldLineLength);
         }
-        lineIsDirty(cursorPosition.getLineIndex() + 1);  // cursorPosition.y's line still has a valid *start* index.
+        lineLengthsChanged(cursorPosition.getLineIndex(), cursorPosition.getLineIndex() + 1);
         linesChangedFrom(cursorPosition.getLineIndex());
     }
     
@@ -554,7 +587,7 @@ public class TerminalModel {
             // The current position is always erased, hence the + 1.
             line.writeTextAt(0, StringUtilities.nCopies(cursorPosition.getCharOffset() + 1, ' '), currentStyle);
         }
-        lineIsDirty(start + 1);
+        lineLengthsChanged(start, Math.max(endClearing, cursorPosition.getLineIndex() + 1));
         linesChangedFrom(start);
     }
     
@@ -621,7 +654,6 @@ public class TerminalModel {
         int removeIndex = getFirstDisplayLine() + lastScrollLineIndex + 1;
         textLines.add(addIndex, new TextLine(view.getBackground()));
         textLines.remove(removeIndex);
-        lineIsDirty(addIndex);
         linesChangedFrom(addIndex);
         view.repaint();
         checkInvariant();
@@ -633,7 +665,6 @@ public class TerminalModel {
         int addIndex = getFirstDisplayLine() + lastScrollLineIndex + 1;
         textLines.add(addIndex, new TextLine(view.getBackground()));
         textLines.remove(removeIndex);
-        lineIsDirty(removeIndex);
         linesChangedFrom(removeIndex);
         view.repaint();
         checkInvariant();
@@ -643,4 +674,56 @@ public class TerminalModel {
         JTerminalPane terminalPane = (JTerminalPane) SwingUtilities.getAncestorOfClass(JTerminalPane.class, view);
         terminalPane.setTerminalName(newWindowTitle);
     }
+    
+    /**
+     * Measures how the cost of output and of char index lookups grows with the scrollback, which it shouldn't.
+     * This needs a display, because a TerminalModel needs a TerminalView.
+     */
+    public static void main(String[] arguments) throws Exception {
+        final int lineCount = (arguments.length > 0) ? Integer.parseInt(arguments[0]) : 500000;
+        EventQueue.invokeAndWait(new Runnable() {
+            public void run() {
+                benchmark(lineCount);
+            }
+        });
+        System.exit(0);
+    }
+    
+    private static void benchmark(int lineCount) {
+        TerminalView view = new TerminalView();
+        JScrollPane scrollPane = new JScrollPane(view);
+        view.setBirdView(new BirdView(view.getBirdsEye(), scrollPane.getVerticalScrollBar()));
+        view.setTerminalControl(new TerminalControl(null, view.getModel()));
+        TerminalModel model = view.getModel();
+        
+        final int blockLineCount = lineCount / 10;
+        final int lookupCount = 100000;
+        final Random random = new Random(0);
+        for (int block = 0; block < 10; ++block) {
+            long startNs = System.nanoTime();
+            for (int i = 0; i < blockLineCount; i += 100) {
+                final int firstLine = block * blockLineCount + i;
+                model.processActions(new TerminalAction[] { new TerminalAction() {
+                    public void perform(TerminalModel model) {
+                        for (int line = firstLine; line < firstLine + 100; ++line) {
+                            model.processLine("line " + line + " of some output that's about as long as a typical line of compiler output");
+                            model.processSpecialCharacter(Ascii.CR);
+                            model.processSpecialCharacter(Ascii.LF);
+                        }
+                    }
+                }});
+            }
+            long outputNs = System.nanoTime() - startNs;
+            
+            startNs = System.nanoTime();
+            int length = model.length();
+            for (int i = 0; i < lookupCount; ++i) {
+                Location location = model.getLocationFromCharIndex(random.nextInt(length));
+                model.getCharIndexFromLocation(location);
+            }
+            long lookupNs = System.nanoTime() - startNs;
+            
+            System.err.println(model.getLineCount() + " lines: " + (blockLineCount * 1000000000L / outputNs) + " lines/s of output, " + (lookupNs / lookupCount) + " ns per lookup");
+        }
+    }
 }
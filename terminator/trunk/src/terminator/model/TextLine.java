@@ -21,8 +21,6 @@ public class TextLine {
     
     // The default background, used beyond the last character of the line.
     private Color background;
-    // The index in characters into the containing buffer of the first character of this line.
-    private int lineStartIndex;
     
     // The characters on this line.
     // An immutable String may seem like an odd choice, but we've tried StringBuilder too.
@@ -33,16 +31,34 @@ public class TextLine {
     // (If we switched rendering over to AttributedCharacterIterator or something else that didn't require a String, that might change the balance.)
     private String text;
     
-    // The styles to be applied to the characters on this line.
-    // styles == null => all characters use the default style.
-    // Otherwise, styles.length == text.length(), and the style information for text.charAt(i) is styles[i] (never null).
-    private Style[] styles;
+    // The styles to be applied to the characters on this line, as pairs of run end offset and Style id.
+    // styleRuns == null => all characters use the default style.
+    // Otherwise, the runs cover exactly text.length() characters, and no run is empty or has the same style as its neighbor.
+    // We never modify a styleRuns array once it's been assigned, so TextLineStore can share it.
+    // A line of colored output typically has a handful of runs, so this costs a few dozen bytes rather than four or eight bytes per character.
+    private int[] styleRuns;
+    // The styles that styleRuns refers to by negative id (-1 for the first), which are the ones Style doesn't intern.
+    // Null if there aren't any. Like styleRuns, never modified once assigned.
+    private Style[] localStyles;
+    // The index in styleRuns of the run findRun last returned.
+    private int lastRunHint;
     
     public TextLine(Color bg) {
         background = bg;
         clear();
     }
     
+    /**
+     * Recreates a line from the internal representation returned by getRawText, getStyleRuns, and getLocalStyles.
+     * Used by TextLineStore when decoding frozen lines.
+     */
+    TextLine(Color bg, String text, int[] styleRuns, Style[] localStyles) {
+        this.background = bg;
+        this.text = text;
+        this.styleRuns = styleRuns;
+        this.localStyles = localStyles;
+    }
+    
     public Color getBackground() {
         return background;
     }
@@ -51,16 +67,49 @@ public class TextLine {
         background = bg;
     }
     
-    public int getLineStartIndex() {
-        return lineStartIndex;
+    public Style getStyleAt(int index) {
+        if (styleRuns == null) {
+            return Style.getDefaultStyle();
+        }
+        int id = styleRuns[findRun(index) + 1];
+        return (id >= 0) ? Style.forId(id) : localStyles[-1 - id];
     }
     
-    public void setLineStartIndex(int lineStartIndex) {
-        this.lineStartIndex = lineStartIndex;
+    /** Returns the index in styleRuns of the run containing the character at 'index'. */
+    private int findRun(int index) {
+        // Painting asks about each run in turn, so try the run we found last time, and the one after it.
+        // The hint is only ever a hint, so it doesn't matter that other threads might be updating it too.
+        int[] runs = styleRuns;
+        int hint = lastRunHint;
+        for (int i = hint; i <= hint + 2 && i < runs.length; i += 2) {
+            int runStart = (i == 0) ? 0 : runs[i - 2];
+            if (runStart <= index && index < runs[i]) {
+                lastRunHint = i;
+                return i;
+            }
+        }
+        int low = 0;
+        int high = runs.length / 2 - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (runs[2 * mid] <= index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        lastRunHint = 2 * low;
+        return 2 * low;
     }
     
-    public Style getStyleAt(int index) {
-        return (styles == null) ? Style.getDefaultStyle() : styles[index];
+    /** Returns the style runs, for TextLineStore. The result mustn't be modified. */
+    int[] getStyleRuns() {
+        return styleRuns;
+    }
+    
+    /** Returns the styles the style runs refer to by negative id, for TextLineStore. The result mustn't be modified. */
+    Style[] getLocalStyles() {
+        return localStyles;
     }
     
     /**
@@ -79,16 +128,11 @@ public class TextLine {
             throw new AssertionError("start=" + start + " end=" + end + " length()=" + length());
         }
         // If we have no styling, only caller can affect styling of a run.
-        if (styles == null) {
+        if (styleRuns == null) {
             return end;
         }
-        Style toMatch = styles[start];
-        for (int i = start + 1; i < end; i++) {
-            if (!toMatch.equals(styles[i])) {
-                return i;
-            }
-        }
-        return end;
+        // Neighboring runs always have different styles, so the run containing 'start' is as far as we can go.
+        return Math.min(end, styleRuns[findRun(start)]);
     }
     
     /**
@@ -97,11 +141,59 @@ public class TextLine {
      * This isn't called toString because you need to come here and think about whether you want this method or getTabbedString instead.
      */
     public String getString() {
-        return text.replace(TAB_START, ' ').replace(TAB_CONTINUE, ' ');
+        return replaceTabMarkers(text);
+    }
+    
+    /** Returns 'rawText' (as returned by getRawText) with our internal tab markers replaced by spaces. */
+    static String replaceTabMarkers(String rawText) {
+        return rawText.replace(TAB_START, ' ').replace(TAB_CONTINUE, ' ');
+    }
+    
+    /** Returns the text including our internal tab markers, for TextLineStore. */
+    String getRawText() {
+        return text;
     }
     
     public String getSubstring(int beginIndex, int endIndex) {
-        return getString().substring(beginIndex, endIndex);
+        // Only replace the tabs in the part we're returning; painting asks for a line a run at a time.
+        return text.substring(beginIndex, endIndex).replace(TAB_START, ' ').replace(TAB_CONTINUE, ' ');
+    }
+    
+    /**
+     * Returns an object that's equal to the key of any line with the same text, styles, and background, which is everything that affects how a line looks.
+     * The key doesn't change if this line does, so it's suitable for caching what the line looks like.
+     */
+    public Object getContentKey() {
+        return new ContentKey(background, text, styleRuns, localStyles);
+    }
+    
+    private static final class ContentKey {
+        private final Color background;
+        private final String text;
+        // Shared with the line, which is fine because styleRuns arrays are never modified.
+        private final int[] styleRuns;
+        private final Style[] localStyles;
+        private final int hashCode;
+        
+        private ContentKey(Color background, String text, int[] styleRuns, Style[] localStyles) {
+            this.background = background;
+            this.text = text;
+            this.styleRuns = styleRuns;
+            this.localStyles = localStyles;
+            this.hashCode = 31 * (31 * (31 * background.hashCode() + text.hashCode()) + Arrays.hashCode(styleRuns)) + Arrays.hashCode(localStyles);
+        }
+        
+        @Override public int hashCode() {
+            return hashCode;
+        }
+        
+        @Override public boolean equals(Object o) {
+            if (o instanceof ContentKey == false) {
+                return false;
+            }
+            ContentKey other = (ContentKey) o;
+            return hashCode == other.hashCode && text.equals(other.text) && Arrays.equals(styleRuns, other.styleRuns) && Arrays.equals(localStyles, other.localStyles) && background.equals(other.background);
+        }
     }
 
     /** Returns the text, with all the tabs put back in for use with clipboard stuff. */
@@ -160,7 +252,8 @@ public class TextLine {
     
     public void clear() {
         text = "";
-        styles = null;
+        styleRuns = null;
+        localStyles = null;
     }
     
     public void killText(int startIndex, int endIndex) {
@@ -169,7 +262,7 @@ public class TextLine {
         }
         endIndex = Math.min(endIndex, text.length());
         text = text.substring(0, startIndex) + text.substring(endIndex);
-        removeStyleData(startIndex, endIndex);
+        replaceStyleData(startIndex, endIndex, 0, Style.getDefaultStyle());
     }
     
     public void insertTabAt(int offset, int tabLength, Style style) {
@@ -187,18 +280,19 @@ public class TextLine {
     public void insertTextAt(int offset, String newText, Style style) {
         ensureOffsetIsOK(offset);
         text = text.substring(0, offset) + newText + text.substring(offset);
-        insertStyleData(offset, newText.length(), style);
+        replaceStyleData(offset, offset, newText.length(), style);
     }
     
     /** Writes text at the given position, overwriting anything underneath. */
     public void writeTextAt(int offset, String newText, Style style) {
         ensureOffsetIsOK(offset);
+        int oldEnd = Math.min(offset + newText.length(), text.length());
         if (offset + newText.length() < text.length()) {
             text = text.substring(0, offset) + newText + text.substring(offset + newText.length());
         } else {
             text = text.substring(0, offset) + newText;
         }
-        overwriteStyleData(offset, newText.length(), style);
+        replaceStyleData(offset, oldEnd, newText.length(), style);
     }
     
     private void ensureOffsetIsOK(int offset) {
@@ -215,52 +309,98 @@ public class TextLine {
         Arrays.fill(pad, ' ');
         int oldTextLength = text.length();
         text += new String(pad);
-        insertStyleData(oldTextLength, count, Style.getDefaultStyle());
+        replaceStyleData(oldTextLength, oldTextLength, count, Style.getDefaultStyle());
     }
     
-    private void overwriteStyleData(int offset, int count, Style value) {
-        if (styles == null && value.equals(Style.getDefaultStyle())) {
+    /**
+     * Updates the style runs to match a change to the text that replaced the characters from 'start' to 'oldEnd' with 'newLength' characters in the given style.
+     * This is O(runs), and allocates a new array only if the line has (or gains) non-default styling.
+     */
+    private void replaceStyleData(int start, int oldEnd, int newLength, Style style) {
+        int id = style.getId();
+        if (styleRuns == null && (id == 0 || newLength == 0)) {
             return;
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        if (oldStyleData != null) {
-            System.arraycopy(oldStyleData, 0, styles, 0, oldStyleData.length);
+        Style[] styles = localStyles;
+        if (id == Style.UNINTERNED_ID) {
+            int index = (styles != null) ? Arrays.asList(styles).indexOf(style) : -1;
+            if (index == -1) {
+                index = (styles != null) ? styles.length : 0;
+                styles = (styles != null) ? Arrays.copyOf(styles, index + 1) : new Style[1];
+                styles[index] = style;
+            }
+            id = -1 - index;
         }
-        Arrays.fill(styles, offset, offset + count, value);
-    }
-    
-    private void insertStyleData(int offset, int count, Style value) {
-        if (styles == null && value.equals(Style.getDefaultStyle())) {
-            return;
+        int delta = newLength - (oldEnd - start);
+        int[] oldRuns = (styleRuns != null) ? styleRuns : new int[] { text.length() - delta, 0 };
+        // At worst, the change splits a run in two and adds one of its own.
+        int[] newRuns = new int[oldRuns.length + 4];
+        int length = 0;
+        for (int i = 0, runStart = 0; i < oldRuns.length && runStart < start; runStart = oldRuns[i], i += 2) {
+            length = appendRun(newRuns, length, Math.min(oldRuns[i], start), oldRuns[i + 1]);
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        if (oldStyleData != null) {
-            System.arraycopy(oldStyleData, 0, styles, 0, offset);
-            System.arraycopy(oldStyleData, offset, styles, offset + count, oldStyleData.length - offset);
+        if (newLength > 0) {
+            length = appendRun(newRuns, length, start + newLength, id);
+        }
+        for (int i = 0; i < oldRuns.length; i += 2) {
+            if (oldRuns[i] > oldEnd) {
+                length = appendRun(newRuns, length, oldRuns[i] + delta, oldRuns[i + 1]);
+            }
+        }
+        if (length == 0 || (length == 2 && newRuns[1] == 0)) {
+            styleRuns = null;
+            localStyles = null;
+        } else {
+            int[] runs = Arrays.copyOf(newRuns, length);
+            localStyles = (styles != null) ? keepUsedStyles(runs, styles) : null;
+            styleRuns = runs;
         }
-        Arrays.fill(styles, offset, offset + count, value);
     }
     
-    private void removeStyleData(int startIndex, int endIndex) {
-        if (styles == null) {
-            return;
+    /**
+     * Returns the styles in 'styles' that 'runs' still refers to, renumbering the runs' negative ids to match, or null if there aren't any.
+     * Otherwise a line rewritten over and over in ever-changing 24-bit colors would keep every color it had ever had.
+     */
+    private static Style[] keepUsedStyles(int[] runs, Style[] styles) {
+        // The new id for each old index, or 0 if it's not used.
+        int[] newIds = new int[styles.length];
+        int count = 0;
+        for (int i = 1; i < runs.length; i += 2) {
+            if (runs[i] < 0) {
+                int index = -1 - runs[i];
+                if (newIds[index] == 0) {
+                    newIds[index] = -1 - count++;
+                }
+                runs[i] = newIds[index];
+            }
+        }
+        if (count == 0) {
+            return null;
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        // insert and overwrite can get here when oldStyleData is null, but remove can't.
-        System.arraycopy(oldStyleData, 0, styles, 0, startIndex);
-        System.arraycopy(oldStyleData, endIndex, styles, startIndex, oldStyleData.length - endIndex);
+        Style[] usedStyles = new Style[count];
+        for (int i = 0; i < styles.length; ++i) {
+            if (newIds[i] != 0) {
+                usedStyles[-1 - newIds[i]] = styles[i];
+            }
+        }
+        return usedStyles;
     }
     
     /**
-     * Ensures that the "styles" array is the right size for the current "text".
-     * You should only call this if you know that the line requires non-default styling.
+     * Appends a run ending at 'end' to 'runs', ignoring it if it's empty and merging it with the previous run if it has the same style.
+     * Returns the new length.
      */
-    private Style[] maybeResizeStyleData() {
-        Style[] oldStyleData = styles;
-        if (styles == null || styles.length != text.length()) {
-            styles = new Style[text.length()];
-            Arrays.fill(styles, 0, styles.length, Style.getDefaultStyle());
+    private static int appendRun(int[] runs, int length, int end, int id) {
+        int previousEnd = (length > 0) ? runs[length - 2] : 0;
+        if (end <= previousEnd) {
+            return length;
+        }
+        if (length > 0 && runs[length - 1] == id) {
+            runs[length - 2] = end;
+            return length;
         }
-        return oldStyleData;
+        runs[length] = end;
+        runs[length + 1] = id;
+        return length + 2;
     }
 }
@@ -0,0 +1,474 @@
+package terminator.model;
+
+import java.awt.Color;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.zip.*;
+import e.util.*;
+import org.jessies.test.*;
+
+/**
+ * Holds a terminal's lines, from the oldest line of scrollback to the bottom of the screen.
+ * 
+ * The most recent lines (the screen, and a little history above it) are ordinary mutable TextLines.
+ * Older lines can't change, so TerminalModel asks us to freeze them into chunks of CHUNK_LINE_COUNT lines.
+ * A chunk keeps its text as UTF-8, deflated if that helps, and its lines' style runs concatenated into a single array.
+ * A live line costs around two bytes per character plus its String and style runs; a frozen chunk of typical output costs less than one byte per character.
+ * 
+ * Frozen lines are decoded on demand (for painting, finding, and selection) into fresh TextLines.
+ * Modifying those has no effect, but the terminal only ever writes to lines on the screen, which are never frozen.
+ * Anything that changes a frozen line thaws it (and everything after it) first.
+ * 
+ * The oldest chunks can be discarded to keep within a line or byte budget; see discardLinesOver.
+ * 
+ * We also map between line indexes and char indexes in O(log n) either way: frozen lines know their start indexes, and the live lines' lengths are kept in a FenwickTree.
+ * The live lines' TextLines can change length behind our back, so TerminalModel has to tell us with lineLengthsChanged.
+ */
+final class TextLineStore {
+    static final int CHUNK_LINE_COUNT = 256;
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    // How many decoded chunks to keep.
+    // Painting touches at most a couple of adjacent chunks, and finding walks them in order, so we don't need many.
+    private static final int DECODED_CHUNK_CACHE_SIZE = 4;
+    
+    // Every chunk has exactly CHUNK_LINE_COUNT lines, so the chunk for a line is a simple division.
+    private final ArrayList<FrozenChunk> chunks = new ArrayList<FrozenChunk>();
+    private final ArrayList<TextLine> liveLines = new ArrayList<TextLine>();
+    // The length (including the newline) of each live line, or null if we need to rebuild it.
+    // Appending a line or changing one's length is O(log n), but anything else means an O(n) rebuild; n is only the number of live lines, though, and it's rare for output to do anything but append.
+    private FenwickTree liveLineLengths;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    
+    // Char indexes into everything we've ever frozen, so that discarding chunks doesn't mean rewriting the rest.
+    // These are longs because a long-lived terminal can easily see more than 2GiB of output, even if it only retains a little.
+    private long discardedCharCount;
+    private long frozenEndCharIndex;
+    private long frozenByteCount;
+    
+    private final FrozenChunk[] decodedChunks = new FrozenChunk[DECODED_CHUNK_CACHE_SIZE];
+    private final TextLine[][] decodedLines = new TextLine[DECODED_CHUNK_CACHE_SIZE][];
+    private int nextDecodedSlot;
+    
+    public int size() {
+        return getFrozenLineCount() + liveLines.size();
+    }
+    
+    public TextLine get(int index) {
+        int frozenLineCount = getFrozenLineCount();
+        if (index >= frozenLineCount) {
+            return liveLines.get(index - frozenLineCount);
+        }
+        FrozenChunk chunk = chunks.get(index / CHUNK_LINE_COUNT);
+        return getDecodedLines(chunk)[index % CHUNK_LINE_COUNT];
+    }
+    
+    public void set(int index, TextLine line) {
+        thawLinesFrom(index);
+        liveLines.set(index - getFrozenLineCount(), line);
+        lineLengthsChanged(index, index + 1);
+    }
+    
+    public void add(TextLine line) {
+        liveLines.add(line);
+        if (liveLineLengths != null) {
+            liveLineLengths.append(line.lengthIncludingNewline());
+        }
+    }
+    
+    public void add(int index, TextLine line) {
+        if (index == size()) {
+            add(line);
+            return;
+        }
+        thawLinesFrom(index);
+        liveLines.add(index - getFrozenLineCount(), line);
+        liveLineLengths = null;
+    }
+    
+    public void remove(int index) {
+        thawLinesFrom(index);
+        liveLines.remove(index - getFrozenLineCount());
+        liveLineLengths = null;
+    }
+    
+    /** Tells us that the lengths of the live lines from 'fromIndex' up to but not including 'toIndex' may have changed. */
+    public void lineLengthsChanged(int fromIndex, int toIndex) {
+        if (liveLineLengths == null) {
+            return;
+        }
+        int frozenLineCount = getFrozenLineCount();
+        for (int i = Math.max(fromIndex, frozenLineCount) - frozenLineCount; i < toIndex - frozenLineCount && i < liveLines.size(); ++i) {
+            int delta = liveLines.get(i).lengthIncludingNewline() - liveLineLengths.get(i);
+            if (delta != 0) {
+                liveLineLengths.add(i, delta);
+            }
+        }
+    }
+    
+    private FenwickTree getLiveLineLengths() {
+        if (liveLineLengths == null) {
+            int[] lengths = new int[liveLines.size()];
+            for (int i = 0; i < lengths.length; ++i) {
+                lengths[i] = liveLines.get(i).lengthIncludingNewline();
+            }
+            liveLineLengths = new FenwickTree(lengths, lengths.length);
+        }
+        return liveLineLengths;
+    }
+    
+    /** Returns the char index of the start of the indexed line. */
+    public int getLineStartIndex(int index) {
+        int frozenLineCount = getFrozenLineCount();
+        if (index < frozenLineCount) {
+            return getFrozenLineStartIndex(index);
+        }
+        return getFrozenCharCount() + getLiveLineLengths().prefixSum(index - frozenLineCount);
+    }
+    
+    /**
+     * Returns the index of the line containing the given char index (where each line's newline counts as part of that line).
+     * Char indexes before the start or after the end are treated as being in the first or last line respectively.
+     */
+    public int getLineIndexAt(int charIndex) {
+        int frozenCharCount = getFrozenCharCount();
+        if (charIndex >= frozenCharCount || chunks.isEmpty()) {
+            int liveIndex = getLiveLineLengths().indexOf(Math.max(0, charIndex - frozenCharCount));
+            return getFrozenLineCount() + Math.min(liveIndex, liveLines.size() - 1);
+        }
+        // Find the last chunk starting at or before the char index, and then the line within it.
+        long absoluteCharIndex = discardedCharCount + Math.max(0, charIndex);
+        int lowChunk = 0;
+        int highChunk = chunks.size();
+        while (highChunk - lowChunk > 1) {
+            int midChunk = (lowChunk + highChunk) / 2;
+            if (chunks.get(midChunk).firstCharIndex <= absoluteCharIndex) {
+                lowChunk = midChunk;
+            } else {
+                highChunk = midChunk;
+            }
+        }
+        FrozenChunk chunk = chunks.get(lowChunk);
+        int i = Arrays.binarySearch(chunk.lineStarts, (int) (absoluteCharIndex - chunk.firstCharIndex));
+        int lineInChunk = (i >= 0) ? i : -i - 2;
+        return lowChunk * CHUNK_LINE_COUNT + lineInChunk;
+    }
+    
+    public int getFrozenLineCount() {
+        return chunks.size() * CHUNK_LINE_COUNT;
+    }
+    
+    /** Returns the number of chars (including newlines) in the frozen lines, which is also the start index of the first live line. */
+    public int getFrozenCharCount() {
+        return (int) (frozenEndCharIndex - discardedCharCount);
+    }
+    
+    /** Returns the start index of a frozen line, which can't go stale because frozen lines can't change. */
+    public int getFrozenLineStartIndex(int index) {
+        FrozenChunk chunk = chunks.get(index / CHUNK_LINE_COUNT);
+        return (int) (chunk.firstCharIndex - discardedCharCount) + chunk.lineStarts[index % CHUNK_LINE_COUNT];
+    }
+    
+    /**
+     * Returns a snapshot of every line's text, for searching on another thread.
+     * This is O(n) in the number of chunks and live lines, but doesn't copy any text.
+     */
+    public TextSnapshot getSnapshot() {
+        String[] liveLineTexts = new String[liveLines.size()];
+        for (int i = 0; i < liveLineTexts.length; ++i) {
+            liveLineTexts[i] = liveLines.get(i).getRawText();
+        }
+        return new TextSnapshot(chunks.toArray(new FrozenChunk[chunks.size()]), liveLineTexts);
+    }
+    
+    /** Returns an estimate of the memory used by frozen lines. */
+    public long getFrozenByteCount() {
+        return frozenByteCount;
+    }
+    
+    /** Freezes as many whole chunks as possible from the lines before the given index. */
+    public void freezeLinesBefore(int lineIndex) {
+        while (getFrozenLineCount() + CHUNK_LINE_COUNT <= lineIndex) {
+            List<TextLine> lines = liveLines.subList(0, CHUNK_LINE_COUNT);
+            FrozenChunk chunk = new FrozenChunk(lines, frozenEndCharIndex, deflater);
+            chunks.add(chunk);
+            frozenEndCharIndex += chunk.lineStarts[CHUNK_LINE_COUNT];
+            frozenByteCount += chunk.getByteCount();
+            lines.clear();
+            liveLineLengths = null;
+        }
+    }
+    
+    /** Thaws chunks until the line at the given index is live. */
+    public void thawLinesFrom(int lineIndex) {
+        while (lineIndex < getFrozenLineCount()) {
+            FrozenChunk chunk = chunks.remove(chunks.size() - 1);
+            // Don't use getDecodedLines: these lines are about to become mutable, so they mustn't be shared with the cache.
+            liveLines.addAll(0, Arrays.asList(chunk.decode()));
+            frozenEndCharIndex = chunk.firstCharIndex;
+            frozenByteCount -= chunk.getByteCount();
+            liveLineLengths = null;
+        }
+    }
+    
+    /**
+     * Discards the oldest chunks while there would still be at least maxLineCount lines left, and while the frozen lines use more than maxByteCount bytes.
+     * A limit of zero or less means no limit.
+     * Returns the number of lines discarded, all of which came from the start.
+     */
+    public int discardLinesOver(int maxLineCount, long maxByteCount) {
+        int discardedLineCount = 0;
+        while (chunks.isEmpty() == false) {
+            boolean overLineCount = (maxLineCount > 0 && size() - CHUNK_LINE_COUNT >= maxLineCount);
+            boolean overByteCount = (maxByteCount > 0 && frozenByteCount > maxByteCount);
+            if (overLineCount == false && overByteCount == false) {
+                break;
+            }
+            FrozenChunk chunk = chunks.remove(0);
+            discardedCharCount = chunk.firstCharIndex + chunk.lineStarts[CHUNK_LINE_COUNT];
+            frozenByteCount -= chunk.getByteCount();
+            discardedLineCount += CHUNK_LINE_COUNT;
+        }
+        return discardedLineCount;
+    }
+    
+    // Painting happens on the EDT while finding happens on a background thread, so access to the cache is synchronized.
+    // We don't hold the lock while decoding.
+    private TextLine[] getDecodedLines(FrozenChunk chunk) {
+        synchronized (decodedChunks) {
+            for (int i = 0; i < decodedChunks.length; ++i) {
+                if (decodedChunks[i] == chunk) {
+                    return decodedLines[i];
+                }
+            }
+        }
+        TextLine[] lines = chunk.decode();
+        synchronized (decodedChunks) {
+            decodedChunks[nextDecodedSlot] = chunk;
+            decodedLines[nextDecodedSlot] = lines;
+            nextDecodedSlot = (nextDecodedSlot + 1) % decodedChunks.length;
+        }
+        return lines;
+    }
+    
+    // TextSnapshot holds on to these, and uses lineStarts and getText from another thread, which is safe because they never change.
+    static final class FrozenChunk {
+        // The absolute char index of our first line.
+        private final long firstCharIndex;
+        // The char index of each line relative to firstCharIndex, counting newlines, plus a final entry for the end of the last line.
+        final int[] lineStarts;
+        
+        // All our lines' text, concatenated, as UTF-8.
+        private final byte[] textBytes;
+        private final int utf8ByteCount;
+        private final boolean isDeflated;
+        
+        // For each line, its background's index into 'backgrounds', and the number of runs it has in 'runs'.
+        // A line with no runs uses the default style throughout.
+        private final int[] lineInfo;
+        // Each line's TextLine.getStyleRuns, concatenated, with negative ids renumbered to index 'styles' instead of each line's own TextLine.getLocalStyles.
+        private final int[] runs;
+        private final Color[] backgrounds;
+        // The styles that aren't interned, or null if no line uses any.
+        private final Style[] styles;
+        
+        FrozenChunk(List<TextLine> lines, long firstCharIndex, Deflater deflater) {
+            this.firstCharIndex = firstCharIndex;
+            this.lineStarts = new int[lines.size() + 1];
+            this.lineInfo = new int[2 * lines.size()];
+            
+            StringBuilder text = new StringBuilder();
+            Map<Color, Integer> backgroundIndexes = new LinkedHashMap<Color, Integer>();
+            Map<Style, Integer> styleIndexes = new LinkedHashMap<Style, Integer>();
+            int[] runs = new int[2 * lines.size()];
+            int runsLength = 0;
+            for (int i = 0; i < lines.size(); ++i) {
+                TextLine line = lines.get(i);
+                String lineText = line.getRawText();
+                text.append(lineText);
+                int length = lineText.length();
+                lineStarts[i + 1] = lineStarts[i] + length + 1;
+                
+                int[] lineRuns = line.getStyleRuns();
+                int runCount = (lineRuns != null) ? lineRuns.length / 2 : 0;
+                if (runsLength + 2 * runCount > runs.length) {
+                    runs = Arrays.copyOf(runs, Math.max(2 * runs.length, runsLength + 2 * runCount));
+                }
+                if (runCount > 0) {
+                    System.arraycopy(lineRuns, 0, runs, runsLength, lineRuns.length);
+                    Style[] localStyles = line.getLocalStyles();
+                    for (int j = runsLength + 1; localStyles != null && j < runsLength + lineRuns.length; j += 2) {
+                        if (runs[j] < 0) {
+                            runs[j] = -1 - indexOf(styleIndexes, localStyles[-1 - runs[j]]);
+                        }
+                    }
+                    runsLength += lineRuns.length;
+                }
+                lineInfo[2 * i] = indexOf(backgroundIndexes, line.getBackground());
+                lineInfo[2 * i + 1] = runCount;
+            }
+            this.runs = Arrays.copyOf(runs, runsLength);
+            this.backgrounds = backgroundIndexes.keySet().toArray(new Color[backgroundIndexes.size()]);
+            this.styles = styleIndexes.isEmpty() ? null : styleIndexes.keySet().toArray(new Style[styleIndexes.size()]);
+            
+            byte[] utf8 = text.toString().getBytes(UTF_8);
+            this.utf8ByteCount = utf8.length;
+            byte[] deflated = deflate(deflater, utf8);
+            // Deflating a few hundred lines of ordinary output typically saves 70-90%, but there's no point paying to inflate something that hasn't shrunk much.
+            this.isDeflated = (deflated != null);
+            this.textBytes = isDeflated ? deflated : utf8;
+        }
+        
+        private static <T> int indexOf(Map<T, Integer> indexes, T value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = indexes.size();
+                indexes.put(value, index);
+            }
+            return index;
+        }
+        
+        /** Returns the deflated form of 'bytes', or null if it wouldn't be at least an eighth smaller. */
+        private static byte[] deflate(Deflater deflater, byte[] bytes) {
+            int maxLength = bytes.length - bytes.length / 8;
+            byte[] buffer = new byte[maxLength];
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            int length = deflater.deflate(buffer);
+            if (deflater.finished() == false) {
+                return null;
+            }
+            return Arrays.copyOf(buffer, length);
+        }
+        
+        String getText() {
+            if (isDeflated == false) {
+                return new String(textBytes, UTF_8);
+            }
+            byte[] utf8 = new byte[utf8ByteCount];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(textBytes);
+                inflater.inflate(utf8);
+            } catch (DataFormatException ex) {
+                // We wrote this data ourselves, so this can't happen.
+                throw new RuntimeException(ex);
+            } finally {
+                inflater.end();
+            }
+            return new String(utf8, UTF_8);
+        }
+        
+        /** Returns new TextLines equivalent to the ones we were constructed from. */
+        TextLine[] decode() {
+            String text = getText();
+            TextLine[] lines = new TextLine[lineStarts.length - 1];
+            int textOffset = 0;
+            int runOffset = 0;
+            for (int i = 0; i < lines.length; ++i) {
+                int length = lineStarts[i + 1] - lineStarts[i] - 1;
+                int[] lineRuns = null;
+                Style[] lineStyles = null;
+                int runCount = lineInfo[2 * i + 1];
+                if (runCount > 0) {
+                    lineRuns = Arrays.copyOfRange(runs, runOffset, runOffset + 2 * runCount);
+                    runOffset += 2 * runCount;
+                    // Lines from the same chunk share its table, which is never modified, and the next edit to a line leaves it with just the styles it uses.
+                    for (int j = 1; styles != null && lineStyles == null && j < lineRuns.length; j += 2) {
+                        if (lineRuns[j] < 0) {
+                            lineStyles = styles;
+                        }
+                    }
+                }
+                lines[i] = new TextLine(backgrounds[lineInfo[2 * i]], text.substring(textOffset, textOffset + length), lineRuns, lineStyles);
+                textOffset += length;
+            }
+            return lines;
+        }
+        
+        /** Returns an estimate of how much memory we're using. */
+        long getByteCount() {
+            // Our own fields, plus array headers.
+            final long overhead = 96;
+            return overhead + textBytes.length + 4L * (lineStarts.length + lineInfo.length + runs.length) + 32L * backgrounds.length + ((styles != null) ? 48L * styles.length : 0);
+        }
+    }
+    
+    private static TextLineStore makeStore(int lineCount) {
+        TextLineStore store = new TextLineStore();
+        for (int i = 0; i < lineCount; ++i) {
+            TextLine line = new TextLine(Color.WHITE);
+            line.insertTextAt(0, "line " + i, Style.getDefaultStyle());
+            store.add(line);
+        }
+        return store;
+    }
+    
+    @Test private static void testFreezeAndThaw() {
+        TextLineStore store = makeStore(2 * CHUNK_LINE_COUNT + 10);
+        // Only whole chunks are frozen.
+        store.freezeLinesBefore(2 * CHUNK_LINE_COUNT + 5);
+        Assert.equals(store.getFrozenLineCount(), 2 * CHUNK_LINE_COUNT);
+        Assert.equals(store.size(), 2 * CHUNK_LINE_COUNT + 10);
+        Assert.equals(store.get(0).getString(), "line 0");
+        Assert.equals(store.get(CHUNK_LINE_COUNT + 3).getString(), "line " + (CHUNK_LINE_COUNT + 3));
+        Assert.equals(store.get(2 * CHUNK_LINE_COUNT).getString(), "line " + (2 * CHUNK_LINE_COUNT));
+        Assert.equals(store.getFrozenByteCount() > 0, true);
+        
+        // Changing a frozen line thaws its chunk and every later one.
+        TextLine line = new TextLine(Color.WHITE);
+        line.insertTextAt(0, "changed", Style.getDefaultStyle());
+        store.set(CHUNK_LINE_COUNT + 3, line);
+        Assert.equals(store.getFrozenLineCount(), CHUNK_LINE_COUNT);
+        Assert.equals(store.get(CHUNK_LINE_COUNT + 3).getString(), "changed");
+        Assert.equals(store.get(CHUNK_LINE_COUNT + 4).getString(), "line " + (CHUNK_LINE_COUNT + 4));
+        Assert.equals(store.get(CHUNK_LINE_COUNT - 1).getString(), "line " + (CHUNK_LINE_COUNT - 1));
+        
+        // Discarding keeps at least the requested number of lines, a chunk at a time.
+        Assert.equals(store.discardLinesOver(store.size() - CHUNK_LINE_COUNT + 1, 0), 0);
+        Assert.equals(store.discardLinesOver(store.size() - CHUNK_LINE_COUNT, 0), CHUNK_LINE_COUNT);
+        Assert.equals(store.getFrozenLineCount(), 0);
+        Assert.equals(store.getFrozenByteCount(), 0L);
+        Assert.equals(store.get(0).getString(), "line " + CHUNK_LINE_COUNT);
+    }
+    
+    /** Checks every line's start index, and that the chars from there to the end of its newline map back to it. */
+    private static void checkLineStarts(TextLineStore store) {
+        int start = 0;
+        for (int i = 0; i < store.size(); ++i) {
+            Assert.equals(store.getLineStartIndex(i), start);
+            Assert.equals(store.getLineIndexAt(start), i);
+            start += store.get(i).lengthIncludingNewline();
+            Assert.equals(store.getLineIndexAt(start - 1), i);
+        }
+        // Indexes off either end belong to the first or last line.
+        Assert.equals(store.getLineIndexAt(-1), 0);
+        Assert.equals(store.getLineIndexAt(start + 100), store.size() - 1);
+    }
+    
+    @Test private static void testLineStarts() {
+        TextLineStore store = makeStore(CHUNK_LINE_COUNT + 20);
+        checkLineStarts(store);
+        store.freezeLinesBefore(CHUNK_LINE_COUNT);
+        checkLineStarts(store);
+        
+        // A live line that grows behind our back, once we're told.
+        store.get(CHUNK_LINE_COUNT + 2).insertTextAt(0, "longer ", Style.getDefaultStyle());
+        store.lineLengthsChanged(CHUNK_LINE_COUNT + 2, CHUNK_LINE_COUNT + 3);
+        checkLineStarts(store);
+        
+        // Appending keeps the live lines' lengths up to date; inserting and removing rebuild them.
+        store.add(new TextLine(Color.WHITE));
+        checkLineStarts(store);
+        store.add(CHUNK_LINE_COUNT + 1, new TextLine(Color.WHITE));
+        store.remove(CHUNK_LINE_COUNT + 5);
+        checkLineStarts(store);
+        
+        // Discarding the frozen chunk moves every index down by its length.
+        Assert.equals(store.discardLinesOver(1, 0), CHUNK_LINE_COUNT);
+        Assert.equals(store.getFrozenCharCount(), 0);
+        checkLineStarts(store);
+    }
+}
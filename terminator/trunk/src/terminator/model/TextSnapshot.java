@@ -0,0 +1,93 @@
+package terminator.model;
+
+/**
+ * The text of all of a terminal's lines at some moment, for searching on another thread while the terminal carries on.
+ * See TerminalModel.getTextSnapshot.
+ * 
+ * The lines are divided into blocks: one for each of TextLineStore's frozen chunks, and a final one for the live lines.
+ * A block's text is only decoded when it's asked for, so a search that stops early doesn't pay to decode the whole scrollback.
+ * 
+ * Line indexes are as they were when the snapshot was taken.
+ * If the model has since discarded lines of scrollback, the caller needs to allow for that.
+ */
+public final class TextSnapshot {
+    private final TextLineStore.FrozenChunk[] chunks;
+    private final String[] liveLineTexts;
+    
+    TextSnapshot(TextLineStore.FrozenChunk[] chunks, String[] liveLineTexts) {
+        this.chunks = chunks;
+        this.liveLineTexts = liveLineTexts;
+    }
+    
+    public int getLineCount() {
+        return chunks.length * TextLineStore.CHUNK_LINE_COUNT + liveLineTexts.length;
+    }
+    
+    public int getBlockCount() {
+        return chunks.length + 1;
+    }
+    
+    /** Returns the index of the block containing the given line. */
+    public int getBlockIndex(int lineIndex) {
+        return Math.min(lineIndex / TextLineStore.CHUNK_LINE_COUNT, chunks.length);
+    }
+    
+    /** Decodes the indexed block. */
+    public Block getBlock(int blockIndex) {
+        int firstLineIndex = blockIndex * TextLineStore.CHUNK_LINE_COUNT;
+        if (blockIndex == chunks.length) {
+            StringBuilder text = new StringBuilder();
+            int[] lineStarts = new int[liveLineTexts.length + 1];
+            for (int i = 0; i < liveLineTexts.length; ++i) {
+                text.append(liveLineTexts[i]);
+                lineStarts[i + 1] = text.length();
+            }
+            return new Block(firstLineIndex, TextLine.replaceTabMarkers(text.toString()), lineStarts);
+        }
+        // A chunk's line starts count the newlines, which its text doesn't include.
+        TextLineStore.FrozenChunk chunk = chunks[blockIndex];
+        int[] lineStarts = new int[chunk.lineStarts.length];
+        for (int i = 0; i < lineStarts.length; ++i) {
+            lineStarts[i] = chunk.lineStarts[i] - i;
+        }
+        return new Block(firstLineIndex, TextLine.replaceTabMarkers(chunk.getText()), lineStarts);
+    }
+    
+    /**
+     * The text of a run of consecutive lines, concatenated without newlines.
+     * Use getLineStart and getLineEnd to find a line's text, as a region for a Matcher, say, rather than allocating a String for each line.
+     */
+    public static final class Block {
+        private final int firstLineIndex;
+        private final String text;
+        private final int[] lineStarts;
+        
+        private Block(int firstLineIndex, String text, int[] lineStarts) {
+            this.firstLineIndex = firstLineIndex;
+            this.text = text;
+            this.lineStarts = lineStarts;
+        }
+        
+        public int getFirstLineIndex() {
+            return firstLineIndex;
+        }
+        
+        public int getLineCount() {
+            return lineStarts.length - 1;
+        }
+        
+        public String getText() {
+            return text;
+        }
+        
+        /** Returns the offset in getText of the start of the i'th line of this block. */
+        public int getLineStart(int i) {
+            return lineStarts[i];
+        }
+        
+        /** Returns the offset in getText of the end of the i'th line of this block. */
+        public int getLineEnd(int i) {
+            return lineStarts[i + 1];
+        }
+    }
+}
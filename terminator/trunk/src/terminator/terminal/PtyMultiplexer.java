@@ -0,0 +1,197 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import org.jessies.os.*;
+
+/**
+ * Waits for output from all our children on one thread, using poll(2), instead of having a thread per terminal blocked in read(2).
+ * (On Mac OS, whose poll(2) doesn't work on ptys, Posix.poll uses select(2) instead.)
+ * However many terminals are open, that's one thread, and no per-terminal thread stacks.
+ * 
+ * When a pty has output, its Client reads it on our thread, so clients mustn't block.
+ * A client whose output is arriving faster than it can be dealt with should pause its Registration instead; we stop polling its fd until it's resumed.
+ * The child then blocks in write(2) once the pty's buffer is full, just as it did when the client used to block in its own thread, but nobody else's output is held up.
+ * 
+ * Changes to what we're polling (and resumptions) are passed to our thread by writing a byte to a pipe that's always in the set of polled fds.
+ */
+final class PtyMultiplexer {
+    private static PtyMultiplexer instance;
+    
+    /** Receives readiness notifications on the multiplexer thread. */
+    interface Client {
+        /**
+         * Reads (once, so as not to block) from the client's fd, which poll says is readable or has hung up.
+         * Returns false if the client has reached the end of its input, in which case its registration is cancelled.
+         */
+        boolean handleInput() throws IOException;
+        
+        /** Called, on the multiplexer thread, after the client's registration has been cancelled because handleInput returned false or threw. */
+        void handleEndOfInput();
+    }
+    
+    /** Lets a client pause and resume notifications for its fd. */
+    final class Registration {
+        private final int fd;
+        private final Client client;
+        // Guarded by 'lock'.
+        private boolean isPaused = false;
+        
+        private Registration(int fd, Client client) {
+            this.fd = fd;
+            this.client = client;
+        }
+        
+        /** Stops polling our fd until setPaused(false) is called. */
+        void setPaused(boolean shouldPause) {
+            synchronized (lock) {
+                if (isPaused == shouldPause) {
+                    return;
+                }
+                isPaused = shouldPause;
+            }
+            // Only resumptions need the multiplexer's attention; it'll notice a pause (which is usually its own thread's doing) next time round anyway.
+            if (shouldPause == false) {
+                wakeUp();
+            }
+        }
+    }
+    
+    private final Object lock = new Object();
+    // Guarded by 'lock'.
+    private final ArrayList<Registration> registrations = new ArrayList<Registration>();
+    private boolean isWakeUpPending = false;
+    
+    // The read end of the pipe is always polled, and writing to the write end wakes us up.
+    private final int[] wakeUpPipe = new int[2];
+    private final byte[] wakeUpBytes = new byte[64];
+    
+    // Only used on our thread, and reused for every poll, which is what poll(2)'s parallel arrays are for.
+    private int[] fds = new int[16];
+    private int[] events = new int[16];
+    private int[] revents = new int[16];
+    private Registration[] polledRegistrations = new Registration[16];
+    
+    static synchronized PtyMultiplexer getSharedInstance() {
+        if (instance == null) {
+            instance = new PtyMultiplexer();
+        }
+        return instance;
+    }
+    
+    private PtyMultiplexer() {
+        int rc = Posix.pipe(wakeUpPipe);
+        if (rc < 0) {
+            throw new RuntimeException("pipe() failed: " + Errno.toString(-rc));
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                multiplex();
+            }
+        }, "PTY Reader");
+        // Like our other worker threads, this shouldn't keep the VM alive.
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /** Starts notifying 'client' whenever 'fd' is readable. */
+    Registration register(int fd, Client client) {
+        Registration registration = new Registration(fd, client);
+        synchronized (lock) {
+            registrations.add(registration);
+        }
+        wakeUp();
+        return registration;
+    }
+    
+    private void wakeUp() {
+        synchronized (lock) {
+            if (isWakeUpPending) {
+                return;
+            }
+            isWakeUpPending = true;
+        }
+        int rc;
+        while ((rc = Posix.write(wakeUpPipe[1], wakeUpBytes, 0, 1)) == -Errno.EINTR) {
+        }
+        if (rc < 0) {
+            Log.warn("Couldn't wake PTY reader: " + Errno.toString(-rc));
+        }
+    }
+    
+    private void multiplex() {
+        while (true) {
+            int count = collectPolledFds();
+            int rc = Posix.poll(fds, events, revents, count, -1);
+            if (rc == -Errno.EINTR) {
+                continue;
+            }
+            if (rc < 0) {
+                // This can't happen unless we've got our arrays wrong, and retrying won't help.
+                Log.warn("poll() failed: " + Errno.toString(-rc) + "; no more terminal output will be read.");
+                return;
+            }
+            if (revents[0] != 0) {
+                // We've been woken up; collectPolledFds will see whatever changed.
+                Posix.read(wakeUpPipe[0], wakeUpBytes, 0, wakeUpBytes.length);
+            }
+            for (int i = 1; i < count; ++i) {
+                if (revents[i] != 0) {
+                    handleInput(polledRegistrations[i], revents[i]);
+                }
+                // Don't keep a dead registration reachable until the next time this slot's reused.
+                polledRegistrations[i] = null;
+            }
+        }
+    }
+    
+    /** Fills in the arrays we pass to poll, returning how many fds to poll. */
+    private int collectPolledFds() {
+        synchronized (lock) {
+            // Clearing this at the same time as we look at what needs polling means a change made after this will wake us up again.
+            isWakeUpPending = false;
+            int capacity = registrations.size() + 1;
+            if (capacity > fds.length) {
+                int newLength = Math.max(capacity, 2 * fds.length);
+                fds = new int[newLength];
+                events = new int[newLength];
+                revents = new int[newLength];
+                polledRegistrations = new Registration[newLength];
+            }
+            fds[0] = wakeUpPipe[0];
+            events[0] = Posix.POLLIN;
+            int count = 1;
+            for (Registration registration : registrations) {
+                if (registration.isPaused == false) {
+                    fds[count] = registration.fd;
+                    events[count] = Posix.POLLIN;
+                    polledRegistrations[count] = registration;
+                    ++count;
+                }
+            }
+            return count;
+        }
+    }
+    
+    private void handleInput(Registration registration, int revent) {
+        boolean isStillOpen = false;
+        try {
+            // If the fd's been closed behind our back, there's nothing to read, and reading would only find another fd that reused its number.
+            isStillOpen = (revent & Posix.POLLNVAL) == 0 && registration.client.handleInput();
+        } catch (Throwable th) {
+            Log.warn("Problem handling input from fd " + registration.fd, th);
+        }
+        if (isStillOpen) {
+            return;
+        }
+        synchronized (lock) {
+            registrations.remove(registration);
+        }
+        try {
+            registration.client.handleEndOfInput();
+        } catch (Throwable th) {
+            Log.warn("Problem handling end of input from fd " + registration.fd, th);
+        }
+    }
+}
@@ -80,7 +80,13 @@ public class PtyProcess {
     private InputStream inStream;
     private OutputStream outStream;
     
-    private final ExecutorService executorService = ThreadUtilities.newSingleThreadExecutor("Child Forker/Reaper");
+    // Shared by all our children, so we don't need a thread per terminal; see invoke for why forking and reaping need to be on the same thread.
+    // Nothing run on it may block indefinitely, because that would stop us starting new terminals; reaping polls instead (see Reaper).
+    private static final ScheduledExecutorService childForkerAndReaper = ThreadUtilities.newSingleThreadScheduledExecutor("Child Forker/Reaper");
+    
+    // How long we wait before polling for an exit status again; we back off exponentially from the minimum, because most children have exited by the time we ask.
+    private static final long MIN_REAP_DELAY_MS = 1;
+    private static final long MAX_REAP_DELAY_MS = 1000;
     
     private static boolean libraryLoaded = false;
     
@@ -160,22 +166,6 @@ public class PtyProcess {
     }
     
     public void waitFor() throws Exception {
-        invoke(new Callable<Exception>() {
-            public Exception call() {
-                try {
-                    waitFor0();
-                    return null;
-                } catch (Exception ex) {
-                    return ex;
-                }
-            }
-        });
-        executorService.shutdownNow();
-    }
-    
-    private void waitFor0() throws IOException {
-        // FIXME: rewrite this to be more like the JDK's Process.waitFor, both in behavior and implementation.
-        
         // We now have no further use for the fd connecting us to the child, which has probably exited.
         // Even if it hasn't, we're no longer reading its output, which may cause the child to block in the kernel,
         // preventing it from terminating, even if root sends it SIGKILL.
@@ -183,15 +173,55 @@ public class PtyProcess {
         Posix.close(fd);
         fd = -1;
         
-        // Loop until waitpid(2) returns a status or a real error.
+        Reaper reaper = new Reaper();
+        childForkerAndReaper.execute(reaper);
+        reaper.await();
+    }
+    
+    /**
+     * Polls for our child's exit status on the shared forker/reaper thread, rescheduling itself until there is one.
+     * FIXME: rewrite this to be more like the JDK's Process.waitFor, both in behavior and implementation.
+     */
+    private class Reaper implements Runnable {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private long delayMs = MIN_REAP_DELAY_MS;
+        private IOException exception;
+        
+        public void run() {
+            try {
+                if (reap() == false) {
+                    childForkerAndReaper.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+                    delayMs = Math.min(2 * delayMs, MAX_REAP_DELAY_MS);
+                    return;
+                }
+            } catch (IOException ex) {
+                exception = ex;
+            }
+            done.countDown();
+        }
+        
+        void await() throws IOException, InterruptedException {
+            done.await();
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+    
+    /** Collects and translates our child's exit status if it has one, returning false if it's still running. */
+    private boolean reap() throws IOException {
+        // Loop until waitpid(2) returns a status, says there isn't one yet, or fails with a real error.
         WaitStatus status = new WaitStatus();
         int result;
-        while ((result = Posix.waitpid(pid, status, 0)) < 0) {
+        while ((result = Posix.waitpid(pid, status, Posix.WNOHANG)) < 0) {
             if (result != -Errno.EINTR) {
                 // Something really went wrong; give up.
                 throw new IOException("waitpid(" + pid + ") failed: " + Errno.toString(-result));
             }
         }
+        if (result == 0) {
+            return false;
+        }
         
         // Translate the status.
         if (status.WIFEXITED()) {
@@ -205,6 +235,7 @@ public class PtyProcess {
         }
         
         updateLoginRecord();
+        return true;
     }
     
     /**
@@ -213,7 +244,7 @@ public class PtyProcess {
      * Java thread which forked a child can wait for it.
      */
     private void invoke(Callable<Exception> callable) throws Exception {
-        Future<Exception> future = executorService.submit(callable);
+        Future<Exception> future = childForkerAndReaper.submit(callable);
         Exception exception = future.get();
         if (exception != null) {
             throw exception;
@@ -2,7 +2,10 @@ package terminator.terminal;
 
 import e.util.*;
 import java.awt.*;
+import java.awt.event.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
@@ -13,7 +16,7 @@ import terminator.view.*;
 import terminator.terminal.escape.*;
 
 /**
- * Ties together the subprocess reader thread, the subprocess writer thread, and the thread that processes the subprocess' output.
+ * Ties together reading the subprocess' output (see PtyMultiplexer), writing its input, and processing its output on the EDT.
  * Some basic processing is done here.
  */
 public class TerminalControl {
@@ -26,14 +29,24 @@ public class TerminalControl {
     // FIXME: add a JNI call to return PIPE_BUF? (It's not strictly required to be the value we're looking for, but it probably is.)
     private static final int INPUT_BUFFER_SIZE = 8192;
     
+    // How much decoded output the reader can get ahead of the EDT before it stops reading from us.
+    // We only parse output once per frame (see TerminatorPreferences.MAX_FRAME_RATE), so this has to be big enough to keep something like cat(1) busy for a whole frame,
+    // but small enough that parsing a full batch doesn't make the UI noticeably unresponsive.
+    private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+    
     // We use "new String" here because we're going to use reference equality later to recognize Terminator-supplied defaults.
     private static final String TERMINATOR_DEFAULT_SHELL = new String(System.getenv("SHELL"));
     
-    private static final boolean DEBUG = false;
-    private static final boolean DEBUG_STEP_MODE = false;
-    private static final boolean SHOW_ASCII_RENDITION = false;
+    // Writes to children, and waits for them to exit, for all terminals.
+    // Threads only exist while there's something to do, and each terminal's writes are still made in order (see SerialExecutor).
+    private static final ExecutorService ioExecutor = ThreadUtilities.newCachedThreadPool("PTY I/O");
     
-    private static BufferedReader stepModeReader;
+    // All output is read on the PtyMultiplexer's thread, so all terminals can share these buffers.
+    // Decoding never produces more chars than there were bytes, so 'chars' can be the same size.
+    private static final byte[] bytes = new byte[INPUT_BUFFER_SIZE];
+    private static final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+    private static final char[] chars = new char[INPUT_BUFFER_SIZE];
+    private static final CharBuffer charBuffer = CharBuffer.wrap(chars);
     
     private JTerminalPane pane;
     private List<ChangeListener> changeListeners = new ArrayList<ChangeListener>();
@@ -42,11 +55,11 @@ public class TerminalControl {
     private boolean processIsRunning;
     private boolean processHasBeenDestroyed = false;
     
-    private InputStreamReader in;
+    private InputStream in;
     private OutputStream out;
     
-    private ExecutorService writerExecutor;
-    private Thread readerThread;
+    private Executor writerExecutor;
+    private volatile PtyMultiplexer.Registration readerRegistration;
     
     private int characterSet;
     private char[] g = new char[4];
@@ -55,19 +68,48 @@ public class TerminalControl {
     
     private TerminalLogWriter terminalLogWriter;
     
-    private StringBuilder lineBuffer = new StringBuilder();
+    // Only used on the EDT, which is where the model's mutated.
+    private final TerminalParser parser = new TerminalParser(this);
+    
+    // Output that's been read and decoded, but not yet parsed.
+    // The reader appends to 'pendingOutput' and posts processPendingOutput to the EDT if it isn't already posted.
+    // The EDT swaps in 'spareOutput' and parses everything that arrived since it last looked in one go.
+    // 'pendingOutput' grows as needed, up to about MAX_PENDING_OUTPUT, but 'spareOutput' is always INPUT_BUFFER_SIZE.
+    private final Object outputLock = new Object();
+    private char[] pendingOutput = new char[INPUT_BUFFER_SIZE];
+    private int pendingOutputLength;
+    private char[] spareOutput = new char[INPUT_BUFFER_SIZE];
+    private boolean isPendingOutputPosted;
+    private final Runnable processPendingOutput = new Runnable() {
+        public void run() {
+            processPendingOutput();
+        }
+    };
+    
+    // Whether the log writer has asked us to stop reading until it's caught up.
+    // Guarded by outputLock.
+    private boolean isLogWriterBehind;
     
-    private EscapeParser escapeParser;
+    // When we last updated the model (and hence the display), so we can hold off until the next frame is due.
+    // Only used on the EDT.
+    private long lastFrameTime_ns;
+    private final javax.swing.Timer frameTimer;
     
-    // Buffer of TerminalActions to perform.
-    private ArrayList<TerminalAction> terminalActions = new ArrayList<TerminalAction>();
-    // Semaphore to prevent us from overrunning the EDT.
-    private Semaphore flowControl = new Semaphore(30);
+    // How many reads were handled in how many frames; any difference is reads we coalesced.
+    // Guarded by outputLock.
+    private long readCount;
+    private long frameCount;
     
     public TerminalControl(JTerminalPane pane, TerminalModel model) {
         reset();
         this.pane = pane;
         this.model = model;
+        this.frameTimer = new javax.swing.Timer(0, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                processPendingOutput();
+            }
+        });
+        frameTimer.setRepeats(false);
     }
     
     public void initProcess(List<String> command, String workingDirectory) throws Throwable {
@@ -89,13 +131,17 @@ public class TerminalControl {
         }
         
         // We log an announceConnectionLost message if we fail to create the PtyProcess, so we need the TerminalLogWriter first.
-        this.terminalLogWriter = new TerminalLogWriter(command);
+        this.terminalLogWriter = new TerminalLogWriter(command, new TerminalLogWriter.FlowControl() {
+            public void setReadingPaused(boolean shouldPause) {
+                setLogWriterIsBehind(shouldPause);
+            }
+        });
         this.ptyProcess = new PtyProcess(executable, argv, workingDirectory);
         this.processIsRunning = true;
         Log.warn("Created " + ptyProcess + " and logging to " + terminalLogWriter.getInfo());
-        this.in = new InputStreamReader(ptyProcess.getInputStream(), CHARSET_NAME);
+        this.in = ptyProcess.getInputStream();
         this.out = ptyProcess.getOutputStream();
-        writerExecutor = ThreadUtilities.newSingleThreadExecutor(makeThreadName("Writer"));
+        writerExecutor = new SerialExecutor();
     }
     
     public static ArrayList<String> getDefaultShell() {
@@ -120,7 +166,7 @@ public class TerminalControl {
      * invoked when all the user interface stuff is set up.
      */
     public void start() {
-        if (readerThread != null) {
+        if (readerRegistration != null) {
             // Detaching a tab causes start to be invoked again, but we shouldn't do anything.
             return;
         }
@@ -130,43 +176,98 @@ public class TerminalControl {
             return;
         }
         
-        readerThread = startThread("Reader", new ReaderRunnable());
+        readerRegistration = PtyMultiplexer.getSharedInstance().register(ptyProcess.getFd(), new Reader());
     }
     
-    private Thread startThread(String name, Runnable runnable) {
-        Thread thread = new Thread(runnable, makeThreadName(name));
-        thread.setDaemon(true);
-        thread.start();
-        return thread;
-    }
-    
-    private String makeThreadName(String role) {
-        return "Process " + ptyProcess.getPid() + " (" + ptyProcess.getPtyName() + ") " + role;
+    private class Reader implements PtyMultiplexer.Client {
+        // Any incomplete multi-byte sequence left over from the previous read, which belongs at the start of 'bytes' next time.
+        private byte[] leftoverBytes = new byte[4];
+        private int leftoverByteCount = 0;
+        private final CharsetDecoder decoder = Charset.forName(CHARSET_NAME).newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        
+        public boolean handleInput() throws IOException {
+            System.arraycopy(leftoverBytes, 0, bytes, 0, leftoverByteCount);
+            int readCount = in.read(bytes, leftoverByteCount, bytes.length - leftoverByteCount);
+            if (readCount <= 0) {
+                Log.warn("read returned " + readCount + " from " + ptyProcess);
+                return false; // This isn't going to fix itself!
+            }
+            
+            try {
+                processBuffer(chars, decode(leftoverByteCount + readCount));
+            } catch (Throwable th) {
+                Log.warn("Problem processing output from " + ptyProcess, th);
+            }
+            return true;
+        }
+        
+        public void handleEndOfInput() {
+            // Our reader might have stopped before the child has terminated.
+            // So "handleProcessTermination" is perhaps not the ideal name.
+            // Either way, we mustn't hold up the PtyMultiplexer's thread while we wait for the child.
+            ioExecutor.execute(new Runnable() {
+                public void run() {
+                    handleProcessTermination();
+                }
+            });
+        }
+        
+        /** Decodes the first 'byteCount' bytes into 'chars', returning the number of chars. */
+        private int decode(int byteCount) {
+            // Most output is ASCII, and every charset we'd consider is ASCII-compatible, so we can just copy until we see a non-ASCII byte.
+            int i = 0;
+            if (leftoverByteCount == 0) {
+                while (i < byteCount && bytes[i] >= 0) {
+                    chars[i] = (char) bytes[i];
+                    ++i;
+                }
+            }
+            if (i == byteCount) {
+                return byteCount;
+            }
+            
+            byteBuffer.limit(byteCount);
+            byteBuffer.position(i);
+            charBuffer.clear();
+            charBuffer.position(i);
+            // Passing false means an incomplete sequence at the end is left in the buffer rather than replaced.
+            decoder.decode(byteBuffer, charBuffer, false);
+            leftoverByteCount = byteBuffer.remaining();
+            if (leftoverByteCount > leftoverBytes.length) {
+                leftoverBytes = new byte[leftoverByteCount];
+            }
+            byteBuffer.get(leftoverBytes, 0, leftoverByteCount);
+            return charBuffer.position();
+        }
     }
     
-    private class ReaderRunnable implements Runnable {
-        public void run() {
-            try {
-                while (true) {
-                    char[] chars = new char[INPUT_BUFFER_SIZE];
-                    int readCount = in.read(chars, 0, chars.length);
-                    if (readCount == -1) {
-                        Log.warn("read returned -1 from " + ptyProcess);
-                        return; // This isn't going to fix itself!
-                    }
-                    
+    /**
+     * Runs tasks one at a time, in the order they were submitted, on the shared I/O threads.
+     * This is the SerialExecutor from the java.util.concurrent.Executor documentation.
+     */
+    private static class SerialExecutor implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private Runnable active;
+        
+        public synchronized void execute(final Runnable runnable) {
+            tasks.add(new Runnable() {
+                public void run() {
                     try {
-                        processBuffer(chars, readCount);
-                    } catch (Throwable th) {
-                        Log.warn("Problem processing output from " + ptyProcess, th);
+                        runnable.run();
+                    } finally {
+                        scheduleNext();
                     }
                 }
-            } catch (Throwable th) {
-                Log.warn("Problem reading output from " + ptyProcess, th);
-            } finally {
-                // Our reader might throw an exception before the child has terminated.
-                // So "handleProcessTermination" is perhaps not the ideal name.
-                handleProcessTermination();
+            });
+            if (active == null) {
+                scheduleNext();
+            }
+        }
+        
+        private synchronized void scheduleNext() {
+            active = tasks.poll();
+            if (active != null) {
+                ioExecutor.execute(active);
             }
         }
     }
@@ -175,18 +276,9 @@ public class TerminalControl {
         this.characterSet = index;
     }
     
-    /**
-     * Ensures that ^N and ^O are handled at the proper time.
-     * If we just call invokeCharacterSet they jump any pending text in the terminalActions queue.
-     * Before this fix, "echo hello ^N world" would all appear in character set 1.
-     */
-    public void invokeCharacterSetLater(final int index) {
-        flushLineBuffer();
-        terminalActions.add(new TerminalAction() {
-            public void perform(TerminalModel model) {
-                invokeCharacterSet(index);
-            }
-        });
+    /** Invoked by the parser when the child rings the bell. */
+    public void ringBell() {
+        pane.flash();
     }
     
     public void setAutomaticNewline(boolean automatic) {
@@ -217,28 +309,10 @@ public class TerminalControl {
         g[index] = set;
     }
     
-    private static final void doStep() {
-        if (DEBUG_STEP_MODE) {
-            try {
-                if (stepModeReader == null) {
-                    stepModeReader = new BufferedReader(new InputStreamReader(System.in));
-                }
-                stepModeReader.readLine();
-            } catch (IOException ex) {
-                Log.warn("Problem waiting for stepping input", ex);
-            }
-        }
-    }
-    
     private void handleProcessTermination() {
+        // Anything still waiting to be written will be dropped (see sendUtf8String).
         processIsRunning = false;
 
-        // The readerThread will have shut itself down by now.
-        // We need to handle the writer ExecutorService ourselves.
-        if (writerExecutor != null) {
-            writerExecutor.shutdownNow();
-        }
-        
         // If the JNI side failed to start, ptyProcess can be null.
         // In that case, we'll already have reported the error.
         if (ptyProcess == null) {
@@ -305,122 +379,114 @@ public class TerminalControl {
         ptyProcess.sendResizeNotification(sizeInChars, sizeInPixels);
     }
     
-    private synchronized void processBuffer(char[] buffer, int size) throws IOException {
-        boolean sawNewline = false;
-        for (int i = 0; i < size; ++i) {
-            char ch = buffer[i];
-            if (ch == '\n') {
-                sawNewline = true;
-            }
-            processChar(ch);
-        }
-        terminalLogWriter.append(buffer, size, sawNewline);
-        flushLineBuffer();
-        flushTerminalActions();
+    private synchronized void processBuffer(char[] buffer, int size) {
+        terminalLogWriter.append(buffer, size);
+        appendPendingOutput(buffer, size);
         fireChangeListeners();
     }
     
-    private synchronized void flushTerminalActions() {
-        if (terminalActions.size() == 0) {
-            return;
+    /**
+     * Stops or restarts reading on behalf of the log writer, which can't keep up and would rather we didn't drop output.
+     * Like the EDT, it gets us to pause instead of blocking the reader, because the reader's reading for every terminal.
+     */
+    private void setLogWriterIsBehind(boolean isBehind) {
+        synchronized (outputLock) {
+            isLogWriterBehind = isBehind;
+            if (readerRegistration != null) {
+                // If the EDT hasn't caught up either, processPendingOutput will resume reading when it does.
+                readerRegistration.setPaused(isBehind || pendingOutputLength >= MAX_PENDING_OUTPUT);
+            }
         }
-        
-        final TerminalAction[] actions = terminalActions.toArray(new TerminalAction[terminalActions.size()]);
-        terminalActions.clear();
-        
-        boolean didAcquire = false;
-        try {
-            flowControl.acquire();
-            didAcquire = true;
-            EventQueue.invokeLater(new Runnable() {
-                public void run() {
-                    try {
-                        model.processActions(actions);
-                    } catch (Throwable th) {
-                        Log.warn("Couldn't process terminal actions for " + ptyProcess, th);
-                    } finally {
-                        flowControl.release();
-                    }
-                }
-            });
-        } catch (Throwable th) {
-            Log.warn("Couldn't flush terminal actions for " + ptyProcess, th);
-            if (didAcquire) {
-                flowControl.release();
+    }
+    
+    private void appendPendingOutput(char[] buffer, int size) {
+        synchronized (outputLock) {
+            if (pendingOutputLength + size > pendingOutput.length) {
+                pendingOutput = Arrays.copyOf(pendingOutput, Math.max(2 * pendingOutput.length, pendingOutputLength + size));
+            }
+            System.arraycopy(buffer, 0, pendingOutput, pendingOutputLength, size);
+            pendingOutputLength += size;
+            ++readCount;
+            // Don't let a fast writer get arbitrarily far ahead of the EDT, but don't block the reader either, because it's reading for every terminal.
+            // The child will block instead, once the pty fills up, until processPendingOutput catches up.
+            if (pendingOutputLength >= MAX_PENDING_OUTPUT && readerRegistration != null) {
+                readerRegistration.setPaused(true);
+            }
+            if (isPendingOutputPosted) {
+                // The EDT will pick this up along with whatever's already pending.
+                return;
             }
+            isPendingOutputPosted = true;
         }
+        EventQueue.invokeLater(processPendingOutput);
     }
     
     /**
-     * According to vttest, these cursor movement characters are still
-     * treated as such, even when they occur within an escape sequence.
+     * Parses all the output that's arrived since we last looked.
+     * Parsing happens on the EDT along with the model changes it causes.
+     * That way the parser can call the model directly instead of creating an action for every run of text and every escape sequence.
+     * 
+     * Each call updates the display, so if the last one was less than a frame ago, we wait for the next frame instead.
+     * Anything that arrives in the meantime is handled in the same batch, so under heavy output we skip frames rather than falling behind.
      */
-    private final boolean countsTowardsEscapeSequence(char ch) {
-        return (ch != Ascii.BS && ch != Ascii.CR && ch != Ascii.VT);
-    }
-    
-    private synchronized void processChar(final char ch) {
-        // Enable this if you're having trouble working out what we're being asked to interpret.
-        if (SHOW_ASCII_RENDITION) {
-            if (ch >= ' ' || ch == '\n') {
-                System.out.print(ch);
-            } else {
-                System.out.print(".");
+    private void processPendingOutput() {
+        int maxFrameRate = Terminator.getPreferences().getInt(TerminatorPreferences.MAX_FRAME_RATE);
+        long now_ns = System.nanoTime();
+        if (maxFrameRate > 0) {
+            long nextFrameTime_ns = lastFrameTime_ns + 1000000000L / maxFrameRate;
+            if (now_ns < nextFrameTime_ns) {
+                // We're still posted, as far as the reader's concerned, so it'll leave it to us.
+                frameTimer.setInitialDelay((int) Math.max(1, (nextFrameTime_ns - now_ns) / 1000000));
+                frameTimer.restart();
+                return;
             }
         }
+        lastFrameTime_ns = now_ns;
         
-        if (ch == Ascii.ESC) {
-            flushLineBuffer();
-            // If the old escape sequence is interrupted; we start a new one.
-            if (escapeParser != null) {
-                Log.warn("Escape parser discarded with string \"" + escapeParser + "\"");
+        final char[] chars;
+        final int length;
+        synchronized (outputLock) {
+            chars = pendingOutput;
+            length = pendingOutputLength;
+            pendingOutput = spareOutput;
+            pendingOutputLength = 0;
+            spareOutput = null;
+            isPendingOutputPosted = false;
+            ++frameCount;
+            if (readerRegistration != null) {
+                // The log writer may still want us to wait for it.
+                readerRegistration.setPaused(isLogWriterBehind);
             }
-            escapeParser = new EscapeParser();
-            return;
         }
-        if (escapeParser != null && countsTowardsEscapeSequence(ch)) {
-            escapeParser.addChar(ch);
-            if (escapeParser.isComplete()) {
-                processEscape();
-                escapeParser = null;
+        try {
+            model.processActions(new TerminalAction[] { new TerminalAction() {
+                public void perform(TerminalModel model) {
+                    parser.process(model, chars, 0, length);
+                }
+                
+                @Override public String toString() {
+                    return "TerminalAction[Process " + length + " chars]";
+                }
+            }});
+        } catch (Throwable th) {
+            Log.warn("Couldn't process output from " + ptyProcess, th);
+        } finally {
+            // The reader may have posted another batch in the meantime, but that won't run until we return, so it's safe to recycle this buffer now.
+            // A buffer that grew to hold a burst goes, though: one cat(1) of a big file shouldn't leave megabytes behind for the rest of the terminal's life.
+            synchronized (outputLock) {
+                spareOutput = (chars.length <= INPUT_BUFFER_SIZE) ? chars : new char[INPUT_BUFFER_SIZE];
             }
-        } else if (ch == Ascii.LF || ch == Ascii.CR || ch == Ascii.BS || ch == Ascii.HT || ch == Ascii.VT) {
-            flushLineBuffer();
-            doStep();
-            processSpecialCharacter(ch);
-        } else if (ch == Ascii.SO) {
-            invokeCharacterSetLater(1);
-        } else if (ch == Ascii.SI) {
-            invokeCharacterSetLater(0);
-        } else if (ch == Ascii.BEL) {
-            pane.flash();
-        } else if (ch == Ascii.NUL) {
-            // Most telnetd(1) implementations seem to have a bug whereby
-            // they send the NUL byte at the end of the C strings they want to
-            // output when you first connect. Since all Unixes are pretty much
-            // copy and pasted from one another these days, this silly mistake
-            // only needed to be made once.
-        } else {
-            lineBuffer.append(ch);
         }
     }
     
-    private static class PlainTextAction implements TerminalAction {
-        private String line;
-        
-        private PlainTextAction(String line) {
-            this.line = line;
-        }
-        
-        public void perform(TerminalModel model) {
-            if (DEBUG) {
-                Log.warn("Processing line \"" + line + "\"");
+    /** Returns a description of how much output we've had to coalesce to keep up, for the info dialog. */
+    public String getOutputStatistics() {
+        synchronized (outputLock) {
+            String result = frameCount + " display updates for " + readCount + " reads";
+            if (readCount > 0) {
+                result += " (" + (100 * (readCount - frameCount) / readCount) + "% coalesced)";
             }
-            model.processLine(line);
-        }
-        
-        @Override public String toString() {
-            return "TerminalAction[Process line: " + line + "]";
+            return result;
         }
     }
     
@@ -435,61 +501,6 @@ public class TerminalControl {
         return translation.toString();
     }
     
-    private synchronized void flushLineBuffer() {
-        if (lineBuffer.length() == 0) {
-            // Nothing to flush!
-            return;
-        }
-        
-        final String line = lineBuffer.toString();
-        lineBuffer = new StringBuilder();
-        
-        doStep();
-        
-        // Conform to the stated claim that the model's always mutated in the AWT dispatch thread.
-        terminalActions.add(new PlainTextAction(line));
-    }
-    
-    public synchronized void processSpecialCharacter(final char ch) {
-        terminalActions.add(new TerminalAction() {
-            public void perform(TerminalModel model) {
-                if (DEBUG) {
-                    Log.warn("Processing special char \"" + getCharDesc(ch) + "\"");
-                }
-                model.processSpecialCharacter(ch);
-            }
-            
-            @Override public String toString() {
-                return "TerminalAction[Special char " + getCharDesc(ch) + "]";
-            }
-            
-            private String getCharDesc(char ch) {
-                switch (ch) {
-                    case Ascii.LF: return "LF";
-                    case Ascii.CR: return "CR";
-                    case Ascii.HT: return "HT";
-                    case Ascii.VT: return "VT";
-                    case Ascii.BS: return "BS";
-                    default: return "UK";
-                }
-            }
-        });
-    }
-    
-    public synchronized void processEscape() {
-        if (DEBUG) {
-            Log.warn("Processing escape sequence \"" + StringUtilities.escapeForJava(escapeParser.toString()) + "\"");
-        }
-        
-        // Invoke all escape sequence handling in the AWT dispatch thread - otherwise we'd have
-        // to create billions upon billions of tiny little invokeLater(Runnable) things all over the place.
-        doStep();
-        TerminalAction action = escapeParser.getAction(this);
-        if (action != null) {
-            terminalActions.add(action);
-        }
-    }
-    
     private char translateToCharacterSet(char ch) {
         switch (g[characterSet]) {
         case '0':
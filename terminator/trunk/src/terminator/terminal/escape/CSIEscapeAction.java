@@ -2,32 +2,31 @@ package terminator.terminal.escape;
 
 import e.util.*;
 import java.awt.*;
-import java.util.*;
 import terminator.*;
 import terminator.model.*;
 import terminator.terminal.*;
 
 /**
-Parses 'CSI' escape sequences.  Such sequences always have '[' as their first character,
+Performs 'CSI' escape sequences.  Such sequences always have '[' as their first character,
 and then are sometimes followed by a '?' character, then optionally a list of numbers
 separated by ';' characters, followed by the final character which tells us what to do with
-all that stuff.
+all that stuff.  TerminalParser has already split the sequence into those parts for us.
 
 @author Phil Norman
 */
 
 public class CSIEscapeAction implements TerminalAction {
     private TerminalControl control;
-    private String sequence;
+    private EscapeSequence sequence;
     
-    public CSIEscapeAction(TerminalControl control, String sequence) {
+    public CSIEscapeAction(TerminalControl control, EscapeSequence sequence) {
         this.control = control;
         this.sequence = sequence;
     }
 
     public void perform(TerminalModel model) {
         if (processSequence(model) == false) {
-            Log.warn("Unimplemented escape sequence: \"" + StringUtilities.escapeForJava(sequence) + "\"");
+            Log.warn("Unimplemented escape sequence: \"" + StringUtilities.escapeForJava(sequence.toString()) + "\"");
         }
     }
     
@@ -60,73 +59,70 @@ public class CSIEscapeAction implements TerminalAction {
     }
     
     @Override public String toString() {
-        char lastChar = sequence.charAt(sequence.length() - 1);
-        return "CSIEscapeAction[" + getSequenceType(lastChar) + "]";
+        return "CSIEscapeAction[" + getSequenceType(sequence.getFinalChar()) + "]";
     }
     
     private boolean processSequence(TerminalModel model) {
-        char lastChar = sequence.charAt(sequence.length() - 1);
-        String midSequence = sequence.substring(1, sequence.length() - 1);
-        switch (lastChar) {
+        switch (sequence.getFinalChar()) {
         case 'A':
-            return moveCursor(model, midSequence, 0, -1);
+            return moveCursor(model, 0, -1);
         case 'B':
-            return moveCursor(model, midSequence, 0, 1);
+            return moveCursor(model, 0, 1);
         case 'C':
-            return moveCursor(model, midSequence, 1, 0);
+            return moveCursor(model, 1, 0);
         case 'c':
-            return deviceAttributesRequest(midSequence);
+            return deviceAttributesRequest();
         case 'D':
-            return moveCursor(model, midSequence, -1, 0);
+            return moveCursor(model, -1, 0);
         case 'd':
-            return moveCursorRowTo(model, midSequence);
+            return moveCursorRowTo(model);
         case 'G':
         case '`':
-            return moveCursorColumnTo(model, midSequence);
+            return moveCursorColumnTo(model);
         case 'f':
         case 'H':
-            return moveCursorTo(model, midSequence);
+            return moveCursorTo(model);
         case 'K':
-            return killLineContents(model, midSequence);
+            return killLineContents(model);
         case 'J':
-            return eraseInPage(model, midSequence);
+            return eraseInPage(model);
         case 'L':
-            return insertLines(model, midSequence);
+            return insertLines(model);
         case 'M':
-            return deleteLines(model, midSequence);
+            return deleteLines(model);
         case 'P':
-            return deleteCharacters(model, midSequence);
+            return deleteCharacters(model);
         case 'g':
-            return clearTabs(model, midSequence);
+            return clearTabs(model);
         case 'h':
-            return setDecPrivateMode(model, midSequence, true);
+            return setDecPrivateMode(model, true);
         case 'l':
-            return setDecPrivateMode(model, midSequence, false);
+            return setDecPrivateMode(model, false);
         case 'm':
-            return processFontEscape(model, midSequence);
+            return processFontEscape(model);
         case 'n':
-            return processDeviceStatusReport(model, midSequence);
+            return processDeviceStatusReport(model);
         case 'p':
-            if (midSequence.equals("!")) {
+            if (sequence.getIntermediate() == '!') {
                 control.reset();
                 return true;
             }
             break;
         case 'r':
-            if (midSequence.startsWith("?")) {
-                return restoreDecPrivateModes(midSequence);
+            if (sequence.getPrivateMarker() == '?') {
+                return restoreDecPrivateModes();
             } else {
-                return setScrollingRegion(model, midSequence);
+                return setScrollingRegion(model);
             }
         case 's':
-            return saveDecPrivateModes(midSequence);
+            return saveDecPrivateModes();
         }
-        Log.warn("unknown CSI sequence " + StringUtilities.escapeForJava(sequence));
+        Log.warn("unknown CSI sequence " + StringUtilities.escapeForJava(sequence.toString()));
         return false;
     }
     
-    public boolean clearTabs(TerminalModel model, String seq) {
-        int clearType = (seq.length() == 0) ? 0 : Integer.parseInt(seq);
+    public boolean clearTabs(TerminalModel model) {
+        int clearType = sequence.getParameter(0, 0);
         if (clearType == 0) {
             // Clear horizontal tab at current cursor position.
             model.removeTabAtCursor();
@@ -141,25 +137,24 @@ public class CSIEscapeAction implements TerminalAction {
         }
     }
     
-    public boolean deleteLines(TerminalModel model, String seq) {
-        int count = (seq.length() == 0) ? 1 : Integer.parseInt(seq);
+    public boolean deleteLines(TerminalModel model) {
+        int count = sequence.getParameter(0, 1);
         for (int i = 0; i < count; i++) {
             model.deleteLine();
         }
         return true;
     }
     
-    public boolean insertLines(TerminalModel model, String seq) {
-        int count = (seq.length() == 0) ? 1 : Integer.parseInt(seq);
+    public boolean insertLines(TerminalModel model) {
+        int count = sequence.getParameter(0, 1);
         model.insertLines(count);
         return true;
     }
     
-    private boolean setDecPrivateMode(TerminalModel model, String seq, boolean value) {
-        boolean isPrivateMode = seq.startsWith("?");
-        String[] modes = (isPrivateMode ? seq.substring(1) : seq).split(";");
-        for (String modeString : modes) {
-            int mode = Integer.parseInt(modeString);
+    private boolean setDecPrivateMode(TerminalModel model, boolean value) {
+        boolean isPrivateMode = (sequence.getPrivateMarker() == '?');
+        for (int i = 0; i < sequence.getParameterCount(); ++i) {
+            int mode = sequence.getParameter(i, 0);
             if (isPrivateMode) {
                 switch (mode) {
                 case 3:
@@ -175,7 +170,7 @@ public class CSIEscapeAction implements TerminalAction {
                     model.useAlternateBuffer(value);
                     break;
                 default:
-                    Log.warn("Unknown private mode " + mode + " in [" + StringUtilities.escapeForJava(seq) + (value ? 'h' : 'l'));
+                    Log.warn("Unknown private mode " + mode + " in " + StringUtilities.escapeForJava(sequence.toString()));
                 }
             } else {
                 switch (mode) {
@@ -186,35 +181,31 @@ public class CSIEscapeAction implements TerminalAction {
                     control.setAutomaticNewline(value);
                     break;
                 default:
-                    Log.warn("Unknown mode " + mode + " in [" + StringUtilities.escapeForJava(seq) + (value ? 'h' : 'l'));
+                    Log.warn("Unknown mode " + mode + " in " + StringUtilities.escapeForJava(sequence.toString()));
                 }
             }
         }
         return true;
     }
     
-    private boolean restoreDecPrivateModes(String seq) {
-        Log.warn("Restore DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(seq) + ")");
+    private boolean restoreDecPrivateModes() {
+        Log.warn("Restore DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(sequence.toString()) + ")");
         return false;
     }
     
-    private boolean saveDecPrivateModes(String seq) {
-        Log.warn("Save DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(seq) + ")");
+    private boolean saveDecPrivateModes() {
+        Log.warn("Save DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(sequence.toString()) + ")");
         return false;
     }
     
-    public boolean setScrollingRegion(TerminalModel model, String seq) {
-        int index = seq.indexOf(';');
-        if (index == -1) {
-            model.setScrollingRegion(-1, -1);
-        } else {
-            model.setScrollingRegion(Integer.parseInt(seq.substring(0, index)), Integer.parseInt(seq.substring(index + 1)));
-        }
+    public boolean setScrollingRegion(TerminalModel model) {
+        // The model treats -1 as "the top" or "the bottom", so "CSI r" resets the region and "CSI 5 r" just moves the top.
+        model.setScrollingRegion(sequence.getParameter(0, -1), sequence.getParameter(1, -1));
         return true;
     }
     
-    private boolean deviceAttributesRequest(String seq) {
-        if (seq.equals("") || seq.equals("0")) {
+    private boolean deviceAttributesRequest() {
+        if (sequence.getPrivateMarker() == 0 && sequence.getParameter(0, 0) == 0) {
             sendDeviceAttributes(control);
             return true;
         } else {
@@ -226,52 +217,47 @@ public class CSIEscapeAction implements TerminalAction {
         control.sendUtf8String(Ascii.ESC + "[?1;0c");
     }
     
-    public boolean deleteCharacters(TerminalModel model, String seq) {
-        int count = (seq.length() == 0) ? 1 : Integer.parseInt(seq);
+    public boolean deleteCharacters(TerminalModel model) {
+        int count = sequence.getParameter(0, 1);
         model.deleteCharacters(count);
         return true;
     }
     
-    public boolean killLineContents(TerminalModel model, String seq) {
-        int type = (seq.length() == 0) ? 0 : Integer.parseInt(seq);
+    public boolean killLineContents(TerminalModel model) {
+        int type = sequence.getParameter(0, 0);
         boolean fromStart = (type >= 1);
         boolean toEnd = (type != 1);
         model.killHorizontally(fromStart, toEnd);
         return true;
     }
     
-    public boolean eraseInPage(TerminalModel model, String seq) {
-        int type = (seq.length() == 0) ? 0 : Integer.parseInt(seq);
+    public boolean eraseInPage(TerminalModel model) {
+        int type = sequence.getParameter(0, 0);
         boolean fromTop = (type >= 1);
         boolean toBottom = (type != 1);
         model.eraseInPage(fromTop, toBottom);
         return true;
     }
     
-    public boolean moveCursorRowTo(TerminalModel model, String seq) {
-        model.setCursorPosition(-1, Integer.parseInt(seq));
+    public boolean moveCursorRowTo(TerminalModel model) {
+        model.setCursorPosition(-1, sequence.getParameter(0, 1));
         return true;
     }
     
-    public boolean moveCursorColumnTo(TerminalModel model, String seq) {
-        model.setCursorPosition(Integer.parseInt(seq), -1);
+    public boolean moveCursorColumnTo(TerminalModel model) {
+        model.setCursorPosition(sequence.getParameter(0, 1), -1);
         return true;
     }
     
-    public boolean moveCursorTo(TerminalModel model, String seq) {
-        int x = 1;
-        int y = 1;
-        int splitIndex = seq.indexOf(';');
-        if (splitIndex != -1) {
-            y = Integer.parseInt(seq.substring(0, splitIndex));
-            x = Integer.parseInt(seq.substring(splitIndex + 1));
-        }
+    public boolean moveCursorTo(TerminalModel model) {
+        int y = sequence.getParameter(0, 1);
+        int x = sequence.getParameter(1, 1);
         model.setCursorPosition(x, y);
         return true;
     }
     
-    public boolean moveCursor(TerminalModel model, String countString, int xDirection, int yDirection) {
-        int count = (countString.length() == 0) ? 1 : Integer.parseInt(countString);
+    public boolean moveCursor(TerminalModel model, int xDirection, int yDirection) {
+        int count = sequence.getParameter(0, 1);
         if (xDirection != 0) {
             model.moveCursorHorizontally(xDirection * count);
         }
@@ -281,8 +267,11 @@ public class CSIEscapeAction implements TerminalAction {
         return true;
     }
     
-    private boolean processDeviceStatusReport(TerminalModel model, String sequence) {
-        switch (Integer.parseInt(sequence)) {
+    private boolean processDeviceStatusReport(TerminalModel model) {
+        if (sequence.getPrivateMarker() != 0) {
+            return false;
+        }
+        switch (sequence.getParameter(0, 0)) {
         case 5:
             control.sendUtf8String(Ascii.ESC + "[0n");
             return true;
@@ -297,24 +286,17 @@ public class CSIEscapeAction implements TerminalAction {
         }
     }
     
-    // Returns the next chunk from 'chunks' as an int.
-    // If the next chunk is empty, returns 0.
-    // If there are no more chunks, returns 0.
-    private int nextInt(Iterator<String> chunks) {
-        final String chunk = chunks.hasNext() ? chunks.next() : "";
-        return (chunk.length() == 0) ? 0 : Integer.parseInt(chunk);
-    }
-    
-    public boolean processFontEscape(TerminalModel model, String sequence) {
+    public boolean processFontEscape(TerminalModel model) {
         Style oldStyle = model.getStyle();
         Color foreground = oldStyle.getForeground();
         Color background = oldStyle.getBackground();
         boolean isBold = oldStyle.isBold();
         boolean isReverseVideo = oldStyle.isReverseVideo();
         boolean isUnderlined = oldStyle.isUnderlined();
-        Iterator<String> chunks = Arrays.asList(sequence.split(";")).iterator();
-        while (chunks.hasNext()) {
-            final int attribute = nextInt(chunks);
+        // "CSI m" means the same as "CSI 0 m", and parameters we run out of read as 0, as in "CSI 38;5 m".
+        int i = 0;
+        do {
+            final int attribute = sequence.getParameter(i++, 0);
             switch (attribute) {
             case 0:
                 // Clear all attributes.
@@ -378,21 +360,21 @@ public class CSIEscapeAction implements TerminalAction {
             case 48:
                 // Set background color (256-color or 24-bit).
                 Color newColor = null;
-                final int colorMode = nextInt(chunks);
+                final int colorMode = sequence.getParameter(i++, 0);
                 switch (colorMode) {
                 case 5:
                     // 256 color mode, as in xterm.
-                    newColor = Palettes.getColor(nextInt(chunks));
+                    newColor = Palettes.getColor(sequence.getParameter(i++, 0));
                     break;
                 case 2:
                     // 24 bit color mode, a konsole extension.
-                    final int red = nextInt(chunks);
-                    final int green = nextInt(chunks);
-                    final int blue = nextInt(chunks);
+                    final int red = sequence.getParameter(i++, 0);
+                    final int green = sequence.getParameter(i++, 0);
+                    final int blue = sequence.getParameter(i++, 0);
                     newColor = new Color(red, green, blue);
                     break;
                 default:
-                    Log.warn("Unknown color mode " + colorMode + " for attribute " + attribute + " in [" + StringUtilities.escapeForJava(sequence));
+                    Log.warn("Unknown color mode " + colorMode + " for attribute " + attribute + " in " + StringUtilities.escapeForJava(sequence.toString()));
                 }
                 if (attribute == 38) {
                     foreground = newColor;
@@ -442,10 +424,10 @@ public class CSIEscapeAction implements TerminalAction {
                 background = Palettes.getColor(attribute - 92);
                 break;
             default:
-                Log.warn("Unknown attribute " + attribute + " in [" + StringUtilities.escapeForJava(sequence));
+                Log.warn("Unknown attribute " + attribute + " in " + StringUtilities.escapeForJava(sequence.toString()));
                 break;
             }
-        }
+        } while (i < sequence.getParameterCount());
         model.setStyle(Style.makeStyle(foreground, background, isBold, isUnderlined, isReverseVideo));
         return true;
     }
@@ -0,0 +1,142 @@
+package terminator.terminal.escape;
+
+/**
+ * The parts of the escape sequence TerminalParser has most recently recognized.
+ * There's only one of these per parser, and it's reused for every sequence, so actions mustn't hang on to it (or anything it returns other than a String).
+ * 
+ * A sequence has an introducer ('[' for CSI, ']' for OSC, 'P' for DCS, or nothing for a plain escape), an optional private marker ('<', '=', '>', or '?'),
+ * numeric parameters, up to two intermediate characters, and a final character.
+ * OSC sequences have a string instead of the last three.
+ */
+public final class EscapeSequence {
+    // More than enough for "38;2;r;g;b" plus a few other attributes in the same SGR sequence.
+    // Further parameters are ignored, which is what xterm does too.
+    private static final int MAX_PARAMETER_COUNT = 16;
+    // Anything bigger than this is a mistake or an attack, and clamping means we never overflow.
+    private static final int MAX_PARAMETER_VALUE = 99999;
+    private static final int MAX_INTERMEDIATE_COUNT = 2;
+    // Window titles longer than this aren't useful, and we don't want a runaway OSC to eat all our memory.
+    private static final int MAX_STRING_LENGTH = 4096;
+    
+    // A parameter that was omitted, as in "ESC [ ; 5 H".
+    private static final int MISSING = -1;
+    
+    private char introducer;
+    private char privateMarker;
+    private final int[] parameters = new int[MAX_PARAMETER_COUNT];
+    private int parameterCount;
+    private final char[] intermediates = new char[MAX_INTERMEDIATE_COUNT];
+    private int intermediateCount;
+    private char finalChar;
+    private final StringBuilder string = new StringBuilder();
+    
+    void clear() {
+        introducer = 0;
+        privateMarker = 0;
+        parameterCount = 0;
+        intermediateCount = 0;
+        finalChar = 0;
+        string.setLength(0);
+    }
+    
+    void setIntroducer(char ch) {
+        introducer = ch;
+    }
+    
+    /** Collects an intermediate character, or a private marker if it's one of '<', '=', '>', or '?'. */
+    void collect(char ch) {
+        if (ch >= '<' && ch <= '?') {
+            privateMarker = ch;
+        } else if (intermediateCount < MAX_INTERMEDIATE_COUNT) {
+            intermediates[intermediateCount++] = ch;
+        }
+    }
+    
+    /** Accumulates a parameter digit, or starts a new parameter if 'ch' is a separator. */
+    void param(char ch) {
+        if (parameterCount == 0) {
+            // Any parameter character at all means there's at least one (possibly empty) parameter.
+            parameters[parameterCount++] = MISSING;
+        }
+        if (ch == ';' || ch == ':') {
+            if (parameterCount < MAX_PARAMETER_COUNT) {
+                parameters[parameterCount++] = MISSING;
+            }
+            return;
+        }
+        int i = parameterCount - 1;
+        int value = (parameters[i] == MISSING) ? 0 : parameters[i];
+        parameters[i] = Math.min(10 * value + (ch - '0'), MAX_PARAMETER_VALUE);
+    }
+    
+    void setFinalChar(char ch) {
+        finalChar = ch;
+    }
+    
+    void appendToString(char ch) {
+        if (string.length() < MAX_STRING_LENGTH) {
+            string.append(ch);
+        }
+    }
+    
+    public char getFinalChar() {
+        return finalChar;
+    }
+    
+    /** Returns the private marker, or 0 if there wasn't one. */
+    public char getPrivateMarker() {
+        return privateMarker;
+    }
+    
+    /** Returns the first intermediate character, or 0 if there wasn't one. */
+    public char getIntermediate() {
+        return (intermediateCount > 0) ? intermediates[0] : 0;
+    }
+    
+    public int getParameterCount() {
+        return parameterCount;
+    }
+    
+    /** Returns the i'th parameter, or 'defaultValue' if it was omitted or empty. */
+    public int getParameter(int i, int defaultValue) {
+        if (i >= parameterCount || parameters[i] == MISSING) {
+            return defaultValue;
+        }
+        return parameters[i];
+    }
+    
+    /** Returns an OSC sequence's string, without the terminating BEL or ST. */
+    public String getString() {
+        return string.toString();
+    }
+    
+    /**
+     * Reconstructs the sequence, without the leading ESC, for diagnostics.
+     * This allocates, so it's not for use on any path that isn't reporting a problem.
+     */
+    @Override public String toString() {
+        StringBuilder result = new StringBuilder();
+        if (introducer != 0) {
+            result.append(introducer);
+        }
+        if (introducer == ']') {
+            return result.append(string).toString();
+        }
+        if (privateMarker != 0) {
+            result.append(privateMarker);
+        }
+        for (int i = 0; i < parameterCount; ++i) {
+            if (i > 0) {
+                result.append(';');
+            }
+            if (parameters[i] != MISSING) {
+                result.append(parameters[i]);
+            }
+        }
+        result.append(intermediates, 0, intermediateCount);
+        if (finalChar != 0) {
+            result.append(finalChar);
+        }
+        return result.toString();
+    }
+}
@@ -10,14 +10,15 @@ import terminator.terminal.*;
  */
 public class SingleCharEscapeAction implements TerminalAction {
     private TerminalControl control;
-    private char escChar;
+    private EscapeSequence sequence;
     
-    public SingleCharEscapeAction(TerminalControl control, char escChar) {
+    public SingleCharEscapeAction(TerminalControl control, EscapeSequence sequence) {
         this.control = control;
-        this.escChar = escChar;
+        this.sequence = sequence;
     }
 
     public void perform(TerminalModel model) {
+        final char escChar = sequence.getFinalChar();
         switch (escChar) {
             case '6':  // rxvt: scr_backindex
                 unsupported("scr_backindex");
@@ -75,12 +76,17 @@ public class SingleCharEscapeAction implements TerminalAction {
                 // Invoke the G3, G2, and G1 character sets as
                 // GR. Has no visible effect.
                 break;
+            case '\\':
+                // String terminator (ST).
+                // TerminalParser has already dealt with the OSC string it ends, and ignored anything else.
+                break;
             default:
                 Log.warn("Unrecognized single-character escape \"" + escChar + "\".");
         }
     }
     
     private String getType() {
+        final char escChar = sequence.getFinalChar();
         switch (escChar) {
         case '6': return "rxvt: scr_backindex (not supported)";
         case '7': return "Save cursor";
@@ -99,6 +105,7 @@ public class SingleCharEscapeAction implements TerminalAction {
         case '|':
         case '}':
         case '~': return "Invoke G3, G2, G1 character sets as GR";
+        case '\\': return "String terminator";
         default: return "Unrecognized:" + escChar;
         }
     }
@@ -108,6 +115,6 @@ public class SingleCharEscapeAction implements TerminalAction {
     }
     
     private void unsupported(String description) {
-        Log.warn("Unsupported single-character escape \"" + escChar + "\" (" + description + ").");
+        Log.warn("Unsupported single-character escape \"" + sequence.getFinalChar() + "\" (" + description + ").");
     }
 }
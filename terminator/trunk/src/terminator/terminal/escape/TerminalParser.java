@@ -0,0 +1,433 @@
+package terminator.terminal.escape;
+
+import e.gui.*;
+import e.util.*;
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+import javax.swing.*;
+import org.jessies.test.*;
+import terminator.model.*;
+import terminator.terminal.*;
+import terminator.view.*;
+
+/**
+ * Turns the child's output into calls on a TerminalModel.
+ * 
+ * This is the state machine from Paul Williams' "A parser for DEC's ANSI-compatible video terminals" (http://vt100.net/emu/dec_ansi_parser),
+ * driven by a table indexed by state and character.
+ * Runs of printable text go straight to the model as a single String, and escape sequences are accumulated in a single reused EscapeSequence,
+ * so the only allocation in the common case is the text itself.
+ * 
+ * The parser calls the model directly, so it must only be used on the thread that's allowed to modify the model.
+ * A sequence split across two calls to process is fine; the state carries over.
+ */
+public class TerminalParser {
+    private static final boolean DEBUG = false;
+    private static final boolean DEBUG_STEP_MODE = false;
+    private static final boolean SHOW_ASCII_RENDITION = false;
+    
+    private static BufferedReader stepModeReader;
+    
+    // States.
+    private static final int GROUND = 0;
+    private static final int ESCAPE = 1;
+    private static final int ESCAPE_INTERMEDIATE = 2;
+    private static final int CSI_ENTRY = 3;
+    private static final int CSI_PARAM = 4;
+    private static final int CSI_INTERMEDIATE = 5;
+    private static final int CSI_IGNORE = 6;
+    private static final int DCS_ENTRY = 7;
+    private static final int DCS_PARAM = 8;
+    private static final int DCS_INTERMEDIATE = 9;
+    private static final int DCS_PASSTHROUGH = 10;
+    private static final int DCS_IGNORE = 11;
+    private static final int OSC_STRING = 12;
+    private static final int SOS_PM_APC_STRING = 13;
+    private static final int STATE_COUNT = 14;
+    
+    // Actions.
+    private static final int NONE = 0;
+    private static final int PRINT = 1;
+    private static final int EXECUTE = 2;
+    private static final int COLLECT = 3;
+    private static final int PARAM = 4;
+    private static final int ESC_DISPATCH = 5;
+    private static final int CSI_DISPATCH = 6;
+    private static final int PUT = 7;
+    private static final int OSC_PUT = 8;
+    
+    // Each entry is (action << 4 | nextState), indexed by (state << 7 | ch) for ch < 0x80.
+    // Entering or leaving a state may have an action of its own; see transition.
+    private static final byte[] TABLE = new byte[STATE_COUNT << 7];
+    
+    static {
+        for (int state = 0; state < STATE_COUNT; ++state) {
+            // By default, everything is ignored.
+            on(state, 0x00, 0x7f, NONE, state);
+        }
+        
+        // C0 controls are executed even in the middle of a sequence, except in the string states.
+        for (int state : new int[] { GROUND, ESCAPE, ESCAPE_INTERMEDIATE, CSI_ENTRY, CSI_PARAM, CSI_INTERMEDIATE, CSI_IGNORE }) {
+            on(state, 0x00, 0x1f, EXECUTE, state);
+        }
+        on(DCS_PASSTHROUGH, 0x00, 0x1f, PUT, DCS_PASSTHROUGH);
+        
+        // Printable characters in the ground state are usually dealt with in bulk by process, but this covers the odd one in between controls.
+        on(GROUND, 0x20, 0x7e, PRINT, GROUND);
+        
+        on(ESCAPE, 0x20, 0x2f, COLLECT, ESCAPE_INTERMEDIATE);
+        on(ESCAPE, 0x30, 0x7e, ESC_DISPATCH, GROUND);
+        on(ESCAPE, 'P', 'P', NONE, DCS_ENTRY);
+        on(ESCAPE, 'X', 'X', NONE, SOS_PM_APC_STRING);
+        on(ESCAPE, '[', '[', NONE, CSI_ENTRY);
+        on(ESCAPE, ']', ']', NONE, OSC_STRING);
+        on(ESCAPE, '^', '_', NONE, SOS_PM_APC_STRING);
+        
+        on(ESCAPE_INTERMEDIATE, 0x20, 0x2f, COLLECT, ESCAPE_INTERMEDIATE);
+        on(ESCAPE_INTERMEDIATE, 0x30, 0x7e, ESC_DISPATCH, GROUND);
+        
+        // Williams sends ':' to CSI_IGNORE, but it's now used as a sub-parameter separator (as in "38:5:n"), so we treat it like ';'.
+        on(CSI_ENTRY, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE);
+        on(CSI_ENTRY, 0x30, 0x3b, PARAM, CSI_PARAM);
+        on(CSI_ENTRY, 0x3c, 0x3f, COLLECT, CSI_PARAM);
+        on(CSI_ENTRY, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+        
+        on(CSI_PARAM, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE);
+        on(CSI_PARAM, 0x30, 0x3b, PARAM, CSI_PARAM);
+        on(CSI_PARAM, 0x3c, 0x3f, NONE, CSI_IGNORE);
+        on(CSI_PARAM, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+        
+        on(CSI_INTERMEDIATE, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE);
+        on(CSI_INTERMEDIATE, 0x30, 0x3f, NONE, CSI_IGNORE);
+        on(CSI_INTERMEDIATE, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+        
+        on(CSI_IGNORE, 0x40, 0x7e, NONE, GROUND);
+        
+        on(DCS_ENTRY, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE);
+        on(DCS_ENTRY, 0x30, 0x3b, PARAM, DCS_PARAM);
+        on(DCS_ENTRY, ':', ':', NONE, DCS_IGNORE);
+        on(DCS_ENTRY, 0x3c, 0x3f, COLLECT, DCS_PARAM);
+        on(DCS_ENTRY, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+        
+        on(DCS_PARAM, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE);
+        on(DCS_PARAM, 0x30, 0x3b, PARAM, DCS_PARAM);
+        on(DCS_PARAM, ':', ':', NONE, DCS_IGNORE);
+        on(DCS_PARAM, 0x3c, 0x3f, NONE, DCS_IGNORE);
+        on(DCS_PARAM, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+        
+        on(DCS_INTERMEDIATE, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE);
+        on(DCS_INTERMEDIATE, 0x30, 0x3f, NONE, DCS_IGNORE);
+        on(DCS_INTERMEDIATE, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+        
+        on(DCS_PASSTHROUGH, 0x20, 0x7e, PUT, DCS_PASSTHROUGH);
+        
+        // xterm also accepts BEL as an OSC terminator, and most programs use it rather than ST.
+        on(OSC_STRING, 0x07, 0x07, NONE, GROUND);
+        on(OSC_STRING, 0x20, 0x7f, OSC_PUT, OSC_STRING);
+        
+        // These apply in every state, overriding everything above.
+        for (int state = 0; state < STATE_COUNT; ++state) {
+            on(state, Ascii.CAN, Ascii.CAN, EXECUTE, GROUND);
+            on(state, Ascii.SUB, Ascii.SUB, EXECUTE, GROUND);
+            on(state, Ascii.ESC, Ascii.ESC, NONE, ESCAPE);
+        }
+    }
+    
+    private static void on(int state, int first, int last, int action, int nextState) {
+        for (int ch = first; ch <= last; ++ch) {
+            TABLE[(state << 7) | ch] = (byte) ((action << 4) | nextState);
+        }
+    }
+    
+    private final TerminalControl control;
+    private final EscapeSequence sequence = new EscapeSequence();
+    private final CSIEscapeAction csiAction;
+    private final SingleCharEscapeAction singleCharAction;
+    private final TwoCharEscapeAction twoCharAction;
+    private final XTermEscapeAction xtermAction;
+    
+    private int state = GROUND;
+    
+    public TerminalParser(TerminalControl control) {
+        this.control = control;
+        this.csiAction = new CSIEscapeAction(control, sequence);
+        this.singleCharAction = new SingleCharEscapeAction(control, sequence);
+        this.twoCharAction = new TwoCharEscapeAction(control, sequence);
+        this.xtermAction = new XTermEscapeAction(sequence);
+    }
+    
+    public void process(TerminalModel model, char[] chars, int offset, int count) {
+        // Enable this if you're having trouble working out what we're being asked to interpret.
+        if (SHOW_ASCII_RENDITION) {
+            showAsciiRendition(chars, offset, count);
+        }
+        
+        final int end = offset + count;
+        int i = offset;
+        while (i < end) {
+            if (state == GROUND) {
+                // Most output is plain text, so find the whole run and hand it over in one go.
+                int start = i;
+                while (i < end && chars[i] >= ' ' && chars[i] != Ascii.DEL) {
+                    ++i;
+                }
+                if (i > start) {
+                    print(model, chars, start, i - start);
+                    continue;
+                }
+            }
+            
+            char ch = chars[i++];
+            if (ch >= 0x80) {
+                // Anything outside ASCII is text, even in the middle of a sequence (where it's ignored).
+                // Williams treats 0x80-0x9f as C1 controls, but we've already decoded UTF-8, and no-one sends 8-bit controls these days anyway.
+                if (state == OSC_STRING) {
+                    sequence.appendToString(ch);
+                } else if (state == GROUND) {
+                    print(model, chars, i - 1, 1);
+                }
+                continue;
+            }
+            
+            int entry = TABLE[(state << 7) | ch] & 0xff;
+            int action = entry >> 4;
+            int nextState = entry & 0xf;
+            switch (action) {
+            case NONE:
+                break;
+            case PRINT:
+                print(model, chars, i - 1, 1);
+                break;
+            case EXECUTE:
+                execute(model, ch);
+                break;
+            case COLLECT:
+                sequence.collect(ch);
+                break;
+            case PARAM:
+                sequence.param(ch);
+                break;
+            case ESC_DISPATCH:
+                sequence.setFinalChar(ch);
+                dispatch(model, (sequence.getIntermediate() != 0) ? twoCharAction : singleCharAction);
+                break;
+            case CSI_DISPATCH:
+                sequence.setFinalChar(ch);
+                dispatch(model, csiAction);
+                break;
+            case PUT:
+                // We don't support any DCS sequences; we just need to get past them.
+                break;
+            case OSC_PUT:
+                sequence.appendToString(ch);
+                break;
+            }
+            if (nextState != state) {
+                transition(model, nextState, ch);
+            }
+        }
+    }
+    
+    /** Performs the exit action of the current state and the entry action of the next, and changes state. */
+    private void transition(TerminalModel model, int nextState, char ch) {
+        if (state == OSC_STRING) {
+            dispatch(model, xtermAction);
+        } else if (state == DCS_PASSTHROUGH) {
+            Log.warn("Unsupported DCS sequence \"" + StringUtilities.escapeForJava(sequence.toString()) + "\".");
+        }
+        
+        state = nextState;
+        
+        switch (state) {
+        case ESCAPE:
+            sequence.clear();
+            break;
+        case CSI_ENTRY:
+        case DCS_ENTRY:
+        case OSC_STRING:
+            // The only way in to these states is from ESCAPE, which cleared the sequence.
+            sequence.setIntroducer(ch);
+            break;
+        case DCS_PASSTHROUGH:
+            sequence.setFinalChar(ch);
+            break;
+        }
+    }
+    
+    // print, execute, and dispatch are package-private only so that testSplitSequences can see what we'd do without needing a real model.
+    void print(TerminalModel model, char[] chars, int offset, int count) {
+        String line = new String(chars, offset, count);
+        if (DEBUG) {
+            Log.warn("Processing line \"" + line + "\"");
+        }
+        doStep();
+        model.processLine(line);
+    }
+    
+    void execute(TerminalModel model, char ch) {
+        switch (ch) {
+        case Ascii.LF:
+        case Ascii.CR:
+        case Ascii.BS:
+        case Ascii.HT:
+        case Ascii.VT:
+            if (DEBUG) {
+                Log.warn("Processing special char \"" + StringUtilities.escapeForJava(String.valueOf(ch)) + "\"");
+            }
+            doStep();
+            model.processSpecialCharacter(ch);
+            break;
+        case Ascii.SO:
+            control.invokeCharacterSet(1);
+            break;
+        case Ascii.SI:
+            control.invokeCharacterSet(0);
+            break;
+        case Ascii.BEL:
+            control.ringBell();
+            break;
+        default:
+            // Everything else (including CAN and SUB, which only abort sequences) has no visible effect.
+            // In particular, most telnetd(1) implementations seem to have a bug whereby
+            // they send the NUL byte at the end of the C strings they want to
+            // output when you first connect. Since all Unixes are pretty much
+            // copy and pasted from one another these days, this silly mistake
+            // only needed to be made once.
+            break;
+        }
+    }
+    
+    void dispatch(TerminalModel model, TerminalAction action) {
+        if (DEBUG) {
+            Log.warn("Processing escape sequence \"" + StringUtilities.escapeForJava(sequence.toString()) + "\"");
+        }
+        doStep();
+        action.perform(model);
+    }
+    
+    private static void showAsciiRendition(char[] chars, int offset, int count) {
+        for (int i = offset; i < offset + count; ++i) {
+            char ch = chars[i];
+            System.out.print((ch >= ' ' || ch == '\n') ? ch : '.');
+        }
+    }
+    
+    private static void doStep() {
+        if (DEBUG_STEP_MODE) {
+            try {
+                if (stepModeReader == null) {
+                    stepModeReader = new BufferedReader(new InputStreamReader(System.in));
+                }
+                stepModeReader.readLine();
+            } catch (IOException ex) {
+                Log.warn("Problem waiting for stepping input", ex);
+            }
+        }
+    }
+    
+    /**
+     * Measures how fast we can get output into the model, which is what the user is waiting for.
+     * Give it a file containing recorded output (from script(1) while running vttest or htop, say), or it makes up some htop-like output.
+     * This needs a display, because a TerminalModel needs a TerminalView.
+     */
+    public static void main(String[] arguments) throws Exception {
+        final char[] output = (arguments.length > 0) ? StringUtilities.readFile(arguments[0]).toCharArray() : makeFullScreenOutput(500);
+        EventQueue.invokeAndWait(new Runnable() {
+            public void run() {
+                benchmark(output);
+            }
+        });
+        System.exit(0);
+    }
+    
+    private static void benchmark(char[] output) {
+        TerminalView view = new TerminalView();
+        JScrollPane scrollPane = new JScrollPane(view);
+        view.setBirdView(new BirdView(view.getBirdsEye(), scrollPane.getVerticalScrollBar()));
+        TerminalControl control = new TerminalControl(null, view.getModel());
+        view.setTerminalControl(control);
+        final TerminalParser parser = new TerminalParser(control);
+        
+        final Stopwatch stopwatch = Stopwatch.get("TerminalParser.process");
+        long totalNs = 0;
+        final int iterationCount = 20;
+        for (int iteration = 0; iteration < iterationCount; ++iteration) {
+            Stopwatch.Timer timer = stopwatch.start();
+            // Feed the output in chunks the size of a typical read, as TerminalControl would.
+            for (int offset = 0; offset < output.length; offset += 8192) {
+                final char[] chars = output;
+                final int chunkOffset = offset;
+                final int chunkLength = Math.min(8192, output.length - offset);
+                view.getModel().processActions(new TerminalAction[] { new TerminalAction() {
+                    public void perform(TerminalModel model) {
+                        parser.process(model, chars, chunkOffset, chunkLength);
+                    }
+                }});
+            }
+            timer.stop();
+            totalNs += timer.ns();
+        }
+        double megabytesPerSecond = ((double) output.length * iterationCount / (1024 * 1024)) / (totalNs / 1e9);
+        System.err.println(stopwatch + " for " + output.length + " chars (" + String.format("%.1f", megabytesPerSecond) + " Mchar/s)");
+    }
+    
+    /** Returns something like what htop(1) produces: each frame repositions the cursor for every row and changes colors a few times per row. */
+    private static char[] makeFullScreenOutput(int frameCount) {
+        final Random random = new Random(0);
+        final String esc = String.valueOf(Ascii.ESC);
+        StringBuilder result = new StringBuilder();
+        for (int frame = 0; frame < frameCount; ++frame) {
+            result.append(esc + "[H");
+            for (int row = 1; row <= 24; ++row) {
+                result.append(esc + "[" + row + ";1H");
+                result.append(esc + "[30;42m" + String.format("%6d", random.nextInt(100000)));
+                result.append(esc + "[0;1;38;5;" + random.nextInt(256) + "m user     20   0 ");
+                result.append(esc + "[39;49m" + String.format("%5.1f %5.1f", 100 * random.nextDouble(), 100 * random.nextDouble()));
+                result.append(esc + "[m  /usr/bin/some-process --with-arguments" + esc + "[K");
+            }
+        }
+        return result.toString().toCharArray();
+    }
+    
+    /** Returns what a parser would do to the model given 'output' in pieces, split at the offsets in 'splits'. */
+    private static String parse(String output, int... splits) {
+        final StringBuilder result = new StringBuilder();
+        TerminalParser parser = new TerminalParser(null) {
+            @Override void print(TerminalModel model, char[] chars, int offset, int count) {
+                result.append(chars, offset, count);
+            }
+            
+            @Override void execute(TerminalModel model, char ch) {
+                result.append("<" + (int) ch + ">");
+            }
+            
+            @Override void dispatch(TerminalModel model, TerminalAction action) {
+                result.append("<ESC " + super.sequence + ">");
+            }
+        };
+        char[] chars = output.toCharArray();
+        int offset = 0;
+        for (int split : splits) {
+            parser.process(null, chars, offset, split - offset);
+            offset = split;
+        }
+        parser.process(null, chars, offset, chars.length - offset);
+        return result.toString();
+    }
+    
+    @Test private static void testSplitSequences() {
+        final String esc = String.valueOf(Ascii.ESC);
+        // A CSI sequence with parameters, a title (terminated by BEL), a single-character escape, a two-character escape, an APC string (which we skip), and a newline.
+        String output = "a" + esc + "[1;31mb" + esc + "]0;t\u00eftle" + Ascii.BEL + esc + "7" + esc + "(B" + esc + "_apc" + esc + "\\c\n";
+        String expected = "a<ESC [1;31m>b<ESC ]0;t\u00eftle><ESC 7><ESC (B><ESC \\>c<10>";
+        Assert.equals(parse(output), expected);
+        // However the output is split, the parser should do the same thing; only runs of text may be printed in pieces.
+        for (int split = 1; split < output.length(); ++split) {
+            Assert.equals(parse(output, split), expected);
+        }
+        Assert.equals(parse(output, 2, 3, 4, 5), expected);
+        // CAN aborts a sequence, even if it arrives in the next piece.
+        Assert.equals(parse(esc + "[1;" + Ascii.CAN + "x", 3), "<24>x");
+    }
+}
@@ -4,17 +4,21 @@ import e.util.*;
 import terminator.model.*;
 import terminator.terminal.*;
 
+/**
+ * Performs escape sequences consisting of ASCII ESC, an intermediate character, and a final character.
+ * The intermediate says what kind of sequence it is; for character set designation, the final character is the character set.
+ */
 public class TwoCharEscapeAction implements TerminalAction {
     private TerminalControl control;
-    private String sequence;
+    private EscapeSequence sequence;
     
-    public TwoCharEscapeAction(TerminalControl control, String sequence) {
+    public TwoCharEscapeAction(TerminalControl control, EscapeSequence sequence) {
         this.control = control;
         this.sequence = sequence;
     }
 
     public void perform(TerminalModel model) {
-        switch (sequence.charAt(0)) {
+        switch (sequence.getIntermediate()) {
             case '(':
             case ')':
             case '*':
@@ -23,20 +27,19 @@ public class TwoCharEscapeAction implements TerminalAction {
                 break;
             case '#':  // rxvt: if second char == '8', scr_E().
             case '$':  // rxvt: scr_charset_set(-2, second char).
-            case '@':  // rxvt ignores this completely.
-                Log.warn("Unsupported two-character escape \"" + StringUtilities.escapeForJava(sequence) + "\".");
+                Log.warn("Unsupported two-character escape \"" + StringUtilities.escapeForJava(sequence.toString()) + "\".");
                 break;
             default:
-                Log.warn("Unrecognized two-character escape \"" + StringUtilities.escapeForJava(sequence) + "\".");
+                Log.warn("Unrecognized two-character escape \"" + StringUtilities.escapeForJava(sequence.toString()) + "\".");
         }
     }
     
     private int getCharacterSetIndex() {
-        return "()*+".indexOf(sequence.charAt(0));
+        return "()*+".indexOf(sequence.getIntermediate());
     }
     
     private char getCharacterSet() {
-        return sequence.charAt(1);
+        return sequence.getFinalChar();
     }
     
     @Override public String toString() {
@@ -44,7 +47,7 @@ public class TwoCharEscapeAction implements TerminalAction {
         if (characterSetIndex != -1) {
             return "TwoCharEscapeAction[Set character set at index " + characterSetIndex + " to " + getCharacterSet() + "]";
         } else {
-            return "TwoCharEscapeAction[Unsupported:" + StringUtilities.escapeForJava(sequence) + "]";
+            return "TwoCharEscapeAction[Unsupported:" + StringUtilities.escapeForJava(sequence.toString()) + "]";
         }
     }
 }
@@ -7,20 +7,14 @@ import terminator.terminal.*;
 /**
  * An XTermEscapeAction performs the action associated with an XTerm OSC (Operating System Command) escape sequence.
  * XTerm escape sequences always start with a ']' character, followed by a number.
- * An optional ';' follows, marking the start of a BEL-terminated string.
- * We strip off the initial ']' and the BEL terminator, if present, in the constructor, since they contain no information.
- * FIXME: this is probably a mistake if we're planning on outputting the sequence in toString, or if we ever support other OSCs.
+ * An optional ';' follows, marking the start of a string terminated by BEL or ST.
+ * TerminalParser gives us the string between the ']' and the terminator.
  */
 public class XTermEscapeAction implements TerminalAction {
-    private String sequence;
+    private EscapeSequence sequence;
     
-    public XTermEscapeAction(String sequence) {
-        // Trim off the initial ']', and the terminating BEL character (if present).
-        if (sequence.charAt(sequence.length() - 1) == '\007') {
-            this.sequence = sequence.substring(1, sequence.length() - 1);
-        } else {
-            this.sequence = sequence.substring(1);
-        }
+    public XTermEscapeAction(EscapeSequence sequence) {
+        this.sequence = sequence;
     }
 
     /**
@@ -41,26 +35,24 @@ public class XTermEscapeAction implements TerminalAction {
      *      49 = change default bg color
      */
     public void perform(TerminalModel model) {
-        if (isNewWindowTitle()) {
-            model.setWindowTitle(getNewWindowTitle());
+        String string = sequence.getString();
+        if (isNewWindowTitle(string)) {
+            model.setWindowTitle(string.substring(2));
         } else {
-            Log.warn("Unsupported XTerm escape sequence \"" + StringUtilities.escapeForJava(sequence) + "\".");
+            Log.warn("Unsupported XTerm escape sequence \"" + StringUtilities.escapeForJava(string) + "\".");
         }
     }
     
-    private boolean isNewWindowTitle() {
-        return (sequence.startsWith("2;") || sequence.startsWith("0;"));
-    }
-    
-    private String getNewWindowTitle() {
-        return sequence.substring(2);
+    private static boolean isNewWindowTitle(String string) {
+        return (string.startsWith("2;") || string.startsWith("0;"));
     }
     
     @Override public String toString() {
-        if (isNewWindowTitle()) {
-            return "XTermEscapeAction[New window title:\"" + StringUtilities.escapeForJava(getNewWindowTitle()) + "\"]";
+        String string = sequence.getString();
+        if (isNewWindowTitle(string)) {
+            return "XTermEscapeAction[New window title:\"" + StringUtilities.escapeForJava(string.substring(2)) + "\"]";
         } else {
-            return "XTermEscapeAction[Unsupported:" + StringUtilities.escapeForJava(sequence) + "]";
+            return "XTermEscapeAction[Unsupported:" + StringUtilities.escapeForJava(string) + "]";
         }
     }
 }
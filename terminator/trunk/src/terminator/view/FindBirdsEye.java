@@ -16,6 +16,11 @@ public class FindBirdsEye implements BirdsEye {
         this.currentLineIndex = currentLineIndex;
     }
     
+    /** Moves the current line up to match the model discarding lines of scrollback. */
+    public void linesDiscarded(int lineCount) {
+        currentLineIndex = (currentLineIndex < lineCount) ? -1 : currentLineIndex - lineCount;
+    }
+    
     public int getVisibleLineCount() {
         return view.getModel().getLineCount();
     }
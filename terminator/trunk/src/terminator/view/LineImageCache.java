@@ -0,0 +1,54 @@
+package terminator.view;
+
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Remembers what recently-painted lines looked like, keyed by TextLine.getContentKey.
+ * Repainting a line we've seen before is then a blit rather than text layout, which matters because the model asks us to repaint everything from the first changed line down.
+ * A full-screen program scrolling a region, or redrawing a screen that's mostly the same, only costs us text layout for the lines that actually changed.
+ * 
+ * The images include the text and its style runs' backgrounds, but nothing transient (the cursor, the selection, find matches, or a URL under the mouse).
+ * Anything that changes what all lines look like (the font, the colors, anti-aliasing) means the cache needs clearing; see TerminalView.optionsDidChange.
+ */
+class LineImageCache {
+    // A few screenfuls of lines, even on a big screen.
+    private static final long MAX_PIXEL_COUNT = 4 * 1024 * 1024;
+    // Lines longer than this are rare, and would use up too much of the cache.
+    static final int MAX_IMAGE_WIDTH = 4096;
+    
+    // In least-recently-used order, so we know what to evict.
+    private final LinkedHashMap<Object, BufferedImage> images = new LinkedHashMap<Object, BufferedImage>(64, 0.75f, true);
+    private long pixelCount = 0;
+    
+    public BufferedImage get(Object key) {
+        return images.get(key);
+    }
+    
+    public void put(Object key, BufferedImage image) {
+        BufferedImage oldImage = images.put(key, image);
+        if (oldImage != null) {
+            pixelCount -= getPixelCount(oldImage);
+        }
+        pixelCount += getPixelCount(image);
+        Iterator<BufferedImage> it = images.values().iterator();
+        while (pixelCount > MAX_PIXEL_COUNT && it.hasNext()) {
+            BufferedImage eldest = it.next();
+            if (eldest == image) {
+                // Never evict what we've just added.
+                break;
+            }
+            pixelCount -= getPixelCount(eldest);
+            it.remove();
+        }
+    }
+    
+    public void clear() {
+        images.clear();
+        pixelCount = 0;
+    }
+    
+    private static long getPixelCount(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight();
+    }
+}
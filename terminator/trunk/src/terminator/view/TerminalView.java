@@ -3,6 +3,7 @@ package terminator.view;
 import java.awt.*;
 import java.awt.datatransfer.*;
 import java.awt.event.*;
+import java.awt.image.*;
 import java.util.*;
 import java.util.List;
 import javax.swing.*;
@@ -17,6 +18,11 @@ import terminator.view.highlight.*;
 public class TerminalView extends JComponent implements FocusListener, Scrollable {
     private static final Stopwatch paintComponentStopwatch = Stopwatch.get("TerminalView.paintComponent");
     private static final Stopwatch paintStyledTextStopwatch = Stopwatch.get("TerminalView.paintStyledText");
+    private static final Stopwatch renderLineImageStopwatch = Stopwatch.get("TerminalView.renderLineImage");
+    
+    private final LineImageCache lineImageCache = new LineImageCache();
+    // Translucent versions of foreground colors, for underlining; there are rarely more than a few in use at once.
+    private final HashMap<Color, Color> underlineColors = new HashMap<Color, Color>();
     
     private TerminalModel model;
     private Location cursorPosition = new Location(0, 0);
@@ -33,12 +39,12 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private FindBirdsEye birdsEye;
     
     // Size may be smaller than model's lines. Elements may be null, but should not be empty.
+    // Each element holds a line's matches as start and end offset pairs, in order; see FindHighlighter.findMatches.
     // FIXME: this is a mistake:
     // 1. Lines with matches/URLs are very rare, so we shouldn't waste space on lines with no matches.
-    // 2. We should use List<Range> rather than Range[].
-    // 3. Using null instead of an empty array or list is gross (but any fix for #1 probably fixes this).
-    private final ArrayList<Range[]> urlMatches = new ArrayList<Range[]>();
-    private final ArrayList<Range[]> findMatches = new ArrayList<Range[]>();
+    // 2. Using null instead of an empty array is gross (but any fix for #1 probably fixes this).
+    private final ArrayList<int[]> urlMatches = new ArrayList<int[]>();
+    private final ArrayList<int[]> findMatches = new ArrayList<int[]>();
     
     // If non-null, the row of this is mouseLocation.getLineIndex()
     private Range urlUnderMouse = null;
@@ -104,6 +110,8 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     public void optionsDidChange() {
         TerminatorPreferences preferences = Terminator.getPreferences();
         setFont(preferences.getFont(TerminatorPreferences.FONT));
+        // Any of the font, the colors, or anti-aliasing may have changed, so everything we've rendered may be wrong.
+        lineImageCache.clear();
         sizeChanged();
     }
     
@@ -260,7 +268,10 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     
     public void sizeChanged(Dimension oldSizeInChars, Dimension newSizeInChars) {
         sizeChanged();
-        redoHighlightsFrom(Math.min(oldSizeInChars.height, newSizeInChars.height));
+        // Lines are never rewrapped, so a change of width alone leaves every line's highlights where they were.
+        if (oldSizeInChars.height != newSizeInChars.height) {
+            redoHighlightsFrom(Math.min(oldSizeInChars.height, newSizeInChars.height));
+        }
     }
     
     public void scrollToBottomButNotHorizontally() {
@@ -477,14 +488,14 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         return new Dimension(width, height);
     }
     
-    public void setUrlMatches(int lineIndex, Range[] matches) {
+    public void setUrlMatches(int lineIndex, int[] matches) {
         resizeAndSet(urlMatches, lineIndex, matches);
         if (lineIndex == mouseLocation.getLineIndex()) {
             urlUnderMouse = getUrlForLocation(mouseLocation);
         }
     }
     
-    public void setFindMatches(int lineIndex, Range[] matches) {
+    public void setFindMatches(int lineIndex, int[] matches) {
         resizeAndSet(findMatches, lineIndex, matches);
         birdView.addMatchingLine(lineIndex);
     }
@@ -512,6 +523,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     }
     
     public void removeHighlightsFrom(int firstLineIndex) {
+        findHighlighter.linesChangedFrom(firstLineIndex);
         if (firstLineIndex == 0) {
             urlUnderMouse = null;
             urlMatches.clear();
@@ -537,6 +549,45 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         }
     }
     
+    /**
+     * Called by the model when it discards the oldest lines of scrollback.
+     * Everything we know about by line index has to move up.
+     */
+    public void linesDiscarded(int lineCount) {
+        urlUnderMouse = null;
+        mouseLocation = new Location(Math.max(0, mouseLocation.getLineIndex() - lineCount), -1);
+        removeFirstElements(urlMatches, lineCount);
+        removeFirstElements(findMatches, lineCount);
+        birdView.setValueIsAdjusting(true);
+        try {
+            birdView.clearMatchingLines();
+            for (int i = 0; i < findMatches.size(); ++i) {
+                if (findMatches.get(i) != null) {
+                    birdView.addMatchingLine(i);
+                }
+            }
+        } finally {
+            birdView.setValueIsAdjusting(false);
+        }
+        birdsEye.linesDiscarded(lineCount);
+        findHighlighter.linesDiscarded(lineCount);
+        selectionHighlighter.linesDiscarded(lineCount);
+        
+        // Keep the same text in view if the user's reading the scrollback.
+        // If they're at the bottom, scrollOnTtyOutput will keep them there.
+        JViewport viewport = getViewport();
+        if (viewport != null) {
+            Point position = viewport.getViewPosition();
+            position.y = Math.max(0, position.y - lineCount * getCharUnitSize().height);
+            viewport.setViewPosition(position);
+        }
+        repaint();
+    }
+    
+    private static <T> void removeFirstElements(ArrayList<T> list, int count) {
+        list.subList(0, Math.min(count, list.size())).clear();
+    }
+    
     public BirdView getBirdView() {
         return birdView;
     }
@@ -564,9 +615,9 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             throw new IllegalArgumentException("Invalid direction: " + direction);
         }
         for (int i = startLine; i != endLine; i += direction) {
-            Range[] matches = matchesForLine(i);
+            int[] matches = matchesForLine(i);
             if (matches != null) {
-                scrollTo(i, matches[0].getStart(), matches[0].getEnd());
+                scrollTo(i, matches[0], matches[1]);
                 birdsEye.setCurrentLineIndex(i);
                 // Highlight the new match in the bird view as well as in the text itself.
                 birdView.repaint();
@@ -575,7 +626,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         }
     }
     
-    private Range[] matchesForLine(int i) {
+    private int[] matchesForLine(int i) {
         return i >= findMatches.size() ? null : findMatches.get(i);
     }
     
@@ -615,13 +666,14 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         if (line >= urlMatches.size() || urlMatches.get(line) == null) {
             return null;
         }
-        for (Range r : urlMatches.get(line)) {
+        int[] matches = urlMatches.get(line);
+        for (int i = 0; i < matches.length; i += 2) {
             // Optimization: URLs are in order.
-            if (r.getStart() > offset) {
+            if (matches[i] > offset) {
                 return null;
             }
-            if (r.getStart() <= offset && offset < r.getEnd()) {
-                return r;
+            if (matches[i] <= offset && offset < matches[i + 1]) {
+                return new Range(matches[i], matches[i + 1]);
             }
         }
         return null;
@@ -695,7 +747,8 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         Stopwatch.Timer timer = paintComponentStopwatch.start();
         try {
             Graphics2D g = (Graphics2D) oldGraphics;
-            GuiUtilities.setTextAntiAliasing(g, Terminator.getPreferences().getBoolean(TerminatorPreferences.ANTI_ALIAS));
+            final boolean antiAlias = Terminator.getPreferences().getBoolean(TerminatorPreferences.ANTI_ALIAS);
+            GuiUtilities.setTextAntiAliasing(g, antiAlias);
             
             FontMetrics metrics = getFontMetrics(getFont());
             Dimension charUnitSize = getCharUnitSize();
@@ -707,7 +760,6 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             // We manually "clip" for performance, but we're quite loose about it.
             // This avoids accidental pathological cases (hopefully) and doesn't seem to have any significant cost.
             final int maxX = rect.x + rect.width;
-            final int widthHintInChars = maxX / charUnitSize.width * 2;
             
             Insets insets = getInsets();
             int firstTextLine = (rect.y - insets.top) / charUnitSize.height;
@@ -716,11 +768,17 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             final Location selectionStart = selectionHighlighter.getStart();
             final Location selectionEnd = selectionHighlighter.getEnd();
             final boolean hasSelection = selectionStart != null;
+            // FIXME: this is likely to want some tuning; in particular, we might need to distinguish between light-on-dark and dark-on-light color schemes.
+            final Color selectionColor = Terminator.getPreferences().getColor(TerminatorPreferences.SELECTION_COLOR);
+            final Color translucentSelectionColor = new Color(selectionColor.getRed(), selectionColor.getGreen(), selectionColor.getBlue(), 128);
+            // We can only cache images of lines if we can make images that are quick to draw, and if we can draw them opaquely.
+            final GraphicsConfiguration graphicsConfiguration = getGraphicsConfiguration();
+            final boolean canCacheLines = (graphicsConfiguration != null && getBackground().getAlpha() == 255);
 
             for (int i = firstTextLine; i <= lastTextLine; i++) {
-                boolean drawCursor = (shouldShowCursor() && i == cursorPosition.getLineIndex());
                 int x = insets.left;
-                int baseline = insets.top + charUnitSize.height * (i + 1) - metrics.getMaxDescent();
+                int lineTop = insets.top + charUnitSize.height * i;
+                int baseline = lineTop + charUnitSize.height - metrics.getMaxDescent();
                 TextLine textLine = model.getTextLine(i);
                 final int length = textLine.length();
                 int urlStart = length;
@@ -729,35 +787,38 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                     urlStart = urlUnderMouse.getStart();
                     urlEnd = urlUnderMouse.getEnd();
                 }
-                Range[] findResults = matchesForLine(i);
-                int findIndex = -1;
-                int findStart = 0, findEnd = -1;
-                for (int start = 0, end, done; start < length && x < maxX; start = done) {
-                    if (findResults != null && findEnd <= start && ++findIndex < findResults.length) {
-                        findStart = findResults[findIndex].getStart();
-                        findEnd = findResults[findIndex].getEnd();
-                    }
-                    end = getMinGT(start, findStart, findEnd, urlStart, urlEnd, length);
-                    done = textLine.getRunLimit(start, end);
-                    String text = textLine.getSubstring(start, done);
-                    Style style = textLine.getStyleAt(start);
-                    boolean isUrl = urlStart <= start && start < urlEnd;
-                    boolean isFind = findStart <= start && start < findEnd;
-                    x += paintStyledText(g, metrics, text, style, x, baseline, isUrl, isFind);
-                    if (drawCursor && cursorPosition.charOffsetInRange(start, done)) {
-                        paintCursor(g, textLine.getSubstring(cursorPosition.getCharOffset(), cursorPosition.getCharOffset() + 1), baseline);
-                        drawCursor = false;
+                int[] findResults = matchesForLine(i);
+                
+                // Find matches and URLs under the mouse are rare and transient, so lines with them are always painted directly.
+                BufferedImage image = null;
+                if (canCacheLines && length > 0 && findResults == null && urlStart == length) {
+                    Object key = textLine.getContentKey();
+                    image = lineImageCache.get(key);
+                    if (image == null) {
+                        image = renderLineImage(graphicsConfiguration, metrics, antiAlias, textLine, insets.left, lineTop, baseline);
+                        if (image != null) {
+                            lineImageCache.put(key, image);
+                        }
                     }
                 }
+                if (image != null) {
+                    g.drawImage(image, x, lineTop, null);
+                    // The image has an extra column for the overstrike of bold text; see paintStyledText.
+                    x += image.getWidth() - 1;
+                } else {
+                    x = paintLineText(g, metrics, textLine, x, baseline, maxX, urlStart, urlEnd, findResults);
+                }
+                
                 Color lineBG = textLine.getBackground();
                 if (x < maxX && !getBackground().equals(lineBG)) {
                     // Fill the rest of the line with line's default background
                     g.setColor(lineBG);
                     g.fillRect(x, baseline - metrics.getMaxAscent() - metrics.getLeading(), maxX - x, charUnitSize.height);
                 }
-                if (drawCursor) {
+                if (shouldShowCursor() && i == cursorPosition.getLineIndex()) {
                     // A cursor at the end of the line is in a position past the end of the text.
-                    paintCursor(g, "", baseline);
+                    int offset = cursorPosition.getCharOffset();
+                    paintCursor(g, (offset < length) ? textLine.getSubstring(offset, offset + 1) : "", baseline);
                 }
                 if (hasSelection && selectionStart.getLineIndex() <= i && i <= selectionEnd.getLineIndex()) {
                     boolean blockMode = selectionHighlighter.isBlockMode();
@@ -771,9 +832,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                         paddedLine += StringUtilities.nCopies(charactersOfPaddingRequired, 'W');
                     }
 
-                    // FIXME: this is likely to want some tuning; in particular, we might need to distinguish between light-on-dark and dark-on-light color schemes.
-                    Color selectionColor = Terminator.getPreferences().getColor(TerminatorPreferences.SELECTION_COLOR);
-                    g.setColor(new Color(selectionColor.getRed(), selectionColor.getGreen(), selectionColor.getBlue(), 128));
+                    g.setColor(translucentSelectionColor);
 
                     x = insets.left + (start == 0 ? 0 : metrics.stringWidth(paddedLine.substring(0, start)));
                     int y = baseline - metrics.getMaxAscent() - metrics.getLeading();
@@ -788,6 +847,70 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         }
     }
     
+    /**
+     * Paints a line's text, run by run, starting at 'x'.
+     * Returns the x coordinate of the end of the text, or somewhere past 'maxX' if we gave up early.
+     */
+    private int paintLineText(Graphics2D g, FontMetrics metrics, TextLine textLine, int x, int baseline, int maxX, int urlStart, int urlEnd, int[] findResults) {
+        final int length = textLine.length();
+        int findIndex = -2;
+        int findStart = 0, findEnd = -1;
+        for (int start = 0, end, done; start < length && x < maxX; start = done) {
+            if (findResults != null && findEnd <= start && (findIndex += 2) < findResults.length) {
+                findStart = findResults[findIndex];
+                findEnd = findResults[findIndex + 1];
+            }
+            end = getMinGT(start, findStart, findEnd, urlStart, urlEnd, length);
+            done = textLine.getRunLimit(start, end);
+            String text = textLine.getSubstring(start, done);
+            Style style = textLine.getStyleAt(start);
+            boolean isUrl = urlStart <= start && start < urlEnd;
+            boolean isFind = findStart <= start && start < findEnd;
+            x += paintStyledText(g, metrics, text, style, x, baseline, isUrl, isFind);
+        }
+        return x;
+    }
+    
+    /**
+     * Returns an image of the given line's text, the line's top left corner at (x, y) corresponding to the image's top left corner.
+     * Returns null if the line's too wide to be worth caching.
+     */
+    private BufferedImage renderLineImage(GraphicsConfiguration graphicsConfiguration, FontMetrics metrics, boolean antiAlias, TextLine textLine, int x, int y, int baseline) {
+        Stopwatch.Timer timer = renderLineImageStopwatch.start();
+        try {
+            // Size the image by columns, because FontMetrics.stringWidth doesn't allow for anti-aliasing (see HACKING).
+            // One extra column for the overstrike of bold text.
+            Dimension charUnitSize = getCharUnitSize();
+            int length = textLine.length();
+            int width = charUnitSize.width * length + 1;
+            for (;;) {
+                if (width > LineImageCache.MAX_IMAGE_WIDTH) {
+                    return null;
+                }
+                BufferedImage image = graphicsConfiguration.createCompatibleImage(width, charUnitSize.height);
+                int textWidth;
+                Graphics2D g = image.createGraphics();
+                try {
+                    g.setColor(getBackground());
+                    g.fillRect(0, 0, width, charUnitSize.height);
+                    g.setFont(getFont());
+                    GuiUtilities.setTextAntiAliasing(g, antiAlias);
+                    g.translate(-x, -y);
+                    textWidth = paintLineText(g, metrics, textLine, x, baseline, Integer.MAX_VALUE, length, length, null) - x;
+                } finally {
+                    g.dispose();
+                }
+                if (textWidth < width) {
+                    return image;
+                }
+                // Some characters were wider than a column (East Asian ones, say), so try again with room for what we actually painted.
+                width = textWidth + 1;
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+    
     /**
      * Paints the cursor, which is either a solid block or an underline.
      * The cursor may actually be invisible because it's blinking and in
@@ -850,7 +973,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                 g.fillRect(x, y - metrics.getMaxAscent() - metrics.getLeading(), backgroundWidth, metrics.getHeight());
             }
             if (url || style.isUnderlined()) {
-                g.setColor(new Color(foreground.getRed(), foreground.getGreen(), foreground.getBlue(), 128));
+                g.setColor(getUnderlineColor(foreground));
                 g.drawLine(x, y + 1, x + textWidth, y + 1);
             }
             g.setColor(foreground);
@@ -874,6 +997,19 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         }
     }
     
+    private Color getUnderlineColor(Color foreground) {
+        Color color = underlineColors.get(foreground);
+        if (color == null) {
+            if (underlineColors.size() >= 256) {
+                // Someone's using a lot of 24-bit color.
+                underlineColors.clear();
+            }
+            color = new Color(foreground.getRed(), foreground.getGreen(), foreground.getBlue(), 128);
+            underlineColors.put(foreground, color);
+        }
+        return color;
+    }
+    
     //
     // FocusListener interface.
     //
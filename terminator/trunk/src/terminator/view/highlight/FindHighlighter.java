@@ -1,17 +1,20 @@
 package terminator.view.highlight;
 
 import e.util.*;
-import java.awt.*;
-import java.awt.event.*;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.regex.*;
-import java.util.ArrayList;
 import org.jdesktop.swingworker.SwingWorker;
 import terminator.model.*;
 import terminator.view.*;
 
 /**
  * Highlights the results of user-initiated finds.
+ * 
+ * A new pattern is sought in a snapshot of the text on a background thread, starting with the lines nearest to those on the display, so the user sees those matches straight away.
+ * Matches are handed over to the view a block of lines at a time, so the rest fill in as the search works outwards.
+ * Meanwhile, the terminal carries on: lines that change, including new output, are searched on the EDT as they change (see addHighlightsFrom), which is cheap because it's only the changed lines.
+ * The background search ignores anything it finds in such lines, because its snapshot of them is out of date.
  */
 public class FindHighlighter {
     private static final ExecutorService executorService = ThreadUtilities.newSingleThreadExecutor("Background Find");
@@ -19,6 +22,12 @@ public class FindHighlighter {
     private Pattern pattern;
     private String regularExpression = "";
     
+    // The matcher for addHighlightsFrom, reused because that's called for every batch of output.
+    private Matcher matcher;
+    
+    // The background search, if one is running.
+    private BackgroundFind backgroundFind;
+    
     public String getName() {
         return "Find Highlighter";
     }
@@ -32,7 +41,7 @@ public class FindHighlighter {
      * 
      * Status changes will be reported to 'findStatusDisplay' on the EDT.
      */
-    public void setPattern(final TerminalView view, String newRegularExpression, final FindStatusDisplay findStatusDisplay) {
+    public void setPattern(TerminalView view, String newRegularExpression, FindStatusDisplay findStatusDisplay) {
         // Don't waste time re-finding all the current matches.
         if (newRegularExpression.equals(regularExpression)) {
             return;
@@ -51,68 +60,226 @@ public class FindHighlighter {
         try {
             this.pattern = PatternUtilities.smartCaseCompile(newRegularExpression);
             this.regularExpression = newRegularExpression;
+            this.matcher = pattern.matcher("");
         } catch (PatternSyntaxException ex) {
             findStatusDisplay.setStatus(ex.getDescription(), true);
             return;
         }
         
-        executorService.execute(new SwingWorker<Object, Object>() {
-            private int matchCount;
-            
-            @Override
-            protected Object doInBackground() {
-                matchCount = addHighlightsInternal(view, 0);
-                return null;
-            }
-            
-            @Override
-            protected void done() {
-                findStatusDisplay.setStatus(StringUtilities.pluralize(matchCount, "match", "matches"), false);
-            }
-        });
+        backgroundFind = new BackgroundFind(view, findStatusDisplay);
+        executorService.execute(backgroundFind);
     }
     
     public void forgetPattern(TerminalView view) {
+        if (backgroundFind != null) {
+            backgroundFind.cancel(false);
+            backgroundFind = null;
+        }
         view.removeFindMatches();
         this.pattern = null;
         this.regularExpression = "";
+        this.matcher = null;
     }
     
     /** Request to add highlights to all lines of the view from the index given onwards. */
     public void addHighlightsFrom(TerminalView view, int firstLineIndex) {
-        addHighlightsInternal(view, firstLineIndex);
-    }
-
-    /**
-     * Returns the number of highlights added.
-     */
-    private int addHighlightsInternal(TerminalView view, int firstLineIndex) {
         if (pattern == null) {
-            return 0;
+            return;
         }
+        linesChangedFrom(firstLineIndex);
         view.getBirdView().setValueIsAdjusting(true);
         try {
-            // FIXME: this code is duplicated in UrlHighlighter.addHighlightsFrom.
             TerminalModel model = view.getModel();
-            int count = 0;
-            // FIXME: this strange scoping avoids allocating an ArrayList for lines without matches, but there must be a cleaner way.
-            final ArrayList<Range> matches = new ArrayList<Range>();
             for (int i = model.getLineCount() - 1; i >= firstLineIndex; i--) {
                 String text = model.getTextLine(i).getString();
-                Matcher matcher = pattern.matcher(text);
-                matches.clear();
-                while (matcher.find()) {
-                    matches.add(new Range(matcher.start(), matcher.end()));
-                    ++count;
-                }
-                if (!matches.isEmpty()) {
-                    // FIXME: the toArray is a mistake. We should use List<Range> instead.
-                    view.setFindMatches(i, matches.toArray(new Range[matches.size()]));
+                int[] matches = findMatches(matcher.reset(text), 0);
+                if (matches != null) {
+                    view.setFindMatches(i, matches);
                 }
             }
-            return count;
         } finally {
             view.getBirdView().setValueIsAdjusting(false);
         }
     }
+    
+    /** Tells any background search that its snapshot of the lines from the index given onwards is out of date. */
+    public void linesChangedFrom(int firstLineIndex) {
+        if (backgroundFind != null) {
+            backgroundFind.linesChangedFrom(firstLineIndex);
+        }
+    }
+    
+    /** Tells any background search that the model has discarded the oldest lines of scrollback. */
+    public void linesDiscarded(int lineCount) {
+        if (backgroundFind != null) {
+            backgroundFind.linesDiscarded(lineCount);
+        }
+    }
+    
+    /**
+     * Returns the offsets of each match in the matcher's region, relative to 'regionStart', as start and end pairs.
+     * Returns null if there aren't any matches, which is the usual case, so we don't allocate anything for that.
+     */
+    static int[] findMatches(Matcher matcher, int regionStart) {
+        if (matcher.find() == false) {
+            return null;
+        }
+        int[] matches = new int[2];
+        int count = 0;
+        do {
+            if (count == matches.length) {
+                matches = Arrays.copyOf(matches, 2 * count);
+            }
+            matches[count++] = matcher.start() - regionStart;
+            matches[count++] = matcher.end() - regionStart;
+        } while (matcher.find());
+        return (count == matches.length) ? matches : Arrays.copyOf(matches, count);
+    }
+    
+    /**
+     * Searches a snapshot of all the text, a block at a time, publishing each block's matches for the EDT to add to the view.
+     * Line indexes are the snapshot's; the EDT-only fields below let us map them to the model's current line indexes, or know that we can't.
+     */
+    private class BackgroundFind extends SwingWorker<Object, BlockMatches> {
+        private final TerminalView view;
+        private final FindStatusDisplay findStatusDisplay;
+        private final Pattern pattern;
+        private final TextSnapshot snapshot;
+        private final int firstVisibleLineIndex;
+        
+        // Only written by the background thread.
+        private volatile int publishedBlockCount = 0;
+        
+        // EDT-only.
+        // How many lines the model has discarded since we took our snapshot.
+        private int discardedLineCount = 0;
+        // The lowest snapshot line index of a line that's changed since we took our snapshot.
+        // That line and everything after it has been searched on the EDT, so our results for them are out of date.
+        private int firstChangedLineIndex = Integer.MAX_VALUE;
+        private int matchCount = 0;
+        private int processedBlockCount = 0;
+        private boolean isSearchDone = false;
+        private boolean isFinished = false;
+        
+        BackgroundFind(TerminalView view, FindStatusDisplay findStatusDisplay) {
+            this.view = view;
+            this.findStatusDisplay = findStatusDisplay;
+            this.pattern = FindHighlighter.this.pattern;
+            this.snapshot = view.getModel().getTextSnapshot();
+            this.firstVisibleLineIndex = view.getFirstVisibleLine();
+        }
+        
+        void linesChangedFrom(int lineIndex) {
+            firstChangedLineIndex = Math.min(firstChangedLineIndex, lineIndex + discardedLineCount);
+        }
+        
+        void linesDiscarded(int lineCount) {
+            discardedLineCount += lineCount;
+        }
+        
+        @Override
+        protected Object doInBackground() {
+            Matcher matcher = pattern.matcher("");
+            // Start with the block the user's looking at, and work outwards from there.
+            int blockCount = snapshot.getBlockCount();
+            int firstBlock = snapshot.getBlockIndex(firstVisibleLineIndex);
+            for (int distance = 0; distance < blockCount && isCancelled() == false; ++distance) {
+                if (firstBlock + distance < blockCount) {
+                    searchBlock(matcher, firstBlock + distance);
+                }
+                if (distance > 0 && firstBlock - distance >= 0) {
+                    searchBlock(matcher, firstBlock - distance);
+                }
+            }
+            return null;
+        }
+        
+        private void searchBlock(Matcher matcher, int blockIndex) {
+            TextSnapshot.Block block = snapshot.getBlock(blockIndex);
+            matcher.reset(block.getText());
+            BlockMatches blockMatches = new BlockMatches();
+            for (int i = 0; i < block.getLineCount(); ++i) {
+                int lineStart = block.getLineStart(i);
+                int[] matches = findMatches(matcher.region(lineStart, block.getLineEnd(i)), lineStart);
+                if (matches != null) {
+                    blockMatches.add(block.getFirstLineIndex() + i, matches);
+                }
+            }
+            ++publishedBlockCount;
+            publish(blockMatches);
+        }
+        
+        @Override
+        protected void process(List<BlockMatches> chunks) {
+            if (isCancelled()) {
+                return;
+            }
+            view.getBirdView().setValueIsAdjusting(true);
+            try {
+                for (BlockMatches blockMatches : chunks) {
+                    for (int i = 0; i < blockMatches.lineIndexes.size(); ++i) {
+                        int lineIndex = blockMatches.lineIndexes.get(i);
+                        if (lineIndex < discardedLineCount || lineIndex >= firstChangedLineIndex) {
+                            continue;
+                        }
+                        int[] matches = blockMatches.matches.get(i);
+                        view.setFindMatches(lineIndex - discardedLineCount, matches);
+                        matchCount += matches.length / 2;
+                    }
+                }
+            } finally {
+                view.getBirdView().setValueIsAdjusting(false);
+            }
+            view.repaint();
+            processedBlockCount += chunks.size();
+            if (isSearchDone) {
+                finishIfAllProcessed();
+            } else {
+                updateStatus();
+            }
+        }
+        
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+            isSearchDone = true;
+            finishIfAllProcessed();
+        }
+        
+        /**
+         * Stops tracking changes to the model once the last of our published matches has been added to the view.
+         * Until then, a change to the lines or a discard of scrollback would make those matches apply to the wrong text.
+         */
+        private void finishIfAllProcessed() {
+            // Everything was published before done was called, so this count is final by now.
+            if (processedBlockCount < publishedBlockCount) {
+                updateStatus();
+                return;
+            }
+            if (backgroundFind == this) {
+                backgroundFind = null;
+            }
+            isFinished = true;
+            updateStatus();
+        }
+        
+        private void updateStatus() {
+            // Matches in lines that changed while we were searching aren't counted, but they're still highlighted.
+            String status = StringUtilities.pluralize(matchCount, "match", "matches");
+            findStatusDisplay.setStatus(isFinished ? status : (status + " so far"), false);
+        }
+    }
+    
+    /** The matches in one block of a snapshot. */
+    private static class BlockMatches {
+        private final ArrayList<Integer> lineIndexes = new ArrayList<Integer>();
+        private final ArrayList<int[]> matches = new ArrayList<int[]>();
+        
+        void add(int lineIndex, int[] lineMatches) {
+            lineIndexes.add(lineIndex);
+            matches.add(lineMatches);
+        }
+    }
 }
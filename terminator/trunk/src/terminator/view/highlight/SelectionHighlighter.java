@@ -59,6 +59,24 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
         }
     }
     
+    /**
+     * Moves the selection up to match the model discarding lines of scrollback.
+     * If any of the selected text was discarded, we clear the selection.
+     */
+    public void linesDiscarded(int lineCount) {
+        if (hasSelection() == false) {
+            return;
+        }
+        if (highlightStart.getLineIndex() < lineCount) {
+            highlightStart = null;
+            highlightEnd = null;
+        } else {
+            highlightStart = new Location(highlightStart.getLineIndex() - lineCount, highlightStart.getCharOffset());
+            highlightEnd = new Location(highlightEnd.getLineIndex() - lineCount, highlightEnd.getCharOffset());
+        }
+        view.repaint();
+    }
+    
     public void mousePressed(MouseEvent e) {
         if (e.isConsumed() || !SwingUtilities.isLeftMouseButton(e) || e.isPopupTrigger()) {
             return;